@@ -0,0 +1,307 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import static com.custommapsapp.android.kml.BinaryCodec.readString;
+import static com.custommapsapp.android.kml.BinaryCodec.writeString;
+
+import android.util.Log;
+
+import com.custommapsapp.android.kml.BinaryCodec;
+import com.custommapsapp.android.kml.GroundOverlay;
+import com.custommapsapp.android.kml.KmlFile;
+import com.custommapsapp.android.kml.KmlFolder;
+import com.custommapsapp.android.kml.KmlInfo;
+import com.custommapsapp.android.kml.KmzFile;
+import com.custommapsapp.android.kml.MapPack;
+import com.custommapsapp.android.kml.PackedKml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * CatalogIndex stores the catalog information of all maps in a directory in a
+ * single binary file, so that the map catalog can be built without opening
+ * and parsing the map files. Each map file's size and modification time are
+ * stored with its maps, and a file is parsed again only when they change.
+ *
+ * The maps of each file are kept encoded in memory and decoded to new
+ * KmlFolders when requested. KmzFiles created from the index open their zip
+ * file only when the map is used.
+ *
+ * @author Marko Teittinen
+ */
+class CatalogIndex {
+  private static final int MAGIC = 0x434d4349; // "CMCI"
+  /** Version of the encoding of maps, also used for the catalogs of map packs */
+  static final int VERSION = 2;
+
+  /** Catalog information of a single map file. */
+  private static class Entry {
+    final long length;
+    final long lastModified;
+    final byte[] maps;
+
+    Entry(long length, long lastModified, byte[] maps) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.maps = maps;
+    }
+  }
+
+  /** Creates the KmlInfo shared by the maps of a kml file decoded from the index. */
+  interface KmlInfoFactory {
+    /**
+     * @param kmlEntryName name of the kml entry in a kmz file, or
+     *     {@code null} if the maps are stored in a kml file
+     */
+    KmlInfo createKmlInfo(String kmlEntryName);
+  }
+
+  private final File indexFile;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private String defaultMapName;
+  private boolean modified = false;
+
+  /**
+   * Creates an index and reads its contents from the index file. Missing or
+   * invalid index file results in an empty index.
+   *
+   * @param defaultMapName name given to maps without a name. Indexed maps are
+   *     discarded if the name has changed after they were indexed.
+   */
+  CatalogIndex(File indexFile, String defaultMapName) {
+    this.indexFile = indexFile;
+    this.defaultMapName = defaultMapName;
+    try {
+      read();
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Invalid map catalog index, rebuilding it", ex);
+      entries.clear();
+      modified = true;
+    }
+  }
+
+  String getDefaultMapName() {
+    return defaultMapName;
+  }
+
+  /** Discards all indexed maps if the name used for unnamed maps has changed. */
+  void setDefaultMapName(String defaultMapName) {
+    if (!defaultMapName.equals(this.defaultMapName)) {
+      this.defaultMapName = defaultMapName;
+      entries.clear();
+      modified = true;
+    }
+  }
+
+  /**
+   * Returns the maps of a file as new KmlFolders, or {@code null} if the file
+   * is not indexed or has changed since it was indexed.
+   */
+  List<KmlFolder> getMaps(File file) {
+    return getMaps(file.getName(), file.length(), file.lastModified(),
+        entryName -> createKmlInfo(file, entryName));
+  }
+
+  /** Creates the KmlInfo of the maps stored in a kml entry of a file. */
+  static KmlInfo createKmlInfo(File file, String kmlEntryName) {
+    if (kmlEntryName == null) {
+      return new KmlFile(file);
+    }
+    return (MapPack.isMapPack(file) ? new PackedKml(file, kmlEntryName)
+        : new KmzFile(file, kmlEntryName));
+  }
+
+  /**
+   * Returns the maps of a file identified by a key, or {@code null} if the
+   * file is not indexed or its size or modification time has changed.
+   *
+   * @param factory creates the KmlInfos of the decoded maps
+   */
+  List<KmlFolder> getMaps(String key, long length, long lastModified, KmlInfoFactory factory) {
+    Entry entry = entries.get(key);
+    if (entry == null || entry.length != length || entry.lastModified != lastModified) {
+      return null;
+    }
+    return decodeMaps(factory, ByteBuffer.wrap(entry.maps));
+  }
+
+  /**
+   * Stores the maps of a file in the index. The maps must have been read for
+   * the catalog, that is, without their placemarks.
+   */
+  void putMaps(File file, List<KmlFolder> maps) throws IOException {
+    putMaps(file.getName(), file.length(), file.lastModified(), maps);
+  }
+
+  /** Stores the maps of a file identified by a key in the index. */
+  void putMaps(String key, long length, long lastModified, List<KmlFolder> maps)
+      throws IOException {
+    entries.put(key, new Entry(length, lastModified, encodeMaps(maps)));
+    modified = true;
+  }
+
+  /** Removes a deleted file from the index. */
+  void removeFile(File file) {
+    if (entries.remove(file.getName()) != null) {
+      modified = true;
+    }
+  }
+
+  /** Removes the files that are no longer in the catalog from the index. */
+  void retainFiles(Collection<File> files) {
+    Set<String> names = new HashSet<>();
+    for (File file : files) {
+      names.add(file.getName());
+    }
+    retainKeys(names);
+  }
+
+  /** Removes the files whose keys are not in the given set from the index. */
+  void retainKeys(Set<String> keys) {
+    if (entries.keySet().retainAll(keys)) {
+      modified = true;
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Index file
+
+  private void read() throws IOException {
+    ByteBuffer buffer = BinaryCodec.readFile(indexFile, MAGIC, VERSION);
+    if (buffer == null || !defaultMapName.equals(readString(buffer))) {
+      modified = true;
+      return;
+    }
+    int entryCount = buffer.getInt();
+    for (int i = 0; i < entryCount; i++) {
+      String name = readString(buffer);
+      long length = buffer.getLong();
+      long lastModified = buffer.getLong();
+      byte[] maps = new byte[buffer.getInt()];
+      buffer.get(maps);
+      entries.put(name, new Entry(length, lastModified, maps));
+    }
+  }
+
+  /** Writes the index file if the index has changed since it was read. */
+  void save() {
+    if (!modified) {
+      return;
+    }
+    try {
+      BinaryCodec.writeFile(indexFile, MAGIC, VERSION, out -> {
+        writeString(out, defaultMapName);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+          Entry entry = item.getValue();
+          writeString(out, item.getKey());
+          out.writeLong(entry.length);
+          out.writeLong(entry.lastModified);
+          out.writeInt(entry.maps.length);
+          out.write(entry.maps);
+        }
+      });
+      modified = false;
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to save map catalog index", ex);
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Map encoding
+
+  /** Encodes the catalog information of maps read for the catalog. */
+  static byte[] encodeMaps(List<KmlFolder> maps) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(maps.size());
+    for (KmlFolder mapHolder : maps) {
+      KmlInfo kmlInfo = mapHolder.getKmlInfo();
+      writeString(out, getKmlEntryName(kmlInfo));
+      out.writeInt(mapHolder.getMapIndex());
+      out.writeBoolean(mapHolder.isPlacemarksDeferred());
+      writeString(out, mapHolder.getName());
+      writeString(out, mapHolder.getDescription());
+      List<String> placemarkNames = mapHolder.getDeferredPlacemarkNames();
+      out.writeInt(placemarkNames.size());
+      for (String name : placemarkNames) {
+        writeString(out, name);
+      }
+
+      BinaryCodec.writeGroundOverlay(out, mapHolder.getFirstMap(), BinaryCodec::writeString);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /** Returns the name of the kml entry of a kmz file or a map pack, or null for a kml file. */
+  private static String getKmlEntryName(KmlInfo kmlInfo) {
+    if (kmlInfo instanceof KmzFile) {
+      return ((KmzFile) kmlInfo).getKmlEntryName();
+    } else if (kmlInfo instanceof PackedKml) {
+      return ((PackedKml) kmlInfo).getKmlEntryName();
+    }
+    return null;
+  }
+
+  /** Decodes maps encoded with encodeMaps() to new KmlFolders. */
+  static List<KmlFolder> decodeMaps(KmlInfoFactory factory, ByteBuffer in) {
+    int mapCount = in.getInt();
+    List<KmlFolder> maps = new ArrayList<>(mapCount);
+    // Maps stored in the same kml entry share the KmlInfo
+    Map<String, KmlInfo> kmlInfos = new HashMap<>();
+    for (int i = 0; i < mapCount; i++) {
+      String entryName = readString(in);
+      KmlInfo kmlInfo = kmlInfos.get(entryName);
+      if (kmlInfo == null) {
+        kmlInfo = factory.createKmlInfo(entryName);
+        kmlInfos.put(entryName, kmlInfo);
+      }
+      KmlFolder mapHolder = new KmlFolder();
+      mapHolder.setKmlInfo(kmlInfo);
+      int mapIndex = in.getInt();
+      mapHolder.setPlacemarksDeferred(mapIndex, in.get() != 0);
+      mapHolder.setName(readString(in));
+      mapHolder.setDescription(readString(in));
+      int placemarkCount = in.getInt();
+      if (placemarkCount > 0) {
+        List<String> placemarkNames = new ArrayList<>(placemarkCount);
+        for (int j = 0; j < placemarkCount; j++) {
+          placemarkNames.add(readString(in));
+        }
+        mapHolder.setDeferredPlacemarkNames(placemarkNames);
+      }
+
+      GroundOverlay map = BinaryCodec.readGroundOverlay(in, BinaryCodec::readString);
+      map.setKmlInfo(kmlInfo);
+      mapHolder.addFeature(map);
+      maps.add(mapHolder);
+    }
+    return maps;
+  }
+}
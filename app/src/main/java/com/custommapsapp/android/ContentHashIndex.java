@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.util.Log;
+
+import com.custommapsapp.android.kml.BinaryCodec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ContentHashIndex keeps the MD5 hash of every file in a directory, so that a
+ * file with the same contents as an imported file can be found with a single
+ * lookup, whatever its name is. The hashes are stored in a file with the size
+ * and modification time of each file, and a file is hashed again only when
+ * they change. The map catalog updates the index when it is refreshed, so
+ * lookups never need to read the files.
+ *
+ * @author Marko Teittinen
+ */
+class ContentHashIndex {
+  private static final String INDEX_DIR = "catalog";
+  private static final String INDEX_SUFFIX = ".hashes";
+  private static final int MAGIC = 0x434d4848; // "CMHH"
+  private static final int VERSION = 1;
+  private static final int HASH_LENGTH = 16;
+
+  /** Hash of a single file. */
+  private static class Entry {
+    final long length;
+    final long lastModified;
+    final String hash;
+
+    Entry(long length, long lastModified, String hash) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+
+  private static ContentHashIndex sharedIndex = null;
+
+  /** Returns the hash index of a directory. */
+  static synchronized ContentHashIndex forDirectory(File directory) {
+    if (sharedIndex == null || !directory.equals(sharedIndex.directory)) {
+      File indexFile = new File(FileUtil.getCacheDirectory(INDEX_DIR),
+          FileUtil.md5Hex(directory.getAbsolutePath()) + INDEX_SUFFIX);
+      sharedIndex = new ContentHashIndex(directory, indexFile);
+    }
+    return sharedIndex;
+  }
+
+  private final File directory;
+  private final File indexFile;
+  // Hashes by file name, and file names by hash
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final Map<String, String> filesByHash = new HashMap<>();
+  private boolean loaded = false;
+  private boolean modified = false;
+
+  /**
+   * @param directory directory whose files are indexed
+   * @param indexFile file the hashes are stored in
+   */
+  ContentHashIndex(File directory, File indexFile) {
+    this.directory = directory;
+    this.indexFile = indexFile;
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns a file in the directory with the given MD5 hash, or {@code null}
+   * if there is none. Only the files indexed by the latest update are found,
+   * and a file that has changed since it was indexed does not match.
+   */
+  synchronized File findFile(byte[] hash) {
+    load();
+    String name = filesByHash.get(toHex(hash));
+    if (name == null) {
+      return null;
+    }
+    File file = new File(directory, name);
+    Entry entry = entries.get(name);
+    if (file.length() != entry.length || file.lastModified() != entry.lastModified) {
+      return null;
+    }
+    return file;
+  }
+
+  /**
+   * Returns the MD5 hashes of the files in the directory as hex strings, by
+   * file name. Files that have been added or changed since the previous call
+   * are hashed first.
+   */
+  synchronized Map<String, String> getFileHashes() {
+    update();
+    Map<String, String> hashes = new HashMap<>();
+    for (Map.Entry<String, Entry> item : entries.entrySet()) {
+      hashes.put(item.getKey(), item.getValue().hash);
+    }
+    return hashes;
+  }
+
+  /**
+   * Stores the hash of a file that was hashed while it was written, so that
+   * it does not need to be read again.
+   */
+  synchronized void putFile(File file, byte[] hash) {
+    if (!directory.equals(file.getParentFile())) {
+      return;
+    }
+    load();
+    Entry old = entries.put(file.getName(), new Entry(file.length(), file.lastModified(),
+        toHex(hash)));
+    if (old != null) {
+      filesByHash.remove(old.hash);
+    }
+    filesByHash.put(toHex(hash), file.getName());
+    modified = true;
+    save();
+  }
+
+  /**
+   * Hashes the new and changed files, and removes deleted files from the
+   * index. Reads every new file, so this must not be called in the UI thread.
+   */
+  synchronized void update() {
+    load();
+    File[] files = directory.listFiles();
+    Set<String> names = new HashSet<>();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.isFile()) {
+          continue;
+        }
+        names.add(file.getName());
+        Entry entry = entries.get(file.getName());
+        if (entry != null && entry.length == file.length()
+            && entry.lastModified == file.lastModified()) {
+          continue;
+        }
+        try {
+          String hash = toHex(computeHash(file));
+          entries.put(file.getName(), new Entry(file.length(), file.lastModified(), hash));
+          modified = true;
+        } catch (IOException ex) {
+          Log.w(CustomMaps.LOG_TAG, "Failed to hash file: " + file.getName(), ex);
+        }
+      }
+    }
+    if (entries.keySet().retainAll(names)) {
+      modified = true;
+    }
+    if (modified) {
+      rebuildHashLookup();
+      save();
+    }
+  }
+
+  private void rebuildHashLookup() {
+    filesByHash.clear();
+    for (Map.Entry<String, Entry> item : entries.entrySet()) {
+      filesByHash.put(item.getValue().hash, item.getKey());
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Hashing
+
+  /** Returns a new MD5 digest. */
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException ex) {
+      // MD5 is always available on Android
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /** Computes the MD5 hash of a stream's contents. The stream is not closed. */
+  static byte[] computeHash(InputStream in) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[65536];
+    int count;
+    while ((count = in.read(buffer)) > 0) {
+      digest.update(buffer, 0, count);
+    }
+    return digest.digest();
+  }
+
+  private static byte[] computeHash(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return computeHash(in);
+    }
+  }
+
+  static String toHex(byte[] hash) {
+    StringBuilder hex = new StringBuilder(2 * hash.length);
+    for (byte b : hash) {
+      hex.append(String.format(Locale.US, "%02x", b & 0xFF));
+    }
+    return hex.toString();
+  }
+
+  // --------------------------------------------------------------------------
+  // Index file
+
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    try {
+      read();
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Invalid content hash index, rebuilding it", ex);
+      entries.clear();
+    }
+    rebuildHashLookup();
+  }
+
+  private void read() throws IOException {
+    ByteBuffer buffer = BinaryCodec.readFile(indexFile, MAGIC, VERSION);
+    if (buffer == null) {
+      return;
+    }
+    int entryCount = buffer.getInt();
+    for (int i = 0; i < entryCount; i++) {
+      String name = BinaryCodec.readString(buffer);
+      long length = buffer.getLong();
+      long lastModified = buffer.getLong();
+      byte[] hash = new byte[HASH_LENGTH];
+      buffer.get(hash);
+      entries.put(name, new Entry(length, lastModified, toHex(hash)));
+    }
+  }
+
+  private void save() {
+    if (!modified) {
+      return;
+    }
+    try {
+      BinaryCodec.writeFile(indexFile, MAGIC, VERSION, out -> {
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+          Entry entry = item.getValue();
+          BinaryCodec.writeString(out, item.getKey());
+          out.writeLong(entry.length);
+          out.writeLong(entry.lastModified);
+          for (int i = 0; i < HASH_LENGTH; i++) {
+            out.writeByte(Integer.parseInt(entry.hash.substring(2 * i, 2 * i + 2), 16));
+          }
+        }
+      });
+      modified = false;
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to save content hash index", ex);
+    }
+  }
+}
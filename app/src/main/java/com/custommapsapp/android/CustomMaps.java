@@ -16,18 +16,22 @@
 package com.custommapsapp.android;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-
-import org.xmlpull.v1.XmlPullParserException;
+import java.util.Locale;
 
 import android.Manifest;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorManager;
@@ -38,6 +42,7 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.SubMenu;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
@@ -58,7 +63,6 @@ import com.custommapsapp.android.kml.KmlFeature;
 import com.custommapsapp.android.kml.KmlFinder;
 import com.custommapsapp.android.kml.KmlFolder;
 import com.custommapsapp.android.kml.KmlInfo;
-import com.custommapsapp.android.kml.KmlParser;
 import com.custommapsapp.android.kml.Placemark;
 import com.custommapsapp.android.language.Linguist;
 import com.custommapsapp.android.storage.EditPreferences;
@@ -105,6 +109,13 @@ public class CustomMaps extends AppCompatActivity {
   private static final int MENU_LOCATION_DETAILS = 3;
   private static final int MENU_SHARE_MAP = 4;
   private static final int MENU_PREFERENCES = 5;
+  private static final int MENU_ADD_WAYPOINT = 6;
+  private static final int MENU_TRACK = 7;
+  private static final int MENU_RECORD_TRACK = 8;
+  private static final int MENU_EXPORT_TRACK = 9;
+  private static final int MENU_CLEAR_TRACK = 10;
+
+  private static final String TRACK_FILE = "track.bin";
 
   private MapDisplay mapDisplay;
   private LocationLayer locationLayer;
@@ -112,6 +123,9 @@ public class CustomMaps extends AppCompatActivity {
   private KmlFolder selectedMap = null;
   private GroundOverlay mapImage = null;
   private List<Placemark> placemarks = new ArrayList<>();
+  private WaypointStore waypointStore = null;
+  private TrackRecorder trackRecorder = null;
+  private MapSwitcher mapSwitcher = null;
   private DetailsDisplay detailsDisplay;
   private ScaleDisplay scaleDisplay = null;
   private View scaleDisplayView;
@@ -172,6 +186,11 @@ public class CustomMaps extends AppCompatActivity {
       public void scale(float factor, float focusX, float focusY) {
         scaleMap(factor, focusX, focusY);
       }
+
+      @Override
+      public void tap(float x, float y) {
+        showPlacemarkAt(x, y);
+      }
     });
     // Listen to mouse wheel events in location layer that covers MapDisplay
     locationLayer.setOnGenericMotionListener(inertiaScroller.getGenericMotionListener());
@@ -189,6 +208,7 @@ public class CustomMaps extends AppCompatActivity {
     linguist.translateView(findViewById(R.id.root_view));
     mapDisplay = findViewById(R.id.mapDisplay);
     mapDisplay.setLinguist(linguist);
+    mapDisplay.setTrack(trackRecorder);
     if (inertiaScroller != null) {
       inertiaScroller.setView(mapDisplay);
     }
@@ -241,6 +261,24 @@ public class CustomMaps extends AppCompatActivity {
     }
   }
 
+  /**
+   * Displays the name and description of the placemark at the given screen
+   * point, if there is one.
+   */
+  private void showPlacemarkAt(float x, float y) {
+    Placemark placemark = mapDisplay.findPlacemarkAt(x, y);
+    if (placemark == null) {
+      return;
+    }
+    String name = placemark.getName();
+    if (name == null || name.trim().length() == 0) {
+      name = linguist.getString(R.string.unnamed_placemark);
+    }
+    String description = placemark.getDescription();
+    InfoDialogFragment.showDialog(getSupportFragmentManager(), name,
+        description != null ? description.trim() : "");
+  }
+
   /**
    * Moves the map image on display in x and y direction by given number of pixels. Positive values
    * move the map image left and up (i.e. viewport moves right and down over the image).
@@ -338,6 +376,9 @@ public class CustomMaps extends AppCompatActivity {
     locationTracker.setDisplay(getWindowManager().getDefaultDisplay());
     locationTracker.setQuitting(false);
     locationTracker.resetCompass();
+    if (PreferenceStore.instance(this).isAutoSwitchMap()) {
+      mapSwitcher = new MapSwitcher(this, MapCatalog.forMapStorage(this), this::switchToMap);
+    }
 
     // Initialize locationTracker with the last known position (if it is not older than 15 minutes)
     long _15Minutes = 15 * 60 * 1000;
@@ -377,6 +418,9 @@ public class CustomMaps extends AppCompatActivity {
     distanceLayer.setShowHeading(prefs.isShowHeading());
     visibility = prefs.isShowScale() ? View.VISIBLE : View.GONE;
     scaleDisplayView.setVisibility(visibility);
+    if (prefs.isRecordTrack()) {
+      openTrackRecorder();
+    }
   }
 
   @Override
@@ -393,6 +437,11 @@ public class CustomMaps extends AppCompatActivity {
     locationTracker.setQuitting(true);
     sensors.unregisterListener(locationTracker);
     locator.removeUpdates(locationTracker);
+    closeTrackRecorder();
+    if (mapSwitcher != null) {
+      mapSwitcher.release();
+      mapSwitcher = null;
+    }
     super.onPause();
     isLaunchingSelectMap = false;
   }
@@ -433,6 +482,8 @@ public class CustomMaps extends AppCompatActivity {
       if (loadMapForDisplay(mapImage, null) == MapError.NO_ERROR) {
         selectedMap = savedMap;
         mapDisplay.addMapMarkers(placemarks);
+        loadMapPlacemarks();
+        loadGpxOverlays();
         float[] geoCenter = (float[]) inState.getSerializable(SAVED_CENTER);
         if (geoCenter != null) {
           mapDisplay.centerOnLocation(geoCenter[0], geoCenter[1]);
@@ -472,6 +523,7 @@ public class CustomMaps extends AppCompatActivity {
     selectedMap = map;
     placemarks.clear();
     mapImage = null;
+    waypointStore = null;
     if (map != null) {
       mapImage = map.getFirstMap();
       Log.i(LOG_TAG, "Selected map: " + (mapImage == null ? "- none -" : mapImage.getName()));
@@ -480,6 +532,11 @@ public class CustomMaps extends AppCompatActivity {
           placemarks.add((Placemark) feature);
         }
       }
+      // Merge user created waypoints with placemarks stored in the map
+      if (map.getKmlInfo() != null) {
+        waypointStore = WaypointStore.forMap(this, map);
+        placemarks.addAll(waypointStore.getWaypoints());
+      }
     }
     Log.i(LOG_TAG,
         String.format("CustomMaps initialized map. Found %d placemarks.", placemarks.size()));
@@ -505,8 +562,18 @@ public class CustomMaps extends AppCompatActivity {
         Menu.NONE, MENU_LOCATION_DETAILS, Menu.NONE, linguist.getString(R.string.location_details))
         .setIcon(android.R.drawable.ic_menu_info_details)
         .setCheckable(true);
+    menu.add(Menu.NONE, MENU_ADD_WAYPOINT, Menu.NONE, linguist.getString(R.string.add_waypoint))
+        .setIcon(R.drawable.ic_add_white_24dp);
     menu.add(Menu.NONE, MENU_SHARE_MAP, Menu.NONE, linguist.getString(R.string.share_map))
         .setIcon(android.R.drawable.ic_menu_share);
+    SubMenu trackMenu =
+        menu.addSubMenu(Menu.NONE, MENU_TRACK, Menu.NONE, linguist.getString(R.string.track));
+    trackMenu.add(Menu.NONE, MENU_RECORD_TRACK, Menu.NONE,
+        linguist.getString(R.string.record_track)).setCheckable(true);
+    trackMenu.add(Menu.NONE, MENU_EXPORT_TRACK, Menu.NONE,
+        linguist.getString(R.string.export_track));
+    trackMenu.add(Menu.NONE, MENU_CLEAR_TRACK, Menu.NONE,
+        linguist.getString(R.string.clear_track));
     menu.add(Menu.NONE, MENU_PREFERENCES, Menu.NONE, linguist.getString(R.string.settings))
         .setIcon(android.R.drawable.ic_menu_preferences);
   }
@@ -517,7 +584,12 @@ public class CustomMaps extends AppCompatActivity {
       menu.findItem(MENU_SELECT_MAP).setTitle(linguist.getString(R.string.select_map));
       menu.findItem(MENU_MY_LOCATION).setTitle(linguist.getString(R.string.my_location));
       menu.findItem(MENU_LOCATION_DETAILS).setTitle(linguist.getString(R.string.location_details));
+      menu.findItem(MENU_ADD_WAYPOINT).setTitle(linguist.getString(R.string.add_waypoint));
       menu.findItem(MENU_SHARE_MAP).setTitle(linguist.getString(R.string.share_map));
+      menu.findItem(MENU_TRACK).setTitle(linguist.getString(R.string.track));
+      menu.findItem(MENU_RECORD_TRACK).setTitle(linguist.getString(R.string.record_track));
+      menu.findItem(MENU_EXPORT_TRACK).setTitle(linguist.getString(R.string.export_track));
+      menu.findItem(MENU_CLEAR_TRACK).setTitle(linguist.getString(R.string.clear_track));
       menu.findItem(MENU_PREFERENCES).setTitle(linguist.getString(R.string.settings));
       updateMenuItems = false;
     }
@@ -526,6 +598,11 @@ public class CustomMaps extends AppCompatActivity {
     // Can't share a null map or one that doesn't contain KmlInfo
     boolean enableShare = (selectedMap != null && selectedMap.getKmlInfo() != null);
     menu.findItem(MENU_SHARE_MAP).setEnabled(enableShare);
+    menu.findItem(MENU_ADD_WAYPOINT).setEnabled(waypointStore != null);
+    menu.findItem(MENU_RECORD_TRACK).setChecked(trackRecorder != null);
+    boolean hasTrack = new File(getFilesDir(), TRACK_FILE).exists();
+    menu.findItem(MENU_EXPORT_TRACK).setEnabled(hasTrack);
+    menu.findItem(MENU_CLEAR_TRACK).setEnabled(hasTrack);
     return super.onPrepareOptionsMenu(menu);
   }
 
@@ -548,9 +625,21 @@ public class CustomMaps extends AppCompatActivity {
       case MENU_LOCATION_DETAILS:
         toggleDetailsDisplay();
         break;
+      case MENU_ADD_WAYPOINT:
+        addWaypoint();
+        break;
       case MENU_SHARE_MAP:
         shareMap();
         break;
+      case MENU_RECORD_TRACK:
+        toggleTrackRecording();
+        break;
+      case MENU_EXPORT_TRACK:
+        exportTrack();
+        break;
+      case MENU_CLEAR_TRACK:
+        clearTrack();
+        break;
       case MENU_PREFERENCES:
         launchEditPreferences();
         break;
@@ -583,10 +672,188 @@ public class CustomMaps extends AppCompatActivity {
     scaleDisplayView.post(scaleDisplay::update);
   }
 
+  /** Adds a user waypoint at current location. */
+  private void addWaypoint() {
+    Location location = locationTracker.getCurrentLocation(null);
+    if (waypointStore == null || location == null) {
+      displayUserMessage(linguist.getString(R.string.waiting_for_gps));
+      return;
+    }
+    int number = waypointStore.getWaypoints().size() + 1;
+    Placemark waypoint = waypointStore.addWaypoint(
+        linguist.getString(R.string.waypoint_name, number),
+        location.getLatitude(), location.getLongitude());
+    if (waypoint == null) {
+      displayUserMessage(linguist.getString(R.string.add_waypoint_failed));
+      return;
+    }
+    placemarks.add(waypoint);
+    mapDisplay.addMapMarker(waypoint);
+    mapDisplay.invalidate();
+  }
+
+  // --------------------------------------------------------------------------
+  // Track recording
+
+  private void toggleTrackRecording() {
+    boolean recordTrack = (trackRecorder == null);
+    PreferenceStore.instance(this).setRecordTrack(recordTrack);
+    if (recordTrack) {
+      openTrackRecorder();
+    } else {
+      closeTrackRecorder();
+    }
+  }
+
+  private void openTrackRecorder() {
+    if (trackRecorder != null) {
+      return;
+    }
+    try {
+      trackRecorder = new TrackRecorder(new File(getFilesDir(), TRACK_FILE));
+    } catch (IOException ex) {
+      Log.w(LOG_TAG, "Failed to open track file", ex);
+      displayUserMessage(linguist.getString(R.string.track_failed));
+      PreferenceStore.instance(this).setRecordTrack(false);
+    }
+    mapDisplay.setTrack(trackRecorder);
+  }
+
+  private void closeTrackRecorder() {
+    if (trackRecorder != null) {
+      trackRecorder.close();
+      trackRecorder = null;
+    }
+    mapDisplay.setTrack(null);
+  }
+
+  private void clearTrack() {
+    if (trackRecorder != null) {
+      trackRecorder.clear();
+      mapDisplay.invalidate();
+    } else {
+      File trackFile = new File(getFilesDir(), TRACK_FILE);
+      if (!trackFile.delete()) {
+        Log.w(LOG_TAG, "Failed to delete track file");
+      }
+    }
+  }
+
+  /** Writes the recorded track to a GPX file in background, and shares it. */
+  private void exportTrack() {
+    final TrackRecorder openRecorder = trackRecorder;
+    Thread export = new Thread(() -> {
+      String name = new SimpleDateFormat("yyyy-MM-dd_HHmm", Locale.US).format(new Date());
+      File gpxFile = new File(FileUtil.getCacheDirectory("exports"), "track_" + name + ".gpx");
+      TrackRecorder recorder = openRecorder;
+      boolean success = false;
+      try (Writer out = new FileWriter(gpxFile)) {
+        if (recorder == null) {
+          recorder = new TrackRecorder(new File(getFilesDir(), TRACK_FILE));
+        }
+        recorder.exportGpx(out, name);
+        success = true;
+      } catch (IOException ex) {
+        Log.w(LOG_TAG, "Failed to export track", ex);
+      } finally {
+        if (recorder != null && recorder != openRecorder) {
+          recorder.close();
+        }
+      }
+      final boolean exported = success;
+      runOnUiThread(() -> {
+        if (!exported || !FileUtil.shareTrack(CustomMaps.this, gpxFile)) {
+          displayUserMessage(linguist.getString(R.string.track_failed));
+        }
+      });
+    });
+    export.start();
+  }
+
   private void shareMap() {
-    if (selectedMap == null || !FileUtil.shareMap(this, selectedMap)) {
+    if (selectedMap == null) {
       displayUserMessage(linguist.getString(R.string.share_map_failed));
+      return;
     }
+    final KmlFolder map = selectedMap;
+    final WaypointStore waypoints = waypointStore;
+    if (waypoints == null || !waypoints.hasWaypoints()) {
+      if (!FileUtil.shareMap(this, map)) {
+        displayUserMessage(linguist.getString(R.string.share_map_failed));
+      }
+      return;
+    }
+    // Write user waypoints into the shared kmz file first, it can take a while
+    Thread exportWaypoints = new Thread(() -> {
+      boolean exported = waypoints.exportToKmz(map);
+      runOnUiThread(() -> {
+        if (!exported) {
+          displayUserMessage(linguist.getString(R.string.share_waypoints_failed));
+        }
+        if (!FileUtil.shareMap(CustomMaps.this, map)) {
+          displayUserMessage(linguist.getString(R.string.share_map_failed));
+        }
+      });
+    });
+    exportWaypoints.start();
+  }
+
+  /**
+   * Loads the placemarks of the selected map in background, if they were not passed with the map,
+   * and adds them to the map display when ready.
+   */
+  private void loadMapPlacemarks() {
+    final KmlFolder map = selectedMap;
+    if (map == null || !map.isPlacemarksDeferred()) {
+      return;
+    }
+    Thread loader = new Thread(() -> {
+      MapCatalog.loadDeferredPlacemarks(map);
+      List<Placemark> mapPlacemarks = new ArrayList<>();
+      for (KmlFeature feature : map.getFeatures()) {
+        if (feature instanceof Placemark) {
+          mapPlacemarks.add((Placemark) feature);
+        }
+      }
+      if (mapPlacemarks.isEmpty()) {
+        return;
+      }
+      runOnUiThread(() -> {
+        // Ignore results if user selected another map while loading
+        if (selectedMap == map) {
+          placemarks.addAll(mapPlacemarks);
+          mapDisplay.addMapMarkers(mapPlacemarks);
+        }
+      });
+    });
+    loader.setPriority(Thread.MIN_PRIORITY);
+    loader.start();
+  }
+
+  /**
+   * Loads the GPX files overlapping the selected map in background, and adds
+   * them to the map display when ready.
+   */
+  private void loadGpxOverlays() {
+    final KmlFolder map = selectedMap;
+    final GroundOverlay overlay = mapImage;
+    if (map == null || overlay == null) {
+      return;
+    }
+    Thread loader = new Thread(() -> {
+      List<Placemark> overlays = GpxOverlays.findOverlays(CustomMaps.this, overlay);
+      if (overlays.isEmpty()) {
+        return;
+      }
+      runOnUiThread(() -> {
+        // Ignore results if user selected another map while loading
+        if (selectedMap == map) {
+          mapDisplay.addMapMarkers(overlays);
+        }
+      });
+    });
+    loader.setPriority(Thread.MIN_PRIORITY);
+    loader.start();
   }
 
   // --------------------------------------------------------------------------
@@ -594,11 +861,11 @@ public class CustomMaps extends AppCompatActivity {
 
   /**
    * Processes launch intent action. Only Intent.ACTION_VIEW is supported, and the data Uri must be
-   * valid and it must point to KML/KMZ content to be viewed.
+   * valid and it must point to KML/KMZ or GPX content to be viewed.
    *
    * @param action action that was in the intent that launched the app
    * @param data Uri that was in the intent that launched the app
-   * @return true, iff the launch intent contained a valid KML/KMZ view action
+   * @return true, iff the launch intent contained a valid KML/KMZ or GPX view action
    */
   private boolean launchIntentAction(String action, Uri data) {
     if (!Intent.ACTION_VIEW.equals(action) || data == null) {
@@ -607,37 +874,15 @@ public class CustomMaps extends AppCompatActivity {
     // Save content:// scheme Uri data into a file using ContentResolver
     if (ContentResolver.SCHEME_CONTENT.equals(data.getScheme())) {
       Log.d(LOG_TAG, "Opening content w/ mimetype: " + getContentResolver().getType(data));
-      File catalogFile = null;
-      try {
-        // Check if that file is already in the catalog
-        catalogFile = FileUtil.findMatchingCatalogFile(this, data);
-      } catch (IllegalArgumentException ex) {
-        Log.e(LOG_TAG, "Failed to check matching files in catalog", ex);
-      }
-      if (catalogFile == null) {
-        // No matching file was found in catalog, add the file to catalog
-        catalogFile = FileUtil.saveKmzContentUri(this, data);
-      }
-      if (catalogFile != null) {
-        // Open the catalog file instead of passed-in content Uri
-        data = Uri.fromFile(catalogFile);
-      } else {
-        // Failed to save the data, display error message and quit app
-        displayUserMessage(linguist.getString(R.string.external_content_failed));
-        finish();
-        return false;
-      }
+      importContent(data);
+      return true;
     }
     // NOTE: All errors "fall through" to return 'false'
     if ("file".equals(data.getScheme())) {
-      // Open local KMZ file
+      // Open local KMZ or GPX file
       String localPath = data.getPath();
-      if (localPath != null) {
-        File localFile = new File(localPath);
-        if (localFile.exists() && localFile.isFile() && localFile.getName().endsWith(".kmz")) {
-          launchSelectMap(localFile);
-          return true;
-        }
+      if (localPath != null && launchLocalFile(new File(localPath))) {
+        return true;
       }
       Log.w(LOG_TAG, "Invalid open local file request: " + localPath);
     } else if (data.toString().startsWith(DOWNLOAD_URL_PREFIX)) {
@@ -656,6 +901,83 @@ public class CustomMaps extends AppCompatActivity {
     return false;
   }
 
+  /**
+   * Saves content Uri data into a catalog file in a background thread, unless the catalog already
+   * has a file with the same contents, and opens the catalog file when it is ready.
+   */
+  private void importContent(Uri data) {
+    Thread importer = new Thread(() -> {
+      File catalogFile = null;
+      try {
+        // Check if that file is already in the catalog
+        catalogFile = FileUtil.findMatchingCatalogFile(this, data);
+      } catch (IllegalArgumentException ex) {
+        Log.e(LOG_TAG, "Failed to check matching files in catalog", ex);
+      }
+      if (catalogFile == null) {
+        // No matching file was found in catalog, add the file to catalog
+        String fileName = FileUtil.resolveContentFileName(data);
+        boolean isGpx = (fileName != null ? GpxOverlays.isGpxFile(new File(fileName))
+            : GpxOverlays.GPX_MIME_TYPE.equals(getContentResolver().getType(data)));
+        if (isGpx) {
+          catalogFile = FileUtil.saveContentUri(this, data, "track-%03d.gpx");
+        } else {
+          catalogFile = FileUtil.saveKmzContentUri(this, data);
+        }
+      }
+      final File savedFile = catalogFile;
+      runOnUiThread(() -> {
+        if (savedFile == null) {
+          // Failed to save the data, display error message and quit app
+          displayUserMessage(linguist.getString(R.string.external_content_failed));
+          finish();
+          return;
+        }
+        // Open the catalog file instead of passed-in content Uri
+        if (!launchLocalFile(savedFile)) {
+          Log.w(LOG_TAG, "Invalid open content request: " + data);
+          launchSelectMap(true);
+        }
+      });
+    });
+    importer.start();
+  }
+
+  /**
+   * Opens a local KMZ or GPX file. GPX files are displayed on top of the maps they overlap, so they
+   * are copied into the data directory in a background thread, and a map is selected for them when
+   * the copy is ready.
+   *
+   * @return true, iff the file is a KMZ or GPX file
+   */
+  private boolean launchLocalFile(File localFile) {
+    if (!localFile.exists() || !localFile.isFile()) {
+      return false;
+    }
+    if (localFile.getName().endsWith(".kmz")) {
+      launchSelectMap(localFile);
+      return true;
+    }
+    if (!GpxOverlays.isGpxFile(localFile)) {
+      return false;
+    }
+    if (localFile.getParentFile().equals(FileUtil.getInternalMapDirectory())) {
+      launchSelectMap(true);
+      return true;
+    }
+    Thread copier = new Thread(() -> {
+      File copy = FileUtil.copyToDataDirectory(localFile);
+      runOnUiThread(() -> {
+        if (copy == null) {
+          displayUserMessage(linguist.getString(R.string.external_content_failed));
+        }
+        launchSelectMap(true);
+      });
+    });
+    copier.start();
+    return true;
+  }
+
   private void launchKmzDownloader(URL mapUrl) {
     Intent downloadMap = new Intent(this, KmzDownloader.class);
     downloadMap.putExtra(KmzDownloader.URL, mapUrl.toString());
@@ -713,6 +1035,8 @@ public class CustomMaps extends AppCompatActivity {
       MapError status = loadMapForDisplay(mapImage, mapDisplay.getMap());
       if (status == MapError.NO_ERROR) {
         mapDisplay.addMapMarkers(placemarks);
+        loadMapPlacemarks();
+        loadGpxOverlays();
         if (PreferenceStore.instance(this).isReminderRequested()) {
           displaySafetyReminder(null);
         }
@@ -816,6 +1140,37 @@ public class CustomMaps extends AppCompatActivity {
     }
   }
 
+  /**
+   * Displays a map selected automatically after the user moved off the
+   * previous map.
+   *
+   * @param map KmlFolder containing the new map and its placemarks
+   * @param image preloaded image of the map, or {@code null}
+   * @return {@code true} if the new map is displayed
+   */
+  private boolean switchToMap(KmlFolder map, Bitmap image) {
+    KmlFolder oldSelectedMap = selectedMap;
+    GroundOverlay oldMap = mapDisplay.getMap();
+    initializeMapVariables(map);
+    if (image != null) {
+      mapDisplay.setPreloadedImage(mapImage, image);
+    }
+    if (loadMapForDisplay(mapImage, oldMap) != MapError.NO_ERROR) {
+      Log.w(LOG_TAG, "Failed to switch to map: " + mapImage.getName());
+      initializeMapVariables(oldSelectedMap);
+      mapDisplay.addMapMarkers(placemarks);
+      loadGpxOverlays();
+      return false;
+    }
+    mapDisplay.addMapMarkers(placemarks);
+    loadGpxOverlays();
+    PreferenceStore.instance(this).setLastUsedMap(mapImage.getName());
+    displayState.setFollowMode(mapDisplay.centerOnGpsLocation());
+    scaleDisplay.update();
+    displayUserMessage(linguist.getString(R.string.map_switched, mapImage.getName()));
+    return true;
+  }
+
   private void displayMapLoadWarning() {
     // Failed to load selected map, old was recovered, display error message
     displayUserMessage(linguist.getString(R.string.map_too_large));
@@ -903,61 +1258,15 @@ public class CustomMaps extends AppCompatActivity {
     }
   }
 
-  private KmlFolder findAnyMap() throws IOException, XmlPullParserException {
+  private KmlFolder findAnyMap() {
     if (selectedMap != null) {
       return selectedMap;
     }
 
     Iterable<KmlInfo> kmlFiles = KmlFinder.findKmlFiles(FileUtil.getInternalMapDirectory());
     KmlInfo data = kmlFiles.iterator().next();
-    KmlParser parser = new KmlParser();
-    Iterable<KmlFeature> features = parser.readFile(data.getKmlReader());
     // Find first map in the KML file
-    KmlFolder mapFolder = null;
-    List<KmlFeature> placemarks = new ArrayList<>();
-    GroundOverlay map = null;
-    for (KmlFeature feature : features) {
-      if (feature instanceof Placemark) {
-        feature.setKmlInfo(data);
-        placemarks.add(feature);
-        continue;
-      }
-      if (map != null) {
-        continue;
-      }
-      if (feature instanceof GroundOverlay) {
-        map = (GroundOverlay) feature;
-      } else if (feature instanceof KmlFolder) {
-        // Scan folder for a possible map
-        KmlFolder folder = (KmlFolder) feature;
-        for (KmlFeature folderFeature : folder.getFeatures()) {
-          if (folderFeature instanceof GroundOverlay) {
-            map = (GroundOverlay) folderFeature;
-            mapFolder = folder;
-            break;
-          }
-        }
-      }
-    }
-    KmlFolder result = null;
-    if (map != null) {
-      map.setKmlInfo(data);
-      result = new KmlFolder();
-      result.setKmlInfo(data);
-      result.addFeature(map);
-      result.addFeatures(placemarks);
-      if (mapFolder != null) {
-        result.setName(mapFolder.getName());
-        result.setDescription(mapFolder.getDescription());
-        for (KmlFeature feature : mapFolder.getFeatures()) {
-          if (feature instanceof Placemark) {
-            feature.setKmlInfo(data);
-            result.addFeature(feature);
-          }
-        }
-      }
-    }
-    return result;
+    return MapCatalog.loadMap(data, null);
   }
 
   private LocationManager locator;
@@ -972,15 +1281,25 @@ public class CustomMaps extends AppCompatActivity {
       // Get updated location w/ averaged speed and altitude to be passed to
       // mapDisplay
       getCurrentLocation(location);
+      // Map display stops following the user when they move off the map
+      boolean following = displayState.getFollowMode();
       mapDisplay.setGpsLocation((float) location.getLongitude(), (float) location.getLatitude(),
           location.hasAccuracy() ? location.getAccuracy() : 10000f, location.getBearing());
       locationLayer.setGpsLocation(location);
+      if (mapSwitcher != null) {
+        mapSwitcher.onLocationChanged(location, mapDisplay.getMap(), following);
+      }
       if (distanceLayer.getVisibility() == View.VISIBLE) {
         distanceLayer.setUserLocation(location);
       }
       if (detailsDisplay.isShown()) {
         detailsDisplay.updateValues(location);
       }
+      if (trackRecorder != null && LocationManager.GPS_PROVIDER.equals(location.getProvider())) {
+        if (trackRecorder.append(location)) {
+          mapDisplay.invalidate();
+        }
+      }
     }
 
     @Override
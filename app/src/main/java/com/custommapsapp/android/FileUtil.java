@@ -25,9 +25,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Locale;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -40,6 +42,8 @@ import android.util.Log;
 import androidx.core.content.FileProvider;
 import androidx.documentfile.provider.DocumentFile;
 import com.custommapsapp.android.kml.KmlFolder;
+import com.custommapsapp.android.kml.KmlInfo;
+import com.custommapsapp.android.kml.KmzDocument;
 
 
 /**
@@ -68,6 +72,11 @@ public class FileUtil {
     }
   }
 
+  /** Returns the content resolver of the app, used to read documents in storage folders. */
+  public static ContentResolver getContentResolver() {
+    return appContext.getContentResolver();
+  }
+
   /**
    * Returns internal directory to be used for storing map kmz files. NOTE: "FileUtil.init(context)"
    * must have been called before using this method to initialize the application context specific
@@ -232,48 +241,49 @@ public class FileUtil {
   }
 
   /**
-   * Returns a File in catalog that matches given contentUri, or null if no match is found.
+   * Returns a File in catalog that has the same contents as given contentUri, or null if no match
+   * is found. The file names do not need to match. The content is read once to compute its
+   * checksum, which is looked up in the index of the checksums of catalog files. Reads the content,
+   * so this must not be called in the UI thread.
    *
    * @throws IllegalArgumentException if any exceptions occur during the process. The caller should
    * assume that the given Uri is invalid and cannot be opened.
    */
   public static File findMatchingCatalogFile(Context context, Uri contentUri)
       throws IllegalArgumentException {
-    // If filename cannot be resolved, it is considered not added
-    String fileName = resolveContentFileName(contentUri);
-    if (fileName == null) {
-      throw new IllegalArgumentException("New file name could not be determined");
-    }
-    // If no file with a matching name exists in catalog, the file is assumed not added
-    File catalogFile = new File(getInternalMapDirectory(), fileName);
-    if (!catalogFile.exists()) {
-      return null;
-    }
-    // Now a file with a matching name exists in catalog. Compute and compare checksums.
     InputStream in = null;
+    byte[] newFileChecksum;
     try {
       in = context.getContentResolver().openInputStream(contentUri);
-      byte[] newFileChecksum = computeChecksum(in);
-      in.close();
-      in = null;
-      in = new FileInputStream(catalogFile);
-      byte[] catalogFileChecksum = computeChecksum(in);
-      return Arrays.equals(newFileChecksum, catalogFileChecksum) ? catalogFile : null;
+      if (in == null) {
+        throw new IOException("Content could not be opened");
+      }
+      newFileChecksum = ContentHashIndex.computeHash(in);
     } catch (Exception ex) {
       throw new IllegalArgumentException("Failed to compute a checksum", ex);
     } finally {
       tryToClose(in);
     }
+    return ContentHashIndex.forDirectory(getInternalMapDirectory()).findFile(newFileChecksum);
   }
 
-  private static byte[] computeChecksum(InputStream data) throws Exception {
-    MessageDigest digest = MessageDigest.getInstance("MD5");
-    byte[] buffer = new byte[4196];
-    int bytes;
-    while ((bytes = data.read(buffer)) > 0) {
-      digest.update(buffer, 0, bytes);
+  /**
+   * Returns MD5 hash of the given text as a hex string. Used for generating
+   * file names for cache and sidecar files.
+   */
+  public static String md5Hex(String text) {
+    try {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      byte[] digest = md5.digest(text.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format(Locale.US, "%02x", b & 0xFF));
+      }
+      return hex.toString();
+    } catch (Exception ex) {
+      // MD5 is always available, but fall back to String hash just in case
+      return Integer.toHexString(text.hashCode());
     }
-    return digest.digest();
   }
 
   /**
@@ -285,6 +295,20 @@ public class FileUtil {
    * @return {@code File} reference to saved file or {@code null} if failed
    */
   public static File saveKmzContentUri(Context context, Uri contentUri) {
+    return saveContentUri(context, contentUri, "map-%03d.kmz");
+  }
+
+  /**
+   * Saves the contents of the given content-scheme Uri to a file in data
+   * directory and returns a File object pointing to the saved file (or
+   * {@code null} in case of failure).
+   *
+   * @param contentUri Android Uri beginning with "content://"
+   * @param defaultNameFormat String.format used to name the file if the name
+   *     of the content cannot be resolved. Must contain a single '%d' field.
+   * @return {@code File} reference to saved file or {@code null} if failed
+   */
+  public static File saveContentUri(Context context, Uri contentUri, String defaultNameFormat) {
     InputStream in = null;
     OutputStream out = null;
     String fileName = "unknown";
@@ -308,18 +332,24 @@ public class FileUtil {
           targetFile = newFileInDataDirectory(namePattern);
         }
       } else {
-        targetFile = newFileInDataDirectory("map-%03d.kmz");
+        targetFile = newFileInDataDirectory(defaultNameFormat);
         fileName = contentUri.toString();
       }
-      in = context.getContentResolver().openInputStream(contentUri);
+      // Checksum is computed while copying, so the saved file does not need to be read again
+      MessageDigest digest = ContentHashIndex.newDigest();
+      in = new DigestInputStream(context.getContentResolver().openInputStream(contentUri), digest);
       out = new FileOutputStream(targetFile);
 
       copyContents(in, out);
+      out.close();
+      out = null;
+      ContentHashIndex.forDirectory(getInternalMapDirectory())
+          .putFile(targetFile, digest.digest());
 
       return targetFile;
     } catch (Exception ex) {
       // Failed to save file, log failure and return false
-      Log.w(CustomMaps.LOG_TAG, "Failed to save KMZ content named: " + fileName, ex);
+      Log.w(CustomMaps.LOG_TAG, "Failed to save content named: " + fileName, ex);
       return null;
     } finally {
       // Close streams
@@ -413,8 +443,7 @@ public class FileUtil {
     sendMap.setType("application/vnd.google-earth.kmz");
     try {
       File mapFile = map.getKmlInfo().getFile();
-      Uri mapUri =
-          FileProvider.getUriForFile(sender, "com.custommapsapp.android.fileprovider", mapFile);
+      Uri mapUri = getShareUri(sender, map);
       sendMap.putExtra(Intent.EXTRA_SUBJECT, mapFile.getName());
       sendMap.putExtra(Intent.EXTRA_STREAM, mapUri);
       sendMap.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
@@ -438,10 +467,7 @@ public class FileUtil {
   public static void exportMaps(Activity sender, Iterable<KmlFolder> maps) {
     ArrayList<Uri> mapUris = new ArrayList<>();
     for (KmlFolder map : maps) {
-      File mapFile = map.getKmlInfo().getFile();
-      Uri mapUri =
-          FileProvider.getUriForFile(sender, "com.custommapsapp.android.fileprovider", mapFile);
-      mapUris.add(mapUri);
+      mapUris.add(getShareUri(sender, map));
     }
     if (mapUris.isEmpty()) {
       return;
@@ -453,6 +479,69 @@ public class FileUtil {
     sender.startActivity(exportMaps);
   }
 
+  /**
+   * Returns a Uri other apps can read a map file from. Maps stored in documents are shared
+   * directly from the documents provider.
+   */
+  private static Uri getShareUri(Activity sender, KmlFolder map) {
+    KmlInfo kmlInfo = map.getKmlInfo();
+    if (kmlInfo instanceof KmzDocument) {
+      return ((KmzDocument) kmlInfo).getDocumentUri();
+    }
+    return FileProvider.getUriForFile(
+        sender, "com.custommapsapp.android.fileprovider", kmlInfo.getFile());
+  }
+
+  /**
+   * Shares a map pack file with other apps.
+   *
+   * @param sender currently active Activity
+   * @param packFile map pack file in export cache directory
+   * @return {@code true} if the map pack was sent successfully
+   */
+  public static boolean shareMapPack(Activity sender, File packFile) {
+    Intent sendPack = new Intent();
+    sendPack.setAction(Intent.ACTION_SEND);
+    sendPack.setType("application/octet-stream");
+    try {
+      Uri packUri =
+          FileProvider.getUriForFile(sender, "com.custommapsapp.android.fileprovider", packFile);
+      sendPack.putExtra(Intent.EXTRA_SUBJECT, packFile.getName());
+      sendPack.putExtra(Intent.EXTRA_STREAM, packUri);
+      sendPack.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+      sender.startActivity(sendPack);
+      return true;
+    } catch (Exception e) {
+      Log.w(CustomMaps.LOG_TAG, "Sharing of map pack failed: " + packFile.getAbsolutePath(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Shares a GPX track file with other apps.
+   *
+   * @param sender currently active Activity
+   * @param gpxFile track file in export cache directory
+   * @return {@code true} if the track was sent successfully
+   */
+  public static boolean shareTrack(Activity sender, File gpxFile) {
+    Intent sendTrack = new Intent();
+    sendTrack.setAction(Intent.ACTION_SEND);
+    sendTrack.setType(GpxOverlays.GPX_MIME_TYPE);
+    try {
+      Uri trackUri =
+          FileProvider.getUriForFile(sender, "com.custommapsapp.android.fileprovider", gpxFile);
+      sendTrack.putExtra(Intent.EXTRA_SUBJECT, gpxFile.getName());
+      sendTrack.putExtra(Intent.EXTRA_STREAM, trackUri);
+      sendTrack.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+      sender.startActivity(sendTrack);
+      return true;
+    } catch (Exception e) {
+      Log.w(CustomMaps.LOG_TAG, "Sharing of track failed: " + gpxFile.getAbsolutePath(), e);
+      return false;
+    }
+  }
+
   /** Returns the name of the file in a content Uri, or null if it cannot be resolved */
   public static String resolveContentFileName(Uri contentUri) {
     ContentResolver resolver = appContext.getContentResolver();
@@ -18,13 +18,11 @@ package com.custommapsapp.android;
 import com.custommapsapp.android.kml.GroundOverlay;
 import com.custommapsapp.android.kml.GroundOverlay.Tiepoint;
 
-import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.location.Location;
 import android.util.Log;
 
-import java.io.InputStream;
 
 import com.google.android.gms.maps.model.LatLng;
 
@@ -376,19 +374,16 @@ public class GeoToImageConverter {
    * variables intact and returns 'false'.
    */
   private boolean readMapImageSize(GroundOverlay mapData) {
-    InputStream in = null;
     try {
-      in = mapData.getKmlInfo().getImageStream(mapData.getImage());
-
-      BitmapFactory.Options options = ImageHelper.decodeImageBounds(in);
-      imageWidth = options.outWidth;
-      imageHeight = options.outHeight;
-
+      Point size = ImageHelper.getImageSize(mapData.getKmlInfo(), mapData.getImage());
+      if (size == null) {
+        return false;
+      }
+      imageWidth = size.x;
+      imageHeight = size.y;
       return true;
     } catch (Exception ex) {
       return false;
-    } finally {
-      FileUtil.tryToClose(in);
     }
   }
 }
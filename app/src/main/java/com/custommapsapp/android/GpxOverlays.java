@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.custommapsapp.android.gpx.GpxData;
+import com.custommapsapp.android.gpx.GpxParser;
+import com.custommapsapp.android.kml.GroundOverlay;
+import com.custommapsapp.android.kml.IconStyle;
+import com.custommapsapp.android.kml.LineGeometry;
+import com.custommapsapp.android.kml.Placemark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * GpxOverlays finds the GPX files in the map directory that overlap a map, and
+ * converts their waypoints, tracks, and routes to Placemarks for display.
+ * Parsed GPX files are cached in binary form, so each file is parsed only once
+ * and files that do not overlap the map are rejected by reading a few bytes.
+ *
+ * All methods do file I/O, and must not be called on the UI thread.
+ *
+ * @author Marko Teittinen
+ */
+public class GpxOverlays {
+  public static final String GPX_EXTENSION = ".gpx";
+  public static final String GPX_MIME_TYPE = "application/gpx+xml";
+
+  private static final String CACHE_DIR = "gpx";
+  private static final String CACHE_SUFFIX = ".gpxc";
+
+  /** Returns true if the file name has a GPX file extension. */
+  public static boolean isGpxFile(File file) {
+    return file.getName().toLowerCase(Locale.US).endsWith(GPX_EXTENSION);
+  }
+
+  /**
+   * Returns the placemarks for all GPX files in the map directory that overlap
+   * the given map.
+   */
+  public static List<Placemark> findOverlays(Context context, GroundOverlay map) {
+    List<Placemark> result = new ArrayList<>();
+    File[] files = FileUtil.getInternalMapDirectory().listFiles();
+    if (map == null || files == null) {
+      return result;
+    }
+    float[] mapBounds = map.getBoundingBox();
+    for (File file : files) {
+      if (!file.isFile() || !isGpxFile(file)) {
+        continue;
+      }
+      GpxData data = load(file, mapBounds);
+      if (data != null) {
+        addPlacemarks(context, data, file, result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Loads a GPX file using the cache if possible.
+   *
+   * @param bounds {west, south, east, north} of the area of interest
+   * @return GPX data, or {@code null} if the file does not overlap the area or
+   *     could not be read
+   */
+  private static GpxData load(File gpxFile, float[] bounds) {
+    File cacheFile = new File(FileUtil.getCacheDirectory(CACHE_DIR),
+        FileUtil.md5Hex(gpxFile.getAbsolutePath()) + CACHE_SUFFIX);
+    try {
+      float[] dataBounds = GpxData.readCachedBounds(cacheFile, gpxFile);
+      if (dataBounds != null) {
+        return (overlaps(dataBounds, bounds) ? GpxData.readCache(cacheFile) : null);
+      }
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Invalid GPX cache, parsing file: " + gpxFile.getName(), ex);
+    }
+    GpxData data;
+    try {
+      data = new GpxParser().readFile(gpxFile);
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to parse GPX file: " + gpxFile.getName(), ex);
+      return null;
+    }
+    try {
+      data.writeCache(cacheFile, gpxFile);
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to cache GPX file: " + gpxFile.getName(), ex);
+    }
+    float[] dataBounds = data.getBounds();
+    return (dataBounds != null && overlaps(dataBounds, bounds) ? data : null);
+  }
+
+  private static boolean overlaps(float[] a, float[] b) {
+    return a.length == 4 && a[0] <= b[2] && b[0] <= a[2] && a[1] <= b[3] && b[1] <= a[3];
+  }
+
+  private static void addPlacemarks(Context context, GpxData data, File gpxFile,
+      List<Placemark> result) {
+    String fileName = gpxFile.getName();
+    String defaultName = (data.getName() != null ? data.getName()
+        : fileName.substring(0, fileName.length() - GPX_EXTENSION.length()));
+    for (GpxData.Line line : data.getLines()) {
+      Placemark placemark = new Placemark();
+      placemark.setName(line.getName() != null ? line.getName() : defaultName);
+      for (double[] segment : line.getSegments()) {
+        placemark.addShape(
+            new LineGeometry(LineGeometry.Type.LINE_STRING, segment, segment.length / 2));
+      }
+      result.add(placemark);
+    }
+    IconStyle icon = WaypointStore.getWaypointIcon(context);
+    for (int i = 0; i < data.getWaypointCount(); i++) {
+      Placemark waypoint = new Placemark();
+      waypoint.setName(data.getWaypointName(i));
+      waypoint.setDescription(data.getWaypointDescription(i));
+      waypoint.setPoint(data.getWaypointLatitude(i), data.getWaypointLongitude(i));
+      waypoint.setIconStyle(icon);
+      result.add(waypoint);
+    }
+  }
+}
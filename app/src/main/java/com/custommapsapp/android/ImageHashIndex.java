@@ -0,0 +1,235 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.util.Log;
+
+import com.custommapsapp.android.kml.BinaryCodec;
+import com.custommapsapp.android.kml.GroundOverlay;
+import com.custommapsapp.android.kml.KmlInfo;
+import com.custommapsapp.android.kml.PackedKml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * ImageHashIndex identifies map images by the SHA-256 hash of their contents,
+ * so that maps using the same image, for example with different tie points or
+ * placemarks in separate kmz files, can share a single decoded bitmap.
+ *
+ * Map packs store the hashes of their entries, other images are hashed once
+ * and the hash is stored with the image file's path, size, and modification
+ * time, so an image is hashed again only when its file changes. New hashes
+ * are written to the index file when save() is called, not one at a time.
+ *
+ * @author Marko Teittinen
+ */
+class ImageHashIndex {
+  private static final String INDEX_DIR = "catalog";
+  private static final String INDEX_FILE = "images.hashes";
+  private static final int MAGIC = 0x434d4948; // "CMIH"
+  private static final int VERSION = 1;
+  private static final int HASH_LENGTH = 32;
+  private static final int MAX_ENTRIES = 4096;
+
+  private static ImageHashIndex instance = null;
+
+  static synchronized ImageHashIndex instance() {
+    if (instance == null) {
+      instance = new ImageHashIndex();
+    }
+    return instance;
+  }
+
+  /**
+   * Returns {@code true} if two maps are known to use images with identical
+   * contents. Returns {@code false} if the hash of either image has not been
+   * computed yet. Can be called in the UI thread.
+   */
+  static boolean isSameImage(GroundOverlay map1, GroundOverlay map2) {
+    if (map1 == null || map2 == null) {
+      return false;
+    }
+    ImageHashIndex index = instance();
+    String hash1 = index.getKnownHash(map1);
+    return hash1 != null && hash1.equals(index.getKnownHash(map2));
+  }
+
+  private final File indexFile;
+  // Hashes of the maps read into the catalog, accessed only while synchronized
+  private final Map<GroundOverlay, String> mapHashes = new WeakHashMap<>();
+  // Hashes by image file version, least recently used first
+  private final Map<String, String> fileHashes =
+      new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+  private boolean loaded = false;
+  private boolean modified = false;
+
+  private ImageHashIndex() {
+    indexFile = new File(FileUtil.getCacheDirectory(INDEX_DIR), INDEX_FILE);
+  }
+
+  /** Returns the hash of a map's image if it has already been computed. */
+  synchronized String getKnownHash(GroundOverlay map) {
+    return mapHashes.get(map);
+  }
+
+  /**
+   * Returns the SHA-256 hash of a map's image as a hex string, or
+   * {@code null} if the image cannot be read. The image is read if its hash
+   * is not known, so this must not be called in the UI thread.
+   */
+  String getHash(GroundOverlay map) {
+    String hash = getKnownHash(map);
+    if (hash != null || map == null || map.getImage() == null) {
+      return hash;
+    }
+    KmlInfo kmlInfo = map.getKmlInfo();
+    String image = map.getImage();
+    try {
+      if (kmlInfo instanceof PackedKml) {
+        hash = ((PackedKml) kmlInfo).getImageHash(image);
+      }
+      String key = null;
+      if (hash == null) {
+        key = getFileKey(kmlInfo, image);
+        hash = getFileHash(key);
+      }
+      if (hash == null) {
+        try (InputStream in = kmlInfo.getImageStream(image)) {
+          hash = computeHash(in);
+        }
+        if (key != null) {
+          putFileHash(key, hash);
+        }
+      }
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to hash map image: " + map.getName(), ex);
+      return null;
+    }
+    synchronized (this) {
+      mapHashes.put(map, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Returns a key identifying the version of an image file, or {@code null}
+   * if the image is not stored in a local file yet.
+   */
+  private static String getFileKey(KmlInfo kmlInfo, String image) throws IOException {
+    File file = kmlInfo.getFile();
+    if (!file.exists()) {
+      return null;
+    }
+    return file.getAbsolutePath() + '\n' + image + '\n' + file.length() + '\n'
+        + file.lastModified() + '\n' + kmlInfo.getImageDate(image);
+  }
+
+  private synchronized String getFileHash(String key) {
+    load();
+    return (key != null ? fileHashes.get(key) : null);
+  }
+
+  private synchronized void putFileHash(String key, String hash) {
+    load();
+    fileHashes.put(key, hash);
+    modified = true;
+  }
+
+  private static String computeHash(InputStream in) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      // SHA-256 is always available on Android
+      throw new IllegalStateException(ex);
+    }
+    byte[] buffer = new byte[65536];
+    int count;
+    while ((count = in.read(buffer)) > 0) {
+      digest.update(buffer, 0, count);
+    }
+    return ContentHashIndex.toHex(digest.digest());
+  }
+
+  // --------------------------------------------------------------------------
+  // Index file
+
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    try {
+      read();
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Invalid image hash index, rebuilding it", ex);
+      fileHashes.clear();
+    }
+  }
+
+  private void read() throws IOException {
+    ByteBuffer buffer = BinaryCodec.readFile(indexFile, MAGIC, VERSION);
+    if (buffer == null) {
+      return;
+    }
+    int entryCount = buffer.getInt();
+    for (int i = 0; i < entryCount; i++) {
+      String key = BinaryCodec.readString(buffer);
+      byte[] hash = new byte[HASH_LENGTH];
+      buffer.get(hash);
+      fileHashes.put(key, ContentHashIndex.toHex(hash));
+    }
+  }
+
+  /**
+   * Writes the hashes computed since the previous save to the index file.
+   * Does nothing if no new images have been hashed.
+   */
+  synchronized void save() {
+    if (!modified) {
+      return;
+    }
+    try {
+      BinaryCodec.writeFile(indexFile, MAGIC, VERSION, out -> {
+        out.writeInt(fileHashes.size());
+        // Least recently used entries are written first, and read back in the same order
+        for (Map.Entry<String, String> item : fileHashes.entrySet()) {
+          BinaryCodec.writeString(out, item.getKey());
+          String hash = item.getValue();
+          for (int i = 0; i < HASH_LENGTH; i++) {
+            out.writeByte(Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16));
+          }
+        }
+      });
+      modified = false;
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to save image hash index", ex);
+    }
+  }
+}
@@ -29,6 +29,9 @@ import android.graphics.Point;
 import android.util.Log;
 import androidx.exifinterface.media.ExifInterface;
 import com.custommapsapp.android.MapDisplay.MapImageTooLargeException;
+import com.custommapsapp.android.kml.KmlInfo;
+import com.custommapsapp.android.kml.KmzFile;
+import com.custommapsapp.android.kml.KmzManifest;
 import com.custommapsapp.android.storage.PreferenceStore;
 
 /**
@@ -121,6 +124,37 @@ public class ImageHelper {
     return options;
   }
 
+  /**
+   * Returns the size of an image in a map file. Images in kmz files are looked
+   * up from the kmz file's manifest, other images are decoded.
+   *
+   * @param kmlInfo map file containing the image
+   * @param path of the image within the map file
+   * @return Point containing width and height of the image, or 'null' if the
+   *     image could not be decoded
+   * @throws IOException if reading the image fails
+   */
+  public static Point getImageSize(KmlInfo kmlInfo, String path) throws IOException {
+    if (kmlInfo instanceof KmzFile) {
+      KmzManifest.ImageInfo info = ((KmzFile) kmlInfo).getImageInfo(path);
+      if (info != null) {
+        return new Point(info.width, info.height);
+      }
+    }
+    BitmapFactory.Options options;
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(kmlInfo.getImageStream(path));
+      options = decodeImageBounds(in);
+    } finally {
+      FileUtil.tryToClose(in);
+    }
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null;
+    }
+    return new Point(options.outWidth, options.outHeight);
+  }
+
   /**
    * Load a bitmap from a file.
    *
@@ -242,7 +242,7 @@ public class KmzDownloader extends Activity {
       File resultFile = new File(fileName);
       try {
         // Open connection to map file
-        conn = openWithManualRedirect(mapUrl);
+        conn = openConnection(mapUrl);
         int responseCode = conn.getResponseCode();
         String contentType = conn.getContentType();
         if (responseCode / 100 != 2 || contentType.startsWith("text/")) {
@@ -306,28 +306,32 @@ public class KmzDownloader extends Activity {
         cancelActivity(linguist.getString(R.string.download_failed, mapUrl));
       }
     }
+  }
 
-    private HttpURLConnection openWithManualRedirect(URL url) throws IOException {
-      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-      conn.setConnectTimeout(15000);
-      conn.setReadTimeout(15000);
-      int responseCode = conn.getResponseCode();
-
-      if (responseCode / 100 == 3) {
-        List<String> uris = conn.getHeaderFields().get("Location");
-        if (uris == null || uris.isEmpty()) {
-          throw new IOException("Redirect request did not provide new URL");
-        } else {
-          // Found redirected location(s) in header, use first
-          url = new URL(uris.get(0));
-        }
-        conn.disconnect();
-        // Return redirected connection, redirect again if necessary
-        return openWithManualRedirect(url);
+  /**
+   * Opens a connection to a URL, following redirects manually, so that
+   * redirects between http and https are followed too.
+   */
+  static HttpURLConnection openConnection(URL url) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setConnectTimeout(15000);
+    conn.setReadTimeout(15000);
+    int responseCode = conn.getResponseCode();
+
+    if (responseCode / 100 == 3) {
+      List<String> uris = conn.getHeaderFields().get("Location");
+      if (uris == null || uris.isEmpty()) {
+        throw new IOException("Redirect request did not provide new URL");
       } else {
-        // Non-redirect response code found, return to caller
-        return conn;
+        // Found redirected location(s) in header, use first
+        url = new URL(uris.get(0));
       }
+      conn.disconnect();
+      // Return redirected connection, redirect again if necessary
+      return openConnection(url);
+    } else {
+      // Non-redirect response code found, return to caller
+      return conn;
     }
   }
 }
@@ -16,37 +16,69 @@
 package com.custommapsapp.android;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
+import android.content.Context;
 import android.net.Uri;
+import android.os.Build;
+import android.os.FileObserver;
 import android.util.Log;
 
+import com.custommapsapp.android.kml.CompiledKml;
 import com.custommapsapp.android.kml.GroundOverlay;
 import com.custommapsapp.android.kml.KmlFeature;
 import com.custommapsapp.android.kml.KmlFile;
 import com.custommapsapp.android.kml.KmlFolder;
 import com.custommapsapp.android.kml.KmlInfo;
 import com.custommapsapp.android.kml.KmlParser;
+import com.custommapsapp.android.kml.KmzDocument;
 import com.custommapsapp.android.kml.KmzFile;
+import com.custommapsapp.android.kml.MapPack;
+import com.custommapsapp.android.kml.PackedKml;
 import com.custommapsapp.android.kml.Placemark;
+import com.custommapsapp.android.kml.ZipFilePool;
+import com.custommapsapp.android.storage.DocumentTree;
+import com.custommapsapp.android.storage.PreferenceStore;
+
+import androidx.annotation.RequiresApi;
 
 /**
- * MapCatalog keeps track of maps (GroundOverlays) stored in a directory.
+ * MapCatalog keeps track of maps (GroundOverlays) stored in a directory, or in
+ * a folder opened through the storage access framework.
  *
  * @author Marko Teittinen
  */
 public class MapCatalog {
+  private static final String INDEX_DIR = "catalog";
+  private static final String INDEX_SUFFIX = ".index";
+  private static final float NEAR_DISTANCE_M = 50000f;
+  private static final int PARSER_IDLE_SECONDS = 30;
+  private static final int WATCHED_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+      | FileObserver.MOVED_FROM | FileObserver.DELETE | FileObserver.DELETE_SELF
+      | FileObserver.MOVE_SELF;
+
   private static String defaultMapName = "Map without name";
 
   /**
@@ -68,49 +100,15 @@ public class MapCatalog {
    *     the map couldn't be found
    */
   public static KmlFolder loadMap(KmlInfo kmlInfo, String mapName) {
-    // Store relevant contents of the file in these variables
-    GroundOverlay foundMap = null;
-    KmlFolder foundFolder = null;
-    List<Placemark> placemarks = new ArrayList<>();
-
+    MapFinder finder = new MapFinder(mapName, -1);
     try {
-      // Parse the file
-      KmlParser parser = new KmlParser();
-      Iterable<KmlFeature> features = parser.readFile(kmlInfo.getKmlReader());
-      // Parsing successful, scan features for GroundOverlays and Placemarks
-      for (KmlFeature feature : features) {
-        // Collect top-level placemarks to a list
-        if (feature instanceof Placemark) {
-          placemarks.add((Placemark) feature);
-          continue;
-        }
-        // If map has been found, we're only scanning for Placemarks
-        if (foundMap != null) {
-          continue;
-        }
-        if (feature instanceof KmlFolder) {
-          // Scan included KmlFolders for the named map
-          KmlFolder folder = (KmlFolder) feature;
-          for (KmlFeature folderFeature : folder.getFeatures()) {
-            if (folderFeature instanceof GroundOverlay) {
-              // Select this map if the name matches
-              if (mapName == null || folderFeature.getName().equals(mapName)) {
-                foundMap = (GroundOverlay) folderFeature;
-                foundFolder = folder;
-                break; // folder scan
-              }
-            }
-          }
-        } else if (feature instanceof GroundOverlay) {
-          // Select this map if the name matches
-          if (mapName == null || feature.getName().equals(mapName)) {
-            foundMap = (GroundOverlay) feature;
-          }
-        }
-      }
+      CompiledKml.parse(kmlInfo, finder);
     } catch (Exception ex) {
       Log.w(CustomMaps.LOG_TAG, "Failed to parse KML file: " + kmlInfo.toString(), ex);
     }
+    GroundOverlay foundMap = finder.foundMap;
+    KmlFolder foundFolder = finder.foundFolder;
+    List<Placemark> placemarks = finder.placemarks;
 
     if (foundMap == null) {
       return null;
@@ -122,6 +120,7 @@ public class MapCatalog {
     }
     // Create a copy of the found folder, and add top level placemarks too
     KmlFolder result = createResultFolder(foundFolder, foundMap);
+    result.setMapIndex(finder.foundMapIndex);
     for (Placemark placemark : placemarks) {
       placemark.setKmlInfo(kmlInfo);
       result.addFeature(placemark);
@@ -129,6 +128,189 @@ public class MapCatalog {
     return result;
   }
 
+  /**
+   * Visitor that finds a named map (or the first map) in a KML file with its
+   * placemarks. Folders after the map has been found are skipped unparsed, and
+   * placemarks of folders without the map are garbage collected with the folder.
+   */
+  private static class MapFinder extends KmlParser.Visitor {
+    private final String mapName;
+    private final int mapIndex;
+    private int overlayCount = 0;
+    GroundOverlay foundMap = null;
+    int foundMapIndex = -1;
+    KmlFolder foundFolder = null;
+    final List<Placemark> placemarks = new ArrayList<>();
+
+    /**
+     * @param mapName name of the map to find, or 'null' for any map
+     * @param mapIndex index of the map among GroundOverlays in the file, or -1
+     *     to find the map by name
+     */
+    MapFinder(String mapName, int mapIndex) {
+      this.mapName = mapName;
+      this.mapIndex = mapIndex;
+    }
+
+    @Override
+    public boolean startFolder(KmlFolder folder) {
+      // If map has been found, we're only scanning for top-level Placemarks
+      return foundMap == null;
+    }
+
+    @Override
+    public boolean visitGroundOverlay(GroundOverlay overlay, KmlFolder folder) {
+      // Select this map if the name (or index) matches
+      boolean matches = (mapIndex >= 0 ? overlayCount == mapIndex
+          : mapName == null || mapName.equals(overlay.getName()));
+      if (foundMap == null && matches) {
+        foundMap = overlay;
+        foundMapIndex = overlayCount;
+        foundFolder = folder;
+      }
+      overlayCount++;
+      return true;
+    }
+
+    @Override
+    public boolean visitPlacemark(Placemark placemark, KmlFolder folder) {
+      if (folder == null) {
+        // Collect top-level placemarks to a list
+        placemarks.add(placemark);
+      } else if (foundMap == null || folder == foundFolder) {
+        // Placemarks in folders are kept until it is known if folder has the map
+        folder.addFeature(placemark);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Loads the placemarks of a map that was read from the catalog, or passed
+   * between activities, without them. Does nothing if the map's placemarks are
+   * already loaded. This method reads the map's kml file, so it should not be
+   * called in the UI thread.
+   *
+   * @param map KmlFolder from the catalog or deserialized from an Intent
+   */
+  public static void loadDeferredPlacemarks(KmlFolder map) {
+    if (!map.isPlacemarksDeferred()) {
+      return;
+    }
+    KmlInfo kmlInfo = map.getKmlInfo();
+    GroundOverlay overlay = map.getFirstMap();
+    // Maps are found by name if their index is not known
+    MapFinder finder = new MapFinder(overlay != null ? overlay.getName() : null,
+        map.getMapIndex());
+    try {
+      CompiledKml.parse(kmlInfo, finder);
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to parse KML file: " + kmlInfo.toString(), ex);
+    }
+    // Add placemarks in the map's folder first, followed by top level ones
+    List<KmlFeature> placemarks = new ArrayList<>();
+    if (finder.foundFolder != null) {
+      for (KmlFeature feature : finder.foundFolder.getFeatures()) {
+        if (feature instanceof Placemark) {
+          placemarks.add(feature);
+        }
+      }
+    }
+    placemarks.addAll(finder.placemarks);
+    for (KmlFeature placemark : placemarks) {
+      placemark.setKmlInfo(kmlInfo);
+    }
+    map.addFeatures(placemarks);
+    map.clearPlacemarksDeferred();
+  }
+
+  /**
+   * Prepares a map selected from the catalog to be displayed. A map stored in
+   * a document outside the app's storage is copied to a local file, and the
+   * map's placemarks are loaded. This method reads files, so it should not be
+   * called in the UI thread.
+   *
+   * @param map KmlFolder from the catalog
+   * @throws IOException if the map's document cannot be copied
+   */
+  public static void prepareMap(KmlFolder map) throws IOException {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+        && map.getKmlInfo() instanceof KmzDocument) {
+      ((KmzDocument) map.getKmlInfo()).copyToLocalFile();
+    }
+    loadDeferredPlacemarks(map);
+  }
+
+  /**
+   * Visitor that collects only the maps of a KML file for the catalog.
+   * Placemarks and styles are skipped unparsed, and only their names are
+   * collected, so that maps with placemarks can be marked for deferred loading
+   * and found by placemark names.
+   */
+  private static class CatalogScanner extends KmlParser.Visitor {
+    private final KmlInfo kmlInfo;
+    private final List<KmlFolder> maps = new ArrayList<>();
+    // Folder (or null) in which each map was found
+    private final List<KmlFolder> mapFolders = new ArrayList<>();
+    // Names of placemarks in each folder, and at top level
+    private final Map<KmlFolder, List<String>> placemarkNames = new IdentityHashMap<>();
+    private final List<String> sharedPlacemarkNames = new ArrayList<>();
+    private boolean hasSharedPlacemarks = false;
+
+    CatalogScanner(KmlInfo kmlInfo) {
+      this.kmlInfo = kmlInfo;
+    }
+
+    @Override
+    public boolean wantsPlacemarks() {
+      return false;
+    }
+
+    @Override
+    public void skippedPlacemark(KmlFolder folder, String name) {
+      List<String> names;
+      if (folder == null) {
+        hasSharedPlacemarks = true;
+        names = sharedPlacemarkNames;
+      } else {
+        names = placemarkNames.get(folder);
+        if (names == null) {
+          names = new ArrayList<>();
+          placemarkNames.put(folder, names);
+        }
+      }
+      if (name != null && name.length() > 0) {
+        names.add(name);
+      }
+    }
+
+    @Override
+    public boolean visitGroundOverlay(GroundOverlay overlay, KmlFolder folder) {
+      overlay.setKmlInfo(kmlInfo);
+      if (folder != null) {
+        folder.setKmlInfo(kmlInfo);
+      }
+      maps.add(createResultFolder(folder, overlay));
+      mapFolders.add(folder);
+      return true;
+    }
+
+    List<KmlFolder> getMaps() {
+      for (int i = 0; i < maps.size(); i++) {
+        List<String> folderNames = placemarkNames.get(mapFolders.get(i));
+        boolean hasPlacemarks = hasSharedPlacemarks || folderNames != null;
+        maps.get(i).setPlacemarksDeferred(i, hasPlacemarks);
+        List<String> names = new ArrayList<>();
+        if (folderNames != null) {
+          names.addAll(folderNames);
+        }
+        names.addAll(sharedPlacemarkNames);
+        maps.get(i).setDeferredPlacemarkNames(names);
+      }
+      return maps;
+    }
+  }
+
   /**
    * Returns a KmlFolder that contains only a single GroundOverlay (map) with optionally multiple
    * Placemarks as well. Note that if the KmlFolder was inside a Document tag, the icons stored at
@@ -179,6 +361,83 @@ public class MapCatalog {
   private List<KmlFolder> inMaps = new ArrayList<>();
   private List<KmlFolder> nearMaps = new ArrayList<>();
   private List<KmlFolder> farMaps = new ArrayList<>();
+  private CatalogIndex index = null;
+  // R-tree of map bounding boxes, rebuilt when needed after catalog contents change
+  private PackedRTree<KmlFolder> spatialIndex = null;
+  // Word index of map names, updated when needed after catalog contents change
+  private MapSearchIndex searchIndex = new MapSearchIndex();
+  private boolean searchIndexStale = true;
+  // Held for the duration of a refresh, catalog contents are guarded by 'this'
+  private final Object refreshLock = new Object();
+  // Parses changed map files, the threads exit when no files have been parsed for a while
+  private final ThreadPoolExecutor parseWorkers = createParseWorkers();
+  // Names of files changed since last update, and whether the whole directory must be scanned
+  private final Set<String> changedFiles = new HashSet<>();
+  private boolean fullScanNeeded = true;
+  private FileObserver directoryObserver = null;
+
+  private static MapCatalog sharedCatalog = null;
+
+  /**
+   * Returns a catalog of the maps in a directory. The same catalog is returned as long as the
+   * directory does not change, and it watches the directory for changes, so that updating it only
+   * needs to read the changed files.
+   *
+   * @param dataDir directory that holds the maps of the catalog
+   */
+  public static synchronized MapCatalog forDirectory(File dataDir) {
+    if (sharedCatalog == null || !dataDir.equals(sharedCatalog.dataDir)) {
+      if (sharedCatalog != null) {
+        sharedCatalog.stopWatching();
+      }
+      sharedCatalog = new MapCatalog(dataDir);
+      sharedCatalog.startWatching();
+    }
+    return sharedCatalog;
+  }
+
+  /**
+   * Returns a catalog of the kmz files in a folder the user has opened with the storage access
+   * framework. The same catalog is returned as long as the folder does not change. Documents
+   * providers do not report changes, so updating the catalog lists the folder again, and reads
+   * only the documents whose size or modification time has changed.
+   *
+   * @param folderUri tree Uri of the folder selected by the user
+   */
+  @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+  public static synchronized MapCatalog forDocumentTree(Uri folderUri) {
+    if (sharedCatalog == null || !folderUri.equals(sharedCatalog.dataUri)) {
+      if (sharedCatalog != null) {
+        sharedCatalog.stopWatching();
+      }
+      sharedCatalog = new MapCatalog(folderUri);
+    }
+    return sharedCatalog;
+  }
+
+  /**
+   * Returns a catalog of the maps in the map storage location selected in the preferences.
+   *
+   * @param context used to read the preferences
+   */
+  public static MapCatalog forMapStorage(Context context) {
+    PreferenceStore prefs = PreferenceStore.instance(context);
+    if (prefs.isUsingLegacyStorage()) {
+      @SuppressWarnings("deprecation")
+      File dataDir = FileUtil.getLegacyMapDirectory();
+      if (!dataDir.exists()) {
+        Log.e(CustomMaps.LOG_TAG, "Legacy data dir does not exist: " + dataDir.getAbsolutePath());
+      }
+      return forDirectory(dataDir);
+    }
+    Uri mapStorageDir = prefs.getMapStorageDirectory();
+    if (mapStorageDir == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      // Use app's internal storage folder
+      return forDirectory(FileUtil.getInternalMapDirectory());
+    }
+    // Use MapCatalog with new storage API
+    return forDocumentTree(mapStorageDir);
+  }
 
   /**
    * Creates a new MapCatalog that contains all maps in a directory.
@@ -206,8 +465,48 @@ public class MapCatalog {
    *
    * @param filename Name of a map file in data directory (w/o path).
    */
-  public void addCreatedFile(String filename) {
+  public synchronized void addCreatedFile(String filename) {
     createdFiles.add(filename);
+    changedFiles.add(filename);
+  }
+
+  /**
+   * Marks a file in data directory changed, so that the next update includes it even if the change
+   * has not been reported by the file system yet.
+   *
+   * @param filename Name of a map file in data directory (w/o path).
+   */
+  public synchronized void markFileChanged(String filename) {
+    changedFiles.add(filename);
+  }
+
+  /** Starts tracking the changes in data directory. */
+  private void startWatching() {
+    if (dataDir == null || !dataDir.isDirectory()) {
+      return;
+    }
+    @SuppressWarnings("deprecation")
+    FileObserver observer = new FileObserver(dataDir.getAbsolutePath(), WATCHED_EVENTS) {
+      @Override
+      public void onEvent(int event, String path) {
+        synchronized (MapCatalog.this) {
+          if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0 || path == null) {
+            fullScanNeeded = true;
+          } else {
+            changedFiles.add(path);
+          }
+        }
+      }
+    };
+    directoryObserver = observer;
+    directoryObserver.startWatching();
+  }
+
+  private void stopWatching() {
+    if (directoryObserver != null) {
+      directoryObserver.stopWatching();
+      directoryObserver = null;
+    }
   }
 
   /**
@@ -239,7 +538,7 @@ public class MapCatalog {
    * @param map KmlFolder to be checked
    * @return {@code true} if this catalog contains another map stored in the same KML or KMZ file
    */
-  public boolean isPartOfMapSet(KmlFolder map) {
+  public synchronized boolean isPartOfMapSet(KmlFolder map) {
     File mapFile = map.getKmlInfo().getFile();
     for (KmlFolder candidate : allMaps) {
       // Check if the maps are stored in same file
@@ -254,11 +553,12 @@ public class MapCatalog {
   }
 
   /**
-   * @return Iterable<KmlFolder> listing all maps in catalog alphabetically
+   * @return Iterable<KmlFolder> listing all maps in catalog alphabetically. The returned list is a
+   *     copy, and is not changed by a refresh in progress.
    */
-  public Iterable<KmlFolder> getAllMapsSortedByName() {
+  public synchronized Iterable<KmlFolder> getAllMapsSortedByName() {
     sortMapsByName(allMaps);
-    return allMaps;
+    return new ArrayList<>(allMaps);
   }
 
   /**
@@ -267,7 +567,24 @@ public class MapCatalog {
   public void sortMapsByName(List<KmlFolder> maps) {
     // Before sorting, make sure the stringComparer matches current locale selected by user
     stringComparer = Collator.getInstance(Locale.getDefault());
-    Collections.sort(maps, mapSorter);
+    // Collation keys are created once per map, and are much faster to compare than strings
+    Map<KmlFolder, CollationKey> sortKeys = new IdentityHashMap<>();
+    for (KmlFolder mapHolder : maps) {
+      GroundOverlay map = mapHolder.getFirstMap();
+      String name = (map != null ? map.getName() : null);
+      sortKeys.put(mapHolder, name != null ? stringComparer.getCollationKey(name) : null);
+    }
+    // Maps without names are sorted last
+    Collections.sort(maps, (folder1, folder2) -> {
+      CollationKey key1 = sortKeys.get(folder1);
+      CollationKey key2 = sortKeys.get(folder2);
+      if (key1 == null) {
+        return (key2 == null ? 0 : 1);
+      } else if (key2 == null) {
+        return -1;
+      }
+      return key1.compareTo(key2);
+    });
   }
 
   /**
@@ -279,11 +596,11 @@ public class MapCatalog {
    * @param latitude of the location
    * @return Iterable<KmlFolder> of the maps that contain the location
    */
-  public Iterable<KmlFolder> getMapsContainingPoint(float longitude, float latitude) {
+  public synchronized Iterable<KmlFolder> getMapsContainingPoint(float longitude, float latitude) {
     List<KmlFolder> result = new ArrayList<>();
-    for (KmlFolder mapHolder : allMaps) {
-      GroundOverlay map = mapHolder.getFirstMap();
-      if (map != null && map.contains(longitude, latitude)) {
+    // Only maps whose bounding box contains the point can contain it
+    for (KmlFolder mapHolder : getSpatialIndex().search(longitude, latitude, longitude, latitude)) {
+      if (mapHolder.getFirstMap().contains(longitude, latitude)) {
         result.add(mapHolder);
       }
     }
@@ -297,76 +614,70 @@ public class MapCatalog {
    * @param longitude of the location
    * @param latitude of the location
    */
-  public void groupMapsByDistance(float longitude, float latitude) {
+  public synchronized void groupMapsByDistance(float longitude, float latitude) {
     inMaps.clear();
     nearMaps.clear();
     farMaps.clear();
+    // Find maps whose bounding box is within the near distance, all others are far away
+    // * in latitudes, 90 degrees ~ 10,000 km = 10,000,000 m
+    // * at latitude x, 90 degrees of longitude ~ cos(x) * 10,000 km
+    float distanceInLatDegrees = 90f * NEAR_DISTANCE_M / 10000000;
+    float distanceInLonDegrees = (float) Math.min(180,
+        distanceInLatDegrees / Math.cos(Math.toRadians(latitude)));
+    List<KmlFolder> candidates = getSpatialIndex().search(
+        longitude - distanceInLonDegrees, latitude - distanceInLatDegrees,
+        longitude + distanceInLonDegrees, latitude + distanceInLatDegrees);
+    Map<KmlFolder, List<KmlFolder>> groups = new IdentityHashMap<>();
+    for (KmlFolder mapHolder : candidates) {
+      float distance = mapHolder.getFirstMap().getDistanceFrom(longitude, latitude);
+      if (distance == 0f) {
+        groups.put(mapHolder, inMaps);
+      } else if (distance < NEAR_DISTANCE_M) {
+        groups.put(mapHolder, nearMaps);
+      }
+    }
+    // Fill the groups in catalog order
     for (KmlFolder mapHolder : allMaps) {
-      GroundOverlay map = mapHolder.getFirstMap();
-      if (map == null) {
+      if (mapHolder.getFirstMap() == null) {
         continue;
       }
-      if (mapIsFartherAway(50000, map, latitude, longitude)) {
-        farMaps.add(mapHolder);
-      } else {
-        float distance = map.getDistanceFrom(longitude, latitude);
-        if (distance == 0f) {
-          inMaps.add(mapHolder);
-        } else if (distance < 50000f) {
-          nearMaps.add(mapHolder);
-        } else {
-          farMaps.add(mapHolder);
-        }
-      }
+      List<KmlFolder> group = groups.get(mapHolder);
+      (group != null ? group : farMaps).add(mapHolder);
     }
   }
 
   /**
-   * Quickly check if a map is certainly farther away than given distance. Even if this function
-   * returns false, it is still possible that the map is farther away than the given distance. This
-   * function only quickly determines maps that certainly are farther away.
+   * Finds the maps whose names, descriptions, or placemark names contain all
+   * words of a query. A query word matches also words that start with it, so
+   * the search can be repeated as the user types.
    *
-   * @param distanceM Distance in meters to compare to.
-   * @param map Map to measure distance to.
-   * @param lat Latitude of the location to measure from.
-   * @param lon Longitude of the location to measure from.
-   * @return true if the map is at least given distance away from the closest point of the map.
-   */
-  private boolean mapIsFartherAway(double distanceM, GroundOverlay map, double lat, double lon) {
-    double latMin = 90;
-    double latMax = -90;
-    double lonMin = 180;
-    double lonMax = -180;
-    if (!map.hasCornerTiePoints()) {
-      latMin = map.getSouth();
-      latMax = map.getNorth();
-      lonMin = map.getWest();
-      lonMax = map.getEast();
-    } else {
-      float[] point = map.getNorthEastCornerLocation();
-      latMax = Math.max(latMax, point[1]);
-      lonMax = Math.max(lonMax, point[0]);
-      point = map.getSouthEastCornerLocation();
-      latMin = Math.min(latMin, point[1]);
-      lonMax = Math.max(lonMax, point[0]);
-      point = map.getSouthWestCornerLocation();
-      latMin = Math.min(latMin, point[1]);
-      lonMin = Math.min(lonMin, point[0]);
-      point = map.getNorthWestCornerLocation();
-      latMax = Math.max(latMax, point[1]);
-      lonMin = Math.min(lonMin, point[0]);
-    }
-    // Check if location is farther in straight North-South direction
-    // * in latitudes, 90 degrees ~ 10,000 km = 10,000,000 m
-    double distanceInLatDegrees = 90.0 * distanceM / 10000000;
-    if (lat < latMin - distanceInLatDegrees || lat > latMax + distanceInLatDegrees) {
-      return true;
+   * @param query words to search for
+   * @return List<KmlFolder> of the matching maps sorted by name, empty if the
+   *     query has no words
+   */
+  public synchronized List<KmlFolder> search(String query) {
+    if (searchIndexStale) {
+      searchIndex.update(allMaps);
+      searchIndexStale = false;
+    }
+    return searchIndex.search(query);
+  }
+
+  /** Returns the spatial index of the maps in catalog, building it if necessary. */
+  private synchronized PackedRTree<KmlFolder> getSpatialIndex() {
+    if (spatialIndex == null) {
+      List<KmlFolder> maps = new ArrayList<>();
+      List<float[]> bounds = new ArrayList<>();
+      for (KmlFolder mapHolder : allMaps) {
+        GroundOverlay map = mapHolder.getFirstMap();
+        if (map != null) {
+          maps.add(mapHolder);
+          bounds.add(map.getBoundingBox());
+        }
+      }
+      spatialIndex = new PackedRTree<>(maps, bounds);
     }
-    // Check if location is farther in straight East-West direction
-    // * at equator, 90 degrees ~ 10,000 km
-    // * at latitude x, 90 degrees ~ cos(x) * 10,000 km
-    double distanceInLonDegrees = 90.0 * distanceM / (Math.cos(Math.toRadians(lat)) * 10000000);
-    return (lon < lonMin - distanceInLonDegrees || lon > lonMax + distanceInLonDegrees);
+    return spatialIndex;
   }
 
   /**
@@ -397,84 +708,441 @@ public class MapCatalog {
   }
 
   /**
-   * Updates the contents of this catalog by re-reading files in data directory.
+   * Updates the contents of this catalog from the files in data directory. Only files that have
+   * changed since they were last indexed are parsed.
    */
   public void refreshCatalog() {
-    clearCatalog();
-    Iterable<KmlInfo> kmlEntries = findKmlData();
-    KmlParser parser = new KmlParser();
+    refreshCatalog(null);
+  }
+
+  /**
+   * Updates the contents of this catalog from the files in data directory. Maps from the index are
+   * added first, and changed files are then parsed in parallel, one file per task. The listener is
+   * called in a background thread every time more maps have been added to the catalog while the
+   * refresh is still in progress.
+   *
+   * @param listener to be notified when maps are added, or {@code null}
+   */
+  public void refreshCatalog(Runnable listener) {
+    synchronized (refreshLock) {
+      clearCatalog();
+      if (dataUri != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+        updateDocuments(listener);
+        return;
+      }
+      if (dataDir == null) {
+        return;
+      }
+      synchronized (this) {
+        // Changes seen from now on will be applied by the next update
+        changedFiles.clear();
+        fullScanNeeded = false;
+      }
+      List<File> mapFiles = findMapFiles(dataDir);
+      addMapFiles(mapFiles, listener);
+      synchronized (this) {
+        index.retainFiles(mapFiles);
+        index.save();
+      }
+      updateContentHashes();
+    }
+  }
+
+  /**
+   * Updates the contents of this catalog with the files that have been added, changed, or removed
+   * in data directory since the previous update. If the changes are not known, because this catalog
+   * has not been refreshed yet or it cannot watch the directory, the whole catalog is refreshed.
+   *
+   * @param listener to be notified when maps are added, or {@code null}
+   */
+  public void updateCatalog(Runnable listener) {
+    synchronized (refreshLock) {
+      if (dataUri != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+          && index != null && defaultMapName.equals(index.getDefaultMapName())) {
+        updateDocuments(listener);
+        return;
+      }
+      List<File> updatedFiles = new ArrayList<>();
+      synchronized (this) {
+        if (fullScanNeeded || directoryObserver == null || index == null
+            || !defaultMapName.equals(index.getDefaultMapName())) {
+          updatedFiles = null;
+        } else {
+          for (String name : changedFiles) {
+            if (!isMapFileName(name)) {
+              continue;
+            }
+            File file = new File(dataDir, name);
+            removeMaps(file);
+            if (file.exists()) {
+              updatedFiles.add(file);
+            } else {
+              index.removeFile(file);
+            }
+          }
+          changedFiles.clear();
+        }
+      }
+      if (updatedFiles == null) {
+        refreshCatalog(listener);
+        return;
+      }
+      addMapFiles(updatedFiles, listener);
+      synchronized (this) {
+        index.save();
+      }
+      updateContentHashes();
+    }
+  }
+
+  /**
+   * Updates the content hashes of the files in the app's internal map directory, so that imported
+   * files can be matched with the files already in the catalog without reading them at import.
+   */
+  private void updateContentHashes() {
+    if (dataDir.equals(FileUtil.getInternalMapDirectory())) {
+      ContentHashIndex.forDirectory(dataDir).update();
+    }
+  }
+
+  /** Removes the maps stored in a file from the catalog. */
+  private synchronized void removeMaps(File file) {
+    Iterator<KmlFolder> iter = allMaps.iterator();
+    while (iter.hasNext()) {
+      KmlInfo info = iter.next().getKmlInfo();
+      if (info.getFile().getName().equals(file.getName())) {
+        if (info instanceof KmzFile) {
+          ((KmzFile) info).close();
+        } else if (info instanceof PackedKml) {
+          MapPack.close(info.getFile());
+        }
+        iter.remove();
+        spatialIndex = null;
+        searchIndexStale = true;
+      }
+    }
+  }
+
+  /** Adds the maps of the files to the catalog, parsing the files that are not indexed. */
+  private void addMapFiles(List<File> mapFiles, Runnable listener) {
+    openIndex(dataDir.getAbsolutePath());
+    Map<String, MapFileReader> changedFiles = new LinkedHashMap<>();
+    synchronized (this) {
+      for (File file : mapFiles) {
+        List<KmlFolder> maps = index.getMaps(file);
+        if (maps != null) {
+          allMaps.addAll(maps);
+          spatialIndex = null;
+          searchIndexStale = true;
+        } else {
+          changedFiles.put(file.getName(), () -> {
+            List<KmlFolder> parsedMaps = parseMapFile(file, new KmlParser());
+            synchronized (this) {
+              index.putMaps(file, parsedMaps);
+              return index.getMaps(file);
+            }
+          });
+        }
+      }
+    }
+    if (listener != null && !changedFiles.isEmpty()) {
+      listener.run();
+    }
+    parseChangedFiles(changedFiles, listener);
+  }
+
+  /**
+   * Updates the catalog from the kmz documents in the folder of this catalog. The folder is listed
+   * with a single query, and the maps of documents that have not changed since they were indexed
+   * are read from the index by document id, size, and modification time. Maps of documents that
+   * have been removed or changed are removed from the catalog, and changed documents are read
+   * again through their zip directories without copying them.
+   */
+  @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+  private void updateDocuments(Runnable listener) {
+    List<DocumentTree.Entry> documents;
+    try {
+      documents = DocumentTree.listFiles(FileUtil.getContentResolver(), dataUri);
+    } catch (FileNotFoundException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to list map folder: " + dataUri, ex);
+      clearCatalog();
+      return;
+    }
+    openIndex(dataUri.toString());
+    Map<String, DocumentTree.Entry> kmzDocuments = new HashMap<>();
+    for (DocumentTree.Entry document : documents) {
+      if (document.name != null && document.name.endsWith(".kmz")) {
+        kmzDocuments.put(document.documentId, document);
+      }
+    }
+    Map<String, MapFileReader> changedDocuments = new LinkedHashMap<>();
+    synchronized (this) {
+      // Keep the maps of unchanged documents, and remove all others
+      Set<String> catalogedDocuments = new HashSet<>();
+      Iterator<KmlFolder> iter = allMaps.iterator();
+      while (iter.hasNext()) {
+        KmlInfo info = iter.next().getKmlInfo();
+        DocumentTree.Entry document = (info instanceof KmzDocument
+            ? kmzDocuments.get(((KmzDocument) info).getDocumentId()) : null);
+        if (document != null && ((KmzDocument) info)
+            .isVersionOf(document.documentId, document.size, document.lastModified)) {
+          catalogedDocuments.add(document.documentId);
+        } else {
+          if (info instanceof KmzFile) {
+            ((KmzFile) info).close();
+          }
+          iter.remove();
+          spatialIndex = null;
+          searchIndexStale = true;
+        }
+      }
+      for (DocumentTree.Entry document : kmzDocuments.values()) {
+        if (catalogedDocuments.contains(document.documentId)) {
+          continue;
+        }
+        List<KmlFolder> maps = getIndexedMaps(document);
+        if (maps != null) {
+          allMaps.addAll(maps);
+          spatialIndex = null;
+          searchIndexStale = true;
+        } else {
+          changedDocuments.put(document.name, () -> {
+            List<KmlFolder> parsedMaps = parseMapDocument(document, new KmlParser());
+            synchronized (this) {
+              index.putMaps(document.documentId, document.size, document.lastModified, parsedMaps);
+              return getIndexedMaps(document);
+            }
+          });
+        }
+      }
+    }
+    if (listener != null && !changedDocuments.isEmpty()) {
+      listener.run();
+    }
+    parseChangedFiles(changedDocuments, listener);
+    synchronized (this) {
+      index.retainKeys(kmzDocuments.keySet());
+      index.save();
+    }
+  }
+
+  /** Returns the maps of a document from the index, or {@code null} if it is not indexed. */
+  @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+  private List<KmlFolder> getIndexedMaps(DocumentTree.Entry document) {
+    return index.getMaps(document.documentId, document.size, document.lastModified,
+        kmlEntryName -> new KmzDocument(document.uri, document.documentId, document.size,
+            document.lastModified, kmlEntryName));
+  }
+
+  /**
+   * Reads the maps of a kmz document for the catalog. The document is read through its zip
+   * directory, so it does not need to be copied.
+   */
+  @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+  private List<KmlFolder> parseMapDocument(DocumentTree.Entry document, KmlParser parser) {
+    List<KmzDocument> kmlEntries;
+    try {
+      kmlEntries = KmzDocument.findKmlEntries(
+          document.uri, document.documentId, document.size, document.lastModified);
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Not a valid KMZ file: " + document.name, ex);
+      return Collections.emptyList();
+    }
+    List<KmlFolder> maps = new ArrayList<>();
+    for (KmzDocument kmlInfo : kmlEntries) {
+      maps.addAll(parseMapsFrom(kmlInfo, parser));
+    }
+    return maps;
+  }
+
+  /** Creates the index of this catalog, or reads it from its file, if it is not open yet. */
+  private void openIndex(String location) {
+    if (index == null) {
+      File indexFile = new File(FileUtil.getCacheDirectory(INDEX_DIR),
+          FileUtil.md5Hex(location) + INDEX_SUFFIX);
+      index = new CatalogIndex(indexFile, defaultMapName);
+    } else {
+      index.setDefaultMapName(defaultMapName);
+    }
+  }
+
+  /** Reads the maps of a changed file, stores them in the index, and returns the indexed maps. */
+  private interface MapFileReader {
+    List<KmlFolder> readMaps() throws IOException;
+  }
+
+  private static ThreadPoolExecutor createParseWorkers() {
+    int threadCount = Runtime.getRuntime().availableProcessors();
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(threadCount, threadCount,
+        PARSER_IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "MapCatalogParser");
+          thread.setDaemon(true);
+          return thread;
+        });
+    workers.allowCoreThreadTimeOut(true);
+    return workers;
+  }
+
+  /**
+   * Parses changed map files in the catalog's worker threads, and adds their maps to catalog.
+   * Returns when all files have been parsed.
+   *
+   * @param changedFiles readers of the changed files by file name
+   */
+  private void parseChangedFiles(Map<String, MapFileReader> changedFiles, Runnable listener) {
+    if (changedFiles.isEmpty()) {
+      return;
+    }
+    List<Future<?>> tasks = new ArrayList<>();
+    for (Map.Entry<String, MapFileReader> changedFile : changedFiles.entrySet()) {
+      tasks.add(parseWorkers.submit(() -> {
+        try {
+          List<KmlFolder> maps = changedFile.getValue().readMaps();
+          synchronized (this) {
+            allMaps.addAll(maps);
+            spatialIndex = null;
+            searchIndexStale = true;
+          }
+        } catch (Exception ex) {
+          Log.w(CustomMaps.LOG_TAG, "Failed to index map file: " + changedFile.getKey(), ex);
+          return;
+        }
+        if (listener != null) {
+          listener.run();
+        }
+      }));
+    }
+    for (Future<?> task : tasks) {
+      try {
+        task.get();
+      } catch (ExecutionException ex) {
+        Log.w(CustomMaps.LOG_TAG, "Failed to index map file", ex.getCause());
+      } catch (InterruptedException ex) {
+        for (Future<?> pending : tasks) {
+          pending.cancel(true);
+        }
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reads all maps in a KML or KMZ file for the catalog. The catalog uses maps created by the
+   * index.
+   */
+  private List<KmlFolder> parseMapFile(File file, KmlParser parser) {
+    if (MapPack.isMapPack(file)) {
+      return readMapPack(file, parser);
+    }
+    List<KmlFolder> maps = new ArrayList<>();
+    Collection<? extends KmlInfo> kmlEntries =
+        (file.getName().endsWith(".kml") ? Collections.singletonList(new KmlFile(file))
+            : scanKmz(file));
     for (KmlInfo kmlInfo : kmlEntries) {
-      allMaps.addAll(parseMapsFrom(kmlInfo, parser));
+      maps.addAll(parseMapsFrom(kmlInfo, parser));
     }
+    return maps;
   }
 
-  public void clearCatalog() {
-    // Close all ZipFiles in kmz files
-    for (KmlFolder map : allMaps) {
-      KmlInfo info = map.getKmlInfo();
-      if (info instanceof KmzFile) {
-        ((KmzFile) info).close();
+  /**
+   * Reads the maps in a map pack for the catalog. The maps are decoded from the catalog data in
+   * the pack, and the pack's kml files are parsed only if the data is from another version.
+   */
+  private List<KmlFolder> readMapPack(File file, KmlParser parser) {
+    MapPack pack;
+    try {
+      pack = MapPack.open(file);
+      if (pack.getCatalogVersion() == CatalogIndex.VERSION) {
+        return CatalogIndex.decodeMaps(
+            entryName -> CatalogIndex.createKmlInfo(file, entryName), pack.getCatalog());
       }
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Not a valid map pack: " + file.getName(), ex);
+      return Collections.emptyList();
     }
+    List<KmlFolder> maps = new ArrayList<>();
+    for (String entryName : pack.getKmlEntryNames()) {
+      maps.addAll(parseMapsFrom(new PackedKml(file, entryName), parser));
+    }
+    return maps;
+  }
+
+  /**
+   * Closes the kmz files that are open but not in use. The catalog contents are kept, and the
+   * files are reopened when they are needed.
+   */
+  public void closeFiles() {
+    ZipFilePool.closeAll();
+  }
+
+  public synchronized void clearCatalog() {
+    // Close all ZipFiles in kmz files
+    closeFiles();
     allMaps.clear();
+    spatialIndex = null;
+    // Reloaded maps are new objects, indexing them from scratch is cheaper than
+    // removing each old map from the index
+    searchIndex = new MapSearchIndex();
+    searchIndexStale = true;
+    fullScanNeeded = true;
     inMaps.clear();
     nearMaps.clear();
     farMaps.clear();
   }
 
-  private Collection<KmlFolder> parseMapsFrom(KmlInfo kmlInfo, KmlParser parser) {
+  /**
+   * Reads the maps in a KML file without their placemarks. Placemarks are
+   * loaded with loadDeferredPlacemarks() when a map is selected.
+   */
+  static Collection<KmlFolder> parseMapsFrom(KmlInfo kmlInfo, KmlParser parser) {
     if (parser == null) {
       parser = new KmlParser();
     }
-    List<KmlFolder> maps = new ArrayList<>();
-    List<Placemark> sharedPlacemarks = new ArrayList<>();
+    CatalogScanner scanner = new CatalogScanner(kmlInfo);
+    Reader in = null;
     try {
-      Iterable<KmlFeature> features = parser.readFile(kmlInfo.getKmlReader());
-      for (KmlFeature feature : features) {
-        feature.setKmlInfo(kmlInfo);
-        if (feature instanceof KmlFolder) {
-          // Scan folder for maps, assign kmlinfo to them
-          KmlFolder folder = (KmlFolder) feature;
-          for (KmlFeature folderFeature : folder.getFeatures()) {
-            folderFeature.setKmlInfo(kmlInfo);
-            if (folderFeature instanceof GroundOverlay) {
-              folder.setKmlInfo(kmlInfo);
-              maps.add(createResultFolder(folder, (GroundOverlay) folderFeature));
-            }
-          }
-        } else if (feature instanceof GroundOverlay) {
-          maps.add(createResultFolder(null, (GroundOverlay) feature));
-        } else if (feature instanceof Placemark) {
-          sharedPlacemarks.add((Placemark) feature);
-        }
-      }
-      if (!sharedPlacemarks.isEmpty()) {
-        for (KmlFolder map : maps) {
-          map.addFeatures(sharedPlacemarks);
-        }
-      }
+      in = kmlInfo.getKmlReader();
+      parser.parse(in, scanner);
     } catch (Exception ex) {
       Log.w(CustomMaps.LOG_TAG, "Failed to parse KML file: " + kmlInfo.toString(), ex);
+      return Collections.emptyList();
+    } finally {
+      FileUtil.tryToClose(in);
     }
-    return maps;
+    return scanner.getMaps();
   }
 
   /**
-   * @return Iterable<KmlInfo> of all available KML and KMZ files
+   * @return Collection<KmlInfo> of all KML and KMZ files in a directory
    */
-  private Iterable<KmlInfo> findKmlData() {
+  private Collection<KmlInfo> findKmlData(File directory) {
     List<KmlInfo> kmlData = new ArrayList<>();
-    kmlData.addAll(findKmlData(dataDir));
+    for (File file : findMapFiles(directory)) {
+      if (file.getName().endsWith(".kml")) {
+        kmlData.add(new KmlFile(file));
+      } else if (MapPack.isMapPack(file)) {
+        try {
+          for (String entryName : MapPack.open(file).getKmlEntryNames()) {
+            kmlData.add(new PackedKml(file, entryName));
+          }
+        } catch (IOException ex) {
+          Log.w(CustomMaps.LOG_TAG, "Not a valid map pack: " + file.getName(), ex);
+        }
+      } else {
+        kmlData.addAll(scanKmz(file));
+      }
+    }
     return kmlData;
   }
 
   /**
-   * @return Collection<KmlInfo> of all KML and KMZ files in a directory
+   * @return List<File> of all KML, KMZ, and map pack files in a directory
    */
-  private Collection<KmlInfo> findKmlData(File directory) {
-    List<KmlInfo> kmlData = new ArrayList<>();
+  private List<File> findMapFiles(File directory) {
+    List<File> mapFiles = new ArrayList<>();
     if (directory == null || !directory.exists() || !directory.isDirectory()) {
-      return kmlData;
+      return mapFiles;
     }
     // Add all files in given directory
     File[] files = directory.listFiles();
@@ -482,22 +1150,21 @@ public class MapCatalog {
       String filename = file.getName();
       // Remove file from newly created files if it was found in listing
       createdFiles.remove(filename);
-      if (filename.endsWith(".kml")) {
-        kmlData.add(new KmlFile(file));
-      } else if (filename.endsWith(".kmz")) {
-        kmlData.addAll(scanKmz(file));
+      if (isMapFileName(filename)) {
+        mapFiles.add(file);
       }
     }
     // If we know of any created files that were not listed, add them too
     for (String name : createdFiles) {
-      File file = new File(directory, name);
-      if (name.endsWith(".kml")) {
-        kmlData.add(new KmlFile(file));
-      } else if (name.endsWith(".kmz")) {
-        kmlData.addAll(scanKmz(file));
+      if (isMapFileName(name)) {
+        mapFiles.add(new File(directory, name));
       }
     }
-    return kmlData;
+    return mapFiles;
+  }
+
+  static boolean isMapFileName(String name) {
+    return name.endsWith(".kml") || name.endsWith(".kmz") || name.endsWith(MapPack.FILE_SUFFIX);
   }
 
   /**
@@ -508,43 +1175,20 @@ public class MapCatalog {
    *     if the file is not a zip file.
    */
   private Collection<KmzFile> scanKmz(File file) {
-    ZipFile kmzFile;
+    List<ZipEntry> kmzContents;
     try {
-      kmzFile = new ZipFile(file);
+      kmzContents = ZipFilePool.getEntries(file);
     } catch (Exception ex) {
       // TODO: Add a notification dialog (?)
       Log.w(CustomMaps.LOG_TAG, "Not a valid KMZ file: " + file.getName(), ex);
       return Collections.emptyList();
     }
     List<KmzFile> kmlEntries = new ArrayList<>();
-    Enumeration<? extends ZipEntry> kmzContents = kmzFile.entries();
-    while (kmzContents.hasMoreElements()) {
-      ZipEntry kmzItem = kmzContents.nextElement();
+    for (ZipEntry kmzItem : kmzContents) {
       if (kmzItem.getName().endsWith(".kml")) {
-        kmlEntries.add(new KmzFile(kmzFile, kmzItem));
+        kmlEntries.add(new KmzFile(file, kmzItem));
       }
     }
     return kmlEntries;
   }
-
-  /**
-   * Compares KmlFolder by the name of the first stored map (case insensitive).
-   */
-  private Comparator<KmlFolder> mapSorter = (folder1, folder2) -> {
-    GroundOverlay m1 = folder1.getFirstMap();
-    GroundOverlay m2 = folder2.getFirstMap();
-    if (m1 == null) {
-      return (m2 == null ? 0 : 1);
-    } else if (m2 == null) {
-      return -1;
-    }
-    String name1 = m1.getName();
-    String name2 = m2.getName();
-    if (name1 == null) {
-      return (name2 == null ? 0 : 1);
-    } else if (name2 == null) {
-      return -1;
-    }
-    return stringComparer.compare(name1, name2);
-  };
 }
@@ -19,9 +19,12 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.PointF;
+import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.ViewConfiguration;
 
 import com.custommapsapp.android.kml.GroundOverlay;
 import com.custommapsapp.android.kml.IconStyle;
@@ -35,7 +38,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * MapDisplay is a base class for different kinds of MapDisplays. Nowadays there
@@ -47,9 +57,22 @@ public abstract class MapDisplay extends View {
   protected Bitmap mapImage;
   protected GroundOverlay mapData;
   protected List<Placemark> mapMarkers = new ArrayList<>();
+  // Spatial index of mapMarkers for tap lookups, rebuilt in background after changes
+  private MarkerLookup markerLookup = null;
+  private final AtomicInteger markerGeneration = new AtomicInteger(0);
+  private final ThreadPoolExecutor markerLookupBuilder = createMarkerLookupBuilder();
+  private ShapeRenderer shapeRenderer = null;
+  // Recorded GPS track and objects reused when drawing it
+  private TrackRecorder track = null;
+  private final float[] trackPoints = new float[2 * TrackRecorder.MAX_DISPLAY_POINTS + 2];
+  private final Path trackPath = new Path();
+  private Paint trackPaint = null;
   protected DisplayState displayState;
   protected View overlay;
   protected Linguist linguist;
+  // Image decoded in advance for a map that is about to be set
+  private GroundOverlay preloadedMap = null;
+  private Bitmap preloadedImage = null;
 
   public MapDisplay(Context context) {
     super(context);
@@ -80,45 +103,260 @@ public abstract class MapDisplay extends View {
     displayState.setFollowMode(followMode);
   }
 
+  /** Sets the recorded track to be drawn on the map, or {@code null} for none. */
+  public void setTrack(TrackRecorder track) {
+    this.track = track;
+    invalidate();
+  }
+
   // --------------------------------------------------------------------------
   // Placemarks
 
   public void removeAllMapMarkers() {
     mapMarkers.clear();
+    mapMarkersChanged();
   }
 
   public void removeMapMarker(Placemark marker) {
     mapMarkers.remove(marker);
+    mapMarkersChanged();
   }
 
   public void addMapMarkers(Iterable<Placemark> markers) {
     for (Placemark marker : markers) {
       mapMarkers.add(marker);
     }
+    mapMarkersChanged();
   }
 
   public void addMapMarker(Placemark marker) {
     if (marker != null && !mapMarkers.contains(marker)) {
       mapMarkers.add(marker);
+      mapMarkersChanged();
+    }
+  }
+
+  private void mapMarkersChanged() {
+    buildMarkerLookup();
+    if (shapeRenderer == null) {
+      shapeRenderer = new ShapeRenderer(this);
+    }
+    shapeRenderer.setPlacemarks(mapMarkers);
+  }
+
+  /**
+   * Finds the placemark whose icon covers the given screen point. If several
+   * icons overlap the point, the one whose center is closest to the point is
+   * returned. Placemarks without a visible icon can be tapped within touch slop
+   * distance of their location.
+   *
+   * @param x screen x coordinate of the tap
+   * @param y screen y coordinate of the tap
+   * @return Placemark at the given point, or {@code null} if there is none
+   */
+  public Placemark findPlacemarkAt(float x, float y) {
+    if (mapMarkers.isEmpty() || displayState == null) {
+      return null;
+    }
+    MarkerLookup lookup = markerLookup;
+    if (lookup == null) {
+      // Index of the first placemarks is still being built
+      return null;
+    }
+
+    // Find how far (in screen pixels) any icon can extend from its location
+    float slop = ViewConfiguration.get(getContext()).getScaledTouchSlop();
+    float reach = 0;
+    for (IconStyle iconStyle : lookup.styles) {
+      RectF bounds = getIconBounds(iconStyle, 0, 0);
+      if (bounds != null) {
+        reach = Math.max(reach, Math.max(Math.max(-bounds.left, bounds.right),
+            Math.max(-bounds.top, bounds.bottom)));
+      }
+    }
+    reach += slop;
+
+    // Convert the screen area around the tap to geo bounds. Map can be rotated,
+    // so all corners must be converted.
+    float minLon = Float.MAX_VALUE;
+    float minLat = Float.MAX_VALUE;
+    float maxLon = -Float.MAX_VALUE;
+    float maxLat = -Float.MAX_VALUE;
+    float[] corner = new float[2];
+    for (int i = 0; i < 4; i++) {
+      corner[0] = (i % 2 == 0 ? x - reach : x + reach);
+      corner[1] = (i < 2 ? y - reach : y + reach);
+      if (displayState.convertScreenToGeoCoordinates(corner) == null) {
+        return null;
+      }
+      minLon = Math.min(minLon, corner[0]);
+      maxLon = Math.max(maxLon, corner[0]);
+      minLat = Math.min(minLat, corner[1]);
+      maxLat = Math.max(maxLat, corner[1]);
+    }
+
+    PlacemarkHitTest hitTest = new PlacemarkHitTest(x, y, slop);
+    lookup.index.query(minLon, minLat, maxLon, maxLat, hitTest);
+    return hitTest.bestMatch;
+  }
+
+  /**
+   * Builds the tap lookup index of current placemarks in a background thread.
+   * The previous index is used until the new one replaces it in the UI thread.
+   * Only the latest of the rebuilds requested while one is running is done.
+   */
+  private void buildMarkerLookup() {
+    int generation = markerGeneration.incrementAndGet();
+    List<Placemark> markers = new ArrayList<>(mapMarkers);
+    markerLookupBuilder.execute(() -> {
+      if (generation != markerGeneration.get()) {
+        // Markers have changed again since this rebuild was requested
+        return;
+      }
+      MarkerLookup lookup = new MarkerLookup(markers);
+      post(() -> {
+        if (generation == markerGeneration.get()) {
+          markerLookup = lookup;
+        }
+      });
+    });
+  }
+
+  /** Creates a single thread executor whose thread exits when it has been idle for a while. */
+  private static ThreadPoolExecutor createMarkerLookupBuilder() {
+    ThreadPoolExecutor builder = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "MarkerLookupBuilder");
+          thread.setDaemon(true);
+          return thread;
+        });
+    builder.allowCoreThreadTimeOut(true);
+    return builder;
+  }
+
+  /** Spatial index of placemarks and the icon styles they use. */
+  private static class MarkerLookup {
+    final PlacemarkIndex index;
+    final Set<IconStyle> styles = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    MarkerLookup(List<Placemark> markers) {
+      index = new PlacemarkIndex(markers);
+      for (Placemark marker : markers) {
+        if (marker.getIconStyle() != null) {
+          styles.add(marker.getIconStyle());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the screen area covered by a placemark icon drawn at (x, y), or
+   * {@code null} if the icon is not loaded.
+   */
+  private static RectF getIconBounds(IconStyle iconStyle, float x, float y) {
+    if (iconStyle == null || !iconStyle.isIconReady()) {
+      return null;
+    }
+    Bitmap icon = iconStyle.getIcon();
+    if (icon == null) {
+      return null;
+    }
+    PointF offset = iconStyle.getIconOffset();
+    float scale = iconStyle.getScale();
+    float left = x + offset.x * scale;
+    float top = y + offset.y * scale;
+    return new RectF(left, top, left + icon.getWidth() * scale, top + icon.getHeight() * scale);
+  }
+
+  /** Tests placemarks returned by PlacemarkIndex against tap location. */
+  private class PlacemarkHitTest implements PlacemarkIndex.Visitor {
+    private final float x;
+    private final float y;
+    private final float slop;
+    private final float[] location = new float[2];
+    private float bestDistance = Float.MAX_VALUE;
+    Placemark bestMatch = null;
+
+    PlacemarkHitTest(float x, float y, float slop) {
+      this.x = x;
+      this.y = y;
+      this.slop = slop;
+    }
+
+    @Override
+    public void visit(Placemark placemark, float longitude, float latitude) {
+      location[0] = longitude;
+      location[1] = latitude;
+      if (displayState.convertGeoToScreenCoordinates(location) == null) {
+        return;
+      }
+      RectF bounds = getIconBounds(placemark.getIconStyle(), location[0], location[1]);
+      if (bounds == null) {
+        bounds = new RectF(location[0], location[1], location[0], location[1]);
+      }
+      bounds.inset(-slop, -slop);
+      if (!bounds.contains(x, y)) {
+        return;
+      }
+      float dx = bounds.centerX() - x;
+      float dy = bounds.centerY() - y;
+      float distance = dx * dx + dy * dy;
+      if (distance < bestDistance) {
+        bestDistance = distance;
+        bestMatch = placemark;
+      }
     }
   }
 
   protected void drawMapMarkers(Canvas canvas, DisplayState displayState) {
+    // Draw lines and polygons below placemark icons
+    if (shapeRenderer != null) {
+      shapeRenderer.draw(canvas, displayState, mapData);
+    }
+    drawTrack(canvas);
     for (Placemark marker : mapMarkers) {
       drawPlacemark(canvas, marker);
     }
   }
 
+  private void drawTrack(Canvas canvas) {
+    if (track == null) {
+      return;
+    }
+    int count = track.copyDisplayPoints(trackPoints);
+    if (count < 2 || displayState.convertGeoToScreenCoordinates(trackPoints) == null) {
+      return;
+    }
+    if (trackPaint == null) {
+      trackPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+      trackPaint.setStyle(Paint.Style.STROKE);
+      trackPaint.setStrokeWidth(4 * getResources().getDisplayMetrics().density);
+      trackPaint.setStrokeJoin(Paint.Join.ROUND);
+      trackPaint.setStrokeCap(Paint.Cap.ROUND);
+      trackPaint.setColor(0xC02060E0);
+    }
+    trackPath.rewind();
+    trackPath.moveTo(trackPoints[0], trackPoints[1]);
+    for (int i = 1; i < count; i++) {
+      trackPath.lineTo(trackPoints[2 * i], trackPoints[2 * i + 1]);
+    }
+    canvas.drawPath(trackPath, trackPaint);
+  }
+
   private void drawPlacemark(Canvas canvas, Placemark marker) {
-    float[] coordinates = new float[2];
     LatLng geo = marker.getPoint();
+    IconStyle iconStyle = marker.getIconStyle();
+    if (geo == null || iconStyle == null) {
+      // Placemark has no location or icon (for example it contains only lines)
+      return;
+    }
+    float[] coordinates = new float[2];
     coordinates[0] = (float) geo.longitude;
     coordinates[1] = (float) geo.latitude;
     if (displayState.convertGeoToScreenCoordinates(coordinates) == null) {
       return;
     }
 
-    IconStyle iconStyle = marker.getIconStyle();
     if (iconStyle.isIconReady()) {
       Bitmap icon = iconStyle.getIcon();
       if (icon != null) {
@@ -276,6 +514,22 @@ public abstract class MapDisplay extends View {
   // --------------------------------------------------------------------------
   // Image loading
 
+  /**
+   * Provides an image that has already been decoded for a map, so that the map
+   * is displayed without decoding its image again when it is set. The image is
+   * released if another map is set first.
+   *
+   * @param map GroundOverlay that will be set next
+   * @param image decoded map image of the GroundOverlay
+   */
+  public void setPreloadedImage(GroundOverlay map, Bitmap image) {
+    if (preloadedImage != null && preloadedImage != image) {
+      preloadedImage.recycle();
+    }
+    preloadedMap = map;
+    preloadedImage = image;
+  }
+
   /**
    * Loads the bitmap image used as a map in a GroundOverlay.
    *
@@ -286,6 +540,17 @@ public abstract class MapDisplay extends View {
    * @throws MapImageTooLargeException if the map image is too large to keep in memory
    */
   protected Bitmap loadMapImage(GroundOverlay map) throws IOException, MapImageTooLargeException {
+    if (preloadedImage != null) {
+      Bitmap image = preloadedImage;
+      boolean isPreloaded = (map != null
+          && (map.equals(preloadedMap) || ImageHashIndex.isSameImage(map, preloadedMap)));
+      preloadedMap = null;
+      preloadedImage = null;
+      if (isPreloaded && !image.isRecycled()) {
+        return image;
+      }
+      image.recycle();
+    }
     System.gc();  // Maximize memory available for the image
     if (map == null) {
       return null;
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import com.custommapsapp.android.kml.MapPack;
+import com.custommapsapp.android.kml.ZipFilePool;
+import com.custommapsapp.android.storage.PreferenceStore;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MapLibrarySync keeps the maps in the app's map directory in sync with a
+ * server. The server publishes a JSON manifest of its map files:
+ * <pre>
+ * {
+ *   "files": [
+ *     { "path": "alps/chamonix.kmz", "size": 2048576,
+ *       "hash": "9e107d9d372bb6826bd81d3542a419d6" },
+ *     ...
+ *   ]
+ * }
+ * </pre>
+ * Paths are URLs relative to the manifest, and each file is stored in the map
+ * directory with the last name of its path. The hash is the MD5 hash of the
+ * file as a hex string. The app keeps the same hash of every file in the map
+ * directory, so unchanged files are found without reading them.
+ *
+ * A sync downloads the new and changed files, a few at a time, and deletes
+ * the files that earlier syncs downloaded but that are no longer in the
+ * manifest. Maps the user has added in other ways are never replaced or
+ * deleted. Each download is checked against the size and hash in the manifest
+ * before it replaces the old file, so a failed download leaves the previous
+ * version of the map in place. Downloads are written to a separate directory,
+ * so the catalog and the hash index never see partially downloaded files.
+ *
+ * @author Marko Teittinen
+ */
+public class MapLibrarySync {
+  private static final int MAX_PARALLEL_DOWNLOADS = 3;
+  private static final long SYNC_INTERVAL_MS = 60 * 60 * 1000; // 1 hour
+  private static final int MAX_MANIFEST_SIZE = 1024 * 1024;
+  private static final String TMP_DIR = "sync";
+  private static final String TMP_SUFFIX = ".sync";
+
+  /** Receives the result of a completed sync in a background thread. */
+  public interface Listener {
+    void syncCompleted(Result result);
+  }
+
+  /** Numbers of files changed by a sync. */
+  public static class Result {
+    public final int downloaded;
+    public final int deleted;
+    public final int failed;
+
+    Result(int downloaded, int deleted, int failed) {
+      this.downloaded = downloaded;
+      this.deleted = deleted;
+      this.failed = failed;
+    }
+
+    /** Returns {@code true} if files were added, replaced, or deleted. */
+    public boolean hasChanges() {
+      return downloaded > 0 || deleted > 0;
+    }
+  }
+
+  private static final AtomicBoolean syncRunning = new AtomicBoolean(false);
+
+  /**
+   * Starts syncing the maps in a background thread, if a manifest URL has
+   * been set in the preferences, and the previous sync is older than the sync
+   * interval. Maps are synced only when they are stored in the app's internal
+   * map directory. Only one sync runs at a time.
+   *
+   * @param context used to read the preferences
+   * @param listener notified when the sync completes, or {@code null}
+   * @return {@code true} if a sync was started
+   */
+  public static boolean startIfDue(Context context, Listener listener) {
+    PreferenceStore prefs = PreferenceStore.instance(context);
+    String manifestUrl = prefs.getSyncManifestUrl();
+    if (manifestUrl == null || !isUsingInternalStorage(prefs)) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    long lastSync = prefs.getLastSyncTime();
+    if (lastSync <= now && now - lastSync < SYNC_INTERVAL_MS) {
+      return false;
+    }
+    URL url;
+    try {
+      url = new URL(manifestUrl);
+    } catch (MalformedURLException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Invalid map sync manifest URL: " + manifestUrl);
+      return false;
+    }
+    if (!syncRunning.compareAndSet(false, true)) {
+      return false;
+    }
+    Thread worker = new Thread(() -> {
+      try {
+        ContentHashIndex hashIndex =
+            ContentHashIndex.forDirectory(FileUtil.getInternalMapDirectory());
+        MapLibrarySync sync = new MapLibrarySync(url, hashIndex,
+            FileUtil.getCacheDirectory(TMP_DIR), prefs.getSyncedFiles());
+        Result result = sync.run();
+        prefs.setSyncedFiles(sync.getSyncedFiles());
+        prefs.setLastSyncTime(System.currentTimeMillis());
+        if (listener != null) {
+          listener.syncCompleted(result);
+        }
+      } catch (IOException | JSONException ex) {
+        // Sync is attempted again the next time
+        Log.w(CustomMaps.LOG_TAG, "Failed to sync maps from: " + manifestUrl, ex);
+      } finally {
+        syncRunning.set(false);
+      }
+    }, "MapLibrarySync");
+    worker.setDaemon(true);
+    worker.setPriority(Thread.MIN_PRIORITY);
+    worker.start();
+    return true;
+  }
+
+  /** Returns {@code true} if the map catalog reads the maps from the internal map directory. */
+  private static boolean isUsingInternalStorage(PreferenceStore prefs) {
+    if (prefs.isUsingLegacyStorage()) {
+      return false;
+    }
+    return prefs.getMapStorageDirectory() == null
+        || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP;
+  }
+
+  /** A map file listed in the manifest. */
+  private static class ManifestEntry {
+    final URL url;
+    final String name;
+    final long size;
+    final String hash;
+
+    ManifestEntry(URL url, String name, long size, String hash) {
+      this.url = url;
+      this.name = name;
+      this.size = size;
+      this.hash = hash;
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Instance variables and methods
+
+  private final URL manifestUrl;
+  private final File mapDir;
+  private final ContentHashIndex hashIndex;
+  private final File tmpDir;
+  private final Set<String> syncedFiles;
+
+  /**
+   * @param manifestUrl URL of the manifest on the server
+   * @param hashIndex hash index of the directory the maps are synced to
+   * @param tmpDir directory for downloads in progress, must be in the same
+   *     file system as the map directory
+   * @param syncedFiles names of the files earlier syncs have downloaded
+   */
+  MapLibrarySync(URL manifestUrl, ContentHashIndex hashIndex, File tmpDir,
+      Set<String> syncedFiles) {
+    this.manifestUrl = manifestUrl;
+    this.mapDir = hashIndex.getDirectory();
+    this.hashIndex = hashIndex;
+    this.tmpDir = tmpDir;
+    this.syncedFiles = new HashSet<>(syncedFiles);
+  }
+
+  /** Returns the names of the files managed by syncing, updated by {@link #run()}. */
+  Set<String> getSyncedFiles() {
+    return syncedFiles;
+  }
+
+  /**
+   * Syncs the map directory with the manifest. Failures of individual files
+   * are logged and counted in the result, they are attempted again by the
+   * next sync.
+   *
+   * @throws IOException if the manifest cannot be downloaded
+   * @throws JSONException if the manifest is invalid
+   */
+  Result run() throws IOException, JSONException {
+    deleteTmpFiles();
+    List<ManifestEntry> manifest = parseManifest(downloadManifest());
+    Map<String, String> localHashes = hashIndex.getFileHashes();
+
+    // Compare the manifest to the files in the map directory
+    Set<String> manifestNames = new HashSet<>();
+    List<ManifestEntry> downloads = new ArrayList<>();
+    int failed = 0;
+    for (ManifestEntry entry : manifest) {
+      manifestNames.add(entry.name);
+      File localFile = new File(mapDir, entry.name);
+      if (!localFile.exists()) {
+        downloads.add(entry);
+      } else if (localFile.length() != entry.size
+          || !entry.hash.equals(localHashes.get(entry.name))) {
+        if (syncedFiles.contains(entry.name)) {
+          downloads.add(entry);
+        } else {
+          Log.w(CustomMaps.LOG_TAG, "Map sync does not replace a map added by user: " + entry.name);
+          failed++;
+        }
+      }
+      // Up to date files are left as they are. A file the user has added
+      // stays unmanaged even if it is identical, so sync never deletes it.
+    }
+
+    // Download the new and changed files
+    int downloaded = 0;
+    if (!downloads.isEmpty()) {
+      ExecutorService executor =
+          Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_DOWNLOADS, downloads.size()));
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (ManifestEntry entry : downloads) {
+        results.add(executor.submit(() -> download(entry)));
+      }
+      executor.shutdown();
+      for (int i = 0; i < downloads.size(); i++) {
+        boolean success;
+        try {
+          success = results.get(i).get();
+        } catch (InterruptedException ex) {
+          executor.shutdownNow();
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Map sync was interrupted");
+        } catch (ExecutionException ex) {
+          Log.w(CustomMaps.LOG_TAG, "Failed to download map: " + downloads.get(i).url, ex);
+          success = false;
+        }
+        if (success) {
+          syncedFiles.add(downloads.get(i).name);
+          downloaded++;
+        } else {
+          failed++;
+        }
+      }
+    }
+
+    // Delete the files that have been removed from the manifest
+    int deleted = 0;
+    Iterator<String> iter = syncedFiles.iterator();
+    while (iter.hasNext()) {
+      String name = iter.next();
+      if (manifestNames.contains(name)) {
+        continue;
+      }
+      File file = new File(mapDir, name);
+      if (!file.exists()) {
+        iter.remove();
+        continue;
+      }
+      closeFile(file);
+      if (file.delete()) {
+        iter.remove();
+        deleted++;
+      } else {
+        Log.w(CustomMaps.LOG_TAG, "Failed to delete map removed from sync: " + name);
+        failed++;
+      }
+    }
+    return new Result(downloaded, deleted, failed);
+  }
+
+  private String downloadManifest() throws IOException {
+    HttpURLConnection conn = KmzDownloader.openConnection(manifestUrl);
+    InputStream in = null;
+    try {
+      int responseCode = conn.getResponseCode();
+      if (responseCode / 100 != 2) {
+        throw new IOException("Invalid response from server: " + responseCode);
+      }
+      in = conn.getInputStream();
+      ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        manifest.write(buffer, 0, count);
+        if (manifest.size() > MAX_MANIFEST_SIZE) {
+          throw new IOException("Map sync manifest is too large");
+        }
+      }
+      return new String(manifest.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      FileUtil.tryToClose(in);
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * Returns the map files listed in the manifest. Entries with invalid or
+   * duplicate file names, or invalid hashes, are logged and ignored.
+   */
+  private List<ManifestEntry> parseManifest(String json) throws JSONException {
+    JSONArray files = new JSONObject(json).getJSONArray("files");
+    List<ManifestEntry> entries = new ArrayList<>();
+    Set<String> names = new HashSet<>();
+    for (int i = 0; i < files.length(); i++) {
+      JSONObject file = files.getJSONObject(i);
+      String path = file.getString("path");
+      URL url;
+      String name;
+      try {
+        url = new URL(manifestUrl, path);
+        String urlPath = url.toURI().getPath();
+        name = urlPath.substring(urlPath.lastIndexOf('/') + 1);
+      } catch (MalformedURLException | URISyntaxException ex) {
+        Log.w(CustomMaps.LOG_TAG, "Invalid map path in sync manifest: " + path);
+        continue;
+      }
+      if (name.length() == 0 || name.startsWith(".") || name.indexOf('/') >= 0
+          || !MapCatalog.isMapFileName(name)) {
+        Log.w(CustomMaps.LOG_TAG, "Invalid map path in sync manifest: " + path);
+        continue;
+      }
+      if (!names.add(name)) {
+        Log.w(CustomMaps.LOG_TAG, "Duplicate map name in sync manifest: " + path);
+        continue;
+      }
+      String hash = file.getString("hash").toLowerCase(Locale.US);
+      if (!hash.matches("[0-9a-f]{32}")) {
+        Log.w(CustomMaps.LOG_TAG, "Invalid MD5 hash in sync manifest: " + path);
+        continue;
+      }
+      entries.add(new ManifestEntry(url, name, file.getLong("size"), hash));
+    }
+    return entries;
+  }
+
+  /**
+   * Downloads a file to a temporary file, and replaces the map file with it
+   * if its size and hash match the manifest.
+   *
+   * @return {@code true} if the map file was replaced
+   */
+  private boolean download(ManifestEntry entry) {
+    File mapFile = new File(mapDir, entry.name);
+    File tmpFile = null;
+    HttpURLConnection conn = null;
+    InputStream in = null;
+    OutputStream out = null;
+    try {
+      conn = KmzDownloader.openConnection(entry.url);
+      int responseCode = conn.getResponseCode();
+      if (responseCode / 100 != 2) {
+        throw new IOException("Invalid response from server: " + responseCode);
+      }
+      MessageDigest digest = ContentHashIndex.newDigest();
+      in = new DigestInputStream(new BufferedInputStream(conn.getInputStream()), digest);
+      tmpFile = File.createTempFile(entry.name, TMP_SUFFIX, tmpDir);
+      out = new FileOutputStream(tmpFile);
+      FileUtil.copyContents(in, out);
+      out.close();
+      out = null;
+      byte[] hash = digest.digest();
+      if (tmpFile.length() != entry.size || !entry.hash.equals(ContentHashIndex.toHex(hash))) {
+        throw new IOException("Downloaded file does not match sync manifest: " + entry.name);
+      }
+      closeFile(mapFile);
+      if (!tmpFile.renameTo(mapFile)) {
+        throw new IOException("Failed to replace map file: " + entry.name);
+      }
+      hashIndex.putFile(mapFile, hash);
+      return true;
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to download map: " + entry.url, ex);
+      return false;
+    } finally {
+      FileUtil.tryToClose(in);
+      FileUtil.tryToClose(out);
+      if (conn != null) {
+        conn.disconnect();
+      }
+      if (tmpFile != null) {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  /** Deletes the downloads left over from a sync that did not complete. */
+  private void deleteTmpFiles() {
+    File[] tmpFiles = tmpDir.listFiles((dir, name) -> name.endsWith(TMP_SUFFIX));
+    if (tmpFiles != null) {
+      for (File tmpFile : tmpFiles) {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  /** Releases the open files and mappings of a map file before it is replaced or deleted. */
+  private static void closeFile(File file) {
+    ZipFilePool.close(file);
+    MapPack.close(file);
+  }
+}
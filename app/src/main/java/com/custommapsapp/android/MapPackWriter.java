@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.util.Log;
+
+import com.custommapsapp.android.kml.KmlFolder;
+import com.custommapsapp.android.kml.KmlParser;
+import com.custommapsapp.android.kml.KmzFile;
+import com.custommapsapp.android.kml.MapPack;
+import com.custommapsapp.android.kml.PackedKml;
+import com.custommapsapp.android.kml.ZipFilePool;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * MapPackWriter combines kmz files to a single map pack. A pack is copied to
+ * the map directory instead of the kmz files it was created from, and the
+ * catalog reads all its maps from the catalog information in the pack.
+ *
+ * The entries of the kmz files are stored without compression, so that their
+ * images can be memory mapped, and each kmz file's entries are prefixed with
+ * the name of the kmz file. Identical entries, typically the same map image
+ * used in several kmz files, are stored only once.
+ *
+ * @author Marko Teittinen
+ */
+public class MapPackWriter {
+  private MapPackWriter() {
+  }
+
+  /**
+   * Writes the kmz files to a map pack. The pack file is replaced only if all
+   * kmz files were written successfully.
+   *
+   * @param kmzFiles kmz files to be packed, their names must be unique
+   * @param packFile map pack file to write, should end with MapPack.FILE_SUFFIX
+   * @throws IOException if a kmz file cannot be read, or the pack cannot be
+   *     written
+   */
+  public static void write(List<File> kmzFiles, File packFile) throws IOException {
+    // Read the directories of the kmz files, and the maps for the catalog
+    List<MapPack.PackEntry> entries = new ArrayList<>();
+    Map<File, List<ZipEntryData>> entriesByFile = new HashMap<>();
+    List<KmlFolder> maps = new ArrayList<>();
+    Set<String> prefixes = new HashSet<>();
+    KmlParser parser = new KmlParser();
+    for (File kmzFile : kmzFiles) {
+      String prefix = kmzFile.getName() + '/';
+      if (!prefixes.add(prefix)) {
+        throw new IOException("Duplicate kmz file name: " + kmzFile.getName());
+      }
+      List<String> kmlEntryNames = new ArrayList<>();
+      List<ZipEntryData> fileEntries = new ArrayList<>();
+      entriesByFile.put(kmzFile, fileEntries);
+      try (ZipFile zipFile = new ZipFile(kmzFile)) {
+        Properties orientations = readOrientations(zipFile);
+        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+        while (zipEntries.hasMoreElements()) {
+          ZipEntry entry = zipEntries.nextElement();
+          if (entry.isDirectory()) {
+            continue;
+          }
+          if (entry.getSize() < 0) {
+            throw new IOException("Unknown entry size in " + kmzFile.getName());
+          }
+          MapPack.PackEntry packEntry = new MapPack.PackEntry(prefix + entry.getName(),
+              entry.getSize(), getOrientation(orientations, entry.getName()),
+              computeHash(zipFile, entry));
+          entries.add(packEntry);
+          fileEntries.add(new ZipEntryData(entry.getName(), packEntry));
+          if (entry.getName().endsWith(".kml")) {
+            kmlEntryNames.add(entry.getName());
+          }
+        }
+      }
+      for (String entryName : kmlEntryNames) {
+        for (KmlFolder map : MapCatalog.parseMapsFrom(new KmzFile(kmzFile, entryName), parser)) {
+          map.setKmlInfo(new PackedKml(packFile, prefix + entryName));
+          maps.add(map);
+        }
+      }
+      ZipFilePool.close(kmzFile);
+    }
+    byte[] catalog = CatalogIndex.encodeMaps(maps);
+
+    // Write the header and copy the data of the entries that are not duplicates
+    File tmpFile = File.createTempFile(packFile.getName(), ".tmp", packFile.getParentFile());
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+      Set<MapPack.PackEntry> stored = Collections.newSetFromMap(new IdentityHashMap<>());
+      stored.addAll(MapPack.writeHeader(out, entries, CatalogIndex.VERSION, catalog));
+      for (File kmzFile : kmzFiles) {
+        try (ZipFile zipFile = new ZipFile(kmzFile)) {
+          for (ZipEntryData data : entriesByFile.get(kmzFile)) {
+            if (!stored.contains(data.packEntry)) {
+              continue;
+            }
+            ZipEntry entry = zipFile.getEntry(data.zipEntryName);
+            if (entry == null) {
+              throw new IOException("Kmz file changed while packing: " + kmzFile.getName());
+            }
+            long start = out.size();
+            try (InputStream in = zipFile.getInputStream(entry)) {
+              FileUtil.copyContents(in, out);
+            }
+            if (out.size() - start != entry.getSize()) {
+              throw new IOException("Invalid entry size in " + kmzFile.getName());
+            }
+          }
+        }
+      }
+      out.close();
+      out = null;
+      if (!tmpFile.renameTo(packFile)) {
+        throw new IOException("Failed to rename map pack: " + packFile.getName());
+      }
+    } finally {
+      if (out != null) {
+        FileUtil.tryToClose(out);
+      }
+      tmpFile.delete();
+    }
+  }
+
+  /** Pack entry created for an entry of a kmz file. */
+  private static class ZipEntryData {
+    final String zipEntryName;
+    final MapPack.PackEntry packEntry;
+
+    ZipEntryData(String zipEntryName, MapPack.PackEntry packEntry) {
+      this.zipEntryName = zipEntryName;
+      this.packEntry = packEntry;
+    }
+  }
+
+  private static byte[] computeHash(ZipFile zipFile, ZipEntry entry) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      // SHA-256 is always available on Android
+      throw new IllegalStateException(ex);
+    }
+    byte[] buffer = new byte[65536];
+    try (InputStream in = zipFile.getInputStream(entry)) {
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, count);
+      }
+    }
+    return digest.digest();
+  }
+
+  private static Properties readOrientations(ZipFile zipFile) {
+    Properties orientations = new Properties();
+    ZipEntry entry = zipFile.getEntry(KmzFile.MAP_ORIENTATION_PROPERTIES);
+    if (entry == null) {
+      return orientations;
+    }
+    try (InputStream in = zipFile.getInputStream(entry)) {
+      orientations.load(in);
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to read map image orientations: " + zipFile.getName(), ex);
+    }
+    return orientations;
+  }
+
+  private static int getOrientation(Properties orientations, String path) {
+    String value = orientations.getProperty(path);
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Invalid map image orientation for: " + path);
+      return 0;
+    }
+  }
+}
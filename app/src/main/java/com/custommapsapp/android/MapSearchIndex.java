@@ -0,0 +1,276 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import com.custommapsapp.android.kml.GroundOverlay;
+import com.custommapsapp.android.kml.KmlFolder;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * MapSearchIndex is an inverted index of the words in map names, map and
+ * folder descriptions, and placemark names of the maps in a catalog. Queries
+ * match maps that contain every word of the query, either as such or as the
+ * beginning of a longer word, so that results can be updated as the user
+ * types.
+ *
+ * Words are compared in lower case without accents. The index is updated
+ * incrementally: only maps that are new to the index are read, and the words
+ * of removed maps are removed from the index. Removing a map scans the
+ * postings of its words, so a catalog that replaces all of its maps should
+ * discard the index instead.
+ *
+ * This class is not thread safe, MapCatalog accesses it only while
+ * synchronized.
+ *
+ * @author Marko Teittinen
+ */
+class MapSearchIndex {
+  /** Growable list of map ids containing a word. */
+  private static class Postings {
+    int[] ids = new int[2];
+    int size = 0;
+
+    void add(int id) {
+      if (size == ids.length) {
+        int[] newIds = new int[2 * size];
+        System.arraycopy(ids, 0, newIds, 0, size);
+        ids = newIds;
+      }
+      ids[size++] = id;
+    }
+
+    void remove(int id) {
+      for (int i = 0; i < size; i++) {
+        if (ids[i] == id) {
+          ids[i] = ids[--size];
+          return;
+        }
+      }
+    }
+  }
+
+  // Postings of each word, sorted so that words with a common prefix are adjacent
+  private final TreeMap<String, Postings> words = new TreeMap<>();
+  // Maps by id, removed maps leave null slots that are reused
+  private final List<KmlFolder> maps = new ArrayList<>();
+  private final List<String[]> mapWords = new ArrayList<>();
+  private final List<CollationKey> sortKeys = new ArrayList<>();
+  private final List<Integer> freeIds = new ArrayList<>();
+  private final Map<KmlFolder, Integer> mapIds = new IdentityHashMap<>();
+  private Collator collator = null;
+  private Locale collatorLocale = null;
+
+  /**
+   * Updates the index to contain exactly the given maps. Maps already in the
+   * index are not read again.
+   */
+  void update(Collection<KmlFolder> catalogMaps) {
+    Set<KmlFolder> current = Collections.newSetFromMap(new IdentityHashMap<>());
+    current.addAll(catalogMaps);
+    Iterator<Map.Entry<KmlFolder, Integer>> iter = mapIds.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<KmlFolder, Integer> entry = iter.next();
+      if (!current.contains(entry.getKey())) {
+        iter.remove();
+        removeMap(entry.getValue());
+      }
+    }
+    updateCollator();
+    for (KmlFolder mapHolder : current) {
+      if (!mapIds.containsKey(mapHolder) && mapHolder.getFirstMap() != null) {
+        addMap(mapHolder);
+      }
+    }
+  }
+
+  /**
+   * Finds the maps that contain all words of a query.
+   *
+   * @param query words to search for, the last one is typically incomplete
+   * @return matching maps sorted by name, or an empty list if the query has
+   *     no words
+   */
+  List<KmlFolder> search(String query) {
+    List<String> queryWords = new ArrayList<>(tokenize(query));
+    if (queryWords.isEmpty()) {
+      return Collections.emptyList();
+    }
+    updateCollator();
+    // Longer words usually match fewer maps, start with them
+    Collections.sort(queryWords, (word1, word2) -> word2.length() - word1.length());
+    BitSet result = null;
+    for (String word : queryWords) {
+      BitSet matches = new BitSet(maps.size());
+      // All words starting with the query word are adjacent in the sorted map
+      for (Postings postings : words.subMap(word, word + Character.MAX_VALUE).values()) {
+        for (int i = 0; i < postings.size; i++) {
+          matches.set(postings.ids[i]);
+        }
+      }
+      if (result == null) {
+        result = matches;
+      } else {
+        result.and(matches);
+      }
+      if (result.isEmpty()) {
+        return Collections.emptyList();
+      }
+    }
+    List<Integer> ids = new ArrayList<>(result.cardinality());
+    for (int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id + 1)) {
+      ids.add(id);
+    }
+    // Maps without names are sorted last
+    Collections.sort(ids, (id1, id2) -> {
+      CollationKey key1 = sortKeys.get(id1);
+      CollationKey key2 = sortKeys.get(id2);
+      if (key1 == null) {
+        return (key2 == null ? 0 : 1);
+      } else if (key2 == null) {
+        return -1;
+      }
+      return key1.compareTo(key2);
+    });
+    List<KmlFolder> found = new ArrayList<>(ids.size());
+    for (int id : ids) {
+      found.add(maps.get(id));
+    }
+    return found;
+  }
+
+  private void addMap(KmlFolder mapHolder) {
+    int id;
+    if (freeIds.isEmpty()) {
+      id = maps.size();
+      maps.add(null);
+      mapWords.add(null);
+      sortKeys.add(null);
+    } else {
+      id = freeIds.remove(freeIds.size() - 1);
+    }
+    GroundOverlay map = mapHolder.getFirstMap();
+    Set<String> tokens = new LinkedHashSet<>();
+    tokens.addAll(tokenize(map.getName()));
+    tokens.addAll(tokenize(mapHolder.getName()));
+    tokens.addAll(tokenize(stripTags(map.getDescription())));
+    tokens.addAll(tokenize(stripTags(mapHolder.getDescription())));
+    for (String placemarkName : mapHolder.getDeferredPlacemarkNames()) {
+      tokens.addAll(tokenize(placemarkName));
+    }
+    for (String token : tokens) {
+      Postings postings = words.get(token);
+      if (postings == null) {
+        postings = new Postings();
+        words.put(token, postings);
+      }
+      postings.add(id);
+    }
+    maps.set(id, mapHolder);
+    mapWords.set(id, tokens.toArray(new String[0]));
+    sortKeys.set(id, getSortKey(map));
+    mapIds.put(mapHolder, id);
+  }
+
+  private void removeMap(int id) {
+    for (String token : mapWords.get(id)) {
+      Postings postings = words.get(token);
+      postings.remove(id);
+      if (postings.size == 0) {
+        words.remove(token);
+      }
+    }
+    maps.set(id, null);
+    mapWords.set(id, null);
+    sortKeys.set(id, null);
+    freeIds.add(id);
+  }
+
+  /** Recreates the sort keys of all maps if the user has changed the locale. */
+  private void updateCollator() {
+    Locale locale = Locale.getDefault();
+    if (locale.equals(collatorLocale)) {
+      return;
+    }
+    collatorLocale = locale;
+    collator = Collator.getInstance(locale);
+    for (int id = 0; id < maps.size(); id++) {
+      KmlFolder mapHolder = maps.get(id);
+      if (mapHolder != null) {
+        sortKeys.set(id, getSortKey(mapHolder.getFirstMap()));
+      }
+    }
+  }
+
+  private CollationKey getSortKey(GroundOverlay map) {
+    String name = map.getName();
+    return (name != null ? collator.getCollationKey(name) : null);
+  }
+
+  // --------------------------------------------------------------------------
+  // Text processing
+
+  /** Removes html tags often used in kml descriptions. */
+  private static String stripTags(String text) {
+    if (text == null || text.indexOf('<') < 0) {
+      return text;
+    }
+    return text.replaceAll("<[^>]*>", " ");
+  }
+
+  /**
+   * Splits text to words of letters and digits, in lower case and without
+   * accents.
+   */
+  private static Set<String> tokenize(String text) {
+    if (text == null || text.isEmpty()) {
+      return Collections.emptySet();
+    }
+    text = Normalizer.normalize(text, Normalizer.Form.NFD);
+    Set<String> tokens = new LinkedHashSet<>();
+    StringBuilder word = new StringBuilder();
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        word.append(c);
+      } else if (Character.getType(c) == Character.NON_SPACING_MARK) {
+        // Accent separated from its letter by normalization
+        continue;
+      } else if (word.length() > 0) {
+        tokens.add(word.toString().toLowerCase(Locale.ROOT));
+        word.setLength(0);
+      }
+    }
+    if (word.length() > 0) {
+      tokens.add(word.toString().toLowerCase(Locale.ROOT));
+    }
+    return tokens;
+  }
+}
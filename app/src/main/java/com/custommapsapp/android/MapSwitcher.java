@@ -0,0 +1,346 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.custommapsapp.android.MapDisplay.MapImageTooLargeException;
+import com.custommapsapp.android.kml.GroundOverlay;
+import com.custommapsapp.android.kml.KmlFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MapSwitcher selects the map to be displayed automatically as the user moves.
+ * When the user's location leaves the current map, the catalog map with the
+ * highest resolution containing the location is selected.
+ *
+ * The user's speed and heading are used to predict where the user will be in
+ * a minute. If that location is outside the current map, the image of the map
+ * that will be selected there is decoded in advance, so that the switch
+ * happens without delay. Preloading is skipped if both images would not fit in
+ * memory, or if the next map uses an image identical to the current map's
+ * image, because the display then keeps the image it has already decoded.
+ *
+ * All map searches and image decoding happen in a background thread.
+ *
+ * @author Marko Teittinen
+ */
+class MapSwitcher {
+  /** Receives the selected maps in the UI thread. */
+  interface Listener {
+    /**
+     * Called when the user has moved off the current map to another map.
+     *
+     * @param map KmlFolder containing the new map and its placemarks
+     * @param image decoded image of the map, or {@code null} if it was not
+     *     preloaded
+     * @return {@code false} if the map could not be displayed, it will not be
+     *     selected again
+     */
+    boolean switchMap(KmlFolder map, Bitmap image);
+  }
+
+  // How far ahead the user's location is predicted
+  private static final float LOOKAHEAD_S = 60f;
+  // Slower movement is not used for prediction, GPS speed is unreliable
+  private static final float MIN_SPEED_MPS = 0.5f;
+  private static final float METERS_PER_LATITUDE_DEGREE = 111320f;
+
+  private final Context context;
+  private final MapCatalog catalog;
+  private final Listener listener;
+  private final Handler uiHandler = new Handler(Looper.getMainLooper());
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  // Locations arriving while the previous one is being processed, or a map switch is pending,
+  // are ignored
+  private final AtomicBoolean busy = new AtomicBoolean(false);
+
+  // Following fields are accessed only in the executor thread
+  private final Map<GroundOverlay, ImageInfo> imageInfos = new WeakHashMap<>();
+  private final Set<KmlFolder> failedMaps = Collections.newSetFromMap(new WeakHashMap<>());
+  private boolean catalogUpdated = false;
+  private KmlFolder preloadedMap = null;
+  private Bitmap preloadedImage = null;
+
+  /** Resolution and size of a map image. */
+  private static class ImageInfo {
+    final float metersPerPixel;
+    final long pixelCount;
+
+    ImageInfo(float metersPerPixel, long pixelCount) {
+      this.metersPerPixel = metersPerPixel;
+      this.pixelCount = pixelCount;
+    }
+  }
+
+  MapSwitcher(Context context, MapCatalog catalog, Listener listener) {
+    this.context = context.getApplicationContext();
+    this.catalog = catalog;
+    this.listener = listener;
+  }
+
+  /**
+   * Checks if a new location requires a map switch, or if the next map should
+   * be preloaded. Must be called in the UI thread.
+   *
+   * @param location the user's current location
+   * @param currentMap map being displayed
+   * @param switchAllowed {@code false} if the map should not be switched even
+   *     if the location is outside the current map
+   */
+  void onLocationChanged(Location location, GroundOverlay currentMap, boolean switchAllowed) {
+    if (location == null || currentMap == null || executor.isShutdown()
+        || !busy.compareAndSet(false, true)) {
+      return;
+    }
+    float longitude = (float) location.getLongitude();
+    float latitude = (float) location.getLatitude();
+    float[] predicted = predictLocation(location, LOOKAHEAD_S);
+    executor.execute(() -> {
+      boolean switching = false;
+      try {
+        switching = checkLocation(longitude, latitude, predicted, currentMap, switchAllowed);
+      } catch (Exception ex) {
+        Log.w(CustomMaps.LOG_TAG, "Automatic map selection failed", ex);
+      } finally {
+        if (!switching) {
+          busy.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Releases the preloaded image, saves the image hashes computed while
+   * switching maps, and stops the background thread. Must be called in the UI
+   * thread.
+   */
+  void release() {
+    executor.execute(() -> {
+      releasePreloadedImage();
+      ImageHashIndex.instance().save();
+    });
+    executor.shutdown();
+  }
+
+  /**
+   * Returns the location the user will reach in given time at current speed
+   * and heading, or {@code null} if the user is not moving.
+   */
+  private static float[] predictLocation(Location location, float seconds) {
+    if (!location.hasSpeed() || !location.hasBearing() || location.getSpeed() < MIN_SPEED_MPS) {
+      return null;
+    }
+    double distance = location.getSpeed() * seconds;
+    double bearing = Math.toRadians(location.getBearing());
+    double latitude = location.getLatitude();
+    double latDelta = distance * Math.cos(bearing) / METERS_PER_LATITUDE_DEGREE;
+    double lonDelta = distance * Math.sin(bearing)
+        / (METERS_PER_LATITUDE_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(latitude))));
+    return new float[] {
+        (float) (location.getLongitude() + lonDelta), (float) (latitude + latDelta) };
+  }
+
+  /**
+   * Switches or preloads maps as needed for a location.
+   *
+   * @return {@code true} if a map switch was posted to the UI thread
+   */
+  private boolean checkLocation(float longitude, float latitude, float[] predicted,
+      GroundOverlay currentMap, boolean switchAllowed) {
+    if (!catalogUpdated) {
+      // Catalog is current if the user just selected a map, otherwise this only reads its index
+      catalog.updateCatalog(null);
+      catalogUpdated = true;
+    }
+    if (!currentMap.contains(longitude, latitude)) {
+      return switchAllowed && switchToMapAt(longitude, latitude, currentMap);
+    }
+    if (predicted == null || currentMap.contains(predicted[0], predicted[1])) {
+      return false;
+    }
+    KmlFolder nextMap = findBestMap(predicted[0], predicted[1]);
+    if (nextMap != null) {
+      preload(nextMap, currentMap);
+    }
+    return false;
+  }
+
+  private boolean switchToMapAt(float longitude, float latitude, GroundOverlay currentMap) {
+    KmlFolder nextMap = findBestMap(longitude, latitude);
+    if (nextMap == null) {
+      return false;
+    }
+    Bitmap image = null;
+    if (isSameMap(nextMap, preloadedMap)) {
+      // Ownership of the preloaded image moves to the map display
+      image = preloadedImage;
+      preloadedMap = null;
+      preloadedImage = null;
+    } else {
+      releasePreloadedImage();
+    }
+    try {
+      MapCatalog.prepareMap(nextMap);
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to copy map document: " + nextMap.getKmlInfo(), ex);
+      failedMaps.add(nextMap);
+      if (image != null) {
+        image.recycle();
+      }
+      return false;
+    }
+    if (image == null && hasSamePixelCount(nextMap.getFirstMap(), currentMap)) {
+      // Display keeps the decoded image of the current map if the hashes show it is identical
+      ImageHashIndex hashes = ImageHashIndex.instance();
+      hashes.getHash(nextMap.getFirstMap());
+      hashes.getHash(currentMap);
+    }
+    final Bitmap nextImage = image;
+    uiHandler.post(() -> {
+      if (executor.isShutdown()) {
+        // Released while the switch was pending
+        if (nextImage != null) {
+          nextImage.recycle();
+        }
+        return;
+      }
+      if (!listener.switchMap(nextMap, nextImage)) {
+        executor.execute(() -> failedMaps.add(nextMap));
+      }
+      busy.set(false);
+    });
+    return true;
+  }
+
+  /**
+   * Finds the map with the highest resolution containing a location, or
+   * {@code null} if no map contains it.
+   */
+  private KmlFolder findBestMap(float longitude, float latitude) {
+    KmlFolder bestMap = null;
+    float bestResolution = Float.MAX_VALUE;
+    for (KmlFolder mapHolder : catalog.getMapsContainingPoint(longitude, latitude)) {
+      if (failedMaps.contains(mapHolder)) {
+        continue;
+      }
+      ImageInfo info = getImageInfo(mapHolder.getFirstMap());
+      if (info != null && info.metersPerPixel < bestResolution) {
+        bestMap = mapHolder;
+        bestResolution = info.metersPerPixel;
+      }
+    }
+    return bestMap;
+  }
+
+  private void preload(KmlFolder nextMap, GroundOverlay currentMap) {
+    if (isSameMap(nextMap, preloadedMap)) {
+      return;
+    }
+    releasePreloadedImage();
+    if (hasSameImage(nextMap.getFirstMap(), currentMap)) {
+      // Display keeps the decoded image of the current map
+      return;
+    }
+    ImageInfo nextInfo = getImageInfo(nextMap.getFirstMap());
+    ImageInfo currentInfo = getImageInfo(currentMap);
+    if (nextInfo == null || currentInfo == null || nextInfo.pixelCount + currentInfo.pixelCount
+        > MemoryUtil.getMaxImagePixelCount(context)) {
+      // Both images would not fit in memory at the same time
+      return;
+    }
+    InputStream in = null;
+    try {
+      GroundOverlay map = nextMap.getFirstMap();
+      in = map.getKmlInfo().getImageStream(map.getImage());
+      preloadedImage = ImageHelper.loadImage(in, true);
+      preloadedMap = (preloadedImage != null ? nextMap : null);
+    } catch (MapImageTooLargeException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Not enough memory to preload map: " + nextMap.getName());
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to preload map: " + nextMap.getName(), ex);
+    } finally {
+      FileUtil.tryToClose(in);
+    }
+  }
+
+  private void releasePreloadedImage() {
+    if (preloadedImage != null) {
+      preloadedImage.recycle();
+    }
+    preloadedImage = null;
+    preloadedMap = null;
+  }
+
+  private static boolean isSameMap(KmlFolder map1, KmlFolder map2) {
+    if (map1 == null || map2 == null) {
+      return false;
+    }
+    return map1 == map2 || map1.getFirstMap().equals(map2.getFirstMap())
+        || ImageHashIndex.isSameImage(map1.getFirstMap(), map2.getFirstMap());
+  }
+
+  /**
+   * Returns {@code true} if two maps use images with identical contents. The
+   * images are hashed only if they have the same number of pixels.
+   */
+  private boolean hasSameImage(GroundOverlay map1, GroundOverlay map2) {
+    if (!hasSamePixelCount(map1, map2)) {
+      return false;
+    }
+    ImageHashIndex hashes = ImageHashIndex.instance();
+    String hash1 = hashes.getHash(map1);
+    return hash1 != null && hash1.equals(hashes.getHash(map2));
+  }
+
+  /** Returns {@code true} if the images of two maps can be read and have equal pixel counts. */
+  private boolean hasSamePixelCount(GroundOverlay map1, GroundOverlay map2) {
+    ImageInfo info1 = getImageInfo(map1);
+    ImageInfo info2 = getImageInfo(map2);
+    return info1 != null && info2 != null && info1.pixelCount == info2.pixelCount;
+  }
+
+  /**
+   * Returns the resolution and size of a map image, or {@code null} if the
+   * image cannot be read. The values are read only once for each map.
+   */
+  private ImageInfo getImageInfo(GroundOverlay map) {
+    ImageInfo info = imageInfos.get(map);
+    if (info == null && !imageInfos.containsKey(map)) {
+      GeoToImageConverter converter = new GeoToImageConverter();
+      if (converter.setMapData(map)) {
+        long pixelCount = (long) converter.getImageWidth() * converter.getImageHeight();
+        info = new ImageInfo(converter.getMetersPerPixel(), pixelCount);
+      }
+      imageInfos.put(map, info);
+    }
+    return info;
+  }
+}
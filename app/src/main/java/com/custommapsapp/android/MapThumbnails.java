@@ -0,0 +1,295 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.Point;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.custommapsapp.android.kml.GroundOverlay;
+import com.custommapsapp.android.kml.KmlInfo;
+import com.custommapsapp.android.kml.PackedKml;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * MapThumbnails provides small preview images of maps for the map list. A
+ * thumbnail is created once per map image with a subsampled decode, and stored
+ * as a jpg file in the cache directory. The file name is derived from the map
+ * file's path, size, and modification time, so changed maps get new
+ * thumbnails.
+ *
+ * Thumbnails are loaded in a background thread. The most recently requested
+ * thumbnail is loaded first, so loading follows the rows that are currently
+ * displayed. A view has at most one pending request, which is canceled when
+ * the view is reused for another map, and views are only weakly referenced
+ * so pending requests do not keep discarded rows in memory. Loaded thumbnails
+ * are kept in a bounded in-memory LRU cache.
+ *
+ * @author Marko Teittinen
+ */
+public class MapThumbnails {
+  private static final String CACHE_DIR = "thumbnails";
+  private static final int MEMORY_CACHE_KB = 4096;
+  private static final int JPG_QUALITY = 85;
+
+  private static MapThumbnails instance;   // singleton
+
+  public static synchronized MapThumbnails instance(Context context) {
+    if (instance == null) {
+      instance = new MapThumbnails(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /** Thumbnail request, newer requests are served first. */
+  private static class Request implements Comparable<Request> {
+    final String key;
+    final GroundOverlay map;
+    final WeakReference<ImageView> view;
+    final long sequence;
+
+    Request(String key, GroundOverlay map, ImageView view, long sequence) {
+      this.key = key;
+      this.map = map;
+      this.view = new WeakReference<>(view);
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Request other) {
+      return Long.compare(other.sequence, sequence);
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Instance variables and methods
+
+  private final int thumbnailSize;
+  private final Handler uiHandler = new Handler(Looper.getMainLooper());
+  private final PriorityBlockingQueue<Request> queue = new PriorityBlockingQueue<>();
+  // Pending request of each view, accessed only while synchronized
+  private final Map<ImageView, Request> pendingRequests = new WeakHashMap<>();
+  private final Map<GroundOverlay, String> mapKeys = new WeakHashMap<>();
+  private final Set<String> failedKeys = Collections.synchronizedSet(new HashSet<>());
+  private final LruCache<String, Bitmap> memoryCache =
+      new LruCache<String, Bitmap>(MEMORY_CACHE_KB) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+          return value.getByteCount() / 1024;
+        }
+      };
+  private long nextSequence = 0;
+
+  private MapThumbnails(Context context) {
+    thumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.map_thumbnail_size);
+    Thread loader = new Thread(this::loadThumbnails, "MapThumbnails");
+    loader.setDaemon(true);
+    loader.setPriority(Thread.MIN_PRIORITY);
+    loader.start();
+  }
+
+  /**
+   * Displays the thumbnail of a map in the view. If the thumbnail is not in
+   * memory, the view is cleared and the thumbnail is set when it has been
+   * loaded. Must be called in the UI thread.
+   */
+  public void showThumbnail(GroundOverlay map, ImageView view) {
+    String key = (map != null && map.getKmlInfo() != null ? getKey(map) : null);
+    view.setTag(key);
+    Bitmap thumbnail = (key != null ? memoryCache.get(key) : null);
+    view.setImageBitmap(thumbnail);
+    synchronized (this) {
+      Request previous = pendingRequests.remove(view);
+      if (previous != null) {
+        // View has been rebound, its earlier request is not needed anymore
+        queue.remove(previous);
+      }
+      if (thumbnail != null || key == null || failedKeys.contains(key)) {
+        return;
+      }
+      Request request = new Request(key, map, view, nextSequence++);
+      pendingRequests.put(view, request);
+      queue.add(request);
+    }
+  }
+
+  private synchronized boolean isWanted(Request request) {
+    ImageView view = request.view.get();
+    return view != null && pendingRequests.get(view) == request;
+  }
+
+  private void loadThumbnails() {
+    while (true) {
+      Request request;
+      try {
+        request = queue.take();
+      } catch (InterruptedException ex) {
+        return;
+      }
+      if (!isWanted(request)) {
+        // View has been reused for another map or discarded
+        continue;
+      }
+      Bitmap thumbnail = memoryCache.get(request.key);
+      if (thumbnail == null) {
+        thumbnail = loadThumbnail(request.key, request.map);
+      }
+      if (thumbnail == null) {
+        failedKeys.add(request.key);
+        continue;
+      }
+      memoryCache.put(request.key, thumbnail);
+      final Bitmap result = thumbnail;
+      uiHandler.post(() -> {
+        ImageView view = request.view.get();
+        synchronized (this) {
+          if (view == null || !isWanted(request)) {
+            return;
+          }
+          pendingRequests.remove(view);
+        }
+        if (request.key.equals(view.getTag())) {
+          view.setImageBitmap(result);
+        }
+      });
+    }
+  }
+
+  /** Reads a thumbnail from the cache directory, creating it if necessary. */
+  private Bitmap loadThumbnail(String key, GroundOverlay map) {
+    File cacheFile = new File(FileUtil.getCacheDirectory(CACHE_DIR), key + ".jpg");
+    if (cacheFile.exists()) {
+      Bitmap thumbnail = BitmapFactory.decodeFile(cacheFile.getAbsolutePath());
+      if (thumbnail != null) {
+        return thumbnail;
+      }
+    }
+    Bitmap thumbnail;
+    try {
+      thumbnail = createThumbnail(map);
+    } catch (Exception | OutOfMemoryError ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to create thumbnail for map: " + map.getName(), ex);
+      return null;
+    }
+    if (thumbnail == null) {
+      return null;
+    }
+    File tmpFile = new File(cacheFile.getPath() + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tmpFile);
+      thumbnail.compress(Bitmap.CompressFormat.JPEG, JPG_QUALITY, out);
+      out.close();
+      out = null;
+      if (!tmpFile.renameTo(cacheFile)) {
+        tmpFile.delete();
+      }
+    } catch (Exception ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to save thumbnail for map: " + map.getName(), ex);
+    } finally {
+      if (out != null) {
+        FileUtil.tryToClose(out);
+        tmpFile.delete();
+      }
+    }
+    return thumbnail;
+  }
+
+  /**
+   * Creates a thumbnail by decoding the map image with the largest power of
+   * two subsampling that keeps it at least thumbnail sized, and scaling the
+   * result to fit thumbnail size.
+   */
+  private Bitmap createThumbnail(GroundOverlay map) throws Exception {
+    KmlInfo kmlInfo = map.getKmlInfo();
+    String image = map.getImage();
+    if (image == null) {
+      return null;
+    }
+    Point size = ImageHelper.getImageSize(kmlInfo, image);
+    if (size == null) {
+      return null;
+    }
+    int sampleSize = 1;
+    while (Math.max(size.x, size.y) / (2 * sampleSize) >= thumbnailSize) {
+      sampleSize *= 2;
+    }
+    BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    decodeOptions.inSampleSize = sampleSize;
+    decodeOptions.inScaled = false;
+    Bitmap sample;
+    InputStream in = new BufferedInputStream(kmlInfo.getImageStream(image));
+    try {
+      sample = BitmapFactory.decodeStream(in, null, decodeOptions);
+    } finally {
+      FileUtil.tryToClose(in);
+    }
+    if (sample == null) {
+      return null;
+    }
+    float scale = (float) thumbnailSize / Math.max(sample.getWidth(), sample.getHeight());
+    Matrix transform = new Matrix();
+    transform.setScale(scale, scale);
+    transform.postRotate(kmlInfo.getImageOrientation(image));
+    Bitmap thumbnail = Bitmap.createBitmap(sample, 0, 0, sample.getWidth(), sample.getHeight(),
+        transform, true);
+    if (thumbnail != sample) {
+      sample.recycle();
+    }
+    return thumbnail;
+  }
+
+  /**
+   * Returns a file name safe key identifying the map image and the file's
+   * version. Keys are remembered per map, so the file is checked only once for
+   * each map read into the catalog.
+   */
+  private synchronized String getKey(GroundOverlay map) {
+    String key = mapKeys.get(map);
+    if (key == null) {
+      KmlInfo kmlInfo = map.getKmlInfo();
+      File file = kmlInfo.getFile();
+      String path = file.getAbsolutePath();
+      if (kmlInfo instanceof PackedKml) {
+        // Maps in a map pack can use images with the same name from different kmz files
+        path += '\n' + ((PackedKml) kmlInfo).getKmlEntryName();
+      }
+      key = FileUtil.md5Hex(path + '\n' + map.getImage() + '\n' + file.length()
+          + '\n' + file.lastModified());
+      mapKeys.put(map, key);
+    }
+    return key;
+  }
+}
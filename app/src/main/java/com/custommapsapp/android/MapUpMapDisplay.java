@@ -83,6 +83,16 @@ public class MapUpMapDisplay extends MapDisplay {
       return;
     }
     removeAllMapMarkers();
+    if (mapImage != null && !mapImage.isRecycled()
+        && ImageHashIndex.isSameImage(mapData, newMap)) {
+      // New map uses an identical image, keep the decoded bitmap
+      setPreloadedImage(null, null);
+      mapData = newMap;
+      displayState.setMapData(mapData);
+      displayState.setScreenView(this);
+      triggerRepaint();
+      return;
+    }
     if (mapImage != null) {
       // Release memory used by the old map image
       mapImage.recycle();
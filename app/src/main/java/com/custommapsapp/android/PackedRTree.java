@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PackedRTree is a static R-tree of bounding boxes, built once with the
+ * Sort-Tile-Recursive algorithm. All boxes are stored in a single float array:
+ * the items first, followed by the nodes of each level up to the root. The
+ * children of a node are consecutive entries of the level below, so the tree
+ * needs no pointers.
+ *
+ * Boxes are {west, south, east, north}. The tree is immutable and can be
+ * searched from multiple threads.
+ *
+ * @author Marko Teittinen
+ */
+class PackedRTree<T> {
+  private static final int NODE_SIZE = 16;
+
+  private final Object[] items;
+  private final float[] boxes;
+  // Index of the first entry of each level, level 0 holds the items
+  private final int[] levelStart;
+
+  /**
+   * Builds a tree of items with their bounding boxes.
+   *
+   * @param items to be stored in the tree
+   * @param bounds bounding box of each item in the same order
+   */
+  PackedRTree(List<T> items, List<float[]> bounds) {
+    int count = items.size();
+    Integer[] order = sortTileRecursive(bounds);
+    this.items = new Object[count];
+
+    // Compute the number of entries on each level
+    List<Integer> starts = new ArrayList<>();
+    int total = 0;
+    int levelSize = count;
+    do {
+      starts.add(total);
+      total += levelSize;
+      levelSize = (levelSize + NODE_SIZE - 1) / NODE_SIZE;
+    } while (starts.size() == 1 || total - starts.get(starts.size() - 1) > 1);
+    levelStart = new int[starts.size() + 1];
+    for (int i = 0; i < starts.size(); i++) {
+      levelStart[i] = starts.get(i);
+    }
+    levelStart[starts.size()] = total;
+
+    boxes = new float[4 * total];
+    for (int i = 0; i < count; i++) {
+      this.items[i] = items.get(order[i]);
+      System.arraycopy(bounds.get(order[i]), 0, boxes, 4 * i, 4);
+    }
+    // Each node bounds NODE_SIZE consecutive entries of the level below
+    for (int level = 1; level < levelStart.length - 1; level++) {
+      int childStart = levelStart[level - 1];
+      int childEnd = levelStart[level];
+      for (int node = levelStart[level]; node < levelStart[level + 1]; node++) {
+        int first = childStart + (node - levelStart[level]) * NODE_SIZE;
+        int last = Math.min(first + NODE_SIZE, childEnd);
+        float[] box = { Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int child = first; child < last; child++) {
+          box[0] = Math.min(box[0], boxes[4 * child]);
+          box[1] = Math.min(box[1], boxes[4 * child + 1]);
+          box[2] = Math.max(box[2], boxes[4 * child + 2]);
+          box[3] = Math.max(box[3], boxes[4 * child + 3]);
+        }
+        System.arraycopy(box, 0, boxes, 4 * node, 4);
+      }
+    }
+  }
+
+  /**
+   * Orders the items so that each run of NODE_SIZE items is spatially
+   * compact: items are sorted by x into vertical slices, and each slice by y.
+   */
+  private static Integer[] sortTileRecursive(List<float[]> bounds) {
+    int count = bounds.size();
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Float.compare(centerX(bounds.get(a)), centerX(bounds.get(b))));
+    int nodeCount = (count + NODE_SIZE - 1) / NODE_SIZE;
+    int sliceSize = NODE_SIZE * (int) Math.ceil(Math.sqrt(nodeCount));
+    for (int start = 0; start < count; start += sliceSize) {
+      int end = Math.min(start + sliceSize, count);
+      Arrays.sort(order, start, end,
+          (a, b) -> Float.compare(centerY(bounds.get(a)), centerY(bounds.get(b))));
+    }
+    return order;
+  }
+
+  private static float centerX(float[] box) {
+    return (box[0] + box[2]) / 2;
+  }
+
+  private static float centerY(float[] box) {
+    return (box[1] + box[3]) / 2;
+  }
+
+  public int size() {
+    return items.length;
+  }
+
+  /**
+   * Finds the items whose bounding boxes intersect the given box.
+   *
+   * @return items in tree order
+   */
+  @SuppressWarnings("unchecked")
+  public List<T> search(float west, float south, float east, float north) {
+    if (items.length == 0) {
+      return Collections.emptyList();
+    }
+    List<T> result = new ArrayList<>();
+    // Stack of entries to visit with their levels
+    int[] stack = new int[2 * NODE_SIZE * levelStart.length];
+    int top = 0;
+    int rootLevel = levelStart.length - 2;
+    stack[top++] = levelStart[rootLevel];
+    stack[top++] = rootLevel;
+    while (top > 0) {
+      int level = stack[--top];
+      int entry = stack[--top];
+      if (!intersects(entry, west, south, east, north)) {
+        continue;
+      }
+      if (level == 0) {
+        result.add((T) items[entry]);
+        continue;
+      }
+      int first = levelStart[level - 1] + (entry - levelStart[level]) * NODE_SIZE;
+      int last = Math.min(first + NODE_SIZE, levelStart[level]);
+      // Push in reverse so that children are visited in order
+      for (int child = last - 1; child >= first; child--) {
+        stack[top++] = child;
+        stack[top++] = level - 1;
+      }
+    }
+    return result;
+  }
+
+  private boolean intersects(int entry, float west, float south, float east, float north) {
+    int i = 4 * entry;
+    return boxes[i] <= east && west <= boxes[i + 2] && boxes[i + 1] <= north
+        && south <= boxes[i + 3];
+  }
+}
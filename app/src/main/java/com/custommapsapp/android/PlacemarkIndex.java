@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import com.custommapsapp.android.kml.Placemark;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.List;
+
+/**
+ * PlacemarkIndex is an immutable 2-d tree over placemark locations. The tree is
+ * stored implicitly in flat arrays (the median of each range is the node) so
+ * building it allocates only three arrays and range queries allocate nothing.
+ *
+ * @author Marko Teittinen
+ */
+public class PlacemarkIndex {
+  /** Visitor receiving placemarks found by {@link #query}. */
+  public interface Visitor {
+    void visit(Placemark placemark, float longitude, float latitude);
+  }
+
+  private final Placemark[] items;
+  private final float[] lons;
+  private final float[] lats;
+
+  /**
+   * Builds an index over the placemarks in the given list. Placemarks without
+   * a location are ignored.
+   */
+  public PlacemarkIndex(List<Placemark> placemarks) {
+    int count = 0;
+    for (Placemark placemark : placemarks) {
+      if (placemark.getPoint() != null) {
+        count++;
+      }
+    }
+    items = new Placemark[count];
+    lons = new float[count];
+    lats = new float[count];
+    int i = 0;
+    for (Placemark placemark : placemarks) {
+      LatLng point = placemark.getPoint();
+      if (point != null) {
+        items[i] = placemark;
+        lons[i] = (float) point.longitude;
+        lats[i] = (float) point.latitude;
+        i++;
+      }
+    }
+    build(0, count, true);
+  }
+
+  public int size() {
+    return items.length;
+  }
+
+  /**
+   * Passes every placemark within the given longitude and latitude bounds
+   * (inclusive) to the visitor.
+   */
+  public void query(float minLon, float minLat, float maxLon, float maxLat, Visitor visitor) {
+    query(0, items.length, true, minLon, minLat, maxLon, maxLat, visitor);
+  }
+
+  private void query(int start, int end, boolean splitOnLon, float minLon, float minLat,
+      float maxLon, float maxLat, Visitor visitor) {
+    while (start < end) {
+      int mid = (start + end) >>> 1;
+      float lon = lons[mid];
+      float lat = lats[mid];
+      if (lon >= minLon && lon <= maxLon && lat >= minLat && lat <= maxLat) {
+        visitor.visit(items[mid], lon, lat);
+      }
+      float value = splitOnLon ? lon : lat;
+      float min = splitOnLon ? minLon : minLat;
+      float max = splitOnLon ? maxLon : maxLat;
+      boolean visitLow = min <= value;
+      boolean visitHigh = max >= value;
+      if (visitLow && visitHigh) {
+        // Recurse into the lower half, continue the loop with the upper half
+        query(start, mid, !splitOnLon, minLon, minLat, maxLon, maxLat, visitor);
+        start = mid + 1;
+      } else if (visitLow) {
+        end = mid;
+      } else if (visitHigh) {
+        start = mid + 1;
+      } else {
+        return;
+      }
+      splitOnLon = !splitOnLon;
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Tree construction
+
+  /**
+   * Arranges the range [start, end) so that its median element (by longitude
+   * or latitude) is at the middle index, smaller values are before it and
+   * larger values after it, and then recurses into both halves.
+   */
+  private void build(int start, int end, boolean splitOnLon) {
+    if (end - start < 2) {
+      return;
+    }
+    int mid = (start + end) >>> 1;
+    select(start, end - 1, mid, splitOnLon ? lons : lats);
+    build(start, mid, !splitOnLon);
+    build(mid + 1, end, !splitOnLon);
+  }
+
+  /** Quickselect: places the k-th smallest key of [left, right] at index k. */
+  private void select(int left, int right, int k, float[] keys) {
+    while (left < right) {
+      float pivot = keys[(left + right) >>> 1];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          i++;
+        }
+        while (keys[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(i++, j--);
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(int i, int j) {
+    Placemark item = items[i];
+    items[i] = items[j];
+    items[j] = item;
+    float value = lons[i];
+    lons[i] = lons[j];
+    lons[j] = value;
+    value = lats[i];
+    lats[i] = lats[j];
+    lats[j] = value;
+  }
+}
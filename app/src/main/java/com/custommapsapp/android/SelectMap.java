@@ -21,40 +21,40 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Array;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.ContentResolver;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.location.Location;
 import android.location.LocationManager;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.ContextMenu;
-import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.AdapterView.AdapterContextMenuInfo;
-import android.widget.ArrayAdapter;
-import android.widget.BaseAdapter;
-import android.widget.ListAdapter;
-import android.widget.ListView;
+import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -62,12 +62,24 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
+import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 import androidx.documentfile.provider.DocumentFile;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.custommapsapp.android.create.MapEditor;
 import com.custommapsapp.android.kml.GroundOverlay;
 import com.custommapsapp.android.kml.KmlFolder;
+import com.custommapsapp.android.kml.KmlInfo;
+import com.custommapsapp.android.kml.KmzDocument;
+import com.custommapsapp.android.kml.KmzFile;
+import com.custommapsapp.android.kml.MapPack;
+import com.custommapsapp.android.kml.PackedKml;
 import com.custommapsapp.android.language.Linguist;
 import com.custommapsapp.android.storage.EditPreferences;
 import com.custommapsapp.android.storage.PreferenceStore;
@@ -94,6 +106,8 @@ public class SelectMap extends AppCompatActivity
   private static final int MENU_CREATE_MAP = 1;
   private static final int MENU_EXPORT_ALL = 2;
   private static final int MENU_PREFERENCES = 3;
+  private static final int MENU_SEARCH = 4;
+  private static final int MENU_EXPORT_PACK = 5;
   private static final int CREATE_MAP = 1;
   private static final int EDIT_PREFERENCES = 2;
   // Context (item) menu constants
@@ -105,8 +119,11 @@ public class SelectMap extends AppCompatActivity
 
   private static final long OLDEST_OK_LOCATION_MS = 60 * 60 * 1000; // 1 hour
 
-  private ListView mapList;
+  private RecyclerView mapList;
+  private MapListAdapter mapListAdapter;
   private TextView noMapsFoundMessage;
+  // Map whose context menu is being displayed
+  private KmlFolder contextMenuMap;
 
   private LocationManager locator;
   private LocationTracker locationTracker;
@@ -120,6 +137,12 @@ public class SelectMap extends AppCompatActivity
   private HelpDialogManager helpDialogManager;
 
   private ExecutorService backgroundExecutor;
+  private ExecutorService mapListExecutor;
+  // Words the map list is filtered with, empty when all maps are listed
+  private volatile String searchQuery = "";
+  private final AtomicBoolean mapListUpdatePending = new AtomicBoolean(false);
+  // Incremented for every map list update, pending older updates are dropped
+  private final AtomicInteger mapListGeneration = new AtomicInteger(0);
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -134,13 +157,15 @@ public class SelectMap extends AppCompatActivity
     autoSelectRequested = getIntent().getBooleanExtra(AUTO_SELECT, false);
     localPathRequest = getIntent().getStringExtra(LOCAL_FILE);
 
-    mapList.setAdapter(new MapListAdapter(this, Collections.emptyList()));
-    mapList.setOnItemClickListener(this::onListItemClick);
     noMapsFoundMessage = findViewById(R.id.empty_list);
     noMapsFoundMessage.setText("");
-    mapList.setEmptyView(noMapsFoundMessage);
-    // Create long press menu for menu items
-    mapList.setOnCreateContextMenuListener(this::createMapContextMenu);
+    mapList.setLayoutManager(new LinearLayoutManager(this));
+    DividerItemDecoration divider =
+        new DividerItemDecoration(this, DividerItemDecoration.VERTICAL);
+    divider.setDrawable(ContextCompat.getDrawable(this, R.drawable.map_list_divider));
+    mapList.addItemDecoration(divider);
+    mapListAdapter = new MapListAdapter();
+    mapList.setAdapter(mapListAdapter);
 
     helpDialogManager = new HelpDialogManager(
         this, HelpDialogManager.HELP_SELECT_MAP, linguist.getString(R.string.create_map_help));
@@ -162,6 +187,7 @@ public class SelectMap extends AppCompatActivity
   protected void onStart() {
     super.onStart();
     backgroundExecutor = Executors.newSingleThreadExecutor();
+    mapListExecutor = Executors.newSingleThreadExecutor();
   }
 
   @Override
@@ -179,6 +205,7 @@ public class SelectMap extends AppCompatActivity
     initializeLocation();
     initializeMapCatalog();
     refreshMapCatalog();
+    MapLibrarySync.startIfDue(this, this::onMapsSynced);
 
     helpDialogManager.onResume();
   }
@@ -192,7 +219,7 @@ public class SelectMap extends AppCompatActivity
       locator.removeUpdates(locationTracker);
     }
     if (mapCatalog != null) {
-      mapCatalog.clearCatalog();
+      mapCatalog.closeFiles();
     }
   }
 
@@ -200,6 +227,7 @@ public class SelectMap extends AppCompatActivity
   protected void onStop() {
     super.onStop();
     backgroundExecutor.shutdown();
+    mapListExecutor.shutdown();
   }
 
   // --------------------------------------------------------------------------
@@ -266,14 +294,6 @@ public class SelectMap extends AppCompatActivity
   // --------------------------------------------------------------------------
   // Map selection related methods
 
-  /** User selected map from list */
-  protected void onListItemClick(AdapterView<?> parent, View view, int position, long id) {
-    KmlFolder map = (KmlFolder) mapList.getAdapter().getItem(position);
-    if (map.getFirstMap() != null) {
-      returnMap(map);
-    }
-  }
-
   /**
    * Attempts to automatically select a map to be opened.
    *
@@ -378,21 +398,64 @@ public class SelectMap extends AppCompatActivity
   @Override
   public boolean onCreateOptionsMenu(Menu menu) {
     super.onCreateOptionsMenu(menu);
+    createSearchMenuItem(menu);
     menu.add(Menu.NONE, MENU_CREATE_MAP, Menu.NONE, linguist.getString(R.string.create_map))
         .setIcon(android.R.drawable.ic_menu_gallery);
     menu.add(Menu.NONE, MENU_EXPORT_ALL, Menu.NONE, linguist.getString(R.string.export_all_maps));
+    menu.add(Menu.NONE, MENU_EXPORT_PACK, Menu.NONE, linguist.getString(R.string.export_map_pack));
     menu.add(Menu.NONE, MENU_PREFERENCES, Menu.NONE, linguist.getString(R.string.settings))
         .setIcon(android.R.drawable.ic_menu_preferences);
     helpDialogManager.onCreateOptionsMenu(menu);
     return true;
   }
 
+  private void createSearchMenuItem(Menu menu) {
+    MenuItem searchItem = menu.add(
+        Menu.NONE, MENU_SEARCH, Menu.NONE, linguist.getString(R.string.search_maps))
+        .setIcon(android.R.drawable.ic_menu_search);
+    searchItem.setShowAsAction(
+        MenuItem.SHOW_AS_ACTION_ALWAYS | MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
+    SearchView searchView = new SearchView(getSupportActionBar().getThemedContext());
+    searchView.setQueryHint(linguist.getString(R.string.search_maps));
+    searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+      @Override
+      public boolean onQueryTextSubmit(String query) {
+        searchView.clearFocus();
+        return true;
+      }
+
+      @Override
+      public boolean onQueryTextChange(String query) {
+        setSearchQuery(query);
+        return true;
+      }
+    });
+    searchItem.setActionView(searchView);
+    searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+      @Override
+      public boolean onMenuItemActionExpand(MenuItem item) {
+        return true;
+      }
+
+      @Override
+      public boolean onMenuItemActionCollapse(MenuItem item) {
+        setSearchQuery("");
+        return true;
+      }
+    });
+  }
+
   @Override
   public boolean onPrepareOptionsMenu(Menu menu) {
     // Update the menu titles to match currently selected language if necessary
     if (updateMenuItems) {
       menu.findItem(MENU_CREATE_MAP).setTitle(linguist.getString(R.string.create_map));
+      menu.findItem(MENU_EXPORT_PACK).setTitle(linguist.getString(R.string.export_map_pack));
       menu.findItem(MENU_PREFERENCES).setTitle(linguist.getString(R.string.settings));
+      MenuItem searchItem = menu.findItem(MENU_SEARCH);
+      searchItem.setTitle(linguist.getString(R.string.search_maps));
+      ((SearchView) searchItem.getActionView())
+          .setQueryHint(linguist.getString(R.string.search_maps));
       helpDialogManager.onPrepareOptionsMenu(menu);
       updateMenuItems = false;
     }
@@ -412,6 +475,10 @@ public class SelectMap extends AppCompatActivity
         // Export all maps by sharing them
         shareAllMaps();
         break;
+      case MENU_EXPORT_PACK:
+        // Export all maps as a single map pack file
+        exportMapPack();
+        break;
       case MENU_PREFERENCES:
         // Invoke preferences activity
         Intent preferences = new Intent(this, EditPreferences.class);
@@ -463,10 +530,55 @@ public class SelectMap extends AppCompatActivity
 
   /** Export all maps by using "send multiple" action. */
   private void shareAllMaps() {
-    mapCatalog.refreshCatalog();
+    mapCatalog.updateCatalog(null);
     FileUtil.exportMaps(this, mapCatalog.getAllMapsSortedByName());
   }
 
+  /** Packs all kmz files stored on the device to a map pack in background, and shares it. */
+  private void exportMapPack() {
+    final MapCatalog catalog = mapCatalog;
+    Thread export = new Thread(() -> {
+      catalog.updateCatalog(null);
+      Map<String, File> kmzFiles = new LinkedHashMap<>();
+      for (KmlFolder map : catalog.getAllMapsSortedByName()) {
+        KmlInfo kmlInfo = map.getKmlInfo();
+        if (kmlInfo instanceof KmzFile && isLocalFile(map)) {
+          File file = kmlInfo.getFile();
+          // Map pack requires unique names, document copies could duplicate local files
+          if (!kmzFiles.containsKey(file.getName())) {
+            kmzFiles.put(file.getName(), file);
+          }
+        }
+      }
+      File exportDir = FileUtil.getCacheDirectory("exports");
+      // Packs can be large, keep only the latest one
+      File[] oldPacks = exportDir.listFiles(MapPack::isMapPack);
+      if (oldPacks != null) {
+        for (File oldPack : oldPacks) {
+          oldPack.delete();
+        }
+      }
+      String name = new SimpleDateFormat("yyyy-MM-dd_HHmm", Locale.US).format(new Date());
+      File packFile = new File(exportDir, "maps_" + name + MapPack.FILE_SUFFIX);
+      boolean success = false;
+      if (!kmzFiles.isEmpty()) {
+        try {
+          MapPackWriter.write(new ArrayList<>(kmzFiles.values()), packFile);
+          success = true;
+        } catch (IOException ex) {
+          Log.w(CustomMaps.LOG_TAG, "Failed to export map pack", ex);
+        }
+      }
+      final boolean exported = success;
+      runOnUiThread(() -> {
+        if (!exported || !FileUtil.shareMapPack(SelectMap.this, packFile)) {
+          displayMessage(linguist.getString(R.string.export_map_pack_failed), true);
+        }
+      });
+    });
+    export.start();
+  }
+
   // -------------------------------------------------------------------------------------
   // Dialog management methods
 
@@ -485,22 +597,13 @@ public class SelectMap extends AppCompatActivity
   // -------------------------------------------------------------------------------------
   // Context menu and its actions
 
-  private void createMapContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
-    AdapterContextMenuInfo adapterMenuInfo = (AdapterContextMenuInfo) menuInfo;
-    Object item = mapList.getAdapter().getItem(adapterMenuInfo.position);
-    if (!(item instanceof KmlFolder) ||
-        !mapList.getAdapter().isEnabled(adapterMenuInfo.position)) {
-      // Map category, no menu available
-      menu.clear();
-      return;
-    }
-
-    KmlFolder mapHolder = (KmlFolder) item;
+  private void createMapContextMenu(ContextMenu menu, KmlFolder mapHolder) {
     GroundOverlay map = mapHolder.getFirstMap();
     if (map == null) {
       menu.clear();
       return;
     }
+    contextMenuMap = mapHolder;
 
     menu.setHeaderTitle(map.getName());
     menu.add(Menu.NONE, ITEM_SELECT_MAP, Menu.NONE, linguist.getString(R.string.select_map));
@@ -510,7 +613,11 @@ public class SelectMap extends AppCompatActivity
     if (isSoloMap && !containsPlacemarks) {
       // Files containing single maps are easy to edit and delete
       // TODO: make these menu items available for map sets
-      menu.add(Menu.NONE, ITEM_MODIFY_MAP, Menu.NONE, linguist.getString(R.string.modify_map));
+      if (!(mapHolder.getKmlInfo() instanceof KmzDocument)
+          && !(mapHolder.getKmlInfo() instanceof PackedKml)) {
+        // Map editor saves maps only to kmz files in app's own storage
+        menu.add(Menu.NONE, ITEM_MODIFY_MAP, Menu.NONE, linguist.getString(R.string.modify_map));
+      }
       menu.add(Menu.NONE, ITEM_SEND_MAP, Menu.NONE, linguist.getString(R.string.share_map));
       menu.add(Menu.NONE, ITEM_DELETE_MAP, Menu.NONE, linguist.getString(R.string.delete_map));
     } else {
@@ -530,10 +637,8 @@ public class SelectMap extends AppCompatActivity
 
   @Override
   public boolean onContextItemSelected(MenuItem item) {
-    AdapterContextMenuInfo menuInfo = (AdapterContextMenuInfo) item.getMenuInfo();
-    int position = menuInfo.position;
-    KmlFolder map = (KmlFolder) mapList.getAdapter().getItem(position);
-    if (map.getFirstMap() != null) {
+    KmlFolder map = contextMenuMap;
+    if (map != null && map.getFirstMap() != null) {
       switch (item.getItemId()) {
         case ITEM_SELECT_MAP:
           returnMap(map);
@@ -564,6 +669,12 @@ public class SelectMap extends AppCompatActivity
     });
   }
 
+  /** Returns {@code false} if the map is stored in a document that has not been copied yet. */
+  private static boolean isLocalFile(KmlFolder map) {
+    KmlInfo kmlInfo = map.getKmlInfo();
+    return !(kmlInfo instanceof KmzDocument) || ((KmzDocument) kmlInfo).isCopied();
+  }
+
   private void modifyMap(KmlFolder map) {
     Intent editMap = new Intent(this, MapEditor.class);
     editMap.putExtra(MapEditor.KMZ_FILE, map.getKmlInfo().getFile().getAbsolutePath());
@@ -595,6 +706,16 @@ public class SelectMap extends AppCompatActivity
   }
 
   private void deleteMap(KmlFolder map) {
+    if (map.getKmlInfo() instanceof KmzDocument) {
+      // Map is stored in a folder outside app's storage
+      if (((KmzDocument) map.getKmlInfo()).delete()) {
+        WaypointStore.forMap(this, map).deleteAll();
+      } else {
+        displayMessage(linguist.getString(R.string.deleting_map_failed, map.getName()), true);
+      }
+      refreshMapCatalog();
+      return;
+    }
     File markup = map.getKmlInfo().getFile();
     File image = null;
     if (markup.getAbsolutePath().toLowerCase().endsWith(".kml")) {
@@ -612,17 +733,35 @@ public class SelectMap extends AppCompatActivity
         // Log image deletion failure only, map will be gone from UI
         Log.w(CustomMaps.LOG_TAG, "Failed to delete map image file: " + image.getAbsolutePath());
       }
+      WaypointStore.forMap(this, map).deleteAll();
     }
+    // Deletion may not have been reported by file system yet
+    mapCatalog.markFileChanged(markup.getName());
     refreshMapCatalog();
   }
 
   private void returnMap(KmlFolder mapHolder) {
+    if (!isLocalFile(mapHolder)) {
+      // Catalog contains documents that are read in place, copy the document in background first.
+      // Placemarks are not passed with the map, CustomMaps loads them from the kml file.
+      backgroundExecutor.submit(() -> {
+        try {
+          MapCatalog.prepareMap(mapHolder);
+        } catch (IOException ex) {
+          Log.w(CustomMaps.LOG_TAG, "Failed to copy map document: " + mapHolder.getKmlInfo(), ex);
+          displayMessage(linguist.getString(R.string.map_not_available, mapHolder.getName()), true);
+          return;
+        }
+        returnMap(mapHolder);
+      });
+      return;
+    }
     GroundOverlay map = mapHolder.getFirstMap();
     PreferenceStore.instance(this).setLastUsedMap(map.getName());
     getIntent().putExtra(SELECTED_MAP, mapHolder);
     setResult(RESULT_OK, getIntent());
     locator.removeUpdates(locationTracker);
-    mapCatalog.clearCatalog();
+    mapCatalog.closeFiles();
     runOnUiThread(this::finish);
   }
 
@@ -634,25 +773,7 @@ public class SelectMap extends AppCompatActivity
    * creates a new MapCatalog object pointing to the data directory.
    */
   void initializeMapCatalog() {
-    PreferenceStore prefs = PreferenceStore.instance(this);
-    if (prefs.isUsingLegacyStorage()) {
-      @SuppressWarnings("deprecation")
-      File dataDir = FileUtil.getLegacyMapDirectory();
-      if (!dataDir.exists()) {
-        Log.e(CustomMaps.LOG_TAG, "Legacy data dir does not exist: " + dataDir.getAbsolutePath());
-      }
-      mapCatalog = new MapCatalog(dataDir);
-    } else {
-      // Initialize mapCatalog for new storage model
-      Uri mapStorageDir = prefs.getMapStorageDirectory();
-      if (mapStorageDir == null) {
-        // Use app's internal storage folder
-        mapCatalog = new MapCatalog(FileUtil.getInternalMapDirectory());
-      } else {
-        // Use MapCatalog with new storage API
-        mapCatalog = new MapCatalog(mapStorageDir);
-      }
-    }
+    mapCatalog = MapCatalog.forMapStorage(this);
   }
 
   /**
@@ -661,9 +782,14 @@ public class SelectMap extends AppCompatActivity
    */
   void refreshMapCatalog() {
     // TODO: Consider displaying a wait spinner while loading map list
-    // Clear map list (and its empty message) while refreshing the list contents
+    // Display the maps already in catalog (if any) while updating the list contents
     noMapsFoundMessage.setText("");
-    mapList.setAdapter(new MapListAdapter(this, Collections.emptyList()));
+    if (autoSelectRequested) {
+      mapListGeneration.incrementAndGet();
+      mapListAdapter.submitList(Collections.emptyList());
+    } else {
+      showMapList(false);
+    }
     // Migrate maps to internal storage, if they are in legacy storage
     if (PreferenceStore.instance(this).isUsingLegacyStorage()) {
       noMapsFoundMessage.setText(linguist.getString(R.string.transferring_maps));
@@ -713,8 +839,8 @@ public class SelectMap extends AppCompatActivity
   void refreshMapCatalogSync() {
     // Update default map name in case language has changed since last refresh
     MapCatalog.setDefaultMapName(linguist.getString(R.string.unnamed_map));
-    // Refresh catalog contents and group maps by distance if possible
-    mapCatalog.refreshCatalog();
+    // Refresh catalog contents, and show maps as they are found unless a map will be auto-selected
+    mapCatalog.updateCatalog(autoSelectRequested ? null : this::postMapListUpdate);
 
     // If auto-select was requested, attempt to auto-select the map now
     if (autoSelectRequested) {
@@ -733,191 +859,273 @@ public class SelectMap extends AppCompatActivity
     runOnUiThread(this::updateMapList);
   }
 
-  // This method updates the UI, so it must be run in the UI thread
-  void updateMapList() {
-    // Update the map list and the message displayed if the list has no entries
-    ListAdapter mapListAdapter = createMapListAdapter();
-    mapList.setAdapter(mapListAdapter);
-    noMapsFoundMessage.setText(linguist.getString(R.string.no_maps_found_on_sd));
+  // Called from the map sync thread when a sync has completed
+  private void onMapsSynced(MapLibrarySync.Result result) {
+    if (result.failed > 0) {
+      displayMessage(linguist.getString(R.string.sync_failed, result.failed), true);
+    } else if (result.hasChanges()) {
+      displayMessage(linguist.getString(R.string.sync_completed, result.downloaded, result.deleted),
+          false);
+    }
+    if (result.hasChanges()) {
+      runOnUiThread(() -> {
+        if (!backgroundExecutor.isShutdown()) {
+          refreshMapCatalog();
+        }
+      });
+    }
   }
 
-  private ListAdapter createMapListAdapter() {
-    // Verify the maps are sorted alphabetically
-    Iterable<KmlFolder> allMaps = mapCatalog.getAllMapsSortedByName();
-    // If locationTracker is available and current location is known, group maps by distance
-    if (locationTracker != null) {
-      Location current = locationTracker.getCurrentLocation(null);
-      if (current != null) {
-        // Group maps by distance to current location
-        float longitude = (float) current.getLongitude();
-        float latitude = (float) current.getLatitude();
-        mapCatalog.groupMapsByDistance(longitude, latitude);
-        // Create a list adapter that displays maps in groups by distance
-        GroupedMapAdapter listAdapter = new GroupedMapAdapter();
-        listAdapter.setLocalMaps(mapCatalog.getLocalMaps());
-        listAdapter.setNearMaps(mapCatalog.getNearMaps());
-        listAdapter.setFarMaps(mapCatalog.getFarMaps());
-        return listAdapter;
-      }
+  // Called from catalog refresh threads, multiple calls before the UI thread runs are coalesced
+  private void postMapListUpdate() {
+    if (mapListUpdatePending.compareAndSet(false, true)) {
+      runOnUiThread(() -> {
+        mapListUpdatePending.set(false);
+        updateMapList();
+      });
     }
-    // User's location is not available, list all maps together
-    return new MapListAdapter(this, allMaps);
   }
 
-  // -------------------------------------------------------------------------------------
+  // This method updates the UI, so it must be run in the UI thread
+  void updateMapList() {
+    showMapList(true);
+  }
 
-  private class MapListAdapter extends ArrayAdapter<KmlFolder> {
-    public MapListAdapter(Context context, Iterable<KmlFolder> maps) {
-      super(context, 0);
-      for (KmlFolder map : maps) {
-        add(map);
+  /**
+   * Creates the contents of the map list in a background thread, and passes them to the list
+   * adapter, which updates only the rows that have changed.
+   *
+   * @param catalogReady {@code true} if the catalog has been updated, and the message for an empty
+   *     list should be displayed
+   */
+  private void showMapList(boolean catalogReady) {
+    if (mapListExecutor.isShutdown()) {
+      // Catalog update completed after the activity was stopped
+      return;
+    }
+    int generation = mapListGeneration.incrementAndGet();
+    String query = searchQuery;
+    Location current = (locationTracker != null ? locationTracker.getCurrentLocation(null) : null);
+    mapListExecutor.submit(() -> {
+      if (generation != mapListGeneration.get()) {
+        // List has been updated again since this update was requested
+        return;
       }
+      List<Object> items = (query.isEmpty() ? createMapListItems(current)
+          : new ArrayList<>(mapCatalog.search(query)));
+      runOnUiThread(() -> {
+        if (generation != mapListGeneration.get()) {
+          return;
+        }
+        if (!query.isEmpty()) {
+          noMapsFoundMessage.setText(linguist.getString(R.string.no_maps_match_search));
+        } else if (catalogReady) {
+          noMapsFoundMessage.setText(linguist.getString(R.string.no_maps_found_on_sd));
+        }
+        mapListAdapter.submitList(items);
+      });
+    });
+  }
+
+  /** Filters the map list to maps matching the query, or lists all maps if the query is empty. */
+  private void setSearchQuery(String query) {
+    query = query.trim();
+    if (query.equals(searchQuery)) {
+      return;
+    }
+    searchQuery = query;
+    if (mapCatalog != null) {
+      updateMapList();
     }
+  }
 
-    @NonNull
-    @Override
-    public View getView(int position, View convertView, @NonNull ViewGroup parent) {
-      if (convertView == null) {
-        convertView = getLayoutInflater().inflate(R.layout.listrow, parent, false);
+  /**
+   * Returns the items of the map list: all maps sorted by name, grouped by distance if the user's
+   * location is known. Each group of maps is preceded by its title.
+   *
+   * @param current the user's current location, or {@code null} if it is not known
+   */
+  private List<Object> createMapListItems(Location current) {
+    // Verify the maps are sorted alphabetically
+    Iterable<KmlFolder> allMaps = mapCatalog.getAllMapsSortedByName();
+    List<Object> items = new ArrayList<>();
+    if (current == null) {
+      // User's location is not available, list all maps together
+      for (KmlFolder map : allMaps) {
+        items.add(map);
       }
-      TextView title = convertView.findViewById(R.id.titleField);
-      TextView description = convertView.findViewById(R.id.descriptionField);
+      return items;
+    }
+    // Group maps by distance to current location
+    float longitude = (float) current.getLongitude();
+    float latitude = (float) current.getLatitude();
+    mapCatalog.groupMapsByDistance(longitude, latitude);
+    addMapGroup(items, linguist.getString(R.string.local_maps), mapCatalog.getLocalMaps());
+    addMapGroup(items, linguist.getString(R.string.nearby_maps), mapCatalog.getNearMaps());
+    String title = linguist.getString(items.isEmpty() ? R.string.all_maps : R.string.other_maps);
+    addMapGroup(items, title, mapCatalog.getFarMaps());
+    return items;
+  }
 
-      KmlFolder mapHolder = getItem(position);
-      GroundOverlay map = mapHolder.getFirstMap();
-      if (map != null) {
-        title.setText(map.getName());
-        description.setText(map.getDescription());
+  private static void addMapGroup(List<Object> items, String title, Iterable<KmlFolder> maps) {
+    int titleIndex = items.size();
+    for (KmlFolder map : maps) {
+      if (items.size() == titleIndex) {
+        items.add(title);
       }
-      return convertView;
+      items.add(map);
     }
   }
 
-  private class GroupedMapAdapter extends BaseAdapter {
-    private List<KmlFolder> localMaps = new ArrayList<>();
-    private List<KmlFolder> nearMaps = new ArrayList<>();
-    private List<KmlFolder> farMaps = new ArrayList<>();
+  // -------------------------------------------------------------------------------------
 
-    void setLocalMaps(Iterable<KmlFolder> localMaps) {
-      setMaps(this.localMaps, localMaps);
-    }
+  /**
+   * Compares map list items, which are group titles (Strings) and maps (KmlFolders). Maps are the
+   * same item if they are stored in the same file with the same name, and their row needs to be
+   * updated only if the displayed information or the map file has changed.
+   */
+  private static final DiffUtil.ItemCallback<Object> MAP_LIST_DIFF =
+      new DiffUtil.ItemCallback<Object>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Object item1, @NonNull Object item2) {
+          if (item1 instanceof KmlFolder && item2 instanceof KmlFolder) {
+            return getMapKey((KmlFolder) item1).equals(getMapKey((KmlFolder) item2));
+          }
+          return item1.equals(item2);
+        }
 
-    void setNearMaps(Iterable<KmlFolder> nearMaps) {
-      setMaps(this.nearMaps, nearMaps);
-    }
+        @SuppressLint("DiffUtilEquals")
+        @Override
+        public boolean areContentsTheSame(@NonNull Object item1, @NonNull Object item2) {
+          if (item1 == item2) {
+            return true;
+          }
+          if (!(item1 instanceof KmlFolder) || !(item2 instanceof KmlFolder)) {
+            return item1.equals(item2);
+          }
+          // Catalog creates new KmlFolders only for maps read again from their files
+          GroundOverlay map1 = ((KmlFolder) item1).getFirstMap();
+          GroundOverlay map2 = ((KmlFolder) item2).getFirstMap();
+          if (map1 == null || map2 == null) {
+            return map1 == map2;
+          }
+          File file1 = map1.getKmlInfo().getFile();
+          File file2 = map2.getKmlInfo().getFile();
+          return Objects.equals(map1.getName(), map2.getName())
+              && Objects.equals(map1.getDescription(), map2.getDescription())
+              && Objects.equals(map1.getImage(), map2.getImage())
+              && file1.lastModified() == file2.lastModified()
+              && file1.length() == file2.length();
+        }
+      };
 
-    void setFarMaps(Iterable<KmlFolder> farMaps) {
-      setMaps(this.farMaps, farMaps);
-    }
+  /** Returns a key identifying a map in the list: its file path and name. */
+  private static String getMapKey(KmlFolder mapHolder) {
+    GroundOverlay map = mapHolder.getFirstMap();
+    File file = mapHolder.getKmlInfo().getFile();
+    return file.getAbsolutePath() + '\n' + (map != null ? map.getName() : mapHolder.getName());
+  }
 
-    @Override
-    public boolean areAllItemsEnabled() {
-      return false;
+  /** Returns a 64-bit FNV-1a hash of a string, used as a stable item id. */
+  private static long getStableId(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
     }
+    return hash;
+  }
 
-    @Override
-    public int getViewTypeCount() {
-      return 2;
+  private class MapListAdapter extends ListAdapter<Object, RecyclerView.ViewHolder> {
+    private static final int TYPE_TITLE = 0;
+    private static final int TYPE_MAP = 1;
+
+    MapListAdapter() {
+      super(MAP_LIST_DIFF);
+      setHasStableIds(true);
     }
 
     @Override
     public int getItemViewType(int position) {
-      return (getItem(position) instanceof String ? 0 : 1);
+      return (getItem(position) instanceof String ? TYPE_TITLE : TYPE_MAP);
     }
 
     @Override
-    public boolean hasStableIds() {
-      return false;
+    public long getItemId(int position) {
+      Object item = getItem(position);
+      if (item instanceof KmlFolder) {
+        return getStableId(getMapKey((KmlFolder) item));
+      }
+      // Group titles cannot be file paths
+      return getStableId("\n" + item);
     }
 
+    @NonNull
     @Override
-    public boolean isEnabled(int position) {
-      return !(getItem(position) instanceof String);
-    }
-
-    private void setMaps(List<KmlFolder> maps, Iterable<KmlFolder> newMaps) {
-      maps.clear();
-      for (KmlFolder map : newMaps) {
-        maps.add(map);
+    public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+      if (viewType == TYPE_TITLE) {
+        return new TitleViewHolder(
+            getLayoutInflater().inflate(R.layout.listheader, parent, false));
       }
-      notifyDataSetChanged();
+      return new MapViewHolder(getLayoutInflater().inflate(R.layout.listrow, parent, false));
     }
 
     @Override
-    public int getCount() {
-      return menuItemsIn(localMaps) + menuItemsIn(nearMaps) + menuItemsIn(farMaps);
-    }
-
-    private int menuItemsIn(List<KmlFolder> mapList) {
-      return (mapList.isEmpty() ? 0 : mapList.size() + 1);
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
+      Object item = getItem(position);
+      if (holder instanceof TitleViewHolder) {
+        ((TitleViewHolder) holder).title.setText((String) item);
+      } else {
+        ((MapViewHolder) holder).bind((KmlFolder) item);
+      }
     }
 
     @Override
-    public Object getItem(int position) {
-      int originalPosition = position;
-      if (position < menuItemsIn(localMaps)) {
-        return getItem(localMaps, linguist.getString(R.string.local_maps), position);
-      }
-      position -= menuItemsIn(localMaps);
-      if (position < menuItemsIn(nearMaps)) {
-        return getItem(nearMaps, linguist.getString(R.string.nearby_maps), position);
-      }
-      position -= menuItemsIn(nearMaps);
-      if (position < menuItemsIn(farMaps)) {
-        String title = linguist.getString(position < originalPosition ?
-            R.string.other_maps : R.string.all_maps);
-        return getItem(farMaps, title, position);
-      }
-      return null;
+    public void onCurrentListChanged(
+        @NonNull List<Object> previousList, @NonNull List<Object> currentList) {
+      noMapsFoundMessage.setVisibility(currentList.isEmpty() ? View.VISIBLE : View.GONE);
     }
+  }
 
-    private Object getItem(List<KmlFolder> mapList, String title, int position) {
-      if (position == 0) {
-        return title;
-      }
-      return mapList.get(position - 1);
-    }
+  private static class TitleViewHolder extends RecyclerView.ViewHolder {
+    final TextView title;
 
-    @Override
-    public long getItemId(int position) {
-      return position;
+    TitleViewHolder(View view) {
+      super(view);
+      title = (TextView) view;
     }
+  }
 
-    @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-      Object item = getItem(position);
-      TextView title;
-      TextView description = null;
-      String titleText = null;
-      String descriptionText = null;
-      if (item instanceof KmlFolder) {
-        // Map item in the list
-        if (convertView == null) {
-          convertView = getLayoutInflater().inflate(R.layout.listrow, parent, false);
+  private class MapViewHolder extends RecyclerView.ViewHolder {
+    private final TextView title;
+    private final TextView description;
+    private final ImageView thumbnail;
+    private KmlFolder mapHolder;
+
+    MapViewHolder(View view) {
+      super(view);
+      title = view.findViewById(R.id.titleField);
+      description = view.findViewById(R.id.descriptionField);
+      thumbnail = view.findViewById(R.id.thumbnail);
+      view.setOnClickListener(v -> {
+        if (mapHolder != null && mapHolder.getFirstMap() != null) {
+          returnMap(mapHolder);
         }
-        title = convertView.findViewById(R.id.titleField);
-        description = convertView.findViewById(R.id.descriptionField);
-
-        KmlFolder mapHolder = (KmlFolder) item;
-        GroundOverlay map = mapHolder.getFirstMap();
-        if (map != null) {
-          titleText = map.getName();
-          descriptionText = map.getDescription();
-        }
-      } else {
-        // Section header in the list
-        if (convertView == null) {
-          convertView = getLayoutInflater().inflate(R.layout.listheader, parent, false);
+      });
+      // Create long press menu for map items
+      view.setOnCreateContextMenuListener((menu, v, menuInfo) -> {
+        if (mapHolder != null) {
+          createMapContextMenu(menu, mapHolder);
         }
-        title = (TextView) convertView;
-        titleText = (String) item;
-      }
+      });
+    }
 
-      title.setText(titleText);
-      if (description != null) {
-        description.setText(descriptionText);
-      }
-      return convertView;
+    void bind(KmlFolder mapHolder) {
+      this.mapHolder = mapHolder;
+      GroundOverlay map = mapHolder.getFirstMap();
+      title.setText(map != null ? map.getName() : null);
+      description.setText(map != null ? map.getDescription() : null);
+      MapThumbnails.instance(SelectMap.this).showThumbnail(map, thumbnail);
     }
   }
 }
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.util.Log;
+import android.view.View;
+
+import com.custommapsapp.android.kml.GroundOverlay;
+import com.custommapsapp.android.kml.LineGeometry;
+import com.custommapsapp.android.kml.Placemark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ShapeRenderer draws LineStrings and Polygons of placemarks on a map.
+ *
+ * When a map or its placemarks change, the vertices of new placemarks are
+ * converted once to map image coordinates in a background thread, and each
+ * vertex is assigned a Douglas-Peucker significance (in image pixels). The
+ * vertices needed at each zoom band are then selected by a single threshold,
+ * and the resulting Paths of all bands are built in the same background pass.
+ * Shapes are kept per placemark, so adding placemarks to a map prepares only
+ * the new ones. Long lines are split to chunks so that chunks outside the
+ * visible area can be skipped. Each frame only transforms the visible cached
+ * Paths to screen coordinates into a reused Path.
+ *
+ * @author Marko Teittinen
+ */
+public class ShapeRenderer {
+  /** Maximum number of vertices in a single line chunk */
+  private static final int CHUNK_SIZE = 512;
+  /** Lowest simplification band, all vertices are kept when zoomed in further */
+  private static final int MIN_BAND = -4;
+  /** Highest simplification band */
+  private static final int MAX_BAND = 16;
+  /** Simplification tolerance in screen pixels */
+  private static final float TOLERANCE = 0.5f;
+
+  private static final int LINE_COLOR = 0xD0E03020;
+  private static final int FILL_COLOR = 0x30E03020;
+  private static final float LINE_WIDTH_DP = 3f;
+
+  private final View view;
+  private final Paint linePaint;
+  private final Paint fillPaint;
+  private final float lineWidth;
+
+  // Objects reused in every frame
+  private final Path screenPath = new Path();
+  private final Matrix screenToImage = new Matrix();
+  private final float[] screenCorners = new float[8];
+  private final RectF visibleArea = new RectF();
+
+  private List<Placemark> placemarks = new ArrayList<>();
+  private int generation = 0;
+  private GroundOverlay preparingFor = null;
+  private volatile PreparedShapes prepared = null;
+
+  public ShapeRenderer(View view) {
+    this.view = view;
+    lineWidth = LINE_WIDTH_DP * view.getResources().getDisplayMetrics().density;
+    linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    linePaint.setStyle(Paint.Style.STROKE);
+    linePaint.setStrokeWidth(lineWidth);
+    linePaint.setStrokeJoin(Paint.Join.ROUND);
+    linePaint.setStrokeCap(Paint.Cap.ROUND);
+    linePaint.setColor(LINE_COLOR);
+    fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    fillPaint.setStyle(Paint.Style.FILL);
+    fillPaint.setColor(FILL_COLOR);
+  }
+
+  /** Sets the placemarks whose shapes are drawn. */
+  public void setPlacemarks(Iterable<Placemark> markers) {
+    List<Placemark> shapePlacemarks = new ArrayList<>();
+    for (Placemark marker : markers) {
+      if (marker.hasShapes()) {
+        shapePlacemarks.add(marker);
+      }
+    }
+    placemarks = shapePlacemarks;
+    generation++;
+    preparingFor = null;
+  }
+
+  /**
+   * Draws the shapes on canvas. If the shapes are not yet prepared for the
+   * given map, starts preparing them in the background and returns. If only
+   * the placemarks have changed, the earlier shapes are drawn meanwhile.
+   */
+  public void draw(Canvas canvas, DisplayState displayState, GroundOverlay map) {
+    if (placemarks.isEmpty() || map == null) {
+      return;
+    }
+    PreparedShapes shapes = prepared;
+    if (shapes == null || shapes.map != map || shapes.generation != generation) {
+      // Shapes of the previous placemarks are drawn until the new ones are ready
+      prepareInBackground(map);
+    }
+    if (shapes == null || shapes.map != map) {
+      return;
+    }
+    Matrix imageToScreen = displayState.getImageToScreenMatrix();
+    if (imageToScreen == null || !imageToScreen.invert(screenToImage)) {
+      return;
+    }
+
+    // Find visible part of the image (with margin for line width)
+    float w = displayState.getViewWidth();
+    float h = displayState.getViewHeight();
+    screenCorners[0] = -lineWidth;
+    screenCorners[1] = -lineWidth;
+    screenCorners[2] = w + lineWidth;
+    screenCorners[3] = -lineWidth;
+    screenCorners[4] = w + lineWidth;
+    screenCorners[5] = h + lineWidth;
+    screenCorners[6] = -lineWidth;
+    screenCorners[7] = h + lineWidth;
+    screenToImage.mapPoints(screenCorners);
+    visibleArea.set(screenCorners[0], screenCorners[1], screenCorners[0], screenCorners[1]);
+    for (int i = 2; i < 8; i += 2) {
+      visibleArea.union(screenCorners[i], screenCorners[i + 1]);
+    }
+
+    // Select the simplification band based on image pixel size on screen
+    float screenPixelsPerImagePixel = imageToScreen.mapRadius(1f);
+    int band = (int) Math.floor(Math.log(1 / screenPixelsPerImagePixel) / Math.log(2));
+    band = Math.max(MIN_BAND, Math.min(MAX_BAND, band));
+
+    for (Shape shape : shapes.shapes) {
+      if (!RectF.intersects(shape.bounds, visibleArea)) {
+        continue;
+      }
+      for (Chunk chunk : shape.bandChunks.get(band - MIN_BAND)) {
+        if (!RectF.intersects(chunk.bounds, visibleArea)) {
+          continue;
+        }
+        chunk.path.transform(imageToScreen, screenPath);
+        if (shape.isPolygon) {
+          canvas.drawPath(screenPath, fillPaint);
+        }
+        canvas.drawPath(screenPath, linePaint);
+      }
+    }
+  }
+
+  private void prepareInBackground(GroundOverlay map) {
+    if (preparingFor == map) {
+      return;
+    }
+    preparingFor = map;
+    final int preparedGeneration = generation;
+    final List<Placemark> preparedPlacemarks = placemarks;
+    final PreparedShapes previous = (prepared != null && prepared.map == map ? prepared : null);
+    Runnable prepare = () -> {
+      PreparedShapes result =
+          prepareShapes(map, preparedGeneration, preparedPlacemarks, previous);
+      view.post(() -> {
+        if (generation == preparedGeneration && preparingFor == map) {
+          prepared = result;
+          view.invalidate();
+        }
+      });
+    };
+    Thread t = new Thread(prepare);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Prepares the shapes of placemarks for a map. Shapes of the placemarks that
+   * were already prepared for the same map are reused.
+   *
+   * @param previous shapes prepared earlier for the same map, or {@code null}
+   */
+  private static PreparedShapes prepareShapes(GroundOverlay map, int generation,
+      List<Placemark> placemarks, PreparedShapes previous) {
+    long start = System.currentTimeMillis();
+    Map<Placemark, List<Shape>> placemarkShapes = new IdentityHashMap<>();
+    List<Shape> shapes = new ArrayList<>();
+    int reused = 0;
+    // Use a separate converter, the one in DisplayState is used by UI thread
+    GeoToImageConverter converter = new GeoToImageConverter();
+    if (converter.setMapData(map)) {
+      for (Placemark placemark : placemarks) {
+        List<Shape> prepared = (previous != null ? previous.placemarkShapes.get(placemark) : null);
+        if (prepared != null) {
+          reused++;
+        } else {
+          prepared = prepareShapes(placemark, converter);
+        }
+        placemarkShapes.put(placemark, prepared);
+        shapes.addAll(prepared);
+      }
+    }
+    Log.i(CustomMaps.LOG_TAG, String.format("Prepared %d placemarks (%d reused) in %d ms",
+        placemarks.size(), reused, System.currentTimeMillis() - start));
+    return new PreparedShapes(map, generation, placemarkShapes, shapes);
+  }
+
+  private static List<Shape> prepareShapes(Placemark placemark, GeoToImageConverter converter) {
+    List<Shape> shapes = new ArrayList<>();
+    List<LineGeometry> rings = new ArrayList<>();
+    for (LineGeometry line : placemark.getShapes()) {
+      if (line.getType().isPolygon()) {
+        rings.add(line);
+      } else {
+        List<LineGeometry> single = new ArrayList<>();
+        single.add(line);
+        shapes.add(new Shape(false, single, converter));
+      }
+    }
+    // All rings of a placemark are drawn as a single even-odd filled path
+    if (!rings.isEmpty()) {
+      shapes.add(new Shape(true, rings, converter));
+    }
+    return shapes;
+  }
+
+  // --------------------------------------------------------------------------
+  // Prepared data
+
+  private static class PreparedShapes {
+    final GroundOverlay map;
+    final int generation;
+    final Map<Placemark, List<Shape>> placemarkShapes;
+    final List<Shape> shapes;
+
+    PreparedShapes(GroundOverlay map, int generation,
+        Map<Placemark, List<Shape>> placemarkShapes, List<Shape> shapes) {
+      this.map = map;
+      this.generation = generation;
+      this.placemarkShapes = placemarkShapes;
+      this.shapes = shapes;
+    }
+  }
+
+  private static class Chunk {
+    final Path path;
+    final RectF bounds;
+
+    Chunk(Path path, RectF bounds) {
+      this.path = path;
+      this.bounds = bounds;
+    }
+  }
+
+  /** Shape contains a single line, or all rings of a polygon placemark. */
+  private static class Shape {
+    final boolean isPolygon;
+    /** Image coordinates of all vertices as x, y pairs */
+    final float[] points;
+    /** Start vertex index of each line, followed by total vertex count */
+    final int[] lineStarts;
+    /** Douglas-Peucker significance of each vertex in image pixels */
+    final float[] significance;
+    final RectF bounds = new RectF();
+    /** Simplified paths of each band, starting from MIN_BAND */
+    final List<List<Chunk>> bandChunks = new ArrayList<>();
+
+    Shape(boolean isPolygon, List<LineGeometry> lines, GeoToImageConverter converter) {
+      this.isPolygon = isPolygon;
+      int count = 0;
+      lineStarts = new int[lines.size() + 1];
+      for (int i = 0; i < lines.size(); i++) {
+        lineStarts[i] = count;
+        count += lines.get(i).getPointCount();
+      }
+      lineStarts[lines.size()] = count;
+      points = new float[2 * count];
+      for (int i = 0; i < lines.size(); i++) {
+        lines.get(i).copyCoordinates(points, 2 * lineStarts[i]);
+      }
+      converter.convertGeoToImageCoordinates(points);
+      bounds.set(points[0], points[1], points[0], points[1]);
+      for (int i = 2; i < points.length; i += 2) {
+        bounds.union(points[i], points[i + 1]);
+      }
+      significance = new float[count];
+      for (int i = 0; i < lines.size(); i++) {
+        computeSignificance(lineStarts[i], lineStarts[i + 1] - 1);
+      }
+      buildAllChunks();
+    }
+
+    /**
+     * Computes Douglas-Peucker significance for vertices between first and
+     * last (inclusive). The significance of a vertex is the distance at which
+     * Douglas-Peucker algorithm would select it, capped by the significance of
+     * the vertex that split the range. Keeping all vertices with significance
+     * above a tolerance gives the Douglas-Peucker simplification at that
+     * tolerance.
+     */
+    private void computeSignificance(int first, int last) {
+      significance[first] = Float.MAX_VALUE;
+      significance[last] = Float.MAX_VALUE;
+      int[] stack = new int[64];
+      float[] limits = new float[32];
+      stack[0] = first;
+      stack[1] = last;
+      limits[0] = Float.MAX_VALUE;
+      int top = 1;
+      while (top > 0) {
+        top--;
+        int start = stack[2 * top];
+        int end = stack[2 * top + 1];
+        float limit = limits[top];
+        if (end - start < 2) {
+          continue;
+        }
+        int maxIndex = -1;
+        float maxDistance = -1;
+        for (int i = start + 1; i < end; i++) {
+          float distance = distanceToSegment(i, start, end);
+          if (distance > maxDistance) {
+            maxDistance = distance;
+            maxIndex = i;
+          }
+        }
+        float value = Math.min(maxDistance, limit);
+        significance[maxIndex] = value;
+        if (2 * (top + 2) > stack.length) {
+          stack = Arrays.copyOf(stack, 2 * stack.length);
+          limits = Arrays.copyOf(limits, 2 * limits.length);
+        }
+        stack[2 * top] = start;
+        stack[2 * top + 1] = maxIndex;
+        limits[top++] = value;
+        stack[2 * top] = maxIndex;
+        stack[2 * top + 1] = end;
+        limits[top++] = value;
+      }
+    }
+
+    private float distanceToSegment(int index, int start, int end) {
+      float px = points[2 * index];
+      float py = points[2 * index + 1];
+      float ax = points[2 * start];
+      float ay = points[2 * start + 1];
+      float dx = points[2 * end] - ax;
+      float dy = points[2 * end + 1] - ay;
+      float lengthSquared = dx * dx + dy * dy;
+      float t = 0;
+      if (lengthSquared > 0) {
+        t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+      }
+      float ex = px - (ax + t * dx);
+      float ey = py - (ay + t * dy);
+      return (float) Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /**
+     * Builds the simplified paths of all bands. Consecutive bands that keep
+     * the same vertices share their paths.
+     */
+    private void buildAllChunks() {
+      List<Chunk> chunks = null;
+      int keptCount = -1;
+      for (int band = MIN_BAND; band <= MAX_BAND; band++) {
+        float tolerance = TOLERANCE * (float) Math.pow(2, band);
+        int count = 0;
+        for (float value : significance) {
+          if (value >= tolerance) {
+            count++;
+          }
+        }
+        if (count != keptCount) {
+          chunks = buildChunks(tolerance);
+          keptCount = count;
+        }
+        bandChunks.add(chunks);
+      }
+    }
+
+    private List<Chunk> buildChunks(float tolerance) {
+      List<Chunk> chunks = new ArrayList<>();
+      Path path = null;
+      RectF chunkBounds = null;
+      int chunkCount = 0;
+      if (isPolygon) {
+        path = new Path();
+        path.setFillType(Path.FillType.EVEN_ODD);
+        chunkBounds = new RectF(bounds);
+      }
+      for (int line = 0; line + 1 < lineStarts.length; line++) {
+        boolean lineStarted = false;
+        float lastX = 0;
+        float lastY = 0;
+        for (int i = lineStarts[line]; i < lineStarts[line + 1]; i++) {
+          if (significance[i] < tolerance) {
+            continue;
+          }
+          float x = points[2 * i];
+          float y = points[2 * i + 1];
+          if (!isPolygon && (path == null || chunkCount >= CHUNK_SIZE)) {
+            // Start a new chunk that continues from the last point of the previous one
+            if (path != null) {
+              chunks.add(new Chunk(path, chunkBounds));
+            }
+            path = new Path();
+            chunkCount = 0;
+            if (lineStarted) {
+              path.moveTo(lastX, lastY);
+              chunkBounds = new RectF(lastX, lastY, lastX, lastY);
+              chunkCount++;
+            } else {
+              chunkBounds = new RectF(x, y, x, y);
+            }
+          }
+          if (!lineStarted || chunkCount == 0) {
+            path.moveTo(x, y);
+          } else {
+            path.lineTo(x, y);
+          }
+          if (!isPolygon) {
+            chunkBounds.union(x, y);
+          }
+          lineStarted = true;
+          chunkCount++;
+          lastX = x;
+          lastY = y;
+        }
+        if (isPolygon && lineStarted) {
+          path.close();
+        } else if (!isPolygon && path != null) {
+          // Each line string has its own chunks
+          chunks.add(new Chunk(path, chunkBounds));
+          path = null;
+        }
+      }
+      if (isPolygon) {
+        chunks.add(new Chunk(path, chunkBounds));
+      }
+      return chunks;
+    }
+  }
+}
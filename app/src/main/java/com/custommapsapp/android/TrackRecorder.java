@@ -0,0 +1,329 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * TrackRecorder stores GPS fixes in a memory mapped, append-only file of
+ * fixed-width records (16 bytes per fix, about 1.4 MB per day at one fix per
+ * second). Each record holds the time, latitude, longitude, altitude, and
+ * accuracy of a fix, with a reserved altitude value for fixes without one. The
+ * time field of each record is written last and is never zero, so a record
+ * interrupted by a crash is simply overwritten by the next fix.
+ *
+ * TrackRecorder also maintains a thinned copy of the track for display. The
+ * display track never exceeds MAX_DISPLAY_POINTS points, so drawing cost does
+ * not grow with the length of the recording.
+ *
+ * @author Marko Teittinen
+ */
+public class TrackRecorder {
+  public static final int MAX_DISPLAY_POINTS = 2000;
+
+  private static final int MAGIC = 0x434d5452; // "CMTR"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int RECORD_SIZE = 16;
+  private static final int INITIAL_CAPACITY = 4096; // records
+  private static final int FORCE_INTERVAL = 60; // records
+  // Track start time is set back a day to allow storing fixes older than the file
+  private static final long BASE_TIME_MARGIN_MS = 24 * 60 * 60 * 1000L;
+  // Altitude field value of fixes without altitude
+  private static final short NO_ALTITUDE = Short.MIN_VALUE;
+
+  private static final double E7 = 1e7;
+  private static final double METERS_PER_DEGREE = 111320;
+  private static final float INITIAL_TOLERANCE_METERS = 5f;
+
+  private final File file;
+  private RandomAccessFile randomAccessFile;
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private long baseTime;
+  private int recordCount;
+  private int lastTimeField = 0;
+
+  // Thinned track for display as longitude, latitude pairs
+  private final float[] displayPoints = new float[2 * MAX_DISPLAY_POINTS];
+  private int displayCount = 0;
+  private float toleranceMeters = INITIAL_TOLERANCE_METERS;
+  private double lastLatitude;
+  private double lastLongitude;
+
+  /**
+   * Opens the track file, creating it if it does not exist yet. Fixes already
+   * stored in the file are kept.
+   */
+  public TrackRecorder(File file) throws IOException {
+    this.file = file;
+    open();
+  }
+
+  private void open() throws IOException {
+    boolean isNew = !file.exists() || file.length() < HEADER_SIZE;
+    randomAccessFile = new RandomAccessFile(file, "rw");
+    channel = randomAccessFile.getChannel();
+    long capacity = Math.max(channel.size(), HEADER_SIZE + (long) INITIAL_CAPACITY * RECORD_SIZE);
+    map(capacity);
+    if (isNew) {
+      baseTime = System.currentTimeMillis() - BASE_TIME_MARGIN_MS;
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putLong(8, baseTime);
+      recordCount = 0;
+      return;
+    }
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      close();
+      throw new IOException("Unrecognized track file: " + file.getName());
+    }
+    baseTime = buffer.getLong(8);
+    recordCount = findRecordCount();
+    if (recordCount > 0) {
+      lastTimeField = buffer.getInt(recordOffset(recordCount - 1));
+    }
+    for (int i = 0; i < recordCount; i++) {
+      int offset = recordOffset(i);
+      addDisplayPoint(buffer.getInt(offset + 4) / E7, buffer.getInt(offset + 8) / E7);
+    }
+  }
+
+  private void map(long capacity) throws IOException {
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Finds the number of complete records. Records are only appended, so all
+   * complete records are followed by records whose time field is zero.
+   */
+  private int findRecordCount() {
+    int low = 0;
+    int high = (int) ((buffer.capacity() - HEADER_SIZE) / RECORD_SIZE);
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (buffer.getInt(recordOffset(mid)) != 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static int recordOffset(int index) {
+    return HEADER_SIZE + index * RECORD_SIZE;
+  }
+
+  public synchronized int getPointCount() {
+    return recordCount;
+  }
+
+  /**
+   * Appends a fix to the track. Fixes that are not newer than the previous
+   * stored fix are ignored.
+   *
+   * @return {@code true} if the fix was stored
+   */
+  public synchronized boolean append(Location location) {
+    if (buffer == null) {
+      return false;
+    }
+    // Time field is seconds since track start + 1, so that zero marks an unused record
+    long seconds = (location.getTime() - baseTime) / 1000 + 1;
+    if (seconds <= lastTimeField || seconds > Integer.MAX_VALUE) {
+      return false;
+    }
+    int offset = recordOffset(recordCount);
+    if (offset + RECORD_SIZE > buffer.capacity()) {
+      try {
+        map(2L * buffer.capacity());
+      } catch (IOException ex) {
+        Log.w(CustomMaps.LOG_TAG, "Failed to grow track file", ex);
+        return false;
+      }
+    }
+    buffer.putInt(offset + 4, (int) Math.round(location.getLatitude() * E7));
+    buffer.putInt(offset + 8, (int) Math.round(location.getLongitude() * E7));
+    short altitude = NO_ALTITUDE;
+    if (location.hasAltitude()) {
+      long meters = Math.round(location.getAltitude());
+      altitude = (short) Math.max(NO_ALTITUDE + 1, Math.min(Short.MAX_VALUE, meters));
+    }
+    buffer.putShort(offset + 12, altitude);
+    int accuracy = (location.hasAccuracy() ? Math.round(location.getAccuracy()) : 0);
+    buffer.putShort(offset + 14, (short) Math.min(Short.MAX_VALUE, accuracy));
+    // Time is written last, it marks the record complete
+    buffer.putInt(offset, (int) seconds);
+    lastTimeField = (int) seconds;
+    recordCount++;
+    if (recordCount % FORCE_INTERVAL == 0) {
+      buffer.force();
+    }
+    addDisplayPoint(location.getLatitude(), location.getLongitude());
+    return true;
+  }
+
+  /** Removes all recorded fixes. */
+  public synchronized void clear() {
+    close();
+    if (file.exists() && !file.delete()) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to delete track file: " + file.getName());
+    }
+    recordCount = 0;
+    lastTimeField = 0;
+    displayCount = 0;
+    toleranceMeters = INITIAL_TOLERANCE_METERS;
+    try {
+      open();
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to create track file: " + file.getName(), ex);
+    }
+  }
+
+  public synchronized void close() {
+    if (buffer != null) {
+      buffer.force();
+      buffer = null;
+    }
+    FileUtil.tryToClose(channel);
+    FileUtil.tryToClose(randomAccessFile);
+    channel = null;
+    randomAccessFile = null;
+  }
+
+  // --------------------------------------------------------------------------
+  // Display track
+
+  /**
+   * Copies the thinned display track as longitude, latitude pairs to the given
+   * array, which must have room for 2 * MAX_DISPLAY_POINTS + 2 values. The last
+   * recorded fix is always included.
+   *
+   * @return number of points copied
+   */
+  public synchronized int copyDisplayPoints(float[] destination) {
+    System.arraycopy(displayPoints, 0, destination, 0, 2 * displayCount);
+    int count = displayCount;
+    if (recordCount > 0) {
+      float longitude = (float) lastLongitude;
+      float latitude = (float) lastLatitude;
+      if (count == 0 || displayPoints[2 * count - 2] != longitude
+          || displayPoints[2 * count - 1] != latitude) {
+        destination[2 * count] = longitude;
+        destination[2 * count + 1] = latitude;
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void addDisplayPoint(double latitude, double longitude) {
+    lastLatitude = latitude;
+    lastLongitude = longitude;
+    if (displayCount > 0 && distance(displayCount - 1, latitude, longitude) < toleranceMeters) {
+      return;
+    }
+    if (displayCount == MAX_DISPLAY_POINTS) {
+      thinDisplayPoints();
+    }
+    displayPoints[2 * displayCount] = (float) longitude;
+    displayPoints[2 * displayCount + 1] = (float) latitude;
+    displayCount++;
+  }
+
+  /** Doubles the tolerance until the display track has room for more points. */
+  private void thinDisplayPoints() {
+    while (displayCount > MAX_DISPLAY_POINTS / 2) {
+      toleranceMeters *= 2;
+      int kept = 1;
+      for (int i = 1; i < displayCount; i++) {
+        double latitude = displayPoints[2 * i + 1];
+        double longitude = displayPoints[2 * i];
+        if (distance(kept - 1, latitude, longitude) >= toleranceMeters) {
+          displayPoints[2 * kept] = displayPoints[2 * i];
+          displayPoints[2 * kept + 1] = displayPoints[2 * i + 1];
+          kept++;
+        }
+      }
+      displayCount = kept;
+    }
+  }
+
+  /** Returns approximate distance in meters from a display point to a location. */
+  private float distance(int index, double latitude, double longitude) {
+    double dLat = latitude - displayPoints[2 * index + 1];
+    double dLon = (longitude - displayPoints[2 * index]) * Math.cos(Math.toRadians(latitude));
+    return (float) (Math.sqrt(dLat * dLat + dLon * dLon) * METERS_PER_DEGREE);
+  }
+
+  // --------------------------------------------------------------------------
+  // GPX export
+
+  /**
+   * Writes the recorded track as a GPX document. Fixes recorded during the
+   * export are not included. The track is formatted without holding the lock,
+   * so recording and drawing the track are not blocked by a long export.
+   */
+  public void exportGpx(Writer out, String trackName) throws IOException {
+    ByteBuffer records = null;
+    int count = 0;
+    long startTime;
+    synchronized (this) {
+      if (buffer != null) {
+        // Records are only appended, the first count records do not change
+        records = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        count = recordCount;
+      }
+      startTime = baseTime;
+    }
+    SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+    iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    out.write("<gpx version=\"1.1\" creator=\"Custom Maps\" "
+        + "xmlns=\"http://www.topografix.com/GPX/1/1\">\n");
+    out.write("<trk>\n<name>");
+    out.write(trackName.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;"));
+    out.write("</name>\n<trkseg>\n");
+    for (int i = 0; i < count; i++) {
+      int offset = recordOffset(i);
+      long time = startTime + (records.getInt(offset) - 1) * 1000L;
+      out.write(String.format(Locale.US, "<trkpt lat=\"%.7f\" lon=\"%.7f\">",
+          records.getInt(offset + 4) / E7, records.getInt(offset + 8) / E7));
+      short altitude = records.getShort(offset + 12);
+      if (altitude != NO_ALTITUDE) {
+        out.write("<ele>" + altitude + "</ele>");
+      }
+      out.write("<time>" + iso8601.format(new Date(time)) + "</time></trkpt>\n");
+    }
+    out.write("</trkseg>\n</trk>\n</gpx>\n");
+  }
+}
@@ -41,6 +41,9 @@ public class ViewInertiaScroller {
 
     /** Notifies listener about scaling focused at given screen point. */
     void scale(float factor, float focusX, float focusY);
+
+    /** Notifies listener about a single tap, not followed by a double tap, at given point. */
+    void tap(float x, float y);
   }
 
   private static final float FRICTION = 6.0f;
@@ -162,6 +165,14 @@ public class ViewInertiaScroller {
           }
           return true;
         }
+
+        @Override
+        public boolean onSingleTapConfirmed(MotionEvent e) {
+          if (listener != null) {
+            listener.tap(e.getX(), e.getY());
+          }
+          return true;
+        }
       };
 
   /** scaleGestureListener listens to scale changing events, like pinch */
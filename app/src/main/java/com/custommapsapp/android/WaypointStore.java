@@ -0,0 +1,441 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.custommapsapp.android.kml.GroundOverlay;
+import com.custommapsapp.android.kml.IconStyle;
+import com.custommapsapp.android.kml.KmlFolder;
+import com.custommapsapp.android.kml.KmlInfo;
+import com.custommapsapp.android.kml.KmzDocument;
+import com.custommapsapp.android.kml.KmzFile;
+import com.custommapsapp.android.kml.Placemark;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * WaypointStore keeps user created waypoints for a single map in a sidecar
+ * file next to app's internal data. The file is an append-only binary log of
+ * added waypoints, so adding a waypoint writes only a few dozen bytes instead
+ * of rewriting the map's kmz file. The waypoints can be exported into the
+ * map's kmz file as regular placemarks, which empties the log.
+ *
+ * Waypoints are never removed one at a time, only all at once by deleting the
+ * log, so the log never contains obsolete records and needs no compaction. It
+ * is rewritten only if its last record was left incomplete.
+ *
+ * @author Marko Teittinen
+ */
+public class WaypointStore {
+  private static final String WAYPOINT_DIR = "waypoints";
+  private static final String LOG_SUFFIX = ".wpt";
+
+  private static final int MAGIC = 0x434d5750; // "CMWP"
+  private static final int VERSION = 1;
+  private static final byte RECORD_ADD = 1;
+
+  /** Style id and icon path used for waypoints exported into kmz files */
+  private static final String EXPORT_STYLE_ID = "cm_waypoint";
+  private static final String EXPORT_ICON_PATH = FileUtil.KMZ_IMAGE_DIR + "cm_waypoint.png";
+
+  // Pushpin hot spot measured from the lower left corner of the image
+  private static final int PUSHPIN_HOTSPOT_X = 21;
+  private static final int PUSHPIN_HOTSPOT_Y = 6;
+
+  private static IconStyle waypointIcon = null;
+
+  private final Context context;
+  private final File logFile;
+  private final Map<Long, Placemark> waypoints = new LinkedHashMap<>();
+  private final Map<Long, Long> waypointTimes = new LinkedHashMap<>();
+  private long nextId = 1;
+  private boolean loaded = false;
+
+  /**
+   * Returns the waypoint store for the given map. Waypoints are stored per map
+   * (GroundOverlay), not per file.
+   */
+  public static WaypointStore forMap(Context context, KmlFolder map) {
+    KmlInfo kmlInfo = map.getKmlInfo();
+    // Local copy of a document changes with each version of the document
+    String location = (kmlInfo instanceof KmzDocument ? ((KmzDocument) kmlInfo).getDocumentUri()
+        .toString() : kmlInfo.getFile().getAbsolutePath());
+    GroundOverlay overlay = map.getFirstMap();
+    String mapName = (overlay != null ? overlay.getName() : map.getName());
+    String key = location + '\n' + (mapName != null ? mapName : "");
+    File dir = new File(context.getFilesDir(), WAYPOINT_DIR);
+    if (!dir.exists() && !dir.mkdirs()) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to create dir: " + dir.getAbsolutePath());
+    }
+    return new WaypointStore(context, new File(dir, FileUtil.md5Hex(key) + LOG_SUFFIX));
+  }
+
+  private WaypointStore(Context context, File logFile) {
+    this.context = context.getApplicationContext();
+    this.logFile = logFile;
+  }
+
+  /** Returns true if there are user created waypoints for this map. */
+  public synchronized boolean hasWaypoints() {
+    ensureLoaded();
+    return !waypoints.isEmpty();
+  }
+
+  /** Returns the waypoints in creation order as Placemarks. */
+  public synchronized List<Placemark> getWaypoints() {
+    ensureLoaded();
+    return new ArrayList<>(waypoints.values());
+  }
+
+  /**
+   * Adds a new waypoint and appends it to the log.
+   *
+   * @return Placemark for the new waypoint, or {@code null} if it could not be saved
+   */
+  public synchronized Placemark addWaypoint(String name, double latitude, double longitude) {
+    ensureLoaded();
+    long id = nextId;
+    long time = System.currentTimeMillis();
+    try (DataOutputStream out = openLogForAppend()) {
+      writeAddRecord(out, id, time, latitude, longitude, name);
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to save waypoint to " + logFile.getName(), ex);
+      return null;
+    }
+    nextId++;
+    return registerWaypoint(id, time, latitude, longitude, name);
+  }
+
+  /** Deletes all waypoints of this map. */
+  public synchronized void deleteAll() {
+    waypoints.clear();
+    waypointTimes.clear();
+    loaded = true;
+    if (logFile.exists() && !logFile.delete()) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to delete waypoint log: " + logFile.getName());
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Log reading
+
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (!logFile.exists()) {
+      return;
+    }
+    boolean isTruncated = false;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+      if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+        Log.w(CustomMaps.LOG_TAG, "Unrecognized waypoint log ignored: " + logFile.getName());
+        return;
+      }
+      while (true) {
+        int type = in.read();
+        if (type < 0) {
+          break;
+        }
+        try {
+          if (type == RECORD_ADD) {
+            long id = in.readLong();
+            long time = in.readLong();
+            double latitude = in.readDouble();
+            double longitude = in.readDouble();
+            String name = in.readUTF();
+            registerWaypoint(id, time, latitude, longitude, name);
+            nextId = Math.max(nextId, id + 1);
+          } else {
+            // Unknown record, rest of the log can't be interpreted
+            isTruncated = true;
+            break;
+          }
+        } catch (EOFException ex) {
+          // Last record was only partially written
+          isTruncated = true;
+          break;
+        }
+      }
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to read waypoint log: " + logFile.getName(), ex);
+      isTruncated = true;
+    }
+    if (isTruncated) {
+      // Rewrite the log so that new records are not appended after garbage
+      rewriteLog();
+    }
+  }
+
+  /** Rewrites the log to contain the add records of the waypoints read from it. */
+  private void rewriteLog() {
+    File tmpFile = new File(logFile.getPath() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      for (Map.Entry<Long, Placemark> entry : waypoints.entrySet()) {
+        Placemark waypoint = entry.getValue();
+        LatLng point = waypoint.getPoint();
+        writeAddRecord(out, entry.getKey(), waypointTimes.get(entry.getKey()),
+            point.latitude, point.longitude, waypoint.getName());
+      }
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to rewrite waypoint log: " + logFile.getName(), ex);
+      tmpFile.delete();
+      return;
+    }
+    if (!tmpFile.renameTo(logFile)) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to replace waypoint log: " + logFile.getName());
+      tmpFile.delete();
+    }
+  }
+
+  private DataOutputStream openLogForAppend() throws IOException {
+    boolean isNew = !logFile.exists() || logFile.length() == 0;
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(logFile, true), 256));
+    if (isNew) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+    }
+    return out;
+  }
+
+  private static void writeAddRecord(DataOutputStream out, long id, long time, double latitude,
+      double longitude, String name) throws IOException {
+    out.writeByte(RECORD_ADD);
+    out.writeLong(id);
+    out.writeLong(time);
+    out.writeDouble(latitude);
+    out.writeDouble(longitude);
+    out.writeUTF(name != null ? name : "");
+  }
+
+  private Placemark registerWaypoint(long id, long time, double latitude, double longitude,
+      String name) {
+    Placemark waypoint = new Placemark();
+    waypoint.setName(name);
+    waypoint.setPoint(latitude, longitude);
+    waypoint.setIconStyle(getWaypointIcon(context));
+    waypoints.put(id, waypoint);
+    waypointTimes.put(id, time);
+    return waypoint;
+  }
+
+  /** Returns the pushpin icon style shared by all user created waypoints. */
+  static synchronized IconStyle getWaypointIcon(Context context) {
+    if (waypointIcon == null) {
+      waypointIcon = new IconStyle();
+      waypointIcon.setScale(1f);
+      waypointIcon.setXUnits(IconStyle.Units.PIXELS);
+      waypointIcon.setX(PUSHPIN_HOTSPOT_X);
+      waypointIcon.setYUnits(IconStyle.Units.PIXELS);
+      waypointIcon.setY(PUSHPIN_HOTSPOT_Y);
+      waypointIcon.setIcon(ImageHelper.loadImage(context, R.drawable.pushpin, true));
+    }
+    return waypointIcon;
+  }
+
+  // --------------------------------------------------------------------------
+  // Export to kmz
+
+  /**
+   * Writes the waypoints into the map's kmz file as placemarks and clears the
+   * log after a successful export. The kmz file is rewritten to a temporary
+   * file that replaces the original only after it has been completely written.
+   *
+   * @param map KmlFolder whose waypoints are stored in this WaypointStore
+   * @return {@code true} if the waypoints were exported (or there were none)
+   */
+  public synchronized boolean exportToKmz(KmlFolder map) {
+    ensureLoaded();
+    if (waypoints.isEmpty()) {
+      return true;
+    }
+    if (!(map.getKmlInfo() instanceof KmzFile) || map.getKmlInfo() instanceof KmzDocument) {
+      Log.w(CustomMaps.LOG_TAG, "Waypoints can only be exported to kmz files in app's storage");
+      return false;
+    }
+    KmzFile kmzInfo = (KmzFile) map.getKmlInfo();
+    File kmz = kmzInfo.getFile();
+    File tmpFile = new File(kmz.getPath() + ".tmp");
+    try {
+      String kml;
+      try (BufferedReader reader = new BufferedReader(kmzInfo.getKmlReader())) {
+        kml = insertWaypoints(FileUtil.readTextFully(reader));
+      }
+      writeKmz(kmz, kmzInfo.getKmlEntryName(), kml.getBytes(StandardCharsets.UTF_8), tmpFile);
+    } catch (IOException | RuntimeException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to export waypoints to " + kmz.getName(), ex);
+      tmpFile.delete();
+      return false;
+    }
+    if (!tmpFile.renameTo(kmz)) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to replace map file: " + kmz.getName());
+      tmpFile.delete();
+      return false;
+    }
+    // Do not keep reading the replaced file from a pooled zip file
+    kmzInfo.close();
+    deleteAll();
+    return true;
+  }
+
+  /**
+   * Copies all entries of the kmz file to a new file replacing the kml entry
+   * with the given data and adding the waypoint icon if it is missing.
+   */
+  private void writeKmz(File kmz, String kmlEntryName, byte[] kmlData, File destination)
+      throws IOException {
+    try (ZipFile source = new ZipFile(kmz);
+         ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(destination))) {
+      Enumeration<? extends ZipEntry> entries = source.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (entry.getName().equals(kmlEntryName)) {
+          continue;
+        }
+        ZipEntry copy = new ZipEntry(entry.getName());
+        copy.setTime(entry.getTime());
+        copy.setMethod(entry.getMethod());
+        if (entry.getMethod() == ZipEntry.STORED) {
+          copy.setSize(entry.getSize());
+          copy.setCrc(entry.getCrc());
+        }
+        zipOut.putNextEntry(copy);
+        try (InputStream in = source.getInputStream(entry)) {
+          FileUtil.copyContents(in, zipOut);
+        }
+        zipOut.closeEntry();
+      }
+
+      ZipEntry kmlEntry = new ZipEntry(kmlEntryName);
+      kmlEntry.setTime(System.currentTimeMillis());
+      zipOut.putNextEntry(kmlEntry);
+      zipOut.write(kmlData);
+      zipOut.closeEntry();
+
+      if (source.getEntry(EXPORT_ICON_PATH) == null) {
+        ByteArrayOutputStream iconData = new ByteArrayOutputStream();
+        try (InputStream in = context.getResources().openRawResource(R.drawable.pushpin)) {
+          FileUtil.copyContents(in, iconData);
+        }
+        byte[] data = iconData.toByteArray();
+        ZipEntry iconEntry = new ZipEntry(EXPORT_ICON_PATH);
+        iconEntry.setMethod(ZipEntry.STORED);
+        iconEntry.setSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        iconEntry.setCrc(crc.getValue());
+        zipOut.putNextEntry(iconEntry);
+        zipOut.write(data);
+        zipOut.closeEntry();
+      }
+      zipOut.finish();
+    }
+  }
+
+  /**
+   * Inserts waypoint placemarks at the top level of the kml document. If the
+   * kml has no Document tag, the existing contents are wrapped in one so that
+   * the placemarks apply to all maps in the file.
+   */
+  private String insertWaypoints(String kml) throws IOException {
+    StringBuilder placemarks = new StringBuilder();
+    if (!kml.contains("id=\"" + EXPORT_STYLE_ID + "\"")) {
+      placemarks.append(String.format(Locale.US, WAYPOINT_STYLE_TEMPLATE, EXPORT_STYLE_ID,
+          EXPORT_ICON_PATH, PUSHPIN_HOTSPOT_X, PUSHPIN_HOTSPOT_Y));
+    }
+    SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+    iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+    for (Map.Entry<Long, Placemark> entry : waypoints.entrySet()) {
+      Placemark waypoint = entry.getValue();
+      String when = iso8601.format(new Date(waypointTimes.get(entry.getKey())));
+      placemarks.append(String.format(Locale.US, WAYPOINT_TEMPLATE, escapeXml(waypoint.getName()),
+          when, EXPORT_STYLE_ID, waypoint.getPoint().longitude, waypoint.getPoint().latitude));
+    }
+
+    int documentEnd = kml.lastIndexOf("</Document>");
+    if (documentEnd >= 0) {
+      return kml.substring(0, documentEnd) + placemarks + kml.substring(documentEnd);
+    }
+    int kmlStart = kml.indexOf("<kml");
+    int contentStart = (kmlStart >= 0 ? kml.indexOf('>', kmlStart) + 1 : 0);
+    int kmlEnd = kml.lastIndexOf("</kml>");
+    if (contentStart <= 0 || kmlEnd < contentStart) {
+      throw new IOException("Map kml has no <kml> root element");
+    }
+    return kml.substring(0, contentStart) + "\n<Document>" + kml.substring(contentStart, kmlEnd)
+        + placemarks + "</Document>\n" + kml.substring(kmlEnd);
+  }
+
+  private static String escapeXml(String text) {
+    if (text == null) {
+      return "";
+    }
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  private static final String WAYPOINT_STYLE_TEMPLATE = //
+      "<Style id=\"%s\">\n" + //
+      "  <IconStyle>\n" + //
+      "    <scale>1.0</scale>\n" + //
+      "    <Icon><href>%s</href></Icon>\n" + //
+      "    <hotSpot x=\"%d\" y=\"%d\" xunits=\"pixels\" yunits=\"pixels\"/>\n" + //
+      "  </IconStyle>\n" + //
+      "</Style>\n";
+
+  private static final String WAYPOINT_TEMPLATE = //
+      "<Placemark>\n" + //
+      "  <name>%s</name>\n" + //
+      "  <TimeStamp><when>%s</when></TimeStamp>\n" + //
+      "  <styleUrl>#%s</styleUrl>\n" + //
+      "  <Point><coordinates>%.7f,%.7f</coordinates></Point>\n" + //
+      "</Placemark>\n";
+}
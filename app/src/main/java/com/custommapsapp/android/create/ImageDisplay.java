@@ -275,4 +275,9 @@ public class ImageDisplay extends View implements ViewInertiaScroller.Listener {
     invalidate();
     annotations.invalidate();
   }
+
+  @Override
+  public void tap(float x, float y) {
+    // Taps are not used in image display
+  }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.gpx;
+
+import static com.custommapsapp.android.kml.BinaryCodec.readString;
+import static com.custommapsapp.android.kml.BinaryCodec.writeString;
+
+import com.custommapsapp.android.kml.BinaryCodec;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * GpxData holds the waypoints, tracks, and routes of a single GPX file. All
+ * coordinates are kept in primitive arrays of longitude, latitude pairs, one
+ * array per track segment, so even long tracks need only 16 bytes per point.
+ *
+ * GpxData can be written to a binary cache file and read back without parsing
+ * XML. The cache file starts with the bounds of the data, so files that do not
+ * overlap the displayed map can be rejected without reading the coordinates.
+ *
+ * @author Marko Teittinen
+ */
+public class GpxData {
+  private static final int MAGIC = 0x434d4758; // "CMGX"
+  private static final int VERSION = 1;
+
+  /** A track or a route, consisting of one or more segments. */
+  public static class Line {
+    String name;
+    private final List<double[]> segments;
+
+    Line(String name, List<double[]> segments) {
+      this.name = name;
+      this.segments = segments;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Returns the segments as arrays of longitude, latitude pairs. */
+    public List<double[]> getSegments() {
+      return segments;
+    }
+  }
+
+  private final String name;
+  private final double[] waypointCoordinates;
+  private final String[] waypointNames;
+  private final String[] waypointDescriptions;
+  private final List<Line> lines;
+  private final float[] bounds;
+
+  GpxData(String name, double[] waypointCoordinates, String[] waypointNames,
+      String[] waypointDescriptions, List<Line> lines) {
+    this.name = name;
+    this.waypointCoordinates = waypointCoordinates;
+    this.waypointNames = waypointNames;
+    this.waypointDescriptions = waypointDescriptions;
+    this.lines = Collections.unmodifiableList(lines);
+    this.bounds = computeBounds();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getWaypointCount() {
+    return waypointNames.length;
+  }
+  public double getWaypointLongitude(int index) {
+    return waypointCoordinates[2 * index];
+  }
+  public double getWaypointLatitude(int index) {
+    return waypointCoordinates[2 * index + 1];
+  }
+  public String getWaypointName(int index) {
+    return waypointNames[index];
+  }
+  public String getWaypointDescription(int index) {
+    return waypointDescriptions[index];
+  }
+
+  public List<Line> getLines() {
+    return lines;
+  }
+
+  public boolean isEmpty() {
+    return waypointNames.length == 0 && lines.isEmpty();
+  }
+
+  /**
+   * Returns the bounds of all coordinates as {west, south, east, north}, or
+   * {@code null} if there are no coordinates.
+   */
+  public float[] getBounds() {
+    return bounds;
+  }
+
+  private float[] computeBounds() {
+    double[] minMax = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+    includeInBounds(minMax, waypointCoordinates);
+    for (Line line : lines) {
+      for (double[] segment : line.segments) {
+        includeInBounds(minMax, segment);
+      }
+    }
+    if (minMax[0] > minMax[2]) {
+      return null;
+    }
+    return new float[] {(float) minMax[0], (float) minMax[1], (float) minMax[2], (float) minMax[3]};
+  }
+
+  private static void includeInBounds(double[] minMax, double[] coordinates) {
+    for (int i = 0; i < coordinates.length; i += 2) {
+      minMax[0] = Math.min(minMax[0], coordinates[i]);
+      minMax[1] = Math.min(minMax[1], coordinates[i + 1]);
+      minMax[2] = Math.max(minMax[2], coordinates[i]);
+      minMax[3] = Math.max(minMax[3], coordinates[i + 1]);
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Binary cache
+
+  /**
+   * Writes this data to a cache file. The source file's size and modification
+   * time are stored in the cache to detect when the cache is out of date.
+   */
+  public void writeCache(File cacheFile, File sourceFile) throws IOException {
+    BinaryCodec.writeFile(cacheFile, MAGIC, VERSION, out -> {
+      out.writeLong(sourceFile.length());
+      out.writeLong(sourceFile.lastModified());
+      float[] box = (bounds != null ? bounds : new float[] {0, 0, -1, -1});
+      for (float value : box) {
+        out.writeFloat(value);
+      }
+      writeString(out, name);
+      out.writeInt(waypointNames.length);
+      for (int i = 0; i < waypointNames.length; i++) {
+        writeString(out, waypointNames[i]);
+        writeString(out, waypointDescriptions[i]);
+      }
+      writeDoubles(out, waypointCoordinates);
+      out.writeInt(lines.size());
+      for (Line line : lines) {
+        writeString(out, line.name);
+        out.writeInt(line.segments.size());
+        for (double[] segment : line.segments) {
+          writeDoubles(out, segment);
+        }
+      }
+    });
+  }
+
+  /**
+   * Reads the bounds stored in a cache file, if the cache is up to date with
+   * the source file.
+   *
+   * @return bounds {west, south, east, north} of the cached data, an empty
+   *     array if cached data has no coordinates, or {@code null} if the cache
+   *     is missing or out of date
+   */
+  public static float[] readCachedBounds(File cacheFile, File sourceFile) throws IOException {
+    ByteBuffer in = BinaryCodec.mapFile(cacheFile, MAGIC, VERSION);
+    if (in == null || in.remaining() < 32 || in.getLong() != sourceFile.length()
+        || in.getLong() != sourceFile.lastModified()) {
+      return null;
+    }
+    float[] box = { in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat() };
+    return (box[0] > box[2] ? new float[0] : box);
+  }
+
+  /**
+   * Reads data from a cache file. The file is memory mapped and coordinate
+   * arrays are bulk copied from it. Caller must have validated the cache with
+   * {@link #readCachedBounds(File, File)}.
+   */
+  public static GpxData readCache(File cacheFile) throws IOException {
+    ByteBuffer in = BinaryCodec.mapFile(cacheFile, MAGIC, VERSION);
+    if (in == null) {
+      throw new IOException("Unrecognized GPX cache file: " + cacheFile.getName());
+    }
+    try {
+      // Skip source file size and time, and bounds (computed from coordinates)
+      in.position(in.position() + 16 + 16);
+      String name = readString(in);
+      int waypointCount = in.getInt();
+      String[] waypointNames = new String[waypointCount];
+      String[] waypointDescriptions = new String[waypointCount];
+      for (int i = 0; i < waypointCount; i++) {
+        waypointNames[i] = readString(in);
+        waypointDescriptions[i] = readString(in);
+      }
+      double[] waypointCoordinates = readDoubles(in);
+      int lineCount = in.getInt();
+      List<Line> lines = new ArrayList<>(lineCount);
+      for (int i = 0; i < lineCount; i++) {
+        String lineName = readString(in);
+        int segmentCount = in.getInt();
+        List<double[]> segments = new ArrayList<>(segmentCount);
+        for (int j = 0; j < segmentCount; j++) {
+          segments.add(readDoubles(in));
+        }
+        lines.add(new Line(lineName, segments));
+      }
+      return new GpxData(name, waypointCoordinates, waypointNames, waypointDescriptions, lines);
+    } catch (RuntimeException ex) {
+      // Truncated or corrupted file
+      throw new IOException("Invalid GPX cache file: " + cacheFile.getName(), ex);
+    }
+  }
+
+  private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+    out.writeInt(values.length);
+    for (double value : values) {
+      out.writeDouble(value);
+    }
+  }
+
+  private static double[] readDoubles(ByteBuffer in) {
+    double[] values = new double[in.getInt()];
+    in.asDoubleBuffer().get(values);
+    in.position(in.position() + 8 * values.length);
+    return values;
+  }
+}
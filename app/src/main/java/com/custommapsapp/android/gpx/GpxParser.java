@@ -0,0 +1,319 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.gpx;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * GpxParser is a streaming XML pull parser for GPX files. It reads waypoints,
+ * tracks, and routes, and ignores the rest of the file. Points are stored in
+ * primitive arrays as they are read, and the tracks are thinned while parsing
+ * so that the total number of track and route points never exceeds
+ * MAX_LINE_POINTS. Memory use is therefore bounded regardless of the size of
+ * the GPX file.
+ *
+ * @author Marko Teittinen
+ */
+public class GpxParser {
+  /** Maximum number of track and route points kept from a single file */
+  public static final int MAX_LINE_POINTS = 250000;
+
+  private static final double INITIAL_TOLERANCE_METERS = 1.0;
+  private static final double MAX_TOLERANCE_METERS = 100000;
+  private static final double METERS_PER_DEGREE = 111320;
+
+  private double toleranceMeters;
+  private int linePointCount;
+  private List<GpxData.Line> lines;
+
+  // Segment being parsed, kept points and the last seen point
+  private double[] segment;
+  private int segmentPoints;
+  private double lastLongitude;
+  private double lastLatitude;
+  private boolean hasLastPoint;
+
+  // Waypoints
+  private double[] waypointCoordinates;
+  private List<String> waypointNames;
+  private List<String> waypointDescriptions;
+
+  /** Parses a GPX file. */
+  public GpxData readFile(File gpxFile) throws XmlPullParserException, IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(gpxFile));
+    try {
+      return readStream(in);
+    } finally {
+      try {
+        in.close();
+      } catch (IOException ex) {
+        // Nothing to do, the data was already read
+      }
+    }
+  }
+
+  /**
+   * Parses GPX data from a stream. The stream is not closed. The character
+   * encoding is detected from the XML declaration and possible byte order mark.
+   */
+  public GpxData readStream(InputStream in) throws XmlPullParserException, IOException {
+    toleranceMeters = INITIAL_TOLERANCE_METERS;
+    linePointCount = 0;
+    lines = new ArrayList<>();
+    segment = new double[2048];
+    segmentPoints = 0;
+    hasLastPoint = false;
+    waypointCoordinates = new double[64];
+    waypointNames = new ArrayList<>();
+    waypointDescriptions = new ArrayList<>();
+
+    XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+    XmlPullParser xpp = factory.newPullParser();
+    xpp.setInput(in, null);
+
+    String name = null;
+    int event = xpp.getEventType();
+    while (event != XmlPullParser.END_DOCUMENT) {
+      if (event == XmlPullParser.START_TAG) {
+        String tag = xpp.getName();
+        if (tag.equals("wpt")) {
+          parseWaypoint(xpp);
+        } else if (tag.equals("trk") || tag.equals("rte")) {
+          parseLine(xpp, tag);
+        } else if (tag.equals("name") && xpp.getDepth() == 3 && name == null) {
+          // gpx/metadata/name (GPX 1.1)
+          name = xpp.nextText();
+        } else if (tag.equals("name") && xpp.getDepth() == 2 && name == null) {
+          // gpx/name (GPX 1.0)
+          name = xpp.nextText();
+        }
+      }
+      event = xpp.next();
+    }
+
+    int waypointCount = waypointNames.size();
+    GpxData result = new GpxData(name,
+        Arrays.copyOf(waypointCoordinates, 2 * waypointCount),
+        waypointNames.toArray(new String[waypointCount]),
+        waypointDescriptions.toArray(new String[waypointCount]),
+        lines);
+    // Release parsing buffers
+    lines = null;
+    segment = null;
+    waypointCoordinates = null;
+    waypointNames = null;
+    waypointDescriptions = null;
+    return result;
+  }
+
+  private void parseWaypoint(XmlPullParser xpp) throws XmlPullParserException, IOException {
+    double latitude = parseCoordinate(xpp.getAttributeValue(null, "lat"));
+    double longitude = parseCoordinate(xpp.getAttributeValue(null, "lon"));
+    String name = null;
+    String description = null;
+    int event = xpp.next();
+    while (event != XmlPullParser.END_TAG || !xpp.getName().equals("wpt")) {
+      if (event == XmlPullParser.START_TAG) {
+        if (xpp.getName().equals("name")) {
+          name = xpp.nextText();
+        } else if (xpp.getName().equals("desc")) {
+          description = xpp.nextText();
+        } else if (xpp.getName().equals("cmt") && description == null) {
+          description = xpp.nextText();
+        }
+      }
+      event = xpp.next();
+    }
+    if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+      return;
+    }
+    int index = waypointNames.size();
+    if (waypointCoordinates.length < 2 * index + 2) {
+      waypointCoordinates = Arrays.copyOf(waypointCoordinates, 2 * waypointCoordinates.length);
+    }
+    waypointCoordinates[2 * index] = longitude;
+    waypointCoordinates[2 * index + 1] = latitude;
+    waypointNames.add(name);
+    waypointDescriptions.add(description);
+  }
+
+  /**
+   * Parses a track (trk) or a route (rte). A track consists of segments, route
+   * points form a single segment.
+   */
+  private void parseLine(XmlPullParser xpp, String lineTag)
+      throws XmlPullParserException, IOException {
+    List<double[]> segments = new ArrayList<>();
+    GpxData.Line line = new GpxData.Line(null, segments);
+    // Line is added immediately, so that its segments are thinned with others
+    lines.add(line);
+    int event = xpp.next();
+    while (event != XmlPullParser.END_TAG || !xpp.getName().equals(lineTag)) {
+      if (event == XmlPullParser.START_TAG) {
+        String tag = xpp.getName();
+        if (tag.equals("name") && xpp.getDepth() == 3) {
+          line.name = xpp.nextText();
+        } else if (tag.equals("trkpt") || tag.equals("rtept")) {
+          addPoint(parseCoordinate(xpp.getAttributeValue(null, "lon")),
+                   parseCoordinate(xpp.getAttributeValue(null, "lat")));
+        }
+      } else if (event == XmlPullParser.END_TAG && xpp.getName().equals("trkseg")) {
+        endSegment(segments);
+      }
+      event = xpp.next();
+    }
+    endSegment(segments);
+    if (segments.isEmpty()) {
+      lines.remove(line);
+    }
+  }
+
+  private static double parseCoordinate(String value) {
+    if (value == null) {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException ex) {
+      return Double.NaN;
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Segment thinning
+
+  private void addPoint(double longitude, double latitude) {
+    if (Double.isNaN(longitude) || Double.isNaN(latitude)) {
+      return;
+    }
+    lastLongitude = longitude;
+    lastLatitude = latitude;
+    hasLastPoint = true;
+    if (segmentPoints > 0
+        && distance(segment, segmentPoints - 1, longitude, latitude) < toleranceMeters) {
+      return;
+    }
+    if (linePointCount >= MAX_LINE_POINTS) {
+      thinAll();
+      if (linePointCount >= MAX_LINE_POINTS) {
+        // File consists of a huge number of tiny segments, ignore the rest
+        return;
+      }
+    }
+    if (segment.length < 2 * segmentPoints + 2) {
+      segment = Arrays.copyOf(segment, 2 * segment.length);
+    }
+    segment[2 * segmentPoints] = longitude;
+    segment[2 * segmentPoints + 1] = latitude;
+    segmentPoints++;
+    linePointCount++;
+  }
+
+  /** Stores the current segment into the list, if it has at least two points. */
+  private void endSegment(List<double[]> segments) {
+    if (hasLastPoint && segmentPoints > 0
+        && (segment[2 * segmentPoints - 2] != lastLongitude
+            || segment[2 * segmentPoints - 1] != lastLatitude)) {
+      // Always keep the last point of the segment
+      if (segment.length < 2 * segmentPoints + 2) {
+        segment = Arrays.copyOf(segment, 2 * segment.length + 2);
+      }
+      segment[2 * segmentPoints] = lastLongitude;
+      segment[2 * segmentPoints + 1] = lastLatitude;
+      segmentPoints++;
+      linePointCount++;
+    }
+    if (segmentPoints >= 2) {
+      segments.add(Arrays.copyOf(segment, 2 * segmentPoints));
+    } else {
+      linePointCount -= segmentPoints;
+    }
+    segmentPoints = 0;
+    hasLastPoint = false;
+  }
+
+  /**
+   * Doubles the thinning tolerance until all points read so far fit in half of
+   * MAX_LINE_POINTS, leaving room for the rest of the file.
+   */
+  private void thinAll() {
+    while (linePointCount > MAX_LINE_POINTS / 2 && toleranceMeters < MAX_TOLERANCE_METERS) {
+      toleranceMeters *= 2;
+      linePointCount = 0;
+      for (GpxData.Line line : lines) {
+        List<double[]> segments = line.getSegments();
+        for (int i = 0; i < segments.size(); i++) {
+          double[] coordinates = segments.get(i);
+          int kept = thin(coordinates, coordinates.length / 2, toleranceMeters, true);
+          if (kept < coordinates.length / 2) {
+            segments.set(i, Arrays.copyOf(coordinates, 2 * kept));
+          }
+          linePointCount += kept;
+        }
+      }
+      // Last point of the segment being parsed is kept separately in lastLon/Lat
+      segmentPoints = thin(segment, segmentPoints, toleranceMeters, false);
+      linePointCount += segmentPoints;
+    }
+  }
+
+  /**
+   * Removes points closer than tolerance to the previous kept point. The first
+   * point is always kept, and optionally also the last one.
+   *
+   * @return number of points kept at the beginning of the array
+   */
+  private static int thin(double[] coordinates, int count, double tolerance, boolean keepLast) {
+    if (count < 3) {
+      return count;
+    }
+    int kept = 1;
+    int last = (keepLast ? count - 1 : count);
+    for (int i = 1; i < last; i++) {
+      if (distance(coordinates, kept - 1, coordinates[2 * i], coordinates[2 * i + 1])
+          >= tolerance) {
+        coordinates[2 * kept] = coordinates[2 * i];
+        coordinates[2 * kept + 1] = coordinates[2 * i + 1];
+        kept++;
+      }
+    }
+    if (keepLast) {
+      coordinates[2 * kept] = coordinates[2 * count - 2];
+      coordinates[2 * kept + 1] = coordinates[2 * count - 1];
+      kept++;
+    }
+    return kept;
+  }
+
+  /** Returns approximate distance in meters from a stored point to a location. */
+  private static double distance(double[] coordinates, int index, double longitude,
+      double latitude) {
+    double dLat = latitude - coordinates[2 * index + 1];
+    double dLon = (longitude - coordinates[2 * index]) * Math.cos(Math.toRadians(latitude));
+    return Math.sqrt(dLat * dLat + dLon * dLon) * METERS_PER_DEGREE;
+  }
+}
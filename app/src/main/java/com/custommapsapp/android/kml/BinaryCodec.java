@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import android.graphics.Point;
+
+import com.custommapsapp.android.FileUtil;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * BinaryCodec holds the encoding shared by the app's binary cache and index
+ * files. Every file starts with a magic number and a format version, strings
+ * are stored as UTF-8 bytes after their length (-1 for null), and maps are
+ * stored with the same GroundOverlay encoding everywhere.
+ *
+ * Files are written to a uniquely named temporary file in the same directory,
+ * which replaces the file only when it has been completely written, so
+ * concurrent writers of the same file never share a temporary file and
+ * readers never see a partial file.
+ *
+ * @author Marko Teittinen
+ */
+public class BinaryCodec {
+  /** Writes the contents of a file following its header. */
+  public interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /** Writes a string of a GroundOverlay, either in place or as a string table index. */
+  public interface StringWriter {
+    void writeString(DataOutputStream out, String text) throws IOException;
+  }
+
+  /** Reads a string written by the matching StringWriter. */
+  public interface StringReader {
+    String readString(ByteBuffer in);
+  }
+
+  private BinaryCodec() {
+  }
+
+  // --------------------------------------------------------------------------
+  // Files
+
+  /**
+   * Writes a file with the given header, replacing the file only after it
+   * has been completely written.
+   *
+   * @throws IOException if the file could not be written
+   */
+  public static void writeFile(File file, int magic, int version, Writer writer)
+      throws IOException {
+    File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      out.writeInt(magic);
+      out.writeInt(version);
+      writer.write(out);
+      out.close();
+      out = null;
+      if (!tmpFile.renameTo(file)) {
+        throw new IOException("Failed to rename file: " + file.getName());
+      }
+      tmpFile = null;
+    } finally {
+      FileUtil.tryToClose(out);
+      if (tmpFile != null) {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Reads a whole file to memory. Returns the contents following the header,
+   * or {@code null} if the file does not exist or has a different header.
+   */
+  public static ByteBuffer readFile(File file, int magic, int version) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    byte[] data;
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      data = new byte[(int) in.length()];
+      in.readFully(data);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    return (hasHeader(buffer, magic, version) ? buffer : null);
+  }
+
+  /**
+   * Memory maps a file. Returns the contents following the header, or
+   * {@code null} if the file does not exist or has a different header.
+   */
+  public static ByteBuffer mapFile(File file, int magic, int version) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+         FileChannel channel = in.getChannel()) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return (hasHeader(buffer, magic, version) ? buffer : null);
+    }
+  }
+
+  private static boolean hasHeader(ByteBuffer buffer, int magic, int version) {
+    return buffer.remaining() >= 8 && buffer.getInt() == magic && buffer.getInt() == version;
+  }
+
+  // --------------------------------------------------------------------------
+  // Strings
+
+  public static void writeString(DataOutputStream out, String text) throws IOException {
+    if (text == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  public static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // --------------------------------------------------------------------------
+  // Maps
+
+  /** Writes the name, image, bounds, and tie points of a map. */
+  public static void writeGroundOverlay(DataOutputStream out, GroundOverlay overlay,
+      StringWriter strings) throws IOException {
+    strings.writeString(out, overlay.getName());
+    strings.writeString(out, overlay.getDescription());
+    strings.writeString(out, overlay.getImage());
+    out.writeFloat(overlay.getNorth());
+    out.writeFloat(overlay.getSouth());
+    out.writeFloat(overlay.getEast());
+    out.writeFloat(overlay.getWest());
+    out.writeFloat(overlay.getRotateAngle());
+    out.writeBoolean(overlay.hasCornerTiePoints());
+    if (overlay.hasCornerTiePoints()) {
+      float[][] corners = { overlay.getNorthEastCornerLocation(),
+          overlay.getSouthEastCornerLocation(), overlay.getSouthWestCornerLocation(),
+          overlay.getNorthWestCornerLocation() };
+      for (float[] corner : corners) {
+        out.writeFloat(corner[0]);
+        out.writeFloat(corner[1]);
+      }
+    }
+    List<GroundOverlay.Tiepoint> tiepoints = overlay.getTiepoints();
+    out.writeInt(tiepoints.size());
+    for (GroundOverlay.Tiepoint tiepoint : tiepoints) {
+      out.writeDouble(tiepoint.getGeoPoint().latitude);
+      out.writeDouble(tiepoint.getGeoPoint().longitude);
+      out.writeInt(tiepoint.getImagePoint().x);
+      out.writeInt(tiepoint.getImagePoint().y);
+    }
+  }
+
+  /** Reads a map written by writeGroundOverlay() to a new GroundOverlay. */
+  public static GroundOverlay readGroundOverlay(ByteBuffer in, StringReader strings) {
+    GroundOverlay overlay = new GroundOverlay();
+    overlay.setName(strings.readString(in));
+    overlay.setDescription(strings.readString(in));
+    overlay.setImage(strings.readString(in));
+    overlay.setNorth(in.getFloat());
+    overlay.setSouth(in.getFloat());
+    overlay.setEast(in.getFloat());
+    overlay.setWest(in.getFloat());
+    overlay.setRotateAngle(in.getFloat());
+    if (in.get() != 0) {
+      overlay.setNorthEastCornerLocation(in.getFloat(), in.getFloat());
+      overlay.setSouthEastCornerLocation(in.getFloat(), in.getFloat());
+      overlay.setSouthWestCornerLocation(in.getFloat(), in.getFloat());
+      overlay.setNorthWestCornerLocation(in.getFloat(), in.getFloat());
+    }
+    int tiepointCount = in.getInt();
+    for (int i = 0; i < tiepointCount; i++) {
+      LatLng geoPoint = new LatLng(in.getDouble(), in.getDouble());
+      Point imagePoint = new Point(in.getInt(), in.getInt());
+      overlay.addTiepoint(new GroundOverlay.Tiepoint(geoPoint, imagePoint));
+    }
+    return overlay;
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import com.custommapsapp.android.CustomMaps;
+import com.custommapsapp.android.FileUtil;
+
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CompiledKml caches parsed KML documents in a compact binary form, so that a
+ * map's document is parsed as XML only once. The cached form is a sequence of
+ * the features the parser found, followed by a string table (each distinct
+ * string is stored once) and a style table (IconStyles shared by placemarks
+ * stay shared). Line coordinates are stored as packed doubles and bulk copied
+ * from the memory mapped file.
+ *
+ * A cache file is valid as long as the size and modification time of the
+ * source file, and the CRC of the kml entry of a kmz file, do not change.
+ * Cached documents are replayed to a KmlParser.Visitor exactly as the parser
+ * would pass them.
+ *
+ * @author Marko Teittinen
+ */
+public class CompiledKml {
+  private static final int MAGIC = 0x434d4b43; // "CMKC"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 40;
+  private static final String CACHE_DIR = "kml";
+  private static final String CACHE_SUFFIX = ".kmlc";
+
+  // Record types
+  private static final byte FOLDER_START = 1;
+  private static final byte FOLDER_END = 2;
+  private static final byte GROUND_OVERLAY = 3;
+  private static final byte PLACEMARK = 4;
+
+  private static final LineGeometry.Type[] SHAPE_TYPES = LineGeometry.Type.values();
+  private static final IconStyle.Units[] UNITS = IconStyle.Units.values();
+
+  /**
+   * Passes the features of a KML document to the visitor, reading them from
+   * the cache if it is up to date. Otherwise the document is parsed and the
+   * cache is rewritten. Does file I/O, must not be called on the UI thread.
+   *
+   * @return {@code true} if the document contained a kml tag
+   */
+  public static boolean parse(KmlInfo kmlInfo, KmlParser.Visitor visitor)
+      throws XmlPullParserException, IOException {
+    File cacheFile = getCacheFile(kmlInfo);
+    long[] key = getCacheKey(kmlInfo);
+    try {
+      if (replay(cacheFile, key, visitor)) {
+        return true;
+      }
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Invalid KML cache, parsing file: " + kmlInfo, ex);
+    }
+    // Cache is missing or out of date, parse the whole document for the cache
+    Recorder recorder = new Recorder();
+    Reader in = kmlInfo.getKmlReader();
+    try {
+      if (!new KmlParser().parse(in, recorder)) {
+        return false;
+      }
+    } finally {
+      FileUtil.tryToClose(in);
+    }
+    try {
+      write(cacheFile, key, recorder.records);
+      if (replay(cacheFile, key, visitor)) {
+        return true;
+      }
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to cache KML file: " + kmlInfo, ex);
+    }
+    // Cache could not be written, use the parser directly
+    in = kmlInfo.getKmlReader();
+    try {
+      return new KmlParser().parse(in, visitor);
+    } finally {
+      FileUtil.tryToClose(in);
+    }
+  }
+
+  private static File getCacheFile(KmlInfo kmlInfo) {
+    String key = kmlInfo.getFile().getAbsolutePath();
+    if (kmlInfo instanceof KmzFile) {
+      key += '\n' + ((KmzFile) kmlInfo).getKmlEntryName();
+    } else if (kmlInfo instanceof PackedKml) {
+      key += '\n' + ((PackedKml) kmlInfo).getKmlEntryName();
+    }
+    return new File(FileUtil.getCacheDirectory(CACHE_DIR), FileUtil.md5Hex(key) + CACHE_SUFFIX);
+  }
+
+  /** Returns {size, modification time, entry CRC} identifying the source document. */
+  private static long[] getCacheKey(KmlInfo kmlInfo) {
+    File file = kmlInfo.getFile();
+    long crc = (kmlInfo instanceof KmzFile ? ((KmzFile) kmlInfo).getKmlEntryCrc() : 0);
+    return new long[] { file.length(), file.lastModified(), crc };
+  }
+
+  // --------------------------------------------------------------------------
+  // Recording and writing
+
+  /** Visitor that keeps every feature the parser finds, in order. */
+  private static class Recorder extends KmlParser.Visitor {
+    private static final Object END_OF_FOLDER = new Object();
+
+    final List<Object> records = new ArrayList<>();
+
+    @Override
+    public boolean startFolder(KmlFolder folder) {
+      records.add(folder);
+      return true;
+    }
+
+    @Override
+    public void endFolder(KmlFolder folder) {
+      records.add(END_OF_FOLDER);
+    }
+
+    @Override
+    public boolean visitGroundOverlay(GroundOverlay overlay, KmlFolder folder) {
+      records.add(overlay);
+      return true;
+    }
+
+    @Override
+    public boolean visitPlacemark(Placemark placemark, KmlFolder folder) {
+      records.add(placemark);
+      return true;
+    }
+  }
+
+  /**
+   * Writes the recorded features to the cache file. Records are encoded
+   * first, so that the offset of the string and style tables following them
+   * is known when the header is written.
+   */
+  private static void write(File cacheFile, long[] key, List<Object> records)
+      throws IOException {
+    Map<String, Integer> strings = new LinkedHashMap<>();
+    Map<IconStyle, Integer> styles = new IdentityHashMap<>();
+    List<IconStyle> styleList = new ArrayList<>();
+    BinaryCodec.StringWriter stringIndexes =
+        (out, text) -> out.writeInt(stringIndex(strings, text));
+
+    ByteArrayOutputStream recordsBytes = new ByteArrayOutputStream();
+    DataOutputStream recordsOut = new DataOutputStream(recordsBytes);
+    ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(recordBytes);
+    for (Object item : records) {
+      recordBytes.reset();
+      byte type;
+      if (item instanceof KmlFolder) {
+        type = FOLDER_START;
+        KmlFolder folder = (KmlFolder) item;
+        record.writeInt(stringIndex(strings, folder.getName()));
+        record.writeInt(stringIndex(strings, folder.getDescription()));
+      } else if (item instanceof GroundOverlay) {
+        type = GROUND_OVERLAY;
+        BinaryCodec.writeGroundOverlay(record, (GroundOverlay) item, stringIndexes);
+      } else if (item instanceof Placemark) {
+        type = PLACEMARK;
+        Placemark placemark = (Placemark) item;
+        IconStyle style = placemark.getIconStyle();
+        int styleIndex = -1;
+        if (style != null) {
+          Integer index = styles.get(style);
+          if (index == null) {
+            index = styleList.size();
+            styles.put(style, index);
+            styleList.add(style);
+          }
+          styleIndex = index;
+        }
+        writePlacemark(record, placemark, styleIndex, strings);
+      } else {
+        type = FOLDER_END;
+      }
+      record.flush();
+      recordsOut.writeByte(type);
+      recordsOut.writeInt(recordBytes.size());
+      recordBytes.writeTo(recordsOut);
+    }
+    recordsOut.flush();
+
+    long tablesOffset = HEADER_SIZE + recordsBytes.size();
+    BinaryCodec.writeFile(cacheFile, MAGIC, VERSION, out -> {
+      out.writeLong(key[0]);
+      out.writeLong(key[1]);
+      out.writeLong(key[2]);
+      out.writeLong(tablesOffset);
+      recordsBytes.writeTo(out);
+
+      // Style table adds the icon paths to the string table, so it is written first
+      out.writeInt(styleList.size());
+      for (IconStyle style : styleList) {
+        out.writeInt(stringIndex(strings, style.getIconPath()));
+        out.writeFloat(style.getScale());
+        out.writeFloat(style.getX());
+        out.writeFloat(style.getY());
+        out.writeByte(style.getXUnits().ordinal());
+        out.writeByte(style.getYUnits().ordinal());
+      }
+      out.writeInt(strings.size());
+      for (String text : strings.keySet()) {
+        BinaryCodec.writeString(out, text);
+      }
+    });
+  }
+
+  private static void writePlacemark(DataOutputStream out, Placemark placemark, int styleIndex,
+      Map<String, Integer> strings) throws IOException {
+    out.writeInt(stringIndex(strings, placemark.getName()));
+    out.writeInt(stringIndex(strings, placemark.getDescription()));
+    out.writeInt(stringIndex(strings, placemark.getStyleUrl()));
+    out.writeInt(styleIndex);
+    LatLng point = placemark.getPoint();
+    out.writeBoolean(point != null);
+    if (point != null) {
+      out.writeDouble(point.latitude);
+      out.writeDouble(point.longitude);
+    }
+    List<LineGeometry> shapes = placemark.getShapes();
+    out.writeInt(shapes.size());
+    for (LineGeometry shape : shapes) {
+      out.writeByte(shape.getType().ordinal());
+      out.writeInt(shape.getPointCount());
+      for (int i = 0; i < shape.getPointCount(); i++) {
+        out.writeDouble(shape.getLongitude(i));
+        out.writeDouble(shape.getLatitude(i));
+      }
+    }
+  }
+
+  private static int stringIndex(Map<String, Integer> strings, String text) {
+    if (text == null) {
+      return -1;
+    }
+    Integer index = strings.get(text);
+    if (index == null) {
+      index = strings.size();
+      strings.put(text, index);
+    }
+    return index;
+  }
+
+  // --------------------------------------------------------------------------
+  // Reading
+
+  /**
+   * Replays a cached document to the visitor.
+   *
+   * @return {@code false} if the cache file is missing or out of date
+   */
+  private static boolean replay(File cacheFile, long[] key, KmlParser.Visitor visitor)
+      throws IOException {
+    ByteBuffer in = BinaryCodec.mapFile(cacheFile, MAGIC, VERSION);
+    if (in == null || in.capacity() < HEADER_SIZE) {
+      return false;
+    }
+    try {
+      if (in.getLong() != key[0] || in.getLong() != key[1] || in.getLong() != key[2]) {
+        return false;
+      }
+      int tablesOffset = (int) in.getLong();
+      new Replayer(in, tablesOffset).replay(visitor);
+      return true;
+    } catch (RuntimeException ex) {
+      // Truncated or corrupted file
+      throw new IOException("Invalid KML cache file: " + cacheFile.getName(), ex);
+    }
+  }
+
+  /** Creates features from the records of a mapped cache file. */
+  private static class Replayer {
+    private final ByteBuffer in;
+    private final int recordsEnd;
+    private final String[] strings;
+    private final IconStyle[] styles;
+
+    Replayer(ByteBuffer in, int tablesOffset) {
+      this.in = in;
+      recordsEnd = tablesOffset;
+      in.position(tablesOffset);
+      // Style table refers to strings, so it is resolved after reading them
+      int styleCount = in.getInt();
+      int styleTableOffset = in.position();
+      in.position(styleTableOffset + styleCount * 18);
+      strings = new String[in.getInt()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = BinaryCodec.readString(in);
+      }
+      in.position(styleTableOffset);
+      styles = new IconStyle[styleCount];
+      for (int i = 0; i < styleCount; i++) {
+        IconStyle style = new IconStyle();
+        style.setIconPath(string());
+        style.setScale(in.getFloat());
+        style.setX(in.getFloat());
+        style.setY(in.getFloat());
+        style.setXUnits(UNITS[in.get()]);
+        style.setYUnits(UNITS[in.get()]);
+        styles[i] = style;
+      }
+      in.position(HEADER_SIZE);
+    }
+
+    /** Passes the records to the visitor, honoring skipped folders and stops. */
+    void replay(KmlParser.Visitor visitor) {
+      boolean wantsPlacemarks = visitor.wantsPlacemarks();
+      KmlFolder folder = null;
+      while (in.position() < recordsEnd) {
+        byte type = in.get();
+        int next = in.getInt();
+        next += in.position();
+        boolean stop = false;
+        switch (type) {
+          case FOLDER_START:
+            folder = new KmlFolder();
+            folder.setName(string());
+            folder.setDescription(string());
+            if (!visitor.startFolder(folder)) {
+              next = skipFolder(next);
+              folder = null;
+            }
+            break;
+          case FOLDER_END:
+            visitor.endFolder(folder);
+            folder = null;
+            break;
+          case GROUND_OVERLAY:
+            GroundOverlay overlay = BinaryCodec.readGroundOverlay(in, buffer -> string());
+            stop = !visitor.visitGroundOverlay(overlay, folder);
+            break;
+          case PLACEMARK:
+            if (!wantsPlacemarks) {
+              // Name is the first field of a placemark record
+              visitor.skippedPlacemark(folder, string());
+            } else {
+              stop = !visitor.visitPlacemark(readPlacemark(), folder);
+            }
+            break;
+          default:
+            throw new IllegalStateException("Unknown KML cache record: " + type);
+        }
+        if (stop) {
+          if (folder != null) {
+            visitor.endFolder(folder);
+          }
+          return;
+        }
+        in.position(next);
+      }
+    }
+
+    /** Returns the position after the end of the folder starting at position. */
+    private int skipFolder(int position) {
+      while (in.get(position) != FOLDER_END) {
+        position += 5 + in.getInt(position + 1);
+      }
+      return position + 5 + in.getInt(position + 1);
+    }
+
+    private String string() {
+      int index = in.getInt();
+      return (index >= 0 ? strings[index] : null);
+    }
+
+    private Placemark readPlacemark() {
+      Placemark placemark = new Placemark();
+      placemark.setName(string());
+      placemark.setDescription(string());
+      placemark.setStyleUrl(string());
+      int styleIndex = in.getInt();
+      if (styleIndex >= 0) {
+        placemark.setIconStyle(styles[styleIndex]);
+      }
+      if (in.get() != 0) {
+        placemark.setPoint(in.getDouble(), in.getDouble());
+      }
+      int shapeCount = in.getInt();
+      for (int i = 0; i < shapeCount; i++) {
+        LineGeometry.Type type = SHAPE_TYPES[in.get()];
+        int pointCount = in.getInt();
+        double[] coordinates = new double[2 * pointCount];
+        in.asDoubleBuffer().get(coordinates);
+        in.position(in.position() + 8 * coordinates.length);
+        placemark.addShape(new LineGeometry(type, coordinates, pointCount));
+      }
+      return placemark;
+    }
+  }
+}
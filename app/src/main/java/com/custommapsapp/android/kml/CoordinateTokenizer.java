@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import java.util.Arrays;
+
+/**
+ * CoordinateTokenizer parses KML coordinate tuples (lon,lat[,alt]) from text
+ * into a primitive array of longitude, latitude pairs. Tuples are separated by
+ * whitespace, and values within a tuple by commas (optionally surrounded by
+ * whitespace). Numbers are parsed directly from the characters without
+ * creating intermediate Strings or using regular expressions.
+ *
+ * A tokenizer instance reuses its coordinate buffer between calls, and is not
+ * thread safe.
+ *
+ * @author Marko Teittinen
+ */
+class CoordinateTokenizer {
+  // Exactly representable powers of ten, used for correctly rounded conversion
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  private double[] coordinates = new double[256];
+  private int pointCount;
+  private int invalidCount;
+
+  // Parsing state: text and the position of the next character to read
+  private String text;
+  private int position;
+  private int end;
+
+  /**
+   * Parses all coordinate tuples in the text. Previously parsed coordinates
+   * are discarded. Tuples with less than two values or with invalid numbers
+   * are skipped.
+   *
+   * @return number of coordinate pairs parsed
+   */
+  public int parse(String text) {
+    this.text = text;
+    position = 0;
+    end = text.length();
+    pointCount = 0;
+    invalidCount = 0;
+    while (skipWhitespace()) {
+      parseTuple();
+    }
+    this.text = null;
+    return pointCount;
+  }
+
+  public int getPointCount() {
+    return pointCount;
+  }
+
+  /** Returns the number of tuples that were skipped as invalid. */
+  public int getInvalidCount() {
+    return invalidCount;
+  }
+
+  public double getLongitude(int index) {
+    return coordinates[2 * index];
+  }
+
+  public double getLatitude(int index) {
+    return coordinates[2 * index + 1];
+  }
+
+  /**
+   * Returns a new array containing the parsed longitude, latitude pairs and
+   * nothing else.
+   */
+  public double[] copyCoordinates() {
+    return Arrays.copyOf(coordinates, 2 * pointCount);
+  }
+
+  /**
+   * Parses a single tuple starting at current position, which must not be
+   * whitespace. Leaves position after the tuple.
+   */
+  private void parseTuple() {
+    double longitude = Double.NaN;
+    double latitude = Double.NaN;
+    int valueCount = 0;
+    boolean valid = true;
+    while (true) {
+      double value = parseNumber();
+      if (Double.isNaN(value)) {
+        valid = false;
+      } else if (valueCount == 0) {
+        longitude = value;
+      } else if (valueCount == 1) {
+        latitude = value;
+      }
+      valueCount++;
+      // Value separator is a comma, possibly surrounded by whitespace
+      int afterValue = position;
+      if (skipWhitespace() && text.charAt(position) == ',') {
+        position++;
+        if (!skipWhitespace()) {
+          break;
+        }
+      } else {
+        position = afterValue;
+        break;
+      }
+    }
+    if (!valid || valueCount < 2) {
+      invalidCount++;
+      return;
+    }
+    if (coordinates.length < 2 * pointCount + 2) {
+      coordinates = Arrays.copyOf(coordinates, 2 * coordinates.length);
+    }
+    coordinates[2 * pointCount] = longitude;
+    coordinates[2 * pointCount + 1] = latitude;
+    pointCount++;
+  }
+
+  /**
+   * Parses a decimal number at current position, and leaves position at the
+   * following separator. Returns NaN if the characters do not form a valid
+   * number.
+   */
+  private double parseNumber() {
+    int start = position;
+    boolean negative = false;
+    char ch = text.charAt(position);
+    if (ch == '-' || ch == '+') {
+      negative = (ch == '-');
+      position++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = 0;
+    boolean exact = true;
+    boolean inFraction = false;
+    while (position < end) {
+      ch = text.charAt(position);
+      if (ch >= '0' && ch <= '9') {
+        if (mantissa < MAX_EXACT_MANTISSA / 10) {
+          mantissa = 10 * mantissa + (ch - '0');
+          if (inFraction) {
+            fractionDigits++;
+          }
+        } else {
+          // Too many significant digits for exact conversion
+          exact = false;
+        }
+        digits++;
+      } else if (ch == '.' && !inFraction) {
+        inFraction = true;
+      } else {
+        break;
+      }
+      position++;
+    }
+    if (digits == 0 || !exact || fractionDigits >= POWERS_OF_TEN.length
+        || (position < end && !isSeparator(text.charAt(position)))) {
+      // Exponent, too many digits, or invalid characters
+      return parseSlow(start);
+    }
+    // Both values are exact, so the division gives a correctly rounded result
+    double value = mantissa / POWERS_OF_TEN[fractionDigits];
+    return (negative ? -value : value);
+  }
+
+  /** Parses the number using Double.parseDouble() for rare complex cases. */
+  private double parseSlow(int start) {
+    position = start;
+    skipToSeparator();
+    try {
+      return Double.parseDouble(text.substring(start, position));
+    } catch (NumberFormatException ex) {
+      return Double.NaN;
+    }
+  }
+
+  private void skipToSeparator() {
+    while (position < end && !isSeparator(text.charAt(position))) {
+      position++;
+    }
+  }
+
+  /** Skips whitespace, returns false if the end of text was reached. */
+  private boolean skipWhitespace() {
+    while (position < end && isWhitespace(text.charAt(position))) {
+      position++;
+    }
+    return position < end;
+  }
+
+  private static boolean isSeparator(char ch) {
+    return ch == ',' || isWhitespace(ch);
+  }
+
+  private static boolean isWhitespace(char ch) {
+    return ch == ' ' || ch == '\n' || ch == '\t' || ch == '\r';
+  }
+}
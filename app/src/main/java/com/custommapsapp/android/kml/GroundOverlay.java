@@ -148,6 +148,33 @@ public class GroundOverlay extends KmlFeature {
         southWestCornerLonLat != null && northWestCornerLonLat != null);
   }
 
+  /**
+   * Returns the bounding box of the map area as {west, south, east, north}.
+   * The box of a rotated map contains the circle touching the map corners, so
+   * it covers the map at any rotation angle.
+   */
+  public float[] getBoundingBox() {
+    if (hasCornerTiePoints()) {
+      float[][] corners = { northWestCornerLonLat, northEastCornerLonLat, southEastCornerLonLat,
+          southWestCornerLonLat };
+      float[] bounds = { Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+      for (float[] corner : corners) {
+        bounds[0] = Math.min(bounds[0], corner[0]);
+        bounds[1] = Math.min(bounds[1], corner[1]);
+        bounds[2] = Math.max(bounds[2], corner[0]);
+        bounds[3] = Math.max(bounds[3], corner[1]);
+      }
+      return bounds;
+    }
+    if (rotateAngle == 0) {
+      return new float[] { west, south, east, north };
+    }
+    float centerX = (west + east) / 2;
+    float centerY = (south + north) / 2;
+    float radius = (float) Math.hypot(east - centerX, north - centerY);
+    return new float[] { centerX - radius, centerY - radius, centerX + radius, centerY + radius };
+  }
+
   public float getNorth() {
     return north;
   }
@@ -115,6 +115,7 @@ public class IconStyle extends KmlData {
     iconWidth = (icon != null ? icon.getWidth() : null);
     iconHeight = (icon != null ? icon.getHeight() : null);
     iconOffset = null;
+    iconLoaded = (icon != null);
   }
 
   public float getX() {
@@ -18,11 +18,9 @@ package com.custommapsapp.android.kml;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
 /**
  * KmlFinder scans a directory and finds all kml and kmz files in the directory
@@ -39,12 +37,9 @@ public class KmlFinder {
       if (file.getName().endsWith(".kml")) {
         kmlFiles.add(new KmlFile(file));
       } else if (file.getName().endsWith(".kmz")) {
-        ZipFile kmzFile = new ZipFile(file);
-        Enumeration<? extends ZipEntry> kmzContents = kmzFile.entries();
-        while (kmzContents.hasMoreElements()) {
-          ZipEntry kmzItem = kmzContents.nextElement();
+        for (ZipEntry kmzItem : ZipFilePool.getEntries(file)) {
           if (kmzItem.getName().endsWith(".kml")) {
-            kmlFiles.add(new KmzFile(kmzFile, kmzItem));
+            kmlFiles.add(new KmzFile(file, kmzItem));
           }
         }
       }
@@ -16,8 +16,12 @@
 package com.custommapsapp.android.kml;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -25,12 +29,23 @@ import java.util.List;
  * within a single source directory (folder). Supported KmlFeatures are
  * GroundOverlay and Placemarks.
  *
+ * Placemarks are not serialized with the folder, so that a folder passed in an
+ * Intent or saved instance state stays small. A deserialized folder has its
+ * Placemarks deferred, and they are read again from the kml file with
+ * MapCatalog.loadDeferredPlacemarks().
+ *
  * @author Marko Teittinen
  */
 public class KmlFolder extends KmlFeature {
-  static final long serialVersionUID = 1L;
+  static final long serialVersionUID = 2L;
 
-  private List<KmlFeature> features = new ArrayList<>();
+  private transient List<KmlFeature> features = new ArrayList<>();
+  // Index of the map among all GroundOverlays in the kml file, -1 if not known
+  private int mapIndex = -1;
+  // Set when the folder was read without Placemarks, see setPlacemarksDeferred()
+  private boolean hasDeferredPlacemarks = false;
+  // Names of the skipped Placemarks, used for searching the catalog
+  private transient List<String> deferredPlacemarkNames = null;
 
   /**
    * Adds a GroundOverlay or a Placemark to this folder
@@ -63,6 +78,9 @@ public class KmlFolder extends KmlFeature {
    * @return true, if this folder contains any Placemarks
    */
   public boolean hasPlacemarks() {
+    if (hasDeferredPlacemarks) {
+      return true;
+    }
     for (KmlFeature feature : features) {
       if (feature instanceof Placemark) {
         return true;
@@ -71,6 +89,64 @@ public class KmlFolder extends KmlFeature {
     return false;
   }
 
+  /**
+   * Marks this folder as read without its Placemarks. Placemarks are loaded
+   * only when the map is opened, see MapCatalog.loadDeferredPlacemarks().
+   *
+   * @param mapIndex index of this folder's map among all GroundOverlays in
+   *     the kml file
+   * @param hasPlacemarks true, if placemarks were skipped when reading the map
+   */
+  public void setPlacemarksDeferred(int mapIndex, boolean hasPlacemarks) {
+    this.mapIndex = mapIndex;
+    hasDeferredPlacemarks = hasPlacemarks;
+  }
+
+  /** Clears the deferred placemarks state after placemarks have been loaded. */
+  public void clearPlacemarksDeferred() {
+    hasDeferredPlacemarks = false;
+  }
+
+  /**
+   * @return true, if this folder was read without its Placemarks, and they
+   *     need to be loaded before the map is displayed
+   */
+  public boolean isPlacemarksDeferred() {
+    return hasDeferredPlacemarks;
+  }
+
+  /**
+   * @return index of this folder's map among all GroundOverlays in the kml
+   *     file, or -1 if it is not known
+   */
+  public int getMapIndex() {
+    return mapIndex;
+  }
+
+  public void setMapIndex(int mapIndex) {
+    this.mapIndex = mapIndex;
+  }
+
+  /**
+   * Stores the names of the Placemarks that were skipped when this folder was
+   * read, so that maps can be found by their placemark names before the
+   * placemarks are loaded.
+   *
+   * @param names names of the skipped placemarks, or {@code null} if none
+   */
+  public void setDeferredPlacemarkNames(List<String> names) {
+    deferredPlacemarkNames = (names == null || names.isEmpty() ? null : names);
+  }
+
+  /**
+   * @return names of the Placemarks skipped when this folder was read, empty
+   *     list if there are none
+   */
+  public List<String> getDeferredPlacemarkNames() {
+    return (deferredPlacemarkNames != null ? deferredPlacemarkNames
+        : Collections.<String>emptyList());
+  }
+
   /**
    * @return Iterable over all KmlFeatures stored in this folder
    */
@@ -106,4 +182,28 @@ public class KmlFolder extends KmlFeature {
     return (myName == otherName || (myName != null && myName.equals(otherName))) &&
         (myFileName == otherFileName || (myFileName != null && myFileName.equals(otherFileName)));
   }
+
+  // --------------------------------------------------------------------------
+  // Serializable implementation for KmlFolder
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    boolean hasPlacemarks = hasPlacemarks();
+    out.defaultWriteObject();
+    List<KmlFeature> otherFeatures = new ArrayList<>();
+    for (KmlFeature feature : features) {
+      if (!(feature instanceof Placemark)) {
+        otherFeatures.add(feature);
+      }
+    }
+    out.writeObject(otherFeatures);
+    out.writeBoolean(hasPlacemarks);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    @SuppressWarnings("unchecked")
+    List<KmlFeature> savedFeatures = (List<KmlFeature>) in.readObject();
+    features = savedFeatures;
+    hasDeferredPlacemarks = in.readBoolean();
+  }
 }
@@ -39,9 +39,103 @@ import java.util.Map;
  * interprets only the parts of KML that matter to Custom Maps, and ignores the
  * rest of the file.
  *
+ * Callers can either read the whole document into memory with readFile(), or
+ * receive features one at a time through a {@link Visitor} that can skip
+ * placemarks and folders it does not need, and stop parsing early.
+ *
  * @author Marko Teittinen
  */
 public class KmlParser {
+  /**
+   * Visitor receives KmlFeatures from {@link #parse(Reader, Visitor)} as soon
+   * as they have been parsed. The parser does not keep references to the
+   * features, so a visitor that does not store them can scan arbitrarily large
+   * documents in constant memory.
+   */
+  public abstract static class Visitor {
+    /**
+     * Returns {@code false} if Placemarks (and the Styles they use) should be
+     * skipped without parsing them. Default implementation returns {@code true}.
+     */
+    public boolean wantsPlacemarks() {
+      return true;
+    }
+
+    /**
+     * Called for each Placemark skipped because wantsPlacemarks() returned
+     * {@code false}. Default implementation does nothing.
+     *
+     * @param folder the Folder containing the placemark, or {@code null}
+     * @param name the name of the placemark, or {@code null} if it has none
+     */
+    public void skippedPlacemark(KmlFolder folder, String name) {
+    }
+
+    /**
+     * Called when a Folder's name and description have been read, before any
+     * of its features are visited. Note that the folder's features are not
+     * added to the folder by the parser.
+     *
+     * @return {@code false} to skip the rest of the folder
+     */
+    public boolean startFolder(KmlFolder folder) {
+      return true;
+    }
+
+    /** Called at the end of a Folder for which startFolder() returned true. */
+    public void endFolder(KmlFolder folder) {
+    }
+
+    /**
+     * Called for each GroundOverlay.
+     *
+     * @param folder the Folder containing the overlay, or {@code null}
+     * @return {@code false} to stop parsing the document
+     */
+    public boolean visitGroundOverlay(GroundOverlay overlay, KmlFolder folder) {
+      return true;
+    }
+
+    /**
+     * Called for each Placemark. Placemark icon is resolved if its style was
+     * defined before the placemark, otherwise the icon is set when the Folder
+     * or Document defining the style ends.
+     *
+     * @param folder the Folder containing the placemark, or {@code null}
+     * @return {@code false} to stop parsing the document
+     */
+    public boolean visitPlacemark(Placemark placemark, KmlFolder folder) {
+      return true;
+    }
+  }
+
+  /** Styles defined in a Document or a Folder. */
+  private static class StyleScope {
+    final StyleScope parent;
+    final Map<String, String> styleNameMap = new HashMap<>();
+    final Map<String, IconStyle> iconStyleMap = new HashMap<>();
+    // Placemarks referring to a style that was not defined before them
+    final List<Placemark> unresolved = new ArrayList<>();
+
+    StyleScope(StyleScope parent) {
+      this.parent = parent;
+    }
+
+    IconStyle findIconStyle(String styleId) {
+      IconStyle icon = iconStyleMap.get(styleId);
+      if (icon == null) {
+        // StyleID does not refer directly to one of the icon styles,
+        // try to resolve through styleNameMap
+        String normalId = styleNameMap.get(styleId);
+        icon = (normalId != null ? iconStyleMap.get(normalId) : null);
+      }
+      return icon;
+    }
+  }
+
+  private boolean stopped;
+  private final CoordinateTokenizer coordinateTokenizer = new CoordinateTokenizer();
+
   /**
    * Parses a KML file using the reader and returns an Iterable for found
    * KmlFeatures. KmlFeatures are KmlFolders, GroundOverlays, and Placemarks.
@@ -72,6 +166,45 @@ public class KmlParser {
 
   private Iterable<KmlFeature> parseStream(Reader in)
       throws XmlPullParserException, IOException {
+    final List<KmlFeature> result = new ArrayList<>();
+    boolean foundKml = parse(in, new Visitor() {
+      @Override
+      public boolean startFolder(KmlFolder folder) {
+        result.add(folder);
+        return true;
+      }
+
+      @Override
+      public boolean visitGroundOverlay(GroundOverlay overlay, KmlFolder folder) {
+        addFeature(overlay, folder);
+        return true;
+      }
+
+      @Override
+      public boolean visitPlacemark(Placemark placemark, KmlFolder folder) {
+        addFeature(placemark, folder);
+        return true;
+      }
+
+      private void addFeature(KmlFeature feature, KmlFolder folder) {
+        if (folder != null) {
+          folder.addFeature(feature);
+        } else {
+          result.add(feature);
+        }
+      }
+    });
+    return (foundKml ? result : null);
+  }
+
+  /**
+   * Parses a KML document and passes the features found in it to the visitor
+   * as they are parsed. Parsing ends at the end of the document, or when the
+   * visitor asks it to stop.
+   *
+   * @return {@code true} if the document contained a kml tag
+   */
+  public boolean parse(Reader in, Visitor visitor) throws XmlPullParserException, IOException {
     // Ignore possible leading U+feff char (Byte Order Mark in UTF some files)
     // XmlPullParser should ignore it as whitespace, but actually chokes on it
     BufferedReader inBuf =
@@ -88,172 +221,190 @@ public class KmlParser {
     XmlPullParser xpp = factory.newPullParser();
     xpp.setInput(inBuf);
 
-    Iterable<KmlFeature> result = null;
+    stopped = false;
+    boolean foundKml = false;
     int event = xpp.getEventType();
-    while (event != XmlPullParser.END_DOCUMENT) {
+    while (!stopped && event != XmlPullParser.END_DOCUMENT) {
       if (event == XmlPullParser.START_TAG && xpp.getName().equals("kml")) {
-        result = parseKml(xpp);
+        foundKml = true;
+        parseKml(xpp, visitor);
       }
       event = xpp.next();
     }
-    return result;
+    return foundKml;
   }
 
-  private Iterable<KmlFeature> parseKml(XmlPullParser xpp) throws XmlPullParserException,
+  private void parseKml(XmlPullParser xpp, Visitor visitor) throws XmlPullParserException,
       IOException {
     if (xpp.getEventType() != XmlPullParser.START_TAG || !xpp.getName().equals("kml")) {
       throw new IllegalStateException("XML parser is not at <kml> tag");
     }
-    List<KmlFeature> result = new ArrayList<>();
     int event = xpp.next();
-    while (event != XmlPullParser.END_TAG || !xpp.getName().equals("kml")) {
+    while (!stopped && (event != XmlPullParser.END_TAG || !xpp.getName().equals("kml"))) {
       if (event == XmlPullParser.START_TAG) {
         if (xpp.getName().equals("Document")) {
-          for (KmlFeature item : parseDocument(xpp)) {
-            result.add(item);
-          }
+          parseDocument(xpp, visitor);
         } else if (xpp.getName().equals("Folder")) {
-          result.add(parseFolder(xpp));
+          parseFolder(xpp, visitor, null);
         } else if (xpp.getName().equals("GroundOverlay")) {
-          result.add(parseGroundOverlay(xpp));
+          stopped = !visitor.visitGroundOverlay(parseGroundOverlay(xpp), null);
         } else {
           skipBranch(xpp);
         }
       }
       event = xpp.next();
     }
-    return result;
   }
 
   /**
    * Parses a Document tag in a kml file. Document can contain IconStyles
    * for PlaceMarks and Folders containing GroundOverlays and Placemarks.
-   *
-   * @return Iterable<KmlFeature> containing PlaceMarks and GroundOverlays
    */
-  private Iterable<KmlFeature> parseDocument(XmlPullParser xpp) throws XmlPullParserException,
+  private void parseDocument(XmlPullParser xpp, Visitor visitor) throws XmlPullParserException,
       IOException {
     if (xpp.getEventType() != XmlPullParser.START_TAG || !xpp.getName().equals("Document")) {
       throw new IllegalStateException("XML parser is not at <Document> tag");
     }
-    List<KmlFeature> result = new ArrayList<>();
-    Map<String, String> styleNameMap = new HashMap<>();
-    Map<String, IconStyle> iconStyleMap = new HashMap<>();
+    StyleScope styles = new StyleScope(null);
     int event = xpp.next();
-    while (event != XmlPullParser.END_TAG || !xpp.getName().equals("Document")) {
+    while (!stopped && (event != XmlPullParser.END_TAG || !xpp.getName().equals("Document"))) {
       if (event == XmlPullParser.START_TAG) {
-        if (xpp.getName().equals("StyleMap")) {
-          // Get style map id (key)
-          String styleId = getAttributeValue("id", xpp);
-          // Get style name for normal style (value)
-          String normalId = parseStyleMapNormal(xpp);
-          styleNameMap.put(styleId, normalId);
-        } else if (xpp.getName().equals("Style")) {
-          // Map style id to style defined in tag
-          String styleId = getAttributeValue("id", xpp);
-          IconStyle style = parseStyle(xpp);
-          if (style != null) {
-            iconStyleMap.put(styleId, style);
-          }
-        } else if (xpp.getName().equals("Folder")) {
-          result.add(parseFolder(xpp));
+        if (xpp.getName().equals("Folder")) {
+          parseFolder(xpp, visitor, styles);
         } else if (xpp.getName().equals("GroundOverlay")) {
-          result.add(parseGroundOverlay(xpp));
-        } else if (xpp.getName().equals("Placemark")) {
-          result.add(parsePlacemark(xpp));
-        } else {
+          stopped = !visitor.visitGroundOverlay(parseGroundOverlay(xpp), null);
+        } else if (!parseStyleOrPlacemark(xpp, visitor, styles, null)) {
           skipBranch(xpp);
         }
       }
       event = xpp.next();
     }
-    // Resolve all placemark icons
-    if (!iconStyleMap.isEmpty()) {
-      resolvePlacemarkIcons(result, styleNameMap, iconStyleMap);
-    }
-    return result;
+    endStyleScope(styles);
   }
 
   /**
    * Parses a Folder tag in a kml file. Does not support nested folders.
-   *
-   * @return parsed KmlFolder
    */
-  private KmlFolder parseFolder(XmlPullParser xpp) throws XmlPullParserException, IOException {
+  private void parseFolder(XmlPullParser xpp, Visitor visitor, StyleScope parentStyles)
+      throws XmlPullParserException, IOException {
     if (xpp.getEventType() != XmlPullParser.START_TAG || !xpp.getName().equals("Folder")) {
       throw new IllegalStateException("XML parser is not at <Folder> tag");
     }
     KmlFolder folder = new KmlFolder();
-    Map<String, String> styleNameMap = new HashMap<>();
-    Map<String, IconStyle> iconStyleMap = new HashMap<>();
+    StyleScope styles = new StyleScope(parentStyles);
+    boolean started = false;
     int event = xpp.next();
-    while (event != XmlPullParser.END_TAG || !xpp.getName().equals("Folder")) {
+    while (!stopped && (event != XmlPullParser.END_TAG || !xpp.getName().equals("Folder"))) {
       if (event == XmlPullParser.START_TAG) {
-        if (xpp.getName().equals("name")) {
+        String tag = xpp.getName();
+        if (tag.equals("name")) {
           folder.setName(xpp.nextText());
-        } else if (xpp.getName().equals("description")) {
+        } else if (tag.equals("description")) {
           folder.setDescription(xpp.nextText());
-        } else if (xpp.getName().equals("StyleMap")) {
-          // Map style map ID to normal value in map
-          String styleId = getAttributeValue("id", xpp);
-          String normalId = parseStyleMapNormal(xpp);
-          styleNameMap.put(styleId, normalId);
-        } else if (xpp.getName().equals("Style")) {
-          // Map style id to style defined in tag
-          String styleId = getAttributeValue("id", xpp);
-          IconStyle style = parseStyle(xpp);
-          if (style != null) {
-            iconStyleMap.put(styleId, style);
+        } else if (tag.equals("StyleMap") || tag.equals("Style")) {
+          parseStyleOrPlacemark(xpp, visitor, styles, folder);
+        } else if (tag.equals("GroundOverlay") || tag.equals("Placemark")) {
+          if (!started) {
+            started = true;
+            if (!visitor.startFolder(folder)) {
+              skipRestOfBranch(xpp, "Folder");
+              return;
+            }
+          }
+          if (tag.equals("GroundOverlay")) {
+            stopped = !visitor.visitGroundOverlay(parseGroundOverlay(xpp), folder);
+          } else {
+            parseStyleOrPlacemark(xpp, visitor, styles, folder);
           }
-        } else if (xpp.getName().equals("GroundOverlay")) {
-          folder.addFeature(parseGroundOverlay(xpp));
-        } else if (xpp.getName().equals("Placemark")) {
-          folder.addFeature(parsePlacemark(xpp));
         } else {
           skipBranch(xpp);
         }
       }
       event = xpp.next();
     }
-    // Resolve all placemark icons
-    if (!iconStyleMap.isEmpty()) {
-      resolvePlacemarkIcons(folder.getFeatures(), styleNameMap, iconStyleMap);
+    if (!started && !stopped) {
+      // Empty folder
+      started = visitor.startFolder(folder);
+    }
+    endStyleScope(styles);
+    if (started) {
+      visitor.endFolder(folder);
     }
-    return folder;
   }
 
   /**
-   * Resolves all unresolved placemark icons to their values based on given
-   * style mappings.
+   * Parses a StyleMap, Style, or Placemark tag if the parser is at one.
+   * Placemarks are passed to the visitor, or skipped if the visitor does not
+   * want them.
+   *
+   * @return {@code true} if the tag was handled
    */
-  private void resolvePlacemarkIcons(Iterable<KmlFeature> features,
-                                     Map<String, String> styleNameMap, Map<String, IconStyle> iconStyleMap) {
-    for (KmlFeature feature : features) {
-      // Resolve placemarks in subfolders recursively
-      if (feature instanceof KmlFolder) {
-        KmlFolder folder = (KmlFolder) feature;
-        resolvePlacemarkIcons(folder.getFeatures(), styleNameMap, iconStyleMap);
+  private boolean parseStyleOrPlacemark(XmlPullParser xpp, Visitor visitor, StyleScope styles,
+      KmlFolder folder) throws XmlPullParserException, IOException {
+    String tag = xpp.getName();
+    if (!tag.equals("StyleMap") && !tag.equals("Style") && !tag.equals("Placemark")) {
+      return false;
+    }
+    if (!visitor.wantsPlacemarks()) {
+      if (tag.equals("Placemark")) {
+        visitor.skippedPlacemark(folder, skipPlacemark(xpp));
+      } else {
+        skipBranch(xpp);
       }
-      if (!(feature instanceof Placemark)) {
-        continue;
+    } else if (tag.equals("StyleMap")) {
+      // Map style map ID to normal value in map
+      String styleId = getAttributeValue("id", xpp);
+      String normalId = parseStyleMapNormal(xpp);
+      styles.styleNameMap.put(styleId, normalId);
+    } else if (tag.equals("Style")) {
+      // Map style id to style defined in tag
+      String styleId = getAttributeValue("id", xpp);
+      IconStyle style = parseStyle(xpp);
+      if (style != null) {
+        styles.iconStyleMap.put(styleId, style);
       }
+    } else {
+      Placemark placemark = parsePlacemark(xpp);
+      resolvePlacemarkIcon(placemark, styles);
+      stopped = !visitor.visitPlacemark(placemark, folder);
+    }
+    return true;
+  }
 
-      Placemark placemark = (Placemark) feature;
-      String styleId = placemark.getStyleId();
-      // If icon has not been resolved yet, attempt to resolve it now
-      if (styleId != null && placemark.getIconStyle() == null) {
-        if (!iconStyleMap.containsKey(styleId)) {
-          // StyleID does not refer directly to one of the icon styles,
-          // try to resolve through styleNameMap
-          styleId = styleNameMap.get(styleId);
-          if (styleId == null) {
-            continue;
-          }
-        }
-        IconStyle icon = iconStyleMap.get(styleId);
+  /**
+   * Resolves placemark icon using the styles defined so far. If the style is
+   * not found, the placemark is resolved again at the end of the style scope.
+   */
+  private void resolvePlacemarkIcon(Placemark placemark, StyleScope styles) {
+    String styleId = placemark.getStyleId();
+    if (styleId == null || placemark.getIconStyle() != null) {
+      return;
+    }
+    for (StyleScope scope = styles; scope != null; scope = scope.parent) {
+      IconStyle icon = scope.findIconStyle(styleId);
+      if (icon != null) {
         placemark.setIconStyle(icon);
+        return;
       }
     }
+    styles.unresolved.add(placemark);
+  }
+
+  /**
+   * Resolves placemark icons that refer to styles defined after the
+   * placemarks. Placemarks that remain unresolved are passed to the enclosing
+   * scope.
+   */
+  private void endStyleScope(StyleScope styles) {
+    for (Placemark placemark : styles.unresolved) {
+      IconStyle icon = styles.findIconStyle(placemark.getStyleId());
+      if (icon != null) {
+        placemark.setIconStyle(icon);
+      } else if (styles.parent != null) {
+        styles.parent.unresolved.add(placemark);
+      }
+    }
+    styles.unresolved.clear();
   }
 
   /**
@@ -383,29 +534,53 @@ public class KmlParser {
     Placemark placemark = new Placemark();
     int event = xpp.next();
     boolean isInPoint = false;
+    // Type of the line geometry being parsed, null when not in LineString or LinearRing
+    LineGeometry.Type lineType = null;
+    // Type of the polygon boundary being parsed, null when not in a boundary
+    LineGeometry.Type boundaryType = null;
     while (event != XmlPullParser.END_TAG || !xpp.getName().equals("Placemark")) {
       if (event == XmlPullParser.START_TAG) {
-        if (xpp.getName().equals("name")) {
+        String tag = xpp.getName();
+        if (tag.equals("name")) {
           placemark.setName(xpp.nextText());
-        } else if (xpp.getName().equals("description")) {
+        } else if (tag.equals("description")) {
           placemark.setDescription(xpp.nextText());
-        } else if (xpp.getName().equals("Point")) {
+        } else if (tag.equals("Point")) {
           isInPoint = true;
-        } else if (xpp.getName().equals("coordinates") && isInPoint) {
+        } else if (tag.equals("LineString")) {
+          lineType = LineGeometry.Type.LINE_STRING;
+        } else if (tag.equals("outerBoundaryIs")) {
+          boundaryType = LineGeometry.Type.OUTER_BOUNDARY;
+        } else if (tag.equals("innerBoundaryIs")) {
+          boundaryType = LineGeometry.Type.INNER_BOUNDARY;
+        } else if (tag.equals("LinearRing") && boundaryType != null) {
+          lineType = boundaryType;
+        } else if (tag.equals("MultiGeometry") || tag.equals("Polygon")) {
+          // parse contents within this method, ignore these enclosing tags
+        } else if (tag.equals("coordinates") && isInPoint) {
           // comma separated list: longitude, latitude, altitude (altitude optional)
-          String coordinates = xpp.nextText().trim();
-          String[] values = coordinates.split("\\s*,\\s*");
-          float longitude = Float.parseFloat(values[0]);
-          float latitude = Float.parseFloat(values[1]);
-          placemark.setPoint(latitude, longitude);
-        } else if (xpp.getName().equals("styleUrl")) {
+          if (coordinateTokenizer.parse(xpp.nextText()) > 0) {
+            placemark.setPoint(coordinateTokenizer.getLatitude(0),
+                coordinateTokenizer.getLongitude(0));
+          }
+        } else if (tag.equals("coordinates") && lineType != null) {
+          LineGeometry line = parseLineCoordinates(xpp.nextText(), lineType);
+          if (line.getPointCount() >= 2) {
+            placemark.addShape(line);
+          }
+        } else if (tag.equals("styleUrl")) {
           placemark.setStyleUrl(xpp.nextText().trim());
         } else {
           skipBranch(xpp);
         }
       } else if (event == XmlPullParser.END_TAG) {
-        if (xpp.getName().equals("Point")) {
+        String tag = xpp.getName();
+        if (tag.equals("Point")) {
           isInPoint = false;
+        } else if (tag.equals("LineString") || tag.equals("LinearRing")) {
+          lineType = null;
+        } else if (tag.equals("outerBoundaryIs") || tag.equals("innerBoundaryIs")) {
+          boundaryType = null;
         }
       }
       event = xpp.next();
@@ -413,6 +588,19 @@ public class KmlParser {
     return placemark;
   }
 
+  /**
+   * Parses the contents of a coordinates tag of a LineString or a LinearRing.
+   * Coordinate tuples are separated by whitespace, and their values by commas.
+   * Altitude values are ignored.
+   */
+  private LineGeometry parseLineCoordinates(String text, LineGeometry.Type type) {
+    int count = coordinateTokenizer.parse(text);
+    if (coordinateTokenizer.getInvalidCount() > 0) {
+      Log.w("KmlParser", "Invalid coordinates ignored: " + coordinateTokenizer.getInvalidCount());
+    }
+    return new LineGeometry(type, coordinateTokenizer.copyCoordinates(), count);
+  }
+
   /**
    * Parses a GroundOverlay tag in a kml file. Does not allow nesting.
    *
@@ -505,21 +693,18 @@ public class KmlParser {
       if (event == XmlPullParser.START_TAG) {
         if (xpp.getName().equals("coordinates")) {
           // coordinates tag contains four lon, lat, altitude sets
-          String coordinates = xpp.nextText().trim();
-          String[] fields = coordinates.split("[\\s,]+");
-          float longitude, latitude;
-          longitude = Float.parseFloat(fields[0]);
-          latitude = Float.parseFloat(fields[1]);
-          overlay.setSouthWestCornerLocation(longitude, latitude);
-          longitude = Float.parseFloat(fields[3]);
-          latitude = Float.parseFloat(fields[4]);
-          overlay.setSouthEastCornerLocation(longitude, latitude);
-          longitude = Float.parseFloat(fields[6]);
-          latitude = Float.parseFloat(fields[7]);
-          overlay.setNorthEastCornerLocation(longitude, latitude);
-          longitude = Float.parseFloat(fields[9]);
-          latitude = Float.parseFloat(fields[10]);
-          overlay.setNorthWestCornerLocation(longitude, latitude);
+          CoordinateTokenizer corners = coordinateTokenizer;
+          if (corners.parse(xpp.nextText()) < 4) {
+            throw new IllegalStateException("Error: LatLonQuad requires four coordinates");
+          }
+          overlay.setSouthWestCornerLocation(
+              (float) corners.getLongitude(0), (float) corners.getLatitude(0));
+          overlay.setSouthEastCornerLocation(
+              (float) corners.getLongitude(1), (float) corners.getLatitude(1));
+          overlay.setNorthEastCornerLocation(
+              (float) corners.getLongitude(2), (float) corners.getLatitude(2));
+          overlay.setNorthWestCornerLocation(
+              (float) corners.getLongitude(3), (float) corners.getLatitude(3));
         } else {
           skipBranch(xpp);
         }
@@ -561,21 +746,21 @@ public class KmlParser {
             throw new IllegalStateException("Error: second geo point found for a tiepoint");
           }
           // tie:geo tag contains geo coordinates in lon,lat order
-          String coordinates = xpp.nextText().trim();
-          String[] fields = coordinates.split("[\\s,]+");
-          double longitude = Double.parseDouble(fields[0]);
-          double latitude = Double.parseDouble(fields[1]);
-          geoPoint = new LatLng(latitude, longitude);
+          if (coordinateTokenizer.parse(xpp.nextText()) == 0) {
+            throw new IllegalStateException("Error: invalid geo point for a tiepoint");
+          }
+          geoPoint = new LatLng(coordinateTokenizer.getLatitude(0),
+              coordinateTokenizer.getLongitude(0));
         } else if (xpp.getName().equals("tie:image")) {
           if (imagePoint != null) {
             throw new IllegalStateException("Error: second image point found for a tiepoint");
           }
           // tie:image tag contains image coordinates in x,y order
-          String coordinates = xpp.nextText().trim();
-          String[] fields = coordinates.split("[\\s,]+");
-          int x, y;
-          x = Integer.parseInt(fields[0]);
-          y = Integer.parseInt(fields[1]);
+          if (coordinateTokenizer.parse(xpp.nextText()) == 0) {
+            throw new IllegalStateException("Error: invalid image point for a tiepoint");
+          }
+          int x = (int) Math.round(coordinateTokenizer.getLongitude(0));
+          int y = (int) Math.round(coordinateTokenizer.getLatitude(0));
           imagePoint = new Point(x, y);
         } else {
           skipBranch(xpp);
@@ -619,6 +804,48 @@ public class KmlParser {
     }
   }
 
+  /**
+   * Skips a Placemark without parsing it, reading only its name. Must be
+   * called when the parser is at the Placemark start tag.
+   *
+   * @return the name of the placemark, or {@code null} if it has none
+   */
+  private String skipPlacemark(XmlPullParser xpp) throws XmlPullParserException, IOException {
+    String name = null;
+    int depth = 1;
+    while (depth > 0) {
+      int event = xpp.next();
+      if (event == XmlPullParser.START_TAG) {
+        if (depth == 1 && name == null && xpp.getName().equals("name")) {
+          name = xpp.nextText().trim();
+        } else {
+          depth++;
+        }
+      } else if (event == XmlPullParser.END_TAG) {
+        depth--;
+      }
+    }
+    return name;
+  }
+
+  /**
+   * Skips all parsing events until the end tag of the given enclosing tag.
+   * Unlike skipBranch(), can be called at any point within the branch, as
+   * long as no other tag with the same name is open.
+   */
+  private void skipRestOfBranch(XmlPullParser xpp, String tagName)
+      throws XmlPullParserException, IOException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = xpp.next();
+      if (event == XmlPullParser.START_TAG && xpp.getName().equals(tagName)) {
+        depth++;
+      } else if (event == XmlPullParser.END_TAG && xpp.getName().equals(tagName)) {
+        depth--;
+      }
+    }
+  }
+
   /**
    * Finds value of a named attribute. xpp should be currently at a opening tag.
    *
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import com.custommapsapp.android.CustomMaps;
+import com.custommapsapp.android.FileUtil;
+
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+/**
+ * KmzDocument is a kmz file in a folder the user has opened through the
+ * storage access framework. The catalog reads the kml and thumbnail images
+ * directly from the document, without copying it. Before the map is
+ * displayed, the document is copied to a local file in the cache directory,
+ * so that the image can be memory mapped and decoded in tiles like the images
+ * of other kmz files.
+ *
+ * The local copy is named by the document's uri, size, and modification time,
+ * so a changed document is copied again, and a copy of an unchanged document
+ * is reused. The total size of the copies is limited, and the copies of the
+ * least recently displayed documents are deleted first.
+ *
+ * @author Marko Teittinen
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+public class KmzDocument extends KmzFile {
+  private static final long serialVersionUID = 1L;
+
+  private static final String COPY_DIR = "documents";
+  private static final int MAX_CACHED_DIRECTORIES = 16;
+  private static final long MAX_COPIES_SIZE = 512L * 1024 * 1024;
+  // Marker file next to each copy, its modification time is the last use of the copy
+  private static final String USED_SUFFIX = ".used";
+
+  // Zip directories of recently read documents, by document version
+  private static final Map<String, ZipDirectory> directories =
+      new LinkedHashMap<String, ZipDirectory>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ZipDirectory> eldest) {
+          return size() > MAX_CACHED_DIRECTORIES;
+        }
+      };
+
+  private final String documentUri;
+  private final String documentId;
+  private final long documentSize;
+  private final long documentModified;
+  private transient Map<String, Integer> orientations;
+
+  /**
+   * Creates a KmzDocument for a kml entry of a kmz document.
+   *
+   * @param documentUri document uri in the tree the user has opened
+   * @param documentId document id in the documents provider
+   * @param size size of the document in bytes
+   * @param lastModified modification time of the document
+   * @param kmlEntryName name of the kml entry in the kmz file
+   */
+  public KmzDocument(Uri documentUri, String documentId, long size, long lastModified,
+      String kmlEntryName) {
+    super(getLocalCopy(documentUri.toString(), size, lastModified), kmlEntryName);
+    this.documentUri = documentUri.toString();
+    this.documentId = documentId;
+    this.documentSize = size;
+    this.documentModified = lastModified;
+  }
+
+  public Uri getDocumentUri() {
+    return Uri.parse(documentUri);
+  }
+
+  public String getDocumentId() {
+    return documentId;
+  }
+
+  /**
+   * Finds the kml entries of a kmz document by reading its zip directory.
+   *
+   * @return KmzDocument for each kml entry in the document
+   * @throws IOException if the document cannot be read, or it is not a zip file
+   */
+  public static List<KmzDocument> findKmlEntries(Uri documentUri, String documentId, long size,
+      long lastModified) throws IOException {
+    String uri = documentUri.toString();
+    ZipDirectory directory;
+    ParcelFileDescriptor.AutoCloseInputStream in = openDocument(uri);
+    try {
+      directory = getDirectory(getVersionKey(uri, size, lastModified), in);
+    } finally {
+      FileUtil.tryToClose(in);
+    }
+    List<KmzDocument> kmlEntries = new ArrayList<>();
+    for (String name : directory.getEntries().keySet()) {
+      if (name.endsWith(".kml")) {
+        kmlEntries.add(new KmzDocument(documentUri, documentId, size, lastModified, name));
+      }
+    }
+    return kmlEntries;
+  }
+
+  /**
+   * Returns {@code true} if this is the given version of the document. The
+   * size and modification time change when the document is replaced.
+   */
+  public boolean isVersionOf(String documentId, long size, long lastModified) {
+    return this.documentId.equals(documentId) && documentSize == size
+        && documentModified == lastModified;
+  }
+
+  /** Returns {@code true} if the document has been copied to a local file. */
+  public boolean isCopied() {
+    return getFile().exists();
+  }
+
+  /**
+   * Copies the document to a local file, if it has not been copied yet.
+   * Copies of older versions of the document are deleted, and the copies of
+   * the least recently used documents if the copies take too much space.
+   * This may take a while for large documents, and must not be called in the
+   * UI thread.
+   */
+  public void copyToLocalFile() throws IOException {
+    File localCopy = getFile();
+    // Several maps can be stored in the same document
+    synchronized (KmzDocument.class) {
+      if (localCopy.exists()) {
+        markUsed(localCopy);
+        return;
+      }
+      deleteOtherCopies(localCopy);
+      File tmpFile = new File(localCopy.getPath() + ".tmp");
+      InputStream in = null;
+      OutputStream out = null;
+      try {
+        in = FileUtil.getContentResolver().openInputStream(getDocumentUri());
+        if (in == null) {
+          throw new FileNotFoundException("Cannot open document: " + documentUri);
+        }
+        out = new FileOutputStream(tmpFile);
+        FileUtil.copyContents(in, out);
+        out.close();
+        out = null;
+        if (!tmpFile.renameTo(localCopy)) {
+          throw new IOException("Failed to save copy of document: " + documentUri);
+        }
+      } finally {
+        FileUtil.tryToClose(in);
+        FileUtil.tryToClose(out);
+        tmpFile.delete();
+      }
+      markUsed(localCopy);
+      trimCopies(localCopy);
+    }
+  }
+
+  /**
+   * Deletes the document from the folder it is stored in, and the local copy
+   * of the document.
+   *
+   * @return {@code true} if the document was deleted
+   */
+  public boolean delete() {
+    close();
+    getFile().delete();
+    new File(getFile().getPath() + USED_SUFFIX).delete();
+    try {
+      return DocumentsContract.deleteDocument(FileUtil.getContentResolver(), getDocumentUri());
+    } catch (FileNotFoundException | SecurityException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to delete document: " + documentUri, ex);
+      return false;
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Reading the document until it has been copied
+
+  @Override
+  public long getKmlEntryCrc() {
+    if (isCopied()) {
+      return super.getKmlEntryCrc();
+    }
+    ParcelFileDescriptor.AutoCloseInputStream in = null;
+    try {
+      in = openDocument(documentUri);
+      ZipDirectory.Entry entry = getDirectory(getVersionKey(), in).getEntry(getKmlEntryName());
+      return (entry != null ? entry.crc : -1);
+    } catch (IOException ex) {
+      return -1;
+    } finally {
+      FileUtil.tryToClose(in);
+    }
+  }
+
+  @Override
+  public Reader getKmlReader() throws IOException {
+    if (isCopied()) {
+      return super.getKmlReader();
+    }
+    return new InputStreamReader(openEntry(getKmlEntryName()));
+  }
+
+  @Override
+  public long getImageDate(String path) throws IOException {
+    if (isCopied()) {
+      return super.getImageDate(path);
+    }
+    // Zip entry times are not read from the directory, the document time is close enough
+    return documentModified;
+  }
+
+  @Override
+  public InputStream getImageStream(String path) throws IOException {
+    if (isCopied()) {
+      return super.getImageStream(path);
+    }
+    return openEntry(path);
+  }
+
+  @Override
+  public ByteBuffer getImageBuffer(String path) throws IOException {
+    return (isCopied() ? super.getImageBuffer(path) : null);
+  }
+
+  @Override
+  public int getImageOrientation(String path) {
+    if (isCopied()) {
+      return super.getImageOrientation(path);
+    }
+    if (orientations == null) {
+      orientations = readOrientations();
+    }
+    Integer orientation = orientations.get(path);
+    return (orientation != null ? orientation : 0);
+  }
+
+  @Override
+  public KmzManifest.ImageInfo getImageInfo(String path) {
+    return (isCopied() ? super.getImageInfo(path) : null);
+  }
+
+  private String getVersionKey() {
+    return getVersionKey(documentUri, documentSize, documentModified);
+  }
+
+  private static String getVersionKey(String documentUri, long size, long lastModified) {
+    return documentUri + '\n' + size + '\n' + lastModified;
+  }
+
+  private static ParcelFileDescriptor.AutoCloseInputStream openDocument(String documentUri)
+      throws IOException {
+    ParcelFileDescriptor pfd;
+    try {
+      pfd = FileUtil.getContentResolver().openFileDescriptor(Uri.parse(documentUri), "r");
+    } catch (SecurityException ex) {
+      throw new FileNotFoundException("No access to document: " + documentUri);
+    }
+    if (pfd == null) {
+      throw new FileNotFoundException("Cannot open document: " + documentUri);
+    }
+    return new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+  }
+
+  /** Returns the zip directory of a document version, reading it if it is not cached. */
+  private static ZipDirectory getDirectory(String versionKey, FileInputStream document)
+      throws IOException {
+    synchronized (directories) {
+      ZipDirectory directory = directories.get(versionKey);
+      if (directory != null) {
+        return directory;
+      }
+    }
+    ZipDirectory directory = ZipDirectory.read(document.getChannel());
+    synchronized (directories) {
+      directories.put(versionKey, directory);
+    }
+    return directory;
+  }
+
+  /** Opens an entry of the document. Closing the returned stream closes the document. */
+  private InputStream openEntry(String name) throws IOException {
+    ParcelFileDescriptor.AutoCloseInputStream document = openDocument(documentUri);
+    try {
+      ZipDirectory.Entry entry = getDirectory(getVersionKey(), document).getEntry(name);
+      if (entry == null) {
+        throw new FileNotFoundException("Entry not found in kmz document: " + name);
+      }
+      InputStream in = ZipDirectory.openEntry(document.getChannel(), entry);
+      return new FilterInputStream(in) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            document.close();
+          }
+        }
+      };
+    } catch (IOException | RuntimeException ex) {
+      FileUtil.tryToClose(document);
+      throw ex;
+    }
+  }
+
+  private Map<String, Integer> readOrientations() {
+    Map<String, Integer> values = new HashMap<>();
+    InputStream in = null;
+    try {
+      in = openEntry(MAP_ORIENTATION_PROPERTIES);
+      Properties props = new Properties();
+      props.load(in);
+      for (String name : props.stringPropertyNames()) {
+        try {
+          values.put(name, Integer.parseInt(props.getProperty(name).trim()));
+        } catch (NumberFormatException ex) {
+          Log.w(CustomMaps.LOG_TAG, "Invalid map image orientation for: " + name);
+        }
+      }
+    } catch (FileNotFoundException ex) {
+      // Document has no orientation properties
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to read map image orientations: " + documentUri, ex);
+    } finally {
+      FileUtil.tryToClose(in);
+    }
+    return values;
+  }
+
+  // --------------------------------------------------------------------------
+  // Local copies
+
+  private static File getLocalCopy(String documentUri, long size, long lastModified) {
+    String name = FileUtil.md5Hex(documentUri) + '-' + size + '-' + lastModified + ".kmz";
+    return new File(FileUtil.getCacheDirectory(COPY_DIR), name);
+  }
+
+  /** Deletes the copies of other versions of the same document. */
+  private static void deleteOtherCopies(File localCopy) {
+    String name = localCopy.getName();
+    String prefix = name.substring(0, name.indexOf('-') + 1);
+    File[] copies = localCopy.getParentFile().listFiles();
+    if (copies == null) {
+      return;
+    }
+    for (File copy : copies) {
+      if (copy.getName().startsWith(prefix) && !copy.equals(localCopy)) {
+        ZipFilePool.close(copy);
+        copy.delete();
+      }
+    }
+  }
+
+  /**
+   * Records the use of a copy in its marker file. The modification time of
+   * the copy itself is not changed, because caches of the copy's contents are
+   * validated with it.
+   */
+  private static void markUsed(File localCopy) {
+    File marker = new File(localCopy.getPath() + USED_SUFFIX);
+    try {
+      if (!marker.createNewFile()) {
+        marker.setLastModified(System.currentTimeMillis());
+      }
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to mark document copy used: " + localCopy.getName(), ex);
+    }
+  }
+
+  /**
+   * Deletes the least recently used copies until the copies fit in the size
+   * limit. The given copy is kept even if it is larger than the limit.
+   */
+  private static void trimCopies(File keep) {
+    File[] files = keep.getParentFile().listFiles();
+    if (files == null) {
+      return;
+    }
+    List<File> copies = new ArrayList<>();
+    Map<File, Long> lastUsed = new HashMap<>();
+    long totalSize = 0;
+    for (File file : files) {
+      if (!file.getName().endsWith(".kmz")) {
+        continue;
+      }
+      File marker = new File(file.getPath() + USED_SUFFIX);
+      copies.add(file);
+      lastUsed.put(file, marker.exists() ? marker.lastModified() : file.lastModified());
+      totalSize += file.length();
+    }
+    Collections.sort(copies, (lhs, rhs) -> Long.compare(lastUsed.get(lhs), lastUsed.get(rhs)));
+    for (File copy : copies) {
+      if (totalSize <= MAX_COPIES_SIZE) {
+        break;
+      }
+      if (copy.equals(keep)) {
+        continue;
+      }
+      long size = copy.length();
+      ZipFilePool.close(copy);
+      if (copy.delete()) {
+        new File(copy.getPath() + USED_SUFFIX).delete();
+        totalSize -= size;
+      }
+    }
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "KmzDocument[uri='" + documentUri + "', entry='" + getKmlEntryName() + "']";
+  }
+}
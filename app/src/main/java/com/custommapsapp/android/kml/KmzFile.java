@@ -16,7 +16,6 @@
 package com.custommapsapp.android.kml;
 
 import com.custommapsapp.android.CustomMaps;
-import com.custommapsapp.android.FileUtil;
 
 import android.util.Log;
 
@@ -27,11 +26,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Serializable;
-import java.util.Properties;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import androidx.annotation.NonNull;
 
@@ -47,29 +47,55 @@ public class KmzFile implements KmlInfo, Serializable {
   public static final String MAP_ORIENTATION_PROPERTIES = "map_orientation.properties";
 
   private File file;
-  private ZipFile kmzFile;
   private ZipEntry kmlEntry;
 
-  public KmzFile(ZipFile kmzFile, ZipEntry kmlEntry) {
-    this.file = new File(kmzFile.getName());
-    this.kmzFile = kmzFile;
+  /**
+   * Creates a KmzFile for a kml entry of a kmz file. The kmz file is opened
+   * from ZipFilePool when its contents are accessed.
+   */
+  public KmzFile(File file, ZipEntry kmlEntry) {
+    this.file = file;
     this.kmlEntry = kmlEntry;
   }
 
+  /** Creates a KmzFile for a kml entry known only by its name. */
+  public KmzFile(File file, String kmlEntryName) {
+    this(file, new ZipEntry(kmlEntryName));
+  }
+
   @Override
   public File getFile() {
     return file;
   }
 
+  /** Returns the name of the kml entry in the kmz file. */
+  public String getKmlEntryName() {
+    return kmlEntry.getName();
+  }
+
+  /** Returns the CRC-32 of the kml entry, or -1 if it is not known. */
+  public long getKmlEntryCrc() {
+    // Entry may have been recreated from its name after deserialization
+    if (kmlEntry.getCrc() != -1) {
+      return kmlEntry.getCrc();
+    }
+    try {
+      ZipEntry entry = ZipFilePool.getEntry(file, kmlEntry.getName());
+      return (entry != null ? entry.getCrc() : -1);
+    } catch (IOException ex) {
+      return -1;
+    }
+  }
+
   @Override
   public Reader getKmlReader() throws IOException {
-    InputStream stream = kmzFile.getInputStream(kmlEntry);
+    InputStream stream = ZipFilePool.openEntry(file, kmlEntry.getName());
     return new InputStreamReader(stream);
   }
 
   @Override
   public long getImageDate(String path) throws IOException {
-    ZipEntry zipEntry = kmzFile.getEntry(path);
+    ZipEntry zipEntry = ZipFilePool.getEntry(file, path);
     if (zipEntry == null) {
       throw new FileNotFoundException("Image not found in kmz file");
     }
@@ -78,49 +104,73 @@ public class KmzFile implements KmlInfo, Serializable {
 
   @Override
   public InputStream getImageStream(String path) throws IOException {
-    ZipEntry zipEntry = kmzFile.getEntry(path);
-    if (zipEntry == null) {
-      throw new FileNotFoundException("Image not found in kmz file");
+    ByteBuffer data = getImageBuffer(path);
+    if (data != null) {
+      return new ByteBufferInputStream(data);
+    }
+    return ZipFilePool.openEntry(file, path);
+  }
+
+  /**
+   * Returns the data of an image memory mapped from the kmz file, if the
+   * image is stored without compression. Mapped data is read without copying
+   * it through the zip library, and it can be accessed in any order.
+   *
+   * @return read-only buffer containing the image file, or {@code null} if the
+   *     image is compressed or its location in the kmz file is not known
+   */
+  public ByteBuffer getImageBuffer(String path) throws IOException {
+    KmzManifest.ImageInfo info = getImageInfo(path);
+    if (info == null || info.method != ZipEntry.STORED || info.dataOffset < 0 || info.size <= 0
+        || info.dataOffset + info.size > file.length()) {
+      return null;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+         FileChannel channel = in.getChannel()) {
+      // Mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_ONLY, info.dataOffset, info.size);
     }
-    return kmzFile.getInputStream(zipEntry);
   }
 
   @Override
   public int getImageOrientation(String path) {
-    // Read image orientation from kmz file if available
-    ZipEntry entry = kmzFile.getEntry(MAP_ORIENTATION_PROPERTIES);
-    if (entry == null) {
-      // No properties file present, return no rotation
-      return 0;
-    }
-    InputStream in = null;
+    // Image orientations are read from map_orientation.properties to the manifest
+    KmzManifest manifest = getManifest();
+    return (manifest != null ? manifest.getImageOrientation(path) : 0);
+  }
+
+  /**
+   * Returns the size, type and location of an image in the kmz file, or
+   * {@code null} if it is not known.
+   */
+  public KmzManifest.ImageInfo getImageInfo(String path) {
+    KmzManifest manifest = getManifest();
+    return (manifest != null ? manifest.getImageInfo(path) : null);
+  }
+
+  /** Returns the manifest of the kmz file, or {@code null} if it cannot be read. */
+  private KmzManifest getManifest() {
     try {
-      in = kmzFile.getInputStream(entry);
-      Properties props = new Properties();
-      props.load(in);
-      String value = props.getProperty(path, "0");
-      return Integer.parseInt(value);
-    } catch (Exception ex) {
-      Log.w("Custom Maps", "Failed to read map image orientation for: " + path, ex);
-      // Failed to read file, or value is not a number, return no rotation
-      return 0;
-    } finally {
-      FileUtil.tryToClose(in);
+      return KmzManifest.forFile(file);
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to read kmz file: " + file.getName(), ex);
+      return null;
     }
   }
 
   @NonNull
   @Override
   public String toString() {
-    return "KmzFile[file='" + kmzFile.getName() + ", entry='" + kmlEntry.getName() + "']";
+    return "KmzFile[file='" + file.getPath() + ", entry='" + kmlEntry.getName() + "']";
   }
 
+  /**
+   * Closes the pooled zip file of this kmz file, or marks it to be closed
+   * when it is no longer in use. It is reopened if the contents are accessed
+   * again.
+   */
   public void close() {
-    try {
-      kmzFile.close();
-    } catch (IOException ex) {
-      Log.w(CustomMaps.LOG_TAG, "Failed to close zip file: " + kmzFile.getName(), ex);
-    }
+    ZipFilePool.close(file);
   }
 
   // --------------------------------------------------------------------------
@@ -128,13 +178,14 @@ public class KmzFile implements KmlInfo, Serializable {
 
   private void writeObject(ObjectOutputStream out) throws IOException {
     out.writeUTF(file.getAbsolutePath());
-    out.writeUTF(kmzFile.getName());
+    out.writeUTF(file.getPath());
     out.writeUTF(kmlEntry.getName());
   }
 
   private void readObject(ObjectInputStream in) throws IOException {
     file = new File(in.readUTF());
-    kmzFile = new ZipFile(in.readUTF());
+    // Zip file path is the same as file path, zip file is opened when needed
+    in.readUTF();
     kmlEntry = new ZipEntry(in.readUTF());
   }
 }
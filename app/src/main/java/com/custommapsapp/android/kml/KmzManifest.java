@@ -0,0 +1,295 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import static com.custommapsapp.android.kml.BinaryCodec.readString;
+import static com.custommapsapp.android.kml.BinaryCodec.writeString;
+
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.custommapsapp.android.CustomMaps;
+import com.custommapsapp.android.FileUtil;
+import com.custommapsapp.android.ImageHelper;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+
+/**
+ * KmzManifest holds the information about a kmz file that is needed to
+ * display its maps: the size, type and location of every image in the file,
+ * and the image orientations stored in map_orientation.properties. The
+ * manifest is built once for each version of a kmz file, and kept both in
+ * memory and in the cache directory, so that opening a map and resetting the
+ * display do not need to read the kmz file.
+ *
+ * Image locations are the offsets of the entry data in the kmz file, or -1 if
+ * they could not be determined (for example in zip64 files).
+ *
+ * @author Marko Teittinen
+ */
+public class KmzManifest {
+  private static final String CACHE_DIR = "manifests";
+  private static final int MAGIC = 0x434d4d46; // "CMMF"
+  private static final int VERSION = 2;
+  private static final int MEMORY_CACHE_SIZE = 32;
+  private static final String[] IMAGE_SUFFIXES = {
+      ".jpg", ".jpeg", ".png", ".gif", ".webp", ".bmp" };
+
+  /** Size, type and location of an image in a kmz file. */
+  public static class ImageInfo {
+    public final int width;
+    public final int height;
+    public final String mimeType;
+    /** ZipEntry.STORED or ZipEntry.DEFLATED */
+    public final int method;
+    /** Offset of the entry data in the kmz file, or -1 if not known */
+    public final long dataOffset;
+    public final long compressedSize;
+    public final long size;
+
+    ImageInfo(int width, int height, String mimeType, int method, long dataOffset,
+        long compressedSize, long size) {
+      this.width = width;
+      this.height = height;
+      this.mimeType = mimeType;
+      this.method = method;
+      this.dataOffset = dataOffset;
+      this.compressedSize = compressedSize;
+      this.size = size;
+    }
+  }
+
+  // Recently used manifests by file path, least recently used first
+  private static final Map<String, KmzManifest> memoryCache =
+      new LinkedHashMap<String, KmzManifest>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KmzManifest> eldest) {
+          return size() > MEMORY_CACHE_SIZE;
+        }
+      };
+
+  /**
+   * Returns the manifest of a kmz file, reading or building it if the file
+   * has changed since the manifest was last used.
+   *
+   * @throws IOException if the file cannot be read as a kmz file
+   */
+  public static KmzManifest forFile(File kmzFile) throws IOException {
+    String path = kmzFile.getAbsolutePath();
+    long length = kmzFile.length();
+    long lastModified = kmzFile.lastModified();
+    synchronized (memoryCache) {
+      KmzManifest manifest = memoryCache.get(path);
+      if (manifest != null && manifest.length == length
+          && manifest.lastModified == lastModified) {
+        return manifest;
+      }
+    }
+    File cacheFile = new File(FileUtil.getCacheDirectory(CACHE_DIR), FileUtil.md5Hex(path));
+    KmzManifest manifest = read(cacheFile, path, length, lastModified);
+    if (manifest == null) {
+      manifest = build(kmzFile, length, lastModified);
+      manifest.write(cacheFile, path);
+    }
+    synchronized (memoryCache) {
+      memoryCache.put(path, manifest);
+    }
+    return manifest;
+  }
+
+  // --------------------------------------------------------------------------
+  // Instance variables and methods
+
+  private final long length;
+  private final long lastModified;
+  private final Map<String, ImageInfo> images = new HashMap<>();
+  private final Map<String, Integer> orientations = new HashMap<>();
+
+  private KmzManifest(long length, long lastModified) {
+    this.length = length;
+    this.lastModified = lastModified;
+  }
+
+  /** Returns the information of an image, or {@code null} if there is no such image. */
+  public ImageInfo getImageInfo(String path) {
+    return images.get(path);
+  }
+
+  /** Returns the orientation of an image in degrees, 0 if none is stored. */
+  public int getImageOrientation(String path) {
+    Integer orientation = orientations.get(path);
+    return (orientation != null ? orientation : 0);
+  }
+
+  // --------------------------------------------------------------------------
+  // Building
+
+  private static KmzManifest build(File kmzFile, long length, long lastModified)
+      throws IOException {
+    KmzManifest manifest = new KmzManifest(length, lastModified);
+    Map<String, Long> dataOffsets = readDataOffsets(kmzFile);
+    for (ZipEntry entry : ZipFilePool.getEntries(kmzFile)) {
+      String name = entry.getName();
+      if (name.equals(KmzFile.MAP_ORIENTATION_PROPERTIES)) {
+        manifest.readOrientations(kmzFile);
+      } else if (isImage(name)) {
+        BitmapFactory.Options options;
+        InputStream in = null;
+        try {
+          in = new BufferedInputStream(ZipFilePool.openEntry(kmzFile, name));
+          options = ImageHelper.decodeImageBounds(in);
+        } finally {
+          FileUtil.tryToClose(in);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+          // Not a valid image
+          continue;
+        }
+        Long dataOffset = dataOffsets.get(name);
+        manifest.images.put(name, new ImageInfo(options.outWidth, options.outHeight,
+            options.outMimeType, entry.getMethod(), dataOffset != null ? dataOffset : -1,
+            entry.getCompressedSize(), entry.getSize()));
+      }
+    }
+    return manifest;
+  }
+
+  private static boolean isImage(String name) {
+    String lowerCaseName = name.toLowerCase(Locale.US);
+    for (String suffix : IMAGE_SUFFIXES) {
+      if (lowerCaseName.endsWith(suffix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void readOrientations(File kmzFile) {
+    InputStream in = null;
+    try {
+      in = ZipFilePool.openEntry(kmzFile, KmzFile.MAP_ORIENTATION_PROPERTIES);
+      Properties props = new Properties();
+      props.load(in);
+      for (String name : props.stringPropertyNames()) {
+        try {
+          orientations.put(name, Integer.parseInt(props.getProperty(name).trim()));
+        } catch (NumberFormatException ex) {
+          Log.w(CustomMaps.LOG_TAG, "Invalid map image orientation for: " + name);
+        }
+      }
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to read map image orientations: " + kmzFile, ex);
+    } finally {
+      FileUtil.tryToClose(in);
+    }
+  }
+
+  /**
+   * Finds the offsets of the image data in a zip file from its central
+   * directory and local file headers. Returns an empty map if the file uses
+   * a format that cannot be read directly, such as zip64.
+   */
+  private static Map<String, Long> readDataOffsets(File zipFile) {
+    Map<String, Long> offsets = new HashMap<>();
+    try (RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+         FileChannel channel = file.getChannel()) {
+      for (ZipDirectory.Entry entry : ZipDirectory.read(channel).getEntries().values()) {
+        if (isImage(entry.name)) {
+          long dataOffset = ZipDirectory.getDataOffset(channel, entry);
+          if (dataOffset >= 0) {
+            offsets.put(entry.name, dataOffset);
+          }
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to read zip directory: " + zipFile.getName(), ex);
+      offsets.clear();
+    }
+    return offsets;
+  }
+
+  // --------------------------------------------------------------------------
+  // Cache file
+
+  private static KmzManifest read(File cacheFile, String path, long length, long lastModified) {
+    try {
+      ByteBuffer in = BinaryCodec.readFile(cacheFile, MAGIC, VERSION);
+      if (in == null || !path.equals(readString(in)) || in.getLong() != length
+          || in.getLong() != lastModified) {
+        return null;
+      }
+      KmzManifest manifest = new KmzManifest(length, lastModified);
+      int imageCount = in.getInt();
+      for (int i = 0; i < imageCount; i++) {
+        String name = readString(in);
+        int width = in.getInt();
+        int height = in.getInt();
+        String mimeType = readString(in);
+        manifest.images.put(name, new ImageInfo(width, height, mimeType, in.getInt(),
+            in.getLong(), in.getLong(), in.getLong()));
+      }
+      int orientationCount = in.getInt();
+      for (int i = 0; i < orientationCount; i++) {
+        manifest.orientations.put(readString(in), in.getInt());
+      }
+      return manifest;
+    } catch (IOException | RuntimeException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Invalid kmz manifest cache for: " + path, ex);
+      return null;
+    }
+  }
+
+  private void write(File cacheFile, String path) {
+    try {
+      BinaryCodec.writeFile(cacheFile, MAGIC, VERSION, out -> {
+        writeString(out, path);
+        out.writeLong(length);
+        out.writeLong(lastModified);
+        out.writeInt(images.size());
+        for (Map.Entry<String, ImageInfo> entry : images.entrySet()) {
+          ImageInfo image = entry.getValue();
+          writeString(out, entry.getKey());
+          out.writeInt(image.width);
+          out.writeInt(image.height);
+          writeString(out, image.mimeType);
+          out.writeInt(image.method);
+          out.writeLong(image.dataOffset);
+          out.writeLong(image.compressedSize);
+          out.writeLong(image.size);
+        }
+        out.writeInt(orientations.size());
+        for (Map.Entry<String, Integer> entry : orientations.entrySet()) {
+          writeString(out, entry.getKey());
+          out.writeInt(entry.getValue());
+        }
+      });
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to save kmz manifest for: " + path, ex);
+    }
+  }
+}
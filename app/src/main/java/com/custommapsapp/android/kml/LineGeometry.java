@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import java.io.Serializable;
+
+/**
+ * LineGeometry stores the vertices of a LineString or a Polygon boundary ring
+ * of a Placemark. Coordinates are stored packed in a single array as
+ * longitude, latitude pairs to keep large routes compact.
+ *
+ * @author Marko Teittinen
+ */
+public class LineGeometry implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public enum Type {
+    LINE_STRING,
+    OUTER_BOUNDARY,
+    INNER_BOUNDARY;
+
+    public boolean isPolygon() {
+      return this != LINE_STRING;
+    }
+  }
+
+  private final Type type;
+  private final double[] coordinates;
+
+  /**
+   * Creates a new line geometry.
+   *
+   * @param type of the geometry
+   * @param coordinates longitude, latitude pairs (altitudes removed). The array is
+   *     used as is only if its length is exactly 2 * pointCount, a longer array
+   *     is copied.
+   * @param pointCount number of coordinate pairs in use in the array
+   */
+  public LineGeometry(Type type, double[] coordinates, int pointCount) {
+    this.type = type;
+    if (coordinates.length == 2 * pointCount) {
+      this.coordinates = coordinates;
+    } else {
+      this.coordinates = new double[2 * pointCount];
+      System.arraycopy(coordinates, 0, this.coordinates, 0, 2 * pointCount);
+    }
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public int getPointCount() {
+    return coordinates.length / 2;
+  }
+
+  public double getLongitude(int index) {
+    return coordinates[2 * index];
+  }
+
+  public double getLatitude(int index) {
+    return coordinates[2 * index + 1];
+  }
+
+  /**
+   * Copies the coordinates as longitude, latitude pairs to the given float
+   * array starting at the given offset.
+   */
+  public void copyCoordinates(float[] destination, int offset) {
+    for (int i = 0; i < coordinates.length; i++) {
+      destination[offset + i] = (float) coordinates[i];
+    }
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * MapPack is a single file containing the kml files and images of many maps,
+ * so that a large set of maps can be copied to a device as one file, and
+ * added to the catalog without opening each map. The file starts with an
+ * index of its entries, followed by the catalog information of its maps, and
+ * the uncompressed contents of the entries. The whole file is memory mapped
+ * once, and entries are read from the mapping without copying.
+ *
+ * Entry data is addressed by its SHA-256 hash: entries with identical
+ * contents, like the same base image packed from several kmz files, point to
+ * a single copy of the data. The hash also identifies the image of a map
+ * without reading it, so maps using the same image can share the decoded
+ * bitmap.
+ *
+ * File layout, in big endian byte order:
+ * <pre>
+ *   int    MAGIC
+ *   int    VERSION
+ *   int    entry count
+ *          for each entry:
+ *   string   name, "kmz file name/entry name" for entries of packed kmz files
+ *   long     data offset from the beginning of the file
+ *   long     data length
+ *   int      image orientation in degrees
+ *   byte[32] SHA-256 hash of the data
+ *   int    catalog version
+ *   int    catalog length, followed by the catalog data
+ *   ...    entry data
+ * </pre>
+ * Strings are stored as a length followed by UTF-8 bytes. Several entries can
+ * have the same offset when their data is identical. The catalog data is
+ * created and read by the map catalog, and the pack's kml files are parsed
+ * only if the catalog data is from an incompatible version.
+ *
+ * Files larger than 2 GB are not supported, because they cannot be mapped as
+ * a single buffer.
+ *
+ * @author Marko Teittinen
+ */
+public class MapPack {
+  /** File name suffix of map pack files */
+  public static final String FILE_SUFFIX = ".mappack";
+
+  static final int MAGIC = 0x434d504b; // "CMPK"
+  static final int VERSION = 1;
+  private static final int HASH_LENGTH = 32;
+
+  /** Location of an entry's data in the file. */
+  private static class Entry {
+    final int offset;
+    final int length;
+    final int orientation;
+    final String hash;
+
+    Entry(int offset, int length, int orientation, String hash) {
+      this.offset = offset;
+      this.length = length;
+      this.orientation = orientation;
+      this.hash = hash;
+    }
+  }
+
+  private static final Map<String, MapPack> openPacks = new HashMap<>();
+
+  /**
+   * Returns an open map pack. Packs stay mapped until their file changes, a
+   * mapping does not keep the file open.
+   *
+   * @throws IOException if the file cannot be read, or it is not a map pack
+   */
+  public static MapPack open(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    synchronized (openPacks) {
+      MapPack pack = openPacks.get(key);
+      if (pack != null && pack.length == file.length()
+          && pack.lastModified == file.lastModified()) {
+        return pack;
+      }
+      pack = new MapPack(file);
+      openPacks.put(key, pack);
+      return pack;
+    }
+  }
+
+  /** Forgets an open map pack, typically because the file has been deleted. */
+  public static void close(File file) {
+    synchronized (openPacks) {
+      openPacks.remove(file.getAbsolutePath());
+    }
+  }
+
+  /** Returns {@code true} if the file is named as a map pack. */
+  public static boolean isMapPack(File file) {
+    return file.getName().endsWith(FILE_SUFFIX);
+  }
+
+  private final long length;
+  private final long lastModified;
+  private final ByteBuffer data;
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+  private final int catalogVersion;
+  private final ByteBuffer catalog;
+
+  private MapPack(File file) throws IOException {
+    if (!file.exists()) {
+      throw new FileNotFoundException("Map pack not found: " + file.getName());
+    }
+    length = file.length();
+    lastModified = file.lastModified();
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Map pack is too large: " + file.getName());
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+         FileChannel channel = in.getChannel()) {
+      // Mapping stays valid after the channel is closed
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+    ByteBuffer header = data.duplicate();
+    if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+      throw new IOException("Not a map pack: " + file.getName());
+    }
+    int entryCount = header.getInt();
+    for (int i = 0; i < entryCount; i++) {
+      String name = BinaryCodec.readString(header);
+      long offset = header.getLong();
+      long entryLength = header.getLong();
+      int orientation = header.getInt();
+      byte[] hash = new byte[HASH_LENGTH];
+      header.get(hash);
+      if (offset < 0 || entryLength < 0 || offset + entryLength > length) {
+        throw new IOException("Invalid map pack entry: " + name);
+      }
+      entries.put(name, new Entry((int) offset, (int) entryLength, orientation, toHex(hash)));
+    }
+    catalogVersion = header.getInt();
+    int catalogLength = header.getInt();
+    header.limit(header.position() + catalogLength);
+    catalog = header.slice();
+  }
+
+  /** Returns the names of the kml entries in the pack. */
+  public List<String> getKmlEntryNames() {
+    List<String> names = new ArrayList<>();
+    for (String name : entries.keySet()) {
+      if (name.endsWith(".kml")) {
+        names.add(name);
+      }
+    }
+    return Collections.unmodifiableList(names);
+  }
+
+  /** Returns the version of the map catalog that created the catalog data. */
+  public int getCatalogVersion() {
+    return catalogVersion;
+  }
+
+  /** Returns the catalog data of the maps in the pack, as a read-only buffer. */
+  public ByteBuffer getCatalog() {
+    return catalog.asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the contents of an entry as a read-only buffer.
+   *
+   * @throws FileNotFoundException if there is no such entry in the pack
+   */
+  public ByteBuffer getEntry(String name) throws FileNotFoundException {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      throw new FileNotFoundException("Entry not found in map pack: " + name);
+    }
+    ByteBuffer buffer = data.asReadOnlyBuffer();
+    buffer.limit(entry.offset + entry.length);
+    buffer.position(entry.offset);
+    return buffer.slice();
+  }
+
+  /** Returns the orientation of an image entry in degrees, 0 if none is stored. */
+  public int getOrientation(String name) {
+    Entry entry = entries.get(name);
+    return (entry != null ? entry.orientation : 0);
+  }
+
+  /**
+   * Returns the SHA-256 hash of an entry's data as a hex string, or
+   * {@code null} if there is no such entry.
+   */
+  public String getContentHash(String name) {
+    Entry entry = entries.get(name);
+    return (entry != null ? entry.hash : null);
+  }
+
+  /** Returns the modification time of the pack, used for all its entries. */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  // --------------------------------------------------------------------------
+  // Writing
+
+  /** Name, size, and content hash of an entry to be written to a map pack. */
+  public static class PackEntry {
+    final String name;
+    final long length;
+    final int orientation;
+    final byte[] hash;
+
+    /**
+     * @param name name of the entry in the pack
+     * @param length length of the entry's data
+     * @param orientation image orientation in degrees, 0 if none
+     * @param hash SHA-256 hash of the entry's data
+     */
+    public PackEntry(String name, long length, int orientation, byte[] hash) {
+      if (hash.length != HASH_LENGTH) {
+        throw new IllegalArgumentException("Not a SHA-256 hash");
+      }
+      this.name = name;
+      this.length = length;
+      this.orientation = orientation;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Writes the header of a map pack: the index of the entries, and the
+   * catalog data. Entries with the same hash share a single copy of the data.
+   * The caller must write the data of the returned entries after the header,
+   * in the returned order.
+   *
+   * @param out stream to write the pack to
+   * @param entries names, sizes, and hashes of the entries
+   * @param catalogVersion version of the catalog data
+   * @param catalog catalog information of the maps in the pack
+   * @return entries whose data must be written, the first entry for each hash
+   * @throws IOException if writing fails, or the pack would be too large
+   */
+  public static List<PackEntry> writeHeader(DataOutputStream out, List<PackEntry> entries,
+      int catalogVersion, byte[] catalog) throws IOException {
+    List<byte[]> names = new ArrayList<>();
+    List<PackEntry> stored = new ArrayList<>();
+    Map<String, PackEntry> entriesByHash = new HashMap<>();
+    long headerLength = 12;
+    for (PackEntry entry : entries) {
+      byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+      names.add(name);
+      headerLength += 4 + name.length + 8 + 8 + 4 + HASH_LENGTH;
+      String hash = toHex(entry.hash);
+      PackEntry first = entriesByHash.get(hash);
+      if (first == null) {
+        entriesByHash.put(hash, entry);
+        stored.add(entry);
+      } else if (first.length != entry.length) {
+        throw new IOException("Entries with the same hash have different sizes: " + entry.name);
+      }
+    }
+    headerLength += 8 + catalog.length;
+    Map<String, Long> offsets = new HashMap<>();
+    long offset = headerLength;
+    for (PackEntry entry : stored) {
+      offsets.put(toHex(entry.hash), offset);
+      offset += entry.length;
+    }
+    if (offset > Integer.MAX_VALUE) {
+      throw new IOException("Map pack would be too large");
+    }
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      PackEntry entry = entries.get(i);
+      out.writeInt(names.get(i).length);
+      out.write(names.get(i));
+      out.writeLong(offsets.get(toHex(entry.hash)));
+      out.writeLong(entry.length);
+      out.writeInt(entry.orientation);
+      out.write(entry.hash);
+    }
+    out.writeInt(catalogVersion);
+    out.writeInt(catalog.length);
+    out.write(catalog);
+    return stored;
+  }
+
+  private static String toHex(byte[] hash) {
+    StringBuilder hex = new StringBuilder(2 * hash.length);
+    for (byte b : hash) {
+      hex.append(String.format(Locale.US, "%02x", b & 0xFF));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import androidx.annotation.NonNull;
+
+/**
+ * PackedKml provides access to a kml file stored in a map pack. Images are
+ * looked up relative to the kmz file the kml file was packed from, the same
+ * way as they are in a kmz file.
+ *
+ * @author Marko Teittinen
+ */
+public class PackedKml implements KmlInfo, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final File packFile;
+  private final String kmlEntryName;
+
+  /**
+   * @param packFile map pack file
+   * @param kmlEntryName name of the kml entry in the pack
+   */
+  public PackedKml(File packFile, String kmlEntryName) {
+    this.packFile = packFile;
+    this.kmlEntryName = kmlEntryName;
+  }
+
+  @Override
+  public File getFile() {
+    return packFile;
+  }
+
+  /** Returns the name of the kml entry in the map pack. */
+  public String getKmlEntryName() {
+    return kmlEntryName;
+  }
+
+  @Override
+  public Reader getKmlReader() throws IOException {
+    ByteBuffer data = MapPack.open(packFile).getEntry(kmlEntryName);
+    return new InputStreamReader(new ByteBufferInputStream(data), StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public long getImageDate(String path) throws IOException {
+    MapPack pack = MapPack.open(packFile);
+    // Verify the image exists
+    pack.getEntry(getEntryName(path));
+    return pack.getLastModified();
+  }
+
+  @Override
+  public InputStream getImageStream(String path) throws IOException {
+    return new ByteBufferInputStream(MapPack.open(packFile).getEntry(getEntryName(path)));
+  }
+
+  @Override
+  public int getImageOrientation(String path) {
+    try {
+      return MapPack.open(packFile).getOrientation(getEntryName(path));
+    } catch (IOException ex) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the SHA-256 hash of an image stored in the map pack, or
+   * {@code null} if there is no such image in the pack.
+   */
+  public String getImageHash(String path) throws IOException {
+    return MapPack.open(packFile).getContentHash(getEntryName(path));
+  }
+
+  /** Returns the name of a file of this kml's kmz file in the map pack. */
+  private String getEntryName(String path) {
+    int slash = kmlEntryName.indexOf('/');
+    return (slash >= 0 ? kmlEntryName.substring(0, slash + 1) + path : path);
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "PackedKml[file='" + packFile.getPath() + ", entry='" + kmlEntryName + "']";
+  }
+}
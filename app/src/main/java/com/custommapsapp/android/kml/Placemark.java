@@ -20,18 +20,23 @@ import com.google.android.gms.maps.model.LatLng;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Placemark stores a single location marker for maps.
+ * Placemark stores a single location marker for maps. Placemarks can also
+ * contain lines and polygons.
  *
  * @author Marko Teittinen
  */
 public class Placemark extends KmlFeature {
-  private static final long serialVersionUID = 1L;
+  private static final long serialVersionUID = 2L;
 
   private LatLng point;
   private String styleUrl;
   private IconStyle iconStyle;
+  // Shapes are not serialized, they are read from the kml file when needed
+  private transient List<LineGeometry> shapes = new ArrayList<>();
 
   public LatLng getPoint() {
     return point;
@@ -43,6 +48,17 @@ public class Placemark extends KmlFeature {
     this.point = new LatLng(latitude, longitude);
   }
 
+  /** Returns true if this placemark contains LineStrings or Polygons. */
+  public boolean hasShapes() {
+    return !shapes.isEmpty();
+  }
+  public List<LineGeometry> getShapes() {
+    return shapes;
+  }
+  public void addShape(LineGeometry shape) {
+    shapes.add(shape);
+  }
+
   /** StyleId is the final part of styleUrl (following last #) */
   public String getStyleId() {
     if (styleUrl == null) {
@@ -73,18 +89,24 @@ public class Placemark extends KmlFeature {
 
   private void writeObject(ObjectOutputStream out) throws IOException {
     // No need to write superclass fields, they are done automagically
-    out.writeDouble(point.latitude);
-    out.writeDouble(point.longitude);
-    out.writeUTF(styleUrl);
+    out.writeBoolean(point != null);
+    if (point != null) {
+      out.writeDouble(point.latitude);
+      out.writeDouble(point.longitude);
+    }
+    out.writeObject(styleUrl);
     out.writeObject(iconStyle);
   }
 
   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
     // No need to read superclass fields, they are done automagically
-    double latitude = in.readDouble();
-    double longitude = in.readDouble();
-    point = new LatLng(latitude, longitude);
-    styleUrl = in.readUTF();
+    if (in.readBoolean()) {
+      double latitude = in.readDouble();
+      double longitude = in.readDouble();
+      point = new LatLng(latitude, longitude);
+    }
+    styleUrl = (String) in.readObject();
     iconStyle = (IconStyle) in.readObject();
+    shapes = new ArrayList<>();
   }
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * ZipDirectory reads the central directory of a zip file through a seekable
+ * channel, and opens its entries for reading. Unlike ZipFile, it does not need
+ * a file path, so it can read files opened from content providers. Zip64
+ * files are not supported.
+ *
+ * @author Marko Teittinen
+ */
+class ZipDirectory {
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int DIRECTORY_SIGNATURE = 0x02014b50;
+  private static final int END_OF_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int DIRECTORY_HEADER_SIZE = 46;
+  private static final int END_OF_DIRECTORY_SIZE = 22;
+
+  /** Location and size of an entry in a zip file. */
+  static class Entry {
+    final String name;
+    /** ZipEntry.STORED or ZipEntry.DEFLATED */
+    final int method;
+    final long crc;
+    final long compressedSize;
+    final long size;
+    final long localHeaderOffset;
+
+    Entry(String name, int method, long crc, long compressedSize, long size,
+        long localHeaderOffset) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+
+  private final Map<String, Entry> entries;
+
+  private ZipDirectory(Map<String, Entry> entries) {
+    this.entries = entries;
+  }
+
+  /** Returns the entries of the zip file by name, in directory order. */
+  Map<String, Entry> getEntries() {
+    return entries;
+  }
+
+  /** Returns an entry of the zip file, or {@code null} if there is no such entry. */
+  Entry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  /**
+   * Reads the central directory of a zip file.
+   *
+   * @throws ZipException if the file is not a zip file, or uses zip64
+   */
+  static ZipDirectory read(FileChannel channel) throws IOException {
+    long fileLength = channel.size();
+    // End of central directory record is at the end, followed by at most 64k comment
+    int tailLength = (int) Math.min(fileLength, END_OF_DIRECTORY_SIZE + 0xffff);
+    ByteBuffer tail = readBuffer(channel, fileLength - tailLength, tailLength);
+    int eocd = -1;
+    for (int i = tailLength - END_OF_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_DIRECTORY_SIGNATURE) {
+        eocd = i;
+        break;
+      }
+    }
+    if (eocd < 0) {
+      throw new ZipException("Zip central directory not found");
+    }
+    int entryCount = tail.getShort(eocd + 10) & 0xffff;
+    long directorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+    long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+    if (entryCount == 0xffff || directoryOffset == 0xffffffffL
+        || directoryOffset + directorySize > fileLength) {
+      throw new ZipException("Unsupported zip central directory");
+    }
+    ByteBuffer directory = readBuffer(channel, directoryOffset, (int) directorySize);
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    int pos = 0;
+    for (int i = 0; i < entryCount && pos + DIRECTORY_HEADER_SIZE <= directorySize; i++) {
+      if (directory.getInt(pos) != DIRECTORY_SIGNATURE) {
+        throw new ZipException("Invalid zip central directory");
+      }
+      int method = directory.getShort(pos + 10) & 0xffff;
+      long crc = directory.getInt(pos + 16) & 0xffffffffL;
+      long compressedSize = directory.getInt(pos + 20) & 0xffffffffL;
+      long size = directory.getInt(pos + 24) & 0xffffffffL;
+      int nameLength = directory.getShort(pos + 28) & 0xffff;
+      int extraLength = directory.getShort(pos + 30) & 0xffff;
+      int commentLength = directory.getShort(pos + 32) & 0xffff;
+      long headerOffset = directory.getInt(pos + 42) & 0xffffffffL;
+      byte[] nameBytes = new byte[nameLength];
+      directory.position(pos + DIRECTORY_HEADER_SIZE);
+      directory.get(nameBytes);
+      pos += DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+      String name = new String(nameBytes, StandardCharsets.UTF_8);
+      entries.put(name, new Entry(name, method, crc, compressedSize, size, headerOffset));
+    }
+    return new ZipDirectory(entries);
+  }
+
+  /**
+   * Returns the offset of an entry's data in the zip file, or -1 if it
+   * cannot be determined. The local header of an entry has its own name and
+   * extra field lengths.
+   */
+  static long getDataOffset(FileChannel channel, Entry entry) throws IOException {
+    if (entry.localHeaderOffset == 0xffffffffL
+        || entry.localHeaderOffset + LOCAL_HEADER_SIZE > channel.size()) {
+      return -1;
+    }
+    ByteBuffer header = readBuffer(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      return -1;
+    }
+    int nameLength = header.getShort(26) & 0xffff;
+    int extraLength = header.getShort(28) & 0xffff;
+    return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+  }
+
+  /**
+   * Opens an entry for reading. The returned stream reads the channel at
+   * absolute positions, and does not close the channel.
+   */
+  static InputStream openEntry(FileChannel channel, Entry entry) throws IOException {
+    long dataOffset = getDataOffset(channel, entry);
+    if (dataOffset < 0 || entry.size == 0xffffffffL || entry.compressedSize == 0xffffffffL) {
+      throw new ZipException("Unsupported zip entry: " + entry.name);
+    }
+    InputStream data = new ChannelInputStream(channel, dataOffset, entry.compressedSize);
+    if (entry.method == ZipEntry.STORED) {
+      return data;
+    } else if (entry.method != ZipEntry.DEFLATED) {
+      throw new ZipException("Unsupported compression method in zip entry: " + entry.name);
+    }
+    return new InflaterInputStream(data, new Inflater(true), 8192) {
+      private boolean endOfData = false;
+
+      @Override
+      protected void fill() throws IOException {
+        if (endOfData) {
+          throw new EOFException("Unexpected end of zip entry: " + entry.name);
+        }
+        len = in.read(buf, 0, buf.length);
+        if (len < 0) {
+          // Inflater without zlib header needs an extra byte at the end
+          buf[0] = 0;
+          len = 1;
+          endOfData = true;
+        }
+        inf.setInput(buf, 0, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        super.close();
+        inf.end();
+      }
+    };
+  }
+
+  private static ByteBuffer readBuffer(FileChannel channel, long offset, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new EOFException("Unexpected end of zip file");
+      }
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /** Reads a range of a channel at absolute positions. */
+  private static class ChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+    private long remaining;
+
+    ChannelInputStream(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.position = offset;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return (read(single, 0, 1) < 0 ? -1 : single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (remaining <= 0) {
+        return -1;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, (int) Math.min(length, remaining));
+      int count = channel.read(buffer, position);
+      if (count < 0) {
+        throw new EOFException("Unexpected end of zip file");
+      }
+      position += count;
+      remaining -= count;
+      return count;
+    }
+
+    @Override
+    public long skip(long count) {
+      long skipped = Math.max(0, Math.min(count, remaining));
+      position += skipped;
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+  }
+}
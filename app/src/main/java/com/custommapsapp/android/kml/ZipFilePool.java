@@ -0,0 +1,294 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import android.util.Log;
+
+import com.custommapsapp.android.CustomMaps;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * ZipFilePool keeps a limited number of zip files open for the whole process,
+ * so that kmz files do not need to own open file handles, and the central
+ * directory of a kmz file is not read again every time it is accessed. Files
+ * are keyed by their canonical path.
+ *
+ * Each use of a zip file is counted, and a file is closed only when it is not
+ * in use: when the pool is full and the file is the least recently used one,
+ * when it has not been used for a while, or when the file has been changed
+ * since it was opened. Input streams returned by the pool keep their zip file
+ * in use until they are closed.
+ *
+ * @author Marko Teittinen
+ */
+public class ZipFilePool {
+  private static final int MAX_OPEN_FILES = 8;
+  private static final long IDLE_TIMEOUT_MS = 30000;
+
+  /** An open zip file and its usage information. */
+  private static class Handle {
+    final String key;
+    final ZipFile zipFile;
+    final long length;
+    final long lastModified;
+    int users = 0;
+    long lastUsed;
+
+    Handle(String key, ZipFile zipFile, File file) {
+      this.key = key;
+      this.zipFile = zipFile;
+      this.length = file.length();
+      this.lastModified = file.lastModified();
+    }
+
+    boolean isCurrent(File file) {
+      return length == file.length() && lastModified == file.lastModified();
+    }
+  }
+
+  /** Input stream that releases its zip file when the stream is closed. */
+  private static class PooledInputStream extends FilterInputStream {
+    private Handle handle;
+
+    PooledInputStream(InputStream in, Handle handle) {
+      super(in);
+      this.handle = handle;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        synchronized (ZipFilePool.class) {
+          if (handle != null) {
+            release(handle);
+            handle = null;
+          }
+        }
+      }
+    }
+  }
+
+  // Open files in access order, least recently used first
+  private static final Map<String, Handle> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+  // Files that were changed while in use, closed when no longer used
+  private static final List<Handle> retiredFiles = new ArrayList<>();
+  private static ScheduledExecutorService idleCloser = null;
+  private static boolean idleCheckScheduled = false;
+
+  private ZipFilePool() {
+  }
+
+  /**
+   * Opens an entry of a zip file for reading. The zip file stays open at
+   * least until the returned stream is closed.
+   *
+   * @param file zip file to read
+   * @param entryName name of the entry inside the zip file
+   * @throws FileNotFoundException if the zip file has no such entry
+   */
+  public static synchronized InputStream openEntry(File file, String entryName)
+      throws IOException {
+    Handle handle = acquire(file);
+    try {
+      ZipEntry entry = handle.zipFile.getEntry(entryName);
+      if (entry == null) {
+        throw new FileNotFoundException("Entry not found in zip file: " + entryName);
+      }
+      InputStream in = new PooledInputStream(handle.zipFile.getInputStream(entry), handle);
+      handle = null;
+      return in;
+    } finally {
+      if (handle != null) {
+        release(handle);
+      }
+    }
+  }
+
+  /**
+   * Returns the information of an entry in a zip file, or {@code null} if
+   * there is no such entry.
+   */
+  public static synchronized ZipEntry getEntry(File file, String entryName) throws IOException {
+    Handle handle = acquire(file);
+    try {
+      return handle.zipFile.getEntry(entryName);
+    } finally {
+      release(handle);
+    }
+  }
+
+  /** Returns all entries of a zip file. */
+  public static synchronized List<ZipEntry> getEntries(File file) throws IOException {
+    Handle handle = acquire(file);
+    try {
+      List<ZipEntry> entries = new ArrayList<>();
+      Enumeration<? extends ZipEntry> zipEntries = handle.zipFile.entries();
+      while (zipEntries.hasMoreElements()) {
+        entries.add(zipEntries.nextElement());
+      }
+      return entries;
+    } finally {
+      release(handle);
+    }
+  }
+
+  /**
+   * Closes a zip file if it is open and not in use. Should be called after
+   * the file has been rewritten or deleted.
+   */
+  public static synchronized void close(File file) {
+    Handle handle = openFiles.remove(getKey(file));
+    if (handle != null) {
+      retire(handle);
+    }
+  }
+
+  /** Closes all zip files that are not in use. */
+  public static synchronized void closeAll() {
+    Iterator<Handle> iter = openFiles.values().iterator();
+    while (iter.hasNext()) {
+      Handle handle = iter.next();
+      if (handle.users == 0) {
+        iter.remove();
+        closeZipFile(handle);
+      }
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Pool management, all methods must be called while synchronized
+
+  private static Handle acquire(File file) throws IOException {
+    String key = getKey(file);
+    Handle handle = openFiles.get(key);
+    if (handle != null && !handle.isCurrent(file)) {
+      // File has been replaced, the open zip file shows old contents
+      openFiles.remove(key);
+      retire(handle);
+      handle = null;
+    }
+    if (handle == null) {
+      evictUnused(MAX_OPEN_FILES - 1);
+      handle = new Handle(key, new ZipFile(file), file);
+      openFiles.put(key, handle);
+    }
+    handle.users++;
+    return handle;
+  }
+
+  private static void release(Handle handle) {
+    handle.users--;
+    handle.lastUsed = System.currentTimeMillis();
+    if (handle.users > 0) {
+      return;
+    }
+    if (retiredFiles.remove(handle)) {
+      closeZipFile(handle);
+      return;
+    }
+    evictUnused(MAX_OPEN_FILES);
+    scheduleIdleCheck();
+  }
+
+  /** Closes a file removed from the pool, or when its current users are done. */
+  private static void retire(Handle handle) {
+    if (handle.users == 0) {
+      closeZipFile(handle);
+    } else {
+      retiredFiles.add(handle);
+    }
+  }
+
+  /** Closes least recently used files that are not in use until at most maxOpen remain. */
+  private static void evictUnused(int maxOpen) {
+    Iterator<Handle> iter = openFiles.values().iterator();
+    while (openFiles.size() > maxOpen && iter.hasNext()) {
+      Handle handle = iter.next();
+      if (handle.users == 0) {
+        iter.remove();
+        closeZipFile(handle);
+      }
+    }
+  }
+
+  private static void scheduleIdleCheck() {
+    if (idleCheckScheduled) {
+      return;
+    }
+    if (idleCloser == null) {
+      idleCloser = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "ZipFilePool");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    idleCheckScheduled = true;
+    idleCloser.schedule(ZipFilePool::closeIdleFiles, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private static synchronized void closeIdleFiles() {
+    idleCheckScheduled = false;
+    long idleSince = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+    boolean filesRemain = false;
+    Iterator<Handle> iter = openFiles.values().iterator();
+    while (iter.hasNext()) {
+      Handle handle = iter.next();
+      if (handle.users == 0 && handle.lastUsed <= idleSince) {
+        iter.remove();
+        closeZipFile(handle);
+      } else {
+        filesRemain = true;
+      }
+    }
+    if (filesRemain) {
+      scheduleIdleCheck();
+    }
+  }
+
+  private static void closeZipFile(Handle handle) {
+    try {
+      handle.zipFile.close();
+    } catch (IOException ex) {
+      Log.w(CustomMaps.LOG_TAG, "Failed to close zip file: " + handle.key, ex);
+    }
+  }
+
+  private static String getKey(File file) {
+    try {
+      return file.getCanonicalPath();
+    } catch (IOException ex) {
+      return file.getAbsolutePath();
+    }
+  }
+}
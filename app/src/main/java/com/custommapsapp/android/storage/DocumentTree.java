@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.storage;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * DocumentTree lists the files in a folder the user has granted the app access
+ * to through the storage access framework. All files are listed with a single
+ * query to the documents provider, instead of one query per file, so that
+ * folders with many files on SD cards and shared storage are listed quickly.
+ *
+ * @author Marko Teittinen
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+public class DocumentTree {
+  private static final String[] COLUMNS = {
+      Document.COLUMN_DOCUMENT_ID, Document.COLUMN_DISPLAY_NAME, Document.COLUMN_SIZE,
+      Document.COLUMN_LAST_MODIFIED, Document.COLUMN_MIME_TYPE };
+
+  /** A file in a document tree. */
+  public static class Entry {
+    public final Uri uri;
+    public final String documentId;
+    public final String name;
+    public final long size;
+    public final long lastModified;
+
+    Entry(Uri uri, String documentId, String name, long size, long lastModified) {
+      this.uri = uri;
+      this.documentId = documentId;
+      this.name = name;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private DocumentTree() {
+  }
+
+  /**
+   * Lists the files (not folders) directly in the root folder of a document
+   * tree.
+   *
+   * @param resolver used to query the documents provider
+   * @param treeUri Uri of the tree, as returned by the folder picker
+   * @throws FileNotFoundException if the folder cannot be listed, for example
+   *     because the storage has been removed or the permission revoked
+   */
+  public static List<Entry> listFiles(ContentResolver resolver, Uri treeUri)
+      throws FileNotFoundException {
+    String rootId = DocumentsContract.getTreeDocumentId(treeUri);
+    Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, rootId);
+    List<Entry> files = new ArrayList<>();
+    try (Cursor cursor = resolver.query(childrenUri, COLUMNS, null, null, null)) {
+      if (cursor == null) {
+        throw new FileNotFoundException("Cannot list folder: " + treeUri);
+      }
+      while (cursor.moveToNext()) {
+        if (Document.MIME_TYPE_DIR.equals(cursor.getString(4))) {
+          continue;
+        }
+        String documentId = cursor.getString(0);
+        Uri uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
+        long size = (cursor.isNull(2) ? -1 : cursor.getLong(2));
+        long lastModified = (cursor.isNull(3) ? 0 : cursor.getLong(3));
+        files.add(new Entry(uri, documentId, cursor.getString(1), size, lastModified));
+      }
+    } catch (SecurityException | IllegalArgumentException ex) {
+      FileNotFoundException error = new FileNotFoundException("Cannot list folder: " + treeUri);
+      error.initCause(ex);
+      throw error;
+    }
+    return files;
+  }
+}
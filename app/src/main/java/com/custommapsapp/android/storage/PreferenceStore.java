@@ -16,6 +16,8 @@
 package com.custommapsapp.android.storage;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Set;
 
@@ -47,6 +49,8 @@ public class PreferenceStore {
   public static final String PREFS_SHOW_DISTANCE = "showDistance";
   public static final String PREFS_SHOW_HEADING = "showHeading";
   public static final String PREFS_SHOW_SCALE = "showScale";
+  public static final String PREFS_AUTO_SWITCH_MAP = "autoSwitchMap";
+  public static final String PREFS_RECORD_TRACK = "recordTrack";
   public static final String PREFS_LICENSE_ACCEPTED = "licenseAccepted";
   public static final String PREFS_SHOW_REMINDER = "showReminder";
   public static final String PREFS_LANGUAGE = "language";
@@ -54,6 +58,9 @@ public class PreferenceStore {
   public static final String PREFS_USE_GPU = "useGpu";
   public static final String PREFS_LEGACY_STORAGE = "legacyStorage2";
   public static final String PREFS_MAP_STORAGE_DIR = "mapStorageDir";
+  public static final String PREFS_SYNC_MANIFEST_URL = "syncManifestUrl";
+  public static final String PREFS_SYNCED_FILES = "syncedFiles";
+  public static final String PREFS_LAST_SYNC_TIME = "lastSyncTime";
   public static final String SHARED_PREFS_NAME = "com.custommapsapp.android.prefs";
 
   private static PreferenceStore instance; // singleton
@@ -170,6 +177,14 @@ public class PreferenceStore {
     prefs.edit().putBoolean(PREFS_SHOW_DETAILS, showDetails).apply();
   }
 
+  public boolean isRecordTrack() {
+    return prefs.getBoolean(PREFS_RECORD_TRACK, false);
+  }
+
+  public void setRecordTrack(boolean recordTrack) {
+    prefs.edit().putBoolean(PREFS_RECORD_TRACK, recordTrack).apply();
+  }
+
   public boolean isShowDistance() {
     return prefs.getBoolean(PREFS_SHOW_DISTANCE, false);
   }
@@ -194,6 +209,14 @@ public class PreferenceStore {
     prefs.edit().putBoolean(PREFS_SHOW_SCALE, showScale).apply();
   }
 
+  public boolean isAutoSwitchMap() {
+    return prefs.getBoolean(PREFS_AUTO_SWITCH_MAP, false);
+  }
+
+  public void setAutoSwitchMap(boolean autoSwitchMap) {
+    prefs.edit().putBoolean(PREFS_AUTO_SWITCH_MAP, autoSwitchMap).apply();
+  }
+
   public boolean isUseArgb_8888() {
     boolean defaultValue = getArgb8888Default();
     return prefs.getBoolean(PREFS_USE_ARGB_8888, defaultValue);
@@ -345,6 +368,50 @@ public class PreferenceStore {
     }
   }
 
+  /**
+   * Returns the URL of the manifest listing the maps to be synced from a server, or null if maps
+   * are not synced.
+   */
+  public String getSyncManifestUrl() {
+    String url = prefs.getString(PREFS_SYNC_MANIFEST_URL, null);
+    return (url != null && url.trim().length() > 0 ? url.trim() : null);
+  }
+
+  /**
+   * Sets the URL of the manifest listing the maps to be synced from a server. Use value 'null' to
+   * stop syncing. Changing the URL makes the next sync run without waiting for the sync interval.
+   */
+  public void setSyncManifestUrl(String url) {
+    SharedPreferences.Editor editor = prefs.edit().remove(PREFS_LAST_SYNC_TIME);
+    if (url == null || url.trim().length() == 0) {
+      editor.remove(PREFS_SYNC_MANIFEST_URL);
+    } else {
+      editor.putString(PREFS_SYNC_MANIFEST_URL, url.trim());
+    }
+    editor.apply();
+  }
+
+  /**
+   * Returns the names of the map files that have been downloaded by syncing. Only these files are
+   * deleted when they are removed from the manifest, other maps of the user are never deleted.
+   */
+  public Set<String> getSyncedFiles() {
+    return new HashSet<>(prefs.getStringSet(PREFS_SYNCED_FILES, Collections.emptySet()));
+  }
+
+  public void setSyncedFiles(Set<String> fileNames) {
+    prefs.edit().putStringSet(PREFS_SYNCED_FILES, new HashSet<>(fileNames)).apply();
+  }
+
+  /** Returns the time of the latest completed sync in milliseconds, 0 if maps were never synced. */
+  public long getLastSyncTime() {
+    return prefs.getLong(PREFS_LAST_SYNC_TIME, 0);
+  }
+
+  public void setLastSyncTime(long timeMs) {
+    prefs.edit().putLong(PREFS_LAST_SYNC_TIME, timeMs).apply();
+  }
+
   /**
    * Generates a version specific license acceptance variable name. Basically
    * requires the users to accept software license again after each update.
@@ -28,9 +28,11 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.preference.CheckBoxPreference;
+import androidx.preference.EditTextPreference;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
@@ -55,6 +57,7 @@ import com.custommapsapp.android.language.Linguist;
  * <li> color32bit (bool) - selects if 32 bit color should be used (may limit image size)
  * <li> useGpu (bool) - selects if GPU acceleration is used (limits image size severely)
  * <li> language (string) - allows user to override system language preference
+ * <li> syncManifestUrl (string) - URL of the manifest of maps synced from a server, or empty
  * <li> tutorial (void) - launches tutorial video about Custom Maps
  * </ul>
  *
@@ -138,6 +141,15 @@ public class SettingsFragment extends PreferenceFragmentCompat {
     headingDisplay.setSummaryOff(linguist.getString(R.string.heading_hide));
     root.addPreference(headingDisplay);
 
+    // Switch to another map automatically when user moves off the map
+    CheckBoxPreference autoSwitchMap = new CheckBoxPreference(activity);
+    autoSwitchMap.setDefaultValue(false);
+    autoSwitchMap.setKey(PreferenceStore.PREFS_AUTO_SWITCH_MAP);
+    autoSwitchMap.setTitle(linguist.getString(R.string.auto_switch_map_title));
+    autoSwitchMap.setSummaryOn(linguist.getString(R.string.auto_switch_map_on));
+    autoSwitchMap.setSummaryOff(linguist.getString(R.string.auto_switch_map_off));
+    root.addPreference(autoSwitchMap);
+
     // Display safety reminder when map is changed preference
     CheckBoxPreference safetyReminder = new CheckBoxPreference(activity);
     safetyReminder.setDefaultValue(true);
@@ -173,6 +185,10 @@ public class SettingsFragment extends PreferenceFragmentCompat {
     Preference language = createLanguagePreference(linguist);
     root.addPreference(language);
 
+    // Server that maps are synced from
+    Preference syncUrl = createSyncUrlPreference(linguist);
+    root.addPreference(syncUrl);
+
     // Tutorial link
     Preference tutorial = new Preference(activity);
     tutorial.setTitle(linguist.getString(R.string.watch_tutorial));
@@ -267,6 +283,31 @@ public class SettingsFragment extends PreferenceFragmentCompat {
     return language;
   }
 
+  private EditTextPreference createSyncUrlPreference(Linguist linguist) {
+    EditTextPreference syncUrl = new EditTextPreference(activity);
+    syncUrl.setKey(PreferenceStore.PREFS_SYNC_MANIFEST_URL);
+    syncUrl.setTitle(linguist.getString(R.string.sync_url_title));
+    syncUrl.setDialogTitle(linguist.getString(R.string.sync_url_title));
+    syncUrl.setDialogMessage(linguist.getString(R.string.sync_url_dialog));
+    syncUrl.setSummaryProvider(preference -> {
+      String url = PreferenceStore.instance(activity).getSyncManifestUrl();
+      return (url != null ? url : linguist.getString(R.string.sync_url_none));
+    });
+    syncUrl.setOnPreferenceChangeListener((preference, newValue) -> {
+      String url = ((String) newValue).trim();
+      if (url.length() > 0 && !url.startsWith("http://") && !url.startsWith("https://")) {
+        Toast.makeText(activity, linguist.getString(R.string.sync_url_invalid), Toast.LENGTH_LONG)
+            .show();
+        return false;
+      }
+      // Store the value through PreferenceStore, so that the next sync runs immediately
+      PreferenceStore.instance(activity).setSyncManifestUrl(url);
+      syncUrl.setText(url);
+      return false;
+    });
+    return syncUrl;
+  }
+
   private Preference createImageSizeInfo(Linguist linguist) {
     Preference imageSizeInfo = new Preference(activity);
     imageSizeInfo.setSelectable(false);
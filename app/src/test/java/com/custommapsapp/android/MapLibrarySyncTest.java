@@ -0,0 +1,342 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Syncs a map directory with a manifest served by a local HTTP server, and
+ * verifies which files are downloaded, kept, and deleted.
+ *
+ * @author Marko Teittinen
+ */
+public class MapLibrarySyncTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer server;
+  private URL manifestUrl;
+  // Contents served by path, and the entries of the manifest
+  private final Map<String, byte[]> served = Collections.synchronizedMap(new LinkedHashMap<>());
+  private final List<String> manifestEntries = new ArrayList<>();
+  private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+  private volatile Runnable duringDownload = null;
+
+  private File mapDir;
+  private File tmpDir;
+  private ContentHashIndex hashIndex;
+  private Set<String> syncedFiles = new HashSet<>();
+
+  @Before
+  public void setUp() throws IOException {
+    mapDir = folder.newFolder("maps");
+    tmpDir = folder.newFolder("sync");
+    hashIndex = new ContentHashIndex(mapDir, new File(folder.getRoot(), "maps.hashes"));
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.start();
+    manifestUrl = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(),
+        server.getAddress().getPort(), "/library/manifest.json");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void downloadsNewFile() throws Exception {
+    byte[] lake = content("lake v1");
+    serve("lake.kmz", lake);
+
+    MapLibrarySync.Result result = sync();
+
+    assertEquals(1, result.downloaded);
+    assertEquals(0, result.failed);
+    assertArrayEquals(lake, read("lake.kmz"));
+    assertEquals(set("lake.kmz"), syncedFiles);
+    assertEquals(set("lake.kmz"), hashIndex.getFileHashes().keySet());
+  }
+
+  @Test
+  public void downloadsChangedFileAndSkipsUnchangedFile() throws Exception {
+    writeMap("lake.kmz", content("lake v1"));
+    writeMap("hill.kmz", content("hill v1"));
+    syncedFiles.add("lake.kmz");
+    syncedFiles.add("hill.kmz");
+    byte[] lake = content("lake v2");
+    serve("lake.kmz", lake);
+    serve("hill.kmz", content("hill v1"));
+
+    MapLibrarySync.Result result = sync();
+
+    assertEquals(1, result.downloaded);
+    assertEquals(0, result.failed);
+    assertArrayEquals(lake, read("lake.kmz"));
+    assertFalse(requests.contains("/library/hill.kmz"));
+    assertEquals(set("lake.kmz", "hill.kmz"), syncedFiles);
+  }
+
+  @Test
+  public void keepsOldFileIfHashDoesNotMatch() throws Exception {
+    byte[] old = content("lake v1");
+    writeMap("lake.kmz", old);
+    syncedFiles.add("lake.kmz");
+    byte[] lake = content("lake v2");
+    // Same size, but the server sends different contents
+    serve("lake.kmz", lake, lake.length, ContentHashIndex.toHex(md5(content("lake v3"))));
+
+    MapLibrarySync.Result result = sync();
+
+    assertEquals(0, result.downloaded);
+    assertEquals(1, result.failed);
+    assertArrayEquals(old, read("lake.kmz"));
+    assertEquals(0, tmpDir.list().length);
+  }
+
+  @Test
+  public void keepsOldFileIfSizeDoesNotMatch() throws Exception {
+    byte[] old = content("lake v1");
+    writeMap("lake.kmz", old);
+    syncedFiles.add("lake.kmz");
+    byte[] lake = content("lake v2");
+    serve("lake.kmz", lake, lake.length + 1, ContentHashIndex.toHex(md5(lake)));
+
+    MapLibrarySync.Result result = sync();
+
+    assertEquals(1, result.failed);
+    assertArrayEquals(old, read("lake.kmz"));
+    assertEquals(0, tmpDir.list().length);
+  }
+
+  @Test
+  public void deletesFilesRemovedFromManifest() throws Exception {
+    writeMap("lake.kmz", content("lake v1"));
+    writeMap("hill.kmz", content("hill v1"));
+    syncedFiles.add("lake.kmz");
+    syncedFiles.add("hill.kmz");
+    serve("lake.kmz", content("lake v1"));
+
+    MapLibrarySync.Result result = sync();
+
+    assertEquals(0, result.downloaded);
+    assertEquals(1, result.deleted);
+    assertFalse(new File(mapDir, "hill.kmz").exists());
+    assertTrue(new File(mapDir, "lake.kmz").exists());
+    assertEquals(set("lake.kmz"), syncedFiles);
+  }
+
+  @Test
+  public void neverReplacesOrDeletesFilesAddedByUser() throws Exception {
+    byte[] userLake = content("user's lake");
+    byte[] userHill = content("user's hill");
+    writeMap("lake.kmz", userLake);
+    writeMap("hill.kmz", userHill);
+    serve("lake.kmz", content("lake v1"));
+
+    MapLibrarySync.Result result = sync();
+
+    assertEquals(0, result.downloaded);
+    assertEquals(0, result.deleted);
+    assertEquals(1, result.failed);
+    assertArrayEquals(userLake, read("lake.kmz"));
+    assertArrayEquals(userHill, read("hill.kmz"));
+    assertFalse(requests.contains("/library/lake.kmz"));
+    assertTrue(syncedFiles.isEmpty());
+  }
+
+  @Test
+  public void keepsIdenticalFileAddedByUserUnmanaged() throws Exception {
+    byte[] lake = content("lake v1");
+    writeMap("lake.kmz", lake);
+    serve("lake.kmz", lake);
+
+    MapLibrarySync.Result result = sync();
+
+    assertEquals(0, result.downloaded);
+    assertEquals(0, result.failed);
+    assertFalse(requests.contains("/library/lake.kmz"));
+    assertTrue(syncedFiles.isEmpty());
+  }
+
+  @Test
+  public void keepsIdenticalFileAddedByUserWhenRemovedFromManifest() throws Exception {
+    byte[] lake = content("lake v1");
+    writeMap("lake.kmz", lake);
+    serve("lake.kmz", lake);
+    sync();
+
+    manifestEntries.clear();
+    MapLibrarySync.Result result = sync();
+
+    assertEquals(0, result.deleted);
+    assertArrayEquals(lake, read("lake.kmz"));
+  }
+
+  @Test
+  public void writesDownloadsOutsideMapDirectory() throws Exception {
+    serve("lake.kmz", content("lake v1"));
+    List<String> mapDirDuringDownload = new ArrayList<>();
+    List<String> tmpDirDuringDownload = new ArrayList<>();
+    duringDownload = () -> {
+      // Wait until the client has created its temporary file
+      long timeout = System.currentTimeMillis() + 5000;
+      while (tmpDir.list().length == 0 && System.currentTimeMillis() < timeout) {
+        Thread.yield();
+      }
+      mapDirDuringDownload.addAll(Arrays.asList(mapDir.list()));
+      tmpDirDuringDownload.addAll(Arrays.asList(tmpDir.list()));
+    };
+
+    sync();
+
+    assertTrue(mapDirDuringDownload.isEmpty());
+    assertEquals(1, tmpDirDuringDownload.size());
+    assertEquals(Arrays.asList("lake.kmz"), Arrays.asList(mapDir.list()));
+    assertEquals(0, tmpDir.list().length);
+  }
+
+  @Test
+  public void deletesLeftoverDownloads() throws Exception {
+    File leftover = new File(tmpDir, "lake.kmz123.sync");
+    Files.write(leftover.toPath(), content("partial"));
+
+    sync();
+
+    assertFalse(leftover.exists());
+  }
+
+  @Test
+  public void ignoresInvalidManifestPaths() throws Exception {
+    serve("lake.kmz", content("lake v1"));
+    serve("notes.txt", content("not a map"));
+    serve(".hidden.kmz", content("hidden"));
+    serve("lake%20map.kmz", content("lake map"));
+
+    MapLibrarySync.Result result = sync();
+
+    assertEquals(2, result.downloaded);
+    assertEquals(set("lake.kmz", "lake map.kmz"), new HashSet<>(Arrays.asList(mapDir.list())));
+  }
+
+  // --------------------------------------------------------------------------
+  // Helpers
+
+  private MapLibrarySync.Result sync() throws Exception {
+    MapLibrarySync sync = new MapLibrarySync(manifestUrl, hashIndex, tmpDir, syncedFiles);
+    MapLibrarySync.Result result = sync.run();
+    syncedFiles = sync.getSyncedFiles();
+    return result;
+  }
+
+  private void serve(String path, byte[] data) throws IOException {
+    serve(path, data, data.length, ContentHashIndex.toHex(md5(data)));
+  }
+
+  /** Serves data, and lists it in the manifest with the given size and hash. */
+  private void serve(String path, byte[] data, long size, String hash) {
+    served.put("/library/" + path, data);
+    manifestEntries.add(String.format("{ \"path\": \"%s\", \"size\": %d, \"hash\": \"%s\" }",
+        path, size, hash));
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getRawPath();
+    requests.add(path);
+    byte[] data;
+    if (path.equals(manifestUrl.getPath())) {
+      data = ("{ \"files\": [" + String.join(",", manifestEntries) + "] }")
+          .getBytes(StandardCharsets.UTF_8);
+    } else {
+      data = served.get(path);
+    }
+    if (data == null) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+    exchange.sendResponseHeaders(200, data.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      Runnable hook = (path.equals(manifestUrl.getPath()) ? null : duringDownload);
+      if (hook != null) {
+        out.write(data, 0, data.length / 2);
+        out.flush();
+        hook.run();
+        out.write(data, data.length / 2, data.length - data.length / 2);
+      } else {
+        out.write(data);
+      }
+    }
+  }
+
+  private void writeMap(String name, byte[] data) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(new File(mapDir, name))) {
+      out.write(data);
+    }
+  }
+
+  private byte[] read(String name) throws IOException {
+    return Files.readAllBytes(new File(mapDir, name).toPath());
+  }
+
+  /** Returns map file "contents" that are different for each label. */
+  private static byte[] content(String label) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append(label).append(' ').append(i).append('\n');
+    }
+    return text.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] md5(byte[] data) throws IOException {
+    return ContentHashIndex.computeHash(new ByteArrayInputStream(data));
+  }
+
+  private static Set<String> set(String... names) {
+    return new HashSet<>(Arrays.asList(names));
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.custommapsapp.android.kml.GroundOverlay;
+import com.custommapsapp.android.kml.KmlFolder;
+import com.custommapsapp.android.kml.KmlInfo;
+import com.custommapsapp.android.kml.MapPack;
+import com.custommapsapp.android.kml.PackedKml;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs kmz files with MapPackWriter, and verifies the maps and their images
+ * can be read back from the pack the same way the map catalog reads them.
+ *
+ * @author Marko Teittinen
+ */
+public class MapPackWriterTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final byte[] lakeImage = createImage(1);
+  private final byte[] hillImage = createImage(2);
+  private final byte[] iconImage = createImage(3);
+
+  @Test
+  public void readsMapsAndImagesBackFromPack() throws IOException {
+    File lakeKmz = createKmz("lake.kmz", "Lake", "lake.jpg", lakeImage);
+    File hillKmz = createKmz("hill.kmz", "Hill", "images/hill.jpg", hillImage);
+    File packFile = new File(folder.getRoot(), "maps" + MapPack.FILE_SUFFIX);
+
+    MapPackWriter.write(Arrays.asList(lakeKmz, hillKmz), packFile);
+
+    MapPack pack = MapPack.open(packFile);
+    assertEquals(Arrays.asList("lake.kmz/doc.kml", "hill.kmz/doc.kml"),
+        pack.getKmlEntryNames());
+    assertEquals(CatalogIndex.VERSION, pack.getCatalogVersion());
+    List<KmlFolder> maps = CatalogIndex.decodeMaps(
+        entryName -> CatalogIndex.createKmlInfo(packFile, entryName), pack.getCatalog());
+    assertEquals(2, maps.size());
+
+    Map<String, byte[]> expectedImages = new HashMap<>();
+    expectedImages.put("Lake", lakeImage);
+    expectedImages.put("Hill", hillImage);
+    for (KmlFolder map : maps) {
+      GroundOverlay overlay = map.getFirstMap();
+      byte[] expected = expectedImages.remove(overlay.getName());
+      assertNotNull("Unexpected map: " + overlay.getName(), expected);
+      assertEquals(47.5f, overlay.getNorth(), 0);
+      assertEquals(-122.5f, overlay.getWest(), 0);
+      KmlInfo kmlInfo = map.getKmlInfo();
+      assertTrue(kmlInfo instanceof PackedKml);
+      assertEquals(packFile, kmlInfo.getFile());
+      assertArrayEquals(expected, readImage(kmlInfo, overlay.getImage()));
+    }
+    assertTrue(expectedImages.isEmpty());
+  }
+
+  @Test
+  public void storesIdenticalEntriesOnce() throws IOException {
+    File lakeKmz = createKmz("lake.kmz", "Lake", "lake.jpg", lakeImage);
+    File hillKmz = createKmz("hill.kmz", "Hill", "hill.jpg", hillImage);
+    File packFile = new File(folder.getRoot(), "maps" + MapPack.FILE_SUFFIX);
+
+    MapPackWriter.write(Arrays.asList(lakeKmz, hillKmz), packFile);
+
+    // Both kmz files contain the same icon
+    MapPack pack = MapPack.open(packFile);
+    String iconHash = pack.getContentHash("lake.kmz/icon.png");
+    assertNotNull(iconHash);
+    assertEquals(iconHash, pack.getContentHash("hill.kmz/icon.png"));
+    assertFalse(iconHash.equals(pack.getContentHash("lake.kmz/lake.jpg")));
+    assertArrayEquals(iconImage, toArray(pack.getEntry("hill.kmz/icon.png")));
+    assertTrue(packFile.length() < lakeImage.length + hillImage.length + 2 * iconImage.length);
+  }
+
+  @Test
+  public void rejectsDuplicateKmzNames() throws IOException {
+    File lakeKmz = createKmz("lake.kmz", "Lake", "lake.jpg", lakeImage);
+    File otherDir = folder.newFolder("other");
+    File otherKmz = createKmz(new File(otherDir, "lake.kmz"), "Hill", "hill.jpg", hillImage);
+    File packFile = new File(folder.getRoot(), "maps" + MapPack.FILE_SUFFIX);
+    try {
+      MapPackWriter.write(Arrays.asList(lakeKmz, otherKmz), packFile);
+      fail("Duplicate kmz names were packed");
+    } catch (IOException expected) {
+      // expected
+    }
+    assertFalse(packFile.exists());
+    // No temporary files are left behind
+    assertEquals(Arrays.asList("lake.kmz", "other"), sortedNames(folder.getRoot()));
+  }
+
+  // --------------------------------------------------------------------------
+  // Helpers
+
+  private File createKmz(String name, String mapName, String imagePath, byte[] image)
+      throws IOException {
+    return createKmz(new File(folder.getRoot(), name), mapName, imagePath, image);
+  }
+
+  private File createKmz(File kmzFile, String mapName, String imagePath, byte[] image)
+      throws IOException {
+    String kml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n"
+        + "<Folder>\n"
+        + "  <name>" + mapName + "</name>\n"
+        + "  <GroundOverlay>\n"
+        + "    <name>" + mapName + "</name>\n"
+        + "    <Icon><href>" + imagePath + "</href></Icon>\n"
+        + "    <LatLonBox>\n"
+        + "      <north>47.5</north><south>47.25</south>\n"
+        + "      <east>-122.25</east><west>-122.5</west>\n"
+        + "    </LatLonBox>\n"
+        + "  </GroundOverlay>\n"
+        + "</Folder>\n"
+        + "</kml>\n";
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(kmzFile))) {
+      out.putNextEntry(new ZipEntry("doc.kml"));
+      out.write(kml.getBytes(StandardCharsets.UTF_8));
+      out.putNextEntry(new ZipEntry(imagePath));
+      out.write(image);
+      out.putNextEntry(new ZipEntry("icon.png"));
+      out.write(iconImage);
+    }
+    return kmzFile;
+  }
+
+  /** Creates "image" data that is different for each seed. */
+  private static byte[] createImage(int seed) {
+    byte[] image = new byte[5000 + 1000 * seed];
+    for (int i = 0; i < image.length; i++) {
+      image[i] = (byte) (seed * 31 + i * seed);
+    }
+    return image;
+  }
+
+  private static byte[] readImage(KmlInfo kmlInfo, String path) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream in = kmlInfo.getImageStream(path)) {
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        bytes.write(buffer, 0, count);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    return data;
+  }
+
+  private static List<String> sortedNames(File dir) {
+    String[] names = dir.list();
+    Arrays.sort(names);
+    return Arrays.asList(names);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Verifies CoordinateTokenizer produces the same coordinates as the regex
+ * split based parser KmlParser used before it.
+ *
+ * @author Marko Teittinen
+ */
+public class CoordinateTokenizerTest {
+  private final CoordinateTokenizer tokenizer = new CoordinateTokenizer();
+
+  @Test
+  public void parsesTuplesWithAltitude() {
+    assertSameAsSplitParser("-122.084,37.422,0 -122.085,37.423,12.5 -122.086,37.424,-3");
+  }
+
+  @Test
+  public void parsesTuplesWithoutAltitude() {
+    assertSameAsSplitParser("-122.084,37.422 -122.085,37.423");
+    assertSameAsSplitParser("-122.084,37.422,10 -122.085,37.423 -122.086,37.424,20");
+  }
+
+  @Test
+  public void ignoresSurroundingAndRepeatedWhitespace() {
+    assertSameAsSplitParser("  \n\t-122.084,37.422,0\n    -122.085,37.423,0  \n");
+    assertSameAsSplitParser("-122.084,37.422,0\r\n\t\t-122.085,37.423,0\r\n");
+    assertSameAsSplitParser("1,2\t\t\t3,4\n\n\n5,6");
+  }
+
+  @Test
+  public void parsesExponents() {
+    assertSameAsSplitParser("1e-3,4.5E2 -1.5e+1,2.0e0,1E3");
+    assertSameAsSplitParser("1.2345678901234567e-7,-9.87654321E-5");
+  }
+
+  @Test
+  public void parsesSignsAndPartialDecimals() {
+    assertSameAsSplitParser("+12.5,-0.0 .5,5. -.25,+.75");
+  }
+
+  @Test
+  public void parsesValuesWithManySignificantDigits() {
+    assertSameAsSplitParser("-122.08412345678901234,37.42212345678901234,0");
+    assertSameAsSplitParser("123456789012345678901234567890,0.000000000000000000000001");
+  }
+
+  @Test
+  public void skipsInvalidTuples() {
+    assertSameAsSplitParser("1,2 abc,3 4 5,x 6,7");
+    assertEquals(3, tokenizer.getInvalidCount());
+    assertSameAsSplitParser("1,2,");
+    assertSameAsSplitParser("");
+    assertSameAsSplitParser("   ");
+  }
+
+  @Test
+  public void parsesRandomValuesIdentically() {
+    Random random = new Random(42);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      double longitude = 360 * random.nextDouble() - 180;
+      double latitude = 180 * random.nextDouble() - 90;
+      int decimals = random.nextInt(17);
+      text.append(String.format(Locale.US, "%." + decimals + "f,", longitude));
+      text.append(random.nextBoolean() ? Double.toString(latitude)
+          : String.format(Locale.US, "%." + decimals + "f", latitude));
+      if (random.nextBoolean()) {
+        text.append(',').append(random.nextInt(5000));
+      }
+      text.append(random.nextInt(4) == 0 ? "\n" : " ");
+    }
+    assertSameAsSplitParser(text.toString());
+  }
+
+  @Test
+  public void acceptsWhitespaceAroundValueSeparators() {
+    // The split based parser treated these as separate, invalid tuples
+    assertEquals(2, tokenizer.parse("1 , 2 , 3\n4,\t5"));
+    assertArrayEquals(new double[] {1, 2, 4, 5}, tokenizer.copyCoordinates(), 0);
+    assertEquals(0, tokenizer.getInvalidCount());
+  }
+
+  @Test
+  public void reusesBufferBetweenCalls() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append(i).append(',').append(-i).append(' ');
+    }
+    assertEquals(1000, tokenizer.parse(text.toString()));
+    assertEquals(1, tokenizer.parse("7,8"));
+    assertArrayEquals(new double[] {7, 8}, tokenizer.copyCoordinates(), 0);
+    assertEquals(7, tokenizer.getLongitude(0), 0);
+    assertEquals(8, tokenizer.getLatitude(0), 0);
+  }
+
+  private void assertSameAsSplitParser(String text) {
+    double[] expected = parseWithSplit(text);
+    int count = tokenizer.parse(text);
+    assertEquals(text, expected.length / 2, count);
+    double[] actual = tokenizer.copyCoordinates();
+    for (int i = 0; i < expected.length; i++) {
+      // Values must be bit-identical, not just close
+      if (Double.doubleToLongBits(expected[i]) != Double.doubleToLongBits(actual[i])) {
+        throw new AssertionError("Value " + i + " differs: expected " + expected[i]
+            + " but was " + actual[i] + " in " + Arrays.toString(actual));
+      }
+    }
+  }
+
+  /** The coordinate parsing KmlParser used before CoordinateTokenizer. */
+  private static double[] parseWithSplit(String text) {
+    String[] tuples = text.trim().split("\\s+");
+    double[] coordinates = new double[2 * tuples.length];
+    int count = 0;
+    for (String tuple : tuples) {
+      String[] values = tuple.split(",");
+      if (values.length < 2) {
+        continue;
+      }
+      try {
+        coordinates[2 * count] = Double.parseDouble(values[0]);
+        coordinates[2 * count + 1] = Double.parseDouble(values[1]);
+        count++;
+      } catch (NumberFormatException ex) {
+        // Invalid coordinate ignored
+      }
+    }
+    return Arrays.copyOf(coordinates, 2 * count);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.custommapsapp.android.kml;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares CoordinateTokenizer with the regex split based parser KmlParser
+ * used before it, on the coordinates of a LineString of typical GPS tracks.
+ *
+ * @author Marko Teittinen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoordinateTokenizerBenchmark {
+  @Param({"100", "10000"})
+  public int tupleCount;
+
+  private final CoordinateTokenizer tokenizer = new CoordinateTokenizer();
+  private String text;
+
+  @Setup
+  public void createCoordinates() {
+    Random random = new Random(42);
+    StringBuilder builder = new StringBuilder();
+    double longitude = -122.084;
+    double latitude = 37.422;
+    for (int i = 0; i < tupleCount; i++) {
+      longitude += random.nextGaussian() * 1e-4;
+      latitude += random.nextGaussian() * 1e-4;
+      builder.append(String.format(Locale.US, "%.7f,%.7f,%d\n      ",
+          longitude, latitude, 100 + random.nextInt(50)));
+    }
+    text = builder.toString();
+  }
+
+  @Benchmark
+  public double[] tokenizer() {
+    tokenizer.parse(text);
+    return tokenizer.copyCoordinates();
+  }
+
+  @Benchmark
+  public double[] splitParser() {
+    return parseWithSplit(text);
+  }
+
+  /** The coordinate parsing KmlParser used before CoordinateTokenizer. */
+  private static double[] parseWithSplit(String text) {
+    String[] tuples = text.trim().split("\\s+");
+    double[] coordinates = new double[2 * tuples.length];
+    int count = 0;
+    for (String tuple : tuples) {
+      String[] values = tuple.split(",");
+      if (values.length < 2) {
+        continue;
+      }
+      try {
+        coordinates[2 * count] = Double.parseDouble(values[0]);
+        coordinates[2 * count + 1] = Double.parseDouble(values[1]);
+        count++;
+      } catch (NumberFormatException ex) {
+        // Invalid coordinate ignored
+      }
+    }
+    return Arrays.copyOf(coordinates, 2 * count);
+  }
+}